@@ -0,0 +1,474 @@
+package com.zereans.bench;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.zereans.applet.ZereansApplet;
+import com.zereans.emulator.CardSimulator;
+
+import javacard.framework.AID;
+
+/**
+ * Personalized wallet card on the emulator, with the host side of every
+ * command the benchmarks send
+ *
+ * Commands are exchanged without allocating, so the allocation profile of
+ * a benchmark is that of the emulator and the applet. Token commands are
+ * built into reused arrays; commands carrying a server ECDSA signature are
+ * built anew, since the signature length varies. The card keeps itself usable between invocations: sessions are
+ * renewed before the command window or transaction budget runs out and the
+ * balance is topped up with vouchers.
+ */
+final class BenchCard {
+    
+    static final byte[] APPLET_AID = {(byte)0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x06};
+    static final byte[] CARD_ID = {0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte)0x88};
+    static final byte[] MASTER_KEY = {
+        0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte)0x88, (byte)0x99, (byte)0xAA, (byte)0xBB, (byte)0xCC, (byte)0xDD, (byte)0xEE, (byte)0xFF
+    };
+    static final byte PARTNER_ID = 0x07;
+    static final int SW_OK = 0x9000;
+    private static final byte[] GET_CHALLENGE = {0x00, (byte) 0x84, 0x00, 0x00, 0x20};
+    
+    // Applet limits the host has to stay within
+    private static final int SESSION_COMMANDS = 60;      // applet window is 64
+    private static final int SESSION_TRANSACTIONS = 16;
+    private static final int TOP_UP_BALANCE = 100;
+    private static final int MAX_BALANCE = 30000;    // applet cap is 32767
+    private static final int MAX_AMOUNT = 10000;
+    static final int VOUCHERS = 3;
+    
+    // Host keys shared by all cards; generating them is not what we measure
+    static final KeyPair SERVER_KEYS = generateEcKeyPair();
+    static final KeyPair CARD_KEYS = generateEcKeyPair();
+    static final KeyPair PARTNER_KEYS = generateEcKeyPair();
+    
+    final CardSimulator card;
+    final AID aid;
+    final byte[] response = new byte[CardSimulator.DEFAULT_BUFFER_LENGTH + 2];
+    
+    // Reused command buffers
+    private final byte[] challengeData = new byte[32 + 8];
+    private final byte[] txnData = new byte[6 + 8 + 8];
+    private final byte[] fastDebitCommand = command(0x08, 4 + 16);
+    private final byte[] voucherCommand = command(0x0B, 1 + VOUCHERS * 4 + 16);
+    private final Cipher aes;
+    private final byte[] macInput = new byte[32];
+    private final byte[] mac = new byte[16];
+    private final byte[] k1 = new byte[16];
+    private final byte[] k2 = new byte[16];
+    
+    // Host view of the card
+    private int balance = 1000;
+    private short counter;
+    private short voucherCounter;
+    private long txnId;
+    private int sessionCommands = -1;
+    private int sessionTransactions;
+    
+    /**
+     * Install, select and personalize a card
+     */
+    BenchCard() {
+        card = new CardSimulator();
+        aid = card.installApplet(APPLET_AID, ZereansApplet.class, new byte[0]);
+        card.selectApplet(APPLET_AID);
+        try {
+            aes = Cipher.getInstance("AES/ECB/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(MASTER_KEY, "AES"));
+            aes.update(new byte[16], 0, 16, k1, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        shiftLeft(k1, k1);
+        shiftLeft(k1, k2);
+        check(card.transmit(personalizationCommand(0x10, firstPersonalizationSegment())));
+        check(card.transmit(personalizationCommand(0x00, secondPersonalizationSegment())));
+    }
+    
+    /**
+     * First personalization segment: card ID, master key, server key and card key pair
+     */
+    static byte[] firstPersonalizationSegment() {
+        return concat(
+            tlv(0x5A, CARD_ID),
+            tlv(0x81, MASTER_KEY),
+            tlv(0x91, encodePoint(SERVER_KEYS)),
+            tlv(0x99, scalar(CARD_KEYS)),
+            tlv(0x9A, encodePoint(CARD_KEYS)));
+    }
+    
+    /**
+     * Last personalization segment: the partner signature key
+     */
+    static byte[] secondPersonalizationSegment() {
+        return tlv(0x9B, concat(new byte[] {PARTNER_ID}, encodePoint(PARTNER_KEYS)));
+    }
+    
+    /**
+     * INITIALIZE or UPDATE KEYS command carrying personalization TLVs
+     */
+    static byte[] personalizationCommand(int cla, byte[] data) {
+        byte[] command = command(0x01, data.length);
+        command[0] = (byte) cla;
+        System.arraycopy(data, 0, command, 5, data.length);
+        return command;
+    }
+    
+    /**
+     * Exchange a command; returns the status word
+     */
+    int transmit(byte[] command) {
+        int length = card.transmit(command, 0, command.length, response, 0);
+        if (sessionCommands >= 0) {
+            sessionCommands++;
+        }
+        return sw(response, length);
+    }
+    
+    /**
+     * Status word at the end of a response of the given length
+     */
+    static int sw(byte[] response, int length) {
+        return ((response[length - 2] & 0xFF) << 8) | (response[length - 1] & 0xFF);
+    }
+    
+    /**
+     * SELECT the applet again; the applet drops the session
+     */
+    int select() {
+        int sw = transmit(concat(new byte[] {0x00, (byte) 0xA4, 0x04, 0x00, (byte) APPLET_AID.length}, APPLET_AID));
+        sessionCommands = -1;
+        return sw;
+    }
+    
+    /**
+     * UPDATE KEYS with the partner key, in a session of its own; the applet
+     * closes every session after it. Loaded keys are only replaced encrypted.
+     */
+    int updateKeys() {
+        check(authenticate());
+        int sw = transmit(updateKeysCommand());
+        sessionCommands = -1;
+        return sw;
+    }
+    
+    /**
+     * Plaintext UPDATE KEYS with the partner signature key
+     */
+    static byte[] updateKeysCommand() {
+        byte[] data = secondPersonalizationSegment();
+        byte[] command = command(0x06, data.length);
+        System.arraycopy(data, 0, command, 5, data.length);
+        return command;
+    }
+    
+    /**
+     * AUTHENTICATE signing a challenge fetched with GET CHALLENGE for this
+     * card; the session counts start over with the command that follows it
+     */
+    byte[] prepareAuthenticate() {
+        check(transmit(GET_CHALLENGE));
+        System.arraycopy(response, 0, challengeData, 0, 32);
+        System.arraycopy(CARD_ID, 0, challengeData, 32, 8);
+        byte[] signature = sign(SERVER_KEYS, challengeData);
+        byte[] command = extendedCommand(0x02, 32 + signature.length);
+        System.arraycopy(challengeData, 0, command, 7, 32);
+        System.arraycopy(signature, 0, command, 7 + 32, signature.length);
+        sessionCommands = -1;
+        sessionTransactions = 0;
+        return command;
+    }
+    
+    /**
+     * Open a new session
+     */
+    int authenticate() {
+        int sw = transmit(prepareAuthenticate());
+        sessionCommands = 0;
+        return sw;
+    }
+    
+    /**
+     * Renew the session if the next command could find it expired
+     */
+    void ensureSession() {
+        if (sessionCommands < 0 || sessionCommands >= SESSION_COMMANDS) {
+            check(authenticate());
+        }
+    }
+    
+    /**
+     * Session for one more transaction, and balance for a debit of 1
+     */
+    void ensureTransaction() {
+        ensureBalance();
+        if (sessionTransactions >= SESSION_TRANSACTIONS) {
+            check(authenticate());
+        }
+        ensureSession();
+    }
+    
+    /**
+     * Top the balance up with vouchers before it runs out
+     */
+    void ensureBalance() {
+        if (balance < TOP_UP_BALANCE) {
+            check(transmit(prepareVouchers(MAX_AMOUNT)));
+        }
+    }
+    
+    /**
+     * Spend the balance down with a fast debit before credits hit the cap
+     */
+    void ensureHeadroom() {
+        if (balance > MAX_BALANCE) {
+            check(transmit(prepareFastDebit(MAX_AMOUNT)));
+        }
+    }
+    
+    /**
+     * TRANSACTION debiting 1 with a fresh ID, signed by the server over
+     * amount | balance | counter | ID | card ID
+     */
+    byte[] prepareTransaction() {
+        long id = ++txnId;
+        txnData[0] = 0x00;
+        txnData[1] = 0x01;
+        txnData[2] = (byte) (balance >> 8);
+        txnData[3] = (byte) balance;
+        txnData[4] = (byte) (counter >> 8);
+        txnData[5] = (byte) counter;
+        for (int i = 0; i < 8; i++) {
+            txnData[6 + i] = (byte) (id >>> (56 - 8 * i));
+        }
+        System.arraycopy(CARD_ID, 0, txnData, 14, 8);
+        byte[] signature = sign(SERVER_KEYS, txnData);
+        byte[] txnCommand = extendedCommand(0x03, 2 + 8 + signature.length);
+        System.arraycopy(txnData, 0, txnCommand, 7, 2);
+        System.arraycopy(txnData, 6, txnCommand, 9, 8);
+        System.arraycopy(signature, 0, txnCommand, 17, signature.length);
+        balance--;
+        counter++;
+        sessionTransactions++;
+        return txnCommand;
+    }
+    
+    /**
+     * FAST DEBIT with a token for this card and the current counter
+     */
+    byte[] prepareFastDebit(int amount) {
+        byte[] data = macInput;
+        data[0] = 0x01;
+        System.arraycopy(CARD_ID, 0, data, 1, 8);
+        data[9] = (byte) (counter >> 8);
+        data[10] = (byte) counter;
+        data[11] = (byte) (amount >> 8);
+        data[12] = (byte) amount;
+        cmac(data, 13);
+        System.arraycopy(data, 11, fastDebitCommand, 5, 2);
+        System.arraycopy(data, 9, fastDebitCommand, 7, 2);
+        System.arraycopy(mac, 0, fastDebitCommand, 9, 16);
+        balance -= amount;
+        counter++;
+        return fastDebitCommand;
+    }
+    
+    /**
+     * REDEEM VOUCHERS crediting VOUCHERS vouchers of the given amount
+     */
+    byte[] prepareVouchers(int amount) {
+        byte[] command = voucherCommand;
+        int signedLength = 1 + VOUCHERS * 4;
+        command[5] = (byte) VOUCHERS;
+        for (int i = 0; i < VOUCHERS; i++) {
+            voucherCounter++;
+            command[6 + i * 4] = (byte) (voucherCounter >> 8);
+            command[7 + i * 4] = (byte) voucherCounter;
+            command[8 + i * 4] = (byte) (amount >> 8);
+            command[9 + i * 4] = (byte) amount;
+        }
+        macInput[0] = 0x03;
+        System.arraycopy(CARD_ID, 0, macInput, 1, 8);
+        System.arraycopy(command, 5, macInput, 9, signedLength);
+        cmac(macInput, 9 + signedLength);
+        System.arraycopy(mac, 0, command, 5 + signedLength, 16);
+        balance += VOUCHERS * amount;
+        counter += VOUCHERS;
+        return command;
+    }
+    
+    /**
+     * VERIFY SIGNATURE of 32 bytes signed with the server key
+     */
+    static byte[] verifyCommand() {
+        byte[] message = new byte[32];
+        fillRandom(message, 0, 32, 7);
+        byte[] data = concat(message, sign(SERVER_KEYS, message));
+        byte[] command = extendedCommand(0x07, data.length);
+        System.arraycopy(data, 0, command, 7, data.length);
+        return command;
+    }
+    
+    /**
+     * VERIFY BATCH with the server key over three messages, one of them tampered with
+     */
+    static byte[] verifyBatchCommand() {
+        byte[] pairs = new byte[0];
+        for (int i = 0; i < 3; i++) {
+            byte[] message = ("message " + i).getBytes();
+            byte[] signature = sign(SERVER_KEYS, i == 1 ? new byte[] {0x00} : message);
+            pairs = concat(pairs, new byte[] {(byte) message.length}, message, new byte[] {(byte) signature.length}, signature);
+        }
+        byte[] command = command(0x0D, pairs.length);
+        System.arraycopy(pairs, 0, command, 5, pairs.length);
+        return command;
+    }
+    
+    /**
+     * Fail the benchmark on an unexpected status word
+     */
+    int check(int sw) {
+        if (sw != SW_OK) {
+            Throwable error = card.getLastError();
+            throw new IllegalStateException(String.format("Card returned %04X", sw), error);
+        }
+        return sw;
+    }
+    
+    private void check(byte[] response) {
+        check(CardSimulator.getSW(response));
+    }
+    
+    /**
+     * AES-CMAC (RFC 4493) of the first length bytes into mac, allocation free
+     */
+    private void cmac(byte[] message, int length) {
+        int blocks = Math.max(1, (length + 15) / 16);
+        boolean complete = length > 0 && length % 16 == 0;
+        byte[] subkey = complete ? k1 : k2;
+        Arrays.fill(mac, (byte) 0);
+        try {
+            for (int i = 0; i < blocks; i++) {
+                for (int j = 0; j < 16; j++) {
+                    int index = i * 16 + j;
+                    byte value = index < length ? message[index] : (index == length ? (byte) 0x80 : 0);
+                    if (i == blocks - 1) {
+                        value ^= subkey[j];
+                    }
+                    mac[j] ^= value;
+                }
+                aes.update(mac, 0, 16, mac, 0);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Deterministic random-looking bytes (SplitMix64)
+     */
+    private static void fillRandom(byte[] buffer, int offset, int length, long seed) {
+        long state = seed;
+        for (int i = 0; i < length; i += 8) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= z >>> 31;
+            for (int j = 0; j < 8 && i + j < length; j++) {
+                buffer[offset + i + j] = (byte) (z >>> (8 * j));
+            }
+        }
+    }
+    
+    private static void shiftLeft(byte[] block, byte[] out) {
+        int carry = (block[0] & 0x80) != 0 ? 0x87 : 0;
+        for (int i = 0; i < 16; i++) {
+            out[i] = (byte) ((block[i] << 1) | (i < 15 ? (block[i + 1] & 0xFF) >>> 7 : 0));
+        }
+        out[15] ^= (byte) carry;
+    }
+    
+    static byte[] command(int ins, int dataLength) {
+        byte[] command = new byte[5 + dataLength];
+        command[1] = (byte) ins;
+        command[4] = (byte) dataLength;
+        return command;
+    }
+    
+    static byte[] extendedCommand(int ins, int dataLength) {
+        byte[] command = new byte[7 + dataLength + 2];
+        command[1] = (byte) ins;
+        command[5] = (byte) (dataLength >> 8);
+        command[6] = (byte) dataLength;
+        return command;
+    }
+    
+    private static KeyPair generateEcKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static byte[] sign(KeyPair pair, byte[] message) {
+        try {
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(pair.getPrivate());
+            signature.update(message);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    static byte[] encodePoint(KeyPair pair) {
+        ECPoint w = ((ECPublicKey) pair.getPublic()).getW();
+        return concat(new byte[] {0x04}, unsigned(w.getAffineX()), unsigned(w.getAffineY()));
+    }
+    
+    private static byte[] scalar(KeyPair pair) {
+        return unsigned(((ECPrivateKey) pair.getPrivate()).getS());
+    }
+    
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] out = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, out, 32 - length, length);
+        return out;
+    }
+    
+    static byte[] tlv(int tag, byte[] value) {
+        return concat(new byte[] {(byte) tag, (byte) value.length}, value);
+    }
+    
+    static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,85 @@
+package com.zereans.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark entry point
+ *
+ * Runs JMH with the GC profiler, so every result carries allocation per
+ * operation, and writes the JSON result to results/BUILD.json. The run is
+ * then compared with the newest earlier result; any regression makes the
+ * exit status 1. JMH options on the command line are passed through, e.g.
+ * a benchmark regex to run a subset. Listing and help options (-l, -lp,
+ * -lprof, -lrf, -h) print what JMH would and return without running or
+ * archiving anything.
+ *
+ * System properties:
+ *   bench.build       build ID for the result file (default: BUILD_NUMBER or a timestamp)
+ *   bench.results     result directory (default: results)
+ *   bench.threshold   regression threshold (default: 0.10)
+ */
+public final class BenchmarkMain {
+    
+    private BenchmarkMain() {
+    }
+    
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        if (commandLine.shouldListProfilers()) {
+            commandLine.listProfilers();
+            return;
+        }
+        if (commandLine.shouldListResultFormats()) {
+            commandLine.listResultFormats();
+            return;
+        }
+        if (commandLine.shouldList() || commandLine.shouldListWithParams()) {
+            Runner runner = new Runner(commandLine);
+            if (commandLine.shouldListWithParams()) {
+                runner.listWithParams(commandLine);
+            } else {
+                runner.list();
+            }
+            return;
+        }
+        
+        String build = System.getProperty("bench.build", System.getenv("BUILD_NUMBER"));
+        if (build == null || build.isEmpty()) {
+            build = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        }
+        File directory = new File(System.getProperty("bench.results", "results"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+        double threshold = Double.parseDouble(System.getProperty("bench.threshold", "0.10"));
+        
+        ResultArchive archive = new ResultArchive(directory);
+        File result = archive.fileFor(build);
+        Options options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(result.getPath())
+            .build();
+        new Runner(options).run();
+        System.out.println("Results archived in " + result);
+        
+        File baseline = archive.previous(result);
+        if (baseline != null && ResultArchive.compare(baseline, result, threshold) > 0) {
+            System.exit(1);
+        }
+    }
+}
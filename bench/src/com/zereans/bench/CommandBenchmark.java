@@ -0,0 +1,225 @@
+package com.zereans.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.zereans.applet.ZereansApplet;
+import com.zereans.emulator.CardSimulator;
+
+/**
+ * Latency and throughput of every applet command, sent through
+ * ZereansApplet.process() on the emulator
+ *
+ * Each command gets a card in the state it needs; whatever the card needs
+ * before the next invocation (a fresh challenge, a new session, a token
+ * for the next counter, a top-up) is prepared outside the measurement.
+ * UNKNOWN is the floor: emulator dispatch plus the applet's command
+ * preamble, with no command work.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    
+    /**
+     * Personalized card; commands that need no session
+     */
+    @State(Scope.Thread)
+    public static class Card {
+        BenchCard card;
+        byte[] status = {0x00, 0x05, 0x00, 0x00, 0x04};
+        byte[] getData = {0x00, (byte) 0xCA, 0x00, 0x00, 0x00};
+        byte[] unknown = {0x00, 0x7F, 0x00, 0x00, 0x00};
+        
+        @Setup(Level.Trial)
+        public void install() {
+            card = new BenchCard();
+        }
+    }
+    
+    /**
+     * Card with an open session, renewed before its command window ends
+     */
+    @State(Scope.Thread)
+    public static class SessionCard extends Card {
+        byte[] balance = {0x00, 0x04, 0x00, 0x00, 0x02};
+        byte[] readJournal = {0x00, 0x0A, 0x00, 0x00, 0x00};
+        byte[] sync = {0x00, 0x0C, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00};
+        byte[] verify = BenchCard.verifyCommand();
+        byte[] verifyBatch = BenchCard.verifyBatchCommand();
+        byte[] registerClient = BenchCard.concat(
+            new byte[] {0x00, 0x09, 0x00, 0x00, 0x0C, 0x01, 0x00, 0x64},
+            new byte[] {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0D, 0x01});
+        
+        @Setup(Level.Invocation)
+        public void renew() {
+            card.ensureSession();
+        }
+    }
+    
+    /**
+     * Card ready for one more debit of 1 within the session budget
+     */
+    @State(Scope.Thread)
+    public static class TransactionCard extends Card {
+        byte[] command;
+        
+        @Setup(Level.Invocation)
+        public void prepare() {
+            card.ensureTransaction();
+            command = card.prepareTransaction();
+        }
+    }
+    
+    /**
+     * Card with a fast debit token for its current counter
+     */
+    @State(Scope.Thread)
+    public static class FastDebitCard extends Card {
+        byte[] command;
+        
+        @Setup(Level.Invocation)
+        public void prepare() {
+            card.ensureBalance();
+            command = card.prepareFastDebit(1);
+        }
+    }
+    
+    /**
+     * Card with the next voucher batch and room under the balance cap
+     */
+    @State(Scope.Thread)
+    public static class VoucherCard extends Card {
+        byte[] command;
+        
+        @Setup(Level.Invocation)
+        public void prepare() {
+            card.ensureHeadroom();
+            command = card.prepareVouchers(1);
+        }
+    }
+    
+    /**
+     * Card with the next fresh challenge
+     */
+    @State(Scope.Thread)
+    public static class AuthenticateCard extends Card {
+        byte[] command;
+        
+        @Setup(Level.Invocation)
+        public void prepare() {
+            command = card.prepareAuthenticate();
+        }
+    }
+    
+    /**
+     * Card with a session for a key update; the update closes every session
+     */
+    @State(Scope.Thread)
+    public static class KeyUpdateCard extends Card {
+        byte[] command = BenchCard.updateKeysCommand();
+        
+        @Setup(Level.Invocation)
+        public void prepare() {
+            card.check(card.authenticate());
+        }
+    }
+    
+    /**
+     * Newly installed and selected applet, as before personalization
+     */
+    @State(Scope.Thread)
+    public static class BlankCard {
+        CardSimulator card;
+        byte[] response = new byte[CardSimulator.DEFAULT_BUFFER_LENGTH + 2];
+        byte[] first = BenchCard.personalizationCommand(0x10, BenchCard.firstPersonalizationSegment());
+        byte[] last = BenchCard.personalizationCommand(0x00, BenchCard.secondPersonalizationSegment());
+        
+        @Setup(Level.Invocation)
+        public void install() {
+            card = new CardSimulator();
+            card.installApplet(BenchCard.APPLET_AID, ZereansApplet.class);
+            card.selectApplet(BenchCard.APPLET_AID);
+        }
+    }
+    
+    @Benchmark
+    public int initialize(BlankCard state) {
+        state.card.transmit(state.first, 0, state.first.length, state.response, 0);
+        int length = state.card.transmit(state.last, 0, state.last.length, state.response, 0);
+        return BenchCard.sw(state.response, length);
+    }
+    
+    @Benchmark
+    public int authenticate(AuthenticateCard state) {
+        return state.card.check(state.card.transmit(state.command));
+    }
+    
+    @Benchmark
+    public int transaction(TransactionCard state) {
+        return state.card.check(state.card.transmit(state.command));
+    }
+    
+    @Benchmark
+    public int getBalance(SessionCard state) {
+        return state.card.check(state.card.transmit(state.balance));
+    }
+    
+    @Benchmark
+    public int getStatus(Card state) {
+        return state.card.check(state.card.transmit(state.status));
+    }
+    
+    @Benchmark
+    public int updateKeys(KeyUpdateCard state) {
+        return state.card.check(state.card.transmit(state.command));
+    }
+    
+    @Benchmark
+    public int verifySignature(SessionCard state) {
+        return state.card.check(state.card.transmit(state.verify));
+    }
+    
+    @Benchmark
+    public int getData(Card state) {
+        return state.card.check(state.card.transmit(state.getData));
+    }
+    
+    @Benchmark
+    public int fastDebit(FastDebitCard state) {
+        return state.card.check(state.card.transmit(state.command));
+    }
+    
+    @Benchmark
+    public int registerClient(SessionCard state) {
+        return state.card.check(state.card.transmit(state.registerClient));
+    }
+    
+    @Benchmark
+    public int readJournal(SessionCard state) {
+        return state.card.check(state.card.transmit(state.readJournal));
+    }
+    
+    @Benchmark
+    public int redeemVouchers(VoucherCard state) {
+        return state.card.check(state.card.transmit(state.command));
+    }
+    
+    @Benchmark
+    public int sync(SessionCard state) {
+        return state.card.check(state.card.transmit(state.sync));
+    }
+    
+    @Benchmark
+    public int verifyBatch(SessionCard state) {
+        return state.card.check(state.card.transmit(state.verifyBatch));
+    }
+    
+    @Benchmark
+    public int unknown(Card state) {
+        return state.card.transmit(state.unknown);
+    }
+}
@@ -0,0 +1,207 @@
+package com.zereans.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import javacard.security.ECPrivateKey;
+import javacard.security.ECPublicKey;
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+
+import com.zereans.applet.NetworkProtocol;
+import com.zereans.applet.Secp256r1;
+
+/**
+ * NetworkProtocol methods called directly, in the context of an installed applet
+ *
+ * Two protocol instances talk to each other under the same partner ID:
+ * "card" is measured, "peer" produces the frames it receives. Each holds
+ * the other's handshake signing key and both have completed the
+ * handshake, so authenticated messages carry real CMACs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkProtocolBenchmark {
+    
+    private static final byte PARTNER = 0x05;
+    private static final short FRAGMENT_LENGTH = 128;
+    
+    @State(Scope.Thread)
+    public static class Protocols {
+        BenchCard card;
+        NetworkProtocol protocol;
+        NetworkProtocol peer;
+        byte[] data = new byte[32];
+        byte[] largeData = new byte[400];
+        byte[] frame = new byte[512];
+        byte[] output = new byte[512];
+        short frameLength;
+        
+        @Setup(Level.Trial)
+        public void connect() {
+            card = new BenchCard();
+            card.card.enter(card.aid);
+            protocol = new NetworkProtocol();
+            peer = new NetworkProtocol();
+            protocol.addPartner(PARTNER);
+            peer.addPartner(PARTNER);
+            exchangeSigningKeys(protocol, peer);
+            handshake(protocol, peer, frame, output);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+        }
+    }
+    
+    /**
+     * A fresh transaction frame from the peer for every invocation
+     */
+    @State(Scope.Thread)
+    public static class InboundMessage extends Protocols {
+        @Setup(Level.Invocation)
+        public void send() {
+            frameLength = peer.createTransactionMessage(PARTNER, data, (short) data.length, frame, (short) 0);
+        }
+    }
+    
+    /**
+     * A fresh batch of eight entries from the peer for every invocation
+     */
+    @State(Scope.Thread)
+    public static class InboundBatch extends Protocols {
+        @Setup(Level.Invocation)
+        public void send() {
+            peer.beginBatch(PARTNER);
+            for (short i = 0; i < 8; i++) {
+                peer.addBatchEntry((byte) 0x02, data, (short) 0, (short) 16);
+            }
+            frameLength = peer.createBatchMessage(frame, (short) 0);
+        }
+    }
+    
+    /**
+     * A 400-byte message ready to be split into fragments
+     */
+    @State(Scope.Thread)
+    public static class LargeMessage extends Protocols {
+        @Setup(Level.Iteration)
+        public void create() {
+            frameLength = protocol.createTransactionMessage(PARTNER, largeData, (short) largeData.length, frame, (short) 0);
+        }
+    }
+    
+    @Benchmark
+    public short createTransactionMessage(Protocols state) {
+        return state.protocol.createTransactionMessage(PARTNER, state.data, (short) state.data.length, state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short createResponseMessage(Protocols state) {
+        return state.protocol.createResponseMessage(PARTNER, (byte) 0x00, state.data, (short) state.data.length,
+                                                    state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short createErrorMessage(Protocols state) {
+        return state.protocol.createErrorMessage(PARTNER, (byte) 0x02, state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short createAuthenticationMessage(Protocols state) {
+        return state.protocol.createAuthenticationMessage(PARTNER, state.data, (short) state.data.length,
+                                                          state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public boolean parseMessage(InboundMessage state) {
+        return state.protocol.parseMessage(state.frame, (short) 0, state.frameLength);
+    }
+    
+    @Benchmark
+    public boolean verifyMessageIntegrity(InboundMessage state) {
+        return state.protocol.verifyMessageIntegrity(state.frame, (short) 0, state.frameLength);
+    }
+    
+    @Benchmark
+    public short createBatchMessage(Protocols state) {
+        state.protocol.beginBatch(PARTNER);
+        for (short i = 0; i < 8; i++) {
+            state.protocol.addBatchEntry((byte) 0x02, state.data, (short) 0, (short) 16);
+        }
+        return state.protocol.createBatchMessage(state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short parseBatchMessage(InboundBatch state) {
+        state.protocol.parseMessage(state.frame, (short) 0, state.frameLength);
+        short total = 0;
+        short length;
+        while ((length = state.protocol.nextBatchEntry(state.output, (short) 0)) >= 0) {
+            total += length;
+        }
+        return total;
+    }
+    
+    @Benchmark
+    public short createFragments(LargeMessage state) {
+        short count = state.protocol.getFragmentCount(FRAGMENT_LENGTH);
+        short total = 0;
+        for (short i = 0; i < count; i++) {
+            total += state.protocol.createFragment(i, FRAGMENT_LENGTH, state.output, (short) 0);
+        }
+        return total;
+    }
+    
+    @Benchmark
+    public short createHandshakeMessage(Protocols state) {
+        return state.protocol.createHandshakeMessage(PARTNER, state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public boolean handshake(Protocols state) {
+        return handshake(state.protocol, state.peer, state.frame, state.output);
+    }
+    
+    @Benchmark
+    public void clearSensitiveData(Protocols state) {
+        state.protocol.clearSensitiveData();
+    }
+    
+    /**
+     * Give each instance a signing key and the other's public key
+     */
+    static void exchangeSigningKeys(NetworkProtocol a, NetworkProtocol b) {
+        KeyPair keysA = newSigningKeys();
+        KeyPair keysB = newSigningKeys();
+        a.setSigningKey((ECPrivateKey) keysA.getPrivate());
+        b.setSigningKey((ECPrivateKey) keysB.getPrivate());
+        byte[] point = new byte[65];
+        short length = ((ECPublicKey) keysB.getPublic()).getW(point, (short) 0);
+        a.setPartnerKey(PARTNER, point, (short) 0, length);
+        length = ((ECPublicKey) keysA.getPublic()).getW(point, (short) 0);
+        b.setPartnerKey(PARTNER, point, (short) 0, length);
+    }
+    
+    private static KeyPair newSigningKeys() {
+        KeyPair keys = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+        Secp256r1.setParameters((ECPublicKey) keys.getPublic());
+        Secp256r1.setParameters((ECPrivateKey) keys.getPrivate());
+        keys.genKeyPair();
+        return keys;
+    }
+    
+    /**
+     * Signed ephemeral ECDH between two instances: a starts the handshake
+     * and b answers it; both derive the same pair of session keys
+     */
+    static boolean handshake(NetworkProtocol a, NetworkProtocol b, byte[] frameA, byte[] frameB) {
+        short lengthA = a.createHandshakeMessage(PARTNER, frameA, (short) 0);
+        boolean started = b.parseMessage(frameA, (short) 0, lengthA);
+        short lengthB = b.createHandshakeMessage(PARTNER, frameB, (short) 0);
+        return started & a.parseMessage(frameB, (short) 0, lengthB);
+    }
+}
@@ -0,0 +1,215 @@
+package com.zereans.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory of JMH JSON results, one file per build
+ *
+ * Compares a run with the previous build: a benchmark regresses when its
+ * score gets worse, or its allocation per operation grows, by more than the
+ * threshold. Only benchmarks present in both runs with the same mode and
+ * parameters are compared.
+ */
+final class ResultArchive {
+    
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    private static final double MIN_ALLOCATION_DELTA = 16; // bytes/op, below is noise
+    
+    private final File directory;
+    
+    ResultArchive(File directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * Result file of a build
+     */
+    File fileFor(String build) {
+        return new File(directory, build + ".json");
+    }
+    
+    /**
+     * Newest result file other than the given one, or null
+     */
+    File previous(File current) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        File newest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (!file.equals(current) && (newest == null || file.lastModified() > newest.lastModified())) {
+                    newest = file;
+                }
+            }
+        }
+        return newest;
+    }
+    
+    /**
+     * Print the comparison of two result files; returns the number of regressions
+     */
+    static int compare(File baseline, File current, double threshold) throws IOException {
+        Map<String, Score> before = read(baseline);
+        Map<String, Score> after = read(current);
+        int regressions = 0;
+        
+        System.out.printf("%nComparison with %s (threshold %.0f%%)%n", baseline.getName(), threshold * 100);
+        for (Map.Entry<String, Score> entry : after.entrySet()) {
+            Score old = before.get(entry.getKey());
+            if (old == null) {
+                continue;
+            }
+            Score now = entry.getValue();
+            double change = (now.score - old.score) / old.score;
+            boolean slower = now.higherIsBetter() ? -change > threshold : change > threshold;
+            boolean allocates = now.allocation - old.allocation > Math.max(MIN_ALLOCATION_DELTA, old.allocation * threshold);
+            String flag = slower || allocates ? "REGRESSION" : "";
+            if (slower || allocates) {
+                regressions++;
+            }
+            System.out.printf("%-70s %+7.1f%%  %10.0f -> %10.0f B/op  %s%n",
+                entry.getKey(), change * 100, old.allocation, now.allocation, flag);
+        }
+        return regressions;
+    }
+    
+    /**
+     * Primary score and normalized allocation of every benchmark in a result file
+     */
+    static Map<String, Score> read(File file) throws IOException {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        for (Object item : (List<?>) new Parser(json).value()) {
+            Map<?, ?> run = (Map<?, ?>) item;
+            String mode = (String) run.get("mode");
+            Object params = run.get("params");
+            String key = run.get("benchmark") + " " + mode + (params != null ? " " + params : "");
+            
+            Score score = new Score();
+            score.mode = mode;
+            score.score = ((Number) ((Map<?, ?>) run.get("primaryMetric")).get("score")).doubleValue();
+            Map<?, ?> secondary = (Map<?, ?>) run.get("secondaryMetrics");
+            if (secondary != null) {
+                for (Map.Entry<?, ?> metric : secondary.entrySet()) {
+                    if (((String) metric.getKey()).endsWith(ALLOCATION)) {
+                        score.allocation = ((Number) ((Map<?, ?>) metric.getValue()).get("score")).doubleValue();
+                    }
+                }
+            }
+            scores.put(key, score);
+        }
+        return scores;
+    }
+    
+    static final class Score {
+        String mode;
+        double score;
+        double allocation;
+        
+        boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+    }
+    
+    /**
+     * Minimal JSON reader for JMH result files: objects become maps, arrays
+     * lists, numbers doubles; "NaN" scores read as NaN
+     */
+    private static final class Parser {
+        private final String text;
+        private int position;
+        
+        Parser(String text) {
+            this.text = text;
+        }
+        
+        Object value() {
+            skipWhitespace();
+            char c = text.charAt(position);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<String, Object>();
+                position++;
+                while (next() != '}') {
+                    String name = string();
+                    expect(':');
+                    object.put(name, value());
+                    if (next() == ',') {
+                        position++;
+                    }
+                }
+                position++;
+                return object;
+            }
+            if (c == '[') {
+                List<Object> array = new ArrayList<Object>();
+                position++;
+                while (next() != ']') {
+                    array.add(value());
+                    if (next() == ',') {
+                        position++;
+                    }
+                }
+                position++;
+                return array;
+            }
+            if (c == '"') {
+                String value = string();
+                return "NaN".equals(value) ? Double.NaN : value;
+            }
+            int start = position;
+            while (position < text.length() && ",}] \t\r\n".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.equals("true") || literal.equals("false")) {
+                return Boolean.valueOf(literal);
+            }
+            return literal.equals("null") ? null : Double.valueOf(literal);
+        }
+        
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            char c;
+            while ((c = text.charAt(position++)) != '"') {
+                if (c == '\\') {
+                    c = text.charAt(position++);
+                    if (c == 'u') {
+                        c = (char) Integer.parseInt(text.substring(position, position + 4), 16);
+                        position += 4;
+                    } else if (c == 'n') {
+                        c = '\n';
+                    } else if (c == 't') {
+                        c = '\t';
+                    }
+                }
+                value.append(c);
+            }
+            return value.toString();
+        }
+        
+        private char next() {
+            skipWhitespace();
+            return text.charAt(position);
+        }
+        
+        private void expect(char c) {
+            if (next() != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + position);
+            }
+            position++;
+        }
+        
+        private void skipWhitespace() {
+            while (Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
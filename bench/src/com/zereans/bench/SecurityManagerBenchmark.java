@@ -0,0 +1,119 @@
+package com.zereans.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+
+import com.zereans.applet.SecurityManager;
+
+/**
+ * SecurityManager methods called directly, in the context of an installed applet
+ *
+ * The RSA key pair is generated once per fork; updateKeys regenerates it on
+ * every call and is measured as single shots. generateSessionKey is left
+ * out: its RSA output does not fit the 16-byte buffer it is written to, so
+ * it always fails.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityManagerBenchmark {
+    
+    private static final short STREAM_LENGTH = 224; // two chained segments, whole blocks
+    
+    @State(Scope.Thread)
+    public static class Manager {
+        BenchCard card;
+        SecurityManager manager;
+        byte[] data = new byte[64];
+        byte[] ciphertext = new byte[80];
+        byte[] hash = new byte[32];
+        byte[] signature = new byte[256];
+        byte[] stream = new byte[STREAM_LENGTH / 2 + 16 + SecurityManager.STREAM_TAG_LENGTH];
+        byte[] iv = new byte[16];
+        byte[] output = new byte[256];
+        
+        @Setup(Level.Trial)
+        public void create() {
+            card = new BenchCard();
+            card.card.enter(card.aid);
+            manager = new SecurityManager();
+            if (!manager.initializeKeys()) {
+                throw new IllegalStateException("initializeKeys failed");
+            }
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            AESKey streamKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+            streamKey.setKey(data, (short) 0);
+            manager.setStreamKey(streamKey);
+            manager.encryptData(data, (short) 0, (short) data.length, ciphertext, (short) 0);
+            manager.computeHash(data, (short) 0, (short) data.length, hash, (short) 0);
+            manager.signData(data, (short) 0, (short) data.length, signature, (short) 0);
+        }
+    }
+    
+    @Benchmark
+    public short encryptData(Manager state) {
+        return state.manager.encryptData(state.data, (short) 0, (short) state.data.length, state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short decryptData(Manager state) {
+        return state.manager.decryptData(state.ciphertext, (short) 0, (short) state.ciphertext.length,
+                                         state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short streamEncrypt(Manager state) {
+        // Both segments in the same buffer, as in consecutive APDUs
+        state.manager.beginStream(SecurityManager.STREAM_ENCRYPT, state.iv, (short) 0);
+        state.manager.updateStream(state.stream, (short) 0, (short) (STREAM_LENGTH / 2));
+        return state.manager.finishStream(state.stream, (short) 0, (short) (STREAM_LENGTH / 2));
+    }
+    
+    @Benchmark
+    public short computeHash(Manager state) {
+        return state.manager.computeHash(state.data, (short) 0, (short) state.data.length, state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public boolean verifyIntegrity(Manager state) {
+        return state.manager.verifyIntegrity(state.data, (short) 0, (short) state.data.length, state.hash, (short) 0);
+    }
+    
+    @Benchmark
+    public short signData(Manager state) {
+        return state.manager.signData(state.data, (short) 0, (short) state.data.length, state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public boolean verifySignature(Manager state) {
+        return state.manager.verifySignature(state.data, (short) 0, (short) state.data.length,
+                                             state.signature, (short) 0, (short) state.signature.length);
+    }
+    
+    @Benchmark
+    public short getPublicKey(Manager state) {
+        return state.manager.getPublicKey(state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public void clearSensitiveData(Manager state) {
+        state.manager.clearSensitiveData();
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public boolean updateKeys(Manager state) {
+        return state.manager.updateKeys();
+    }
+}
@@ -0,0 +1,80 @@
+package com.zereans.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.zereans.applet.TransactionManager;
+
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+import javacard.security.PrivateKey;
+import javacard.security.PublicKey;
+
+/**
+ * TransactionManager methods called directly, in the context of an installed applet
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionManagerBenchmark {
+    
+    @State(Scope.Thread)
+    public static class Manager {
+        BenchCard card;
+        TransactionManager manager;
+        PrivateKey privateKey;
+        PublicKey publicKey;
+        byte[] data = new byte[48];
+        byte[] output = new byte[256];
+        
+        @Setup(Level.Trial)
+        public void create() {
+            card = new BenchCard();
+            card.card.enter(card.aid);
+            manager = new TransactionManager();
+            KeyPair pair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+            pair.genKeyPair();
+            privateKey = pair.getPrivate();
+            publicKey = pair.getPublic();
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            if (!manager.createTransaction(data, (short) 0, (short) data.length, privateKey)) {
+                throw new IllegalStateException("createTransaction failed");
+            }
+        }
+    }
+    
+    @Benchmark
+    public boolean createTransaction(Manager state) {
+        return state.manager.createTransaction(state.data, (short) 0, (short) state.data.length, state.privateKey);
+    }
+    
+    @Benchmark
+    public boolean verifyTransaction(Manager state) {
+        return state.manager.verifyTransaction(state.data, (short) 0, (short) state.data.length, state.publicKey);
+    }
+    
+    @Benchmark
+    public short getTransactionData(Manager state) {
+        return state.manager.getTransactionData(state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short getSignature(Manager state) {
+        return state.manager.getSignature(state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public short getTransactionHash(Manager state) {
+        return state.manager.getTransactionHash(state.output, (short) 0);
+    }
+    
+    @Benchmark
+    public void clearTransaction(Manager state) {
+        state.manager.clearTransaction();
+    }
+}
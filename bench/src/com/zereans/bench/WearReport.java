@@ -0,0 +1,143 @@
+package com.zereans.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zereans.emulator.WearProfiler;
+
+/**
+ * EEPROM wear report for a production traffic mix
+ *
+ * Sends a sample of every command in the mix to a personalized card with a
+ * WearProfiler attached, prints the per-INS write profile and projects the
+ * card lifetime for the mix. Commands the card needs to stay usable, such
+ * as session renewals and top-ups, are profiled under their own INS.
+ *
+ * Arguments: [mix] [samples per INS]. The mix is INS=commands per day,
+ * hexadecimal INS, comma separated, e.g. 02=20,03=40,04=60.
+ *
+ * System properties:
+ *   wear.pageSize     EEPROM page size in bytes (default: 64)
+ *   wear.endurance    program cycles per page (default: 500000)
+ */
+public final class WearReport {
+    
+    // A terminal day: a few sessions, debits, balance checks and top-ups
+    private static final String DEFAULT_MIX = "A4=30,02=20,03=20,04=40,05=10,08=60,0B=5,0C=2";
+    private static final int DEFAULT_SAMPLES = 200;
+    
+    private static final byte[] BALANCE = {0x00, 0x04, 0x00, 0x00, 0x02};
+    private static final byte[] STATUS = {0x00, 0x05, 0x00, 0x00, 0x04};
+    private static final byte[] GET_DATA = {0x00, (byte) 0xCA, 0x00, 0x00, 0x00};
+    private static final byte[] READ_JOURNAL = {0x00, 0x0A, 0x00, 0x00, 0x00};
+    private static final byte[] SYNC = {0x00, 0x0C, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00};
+    private static final byte[] VERIFY = BenchCard.verifyCommand();
+    private static final byte[] VERIFY_BATCH = BenchCard.verifyBatchCommand();
+    private static final byte[] REGISTER_CLIENT = BenchCard.concat(
+        new byte[] {0x00, 0x09, 0x00, 0x00, 0x0C, 0x01, 0x00, 0x64},
+        new byte[] {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0D, 0x01});
+    
+    private WearReport() {
+    }
+    
+    public static void main(String[] args) {
+        Map<Byte, Double> mix = parseMix(args.length > 0 ? args[0] : DEFAULT_MIX);
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SAMPLES;
+        int pageSize = Integer.getInteger("wear.pageSize", WearProfiler.DEFAULT_PAGE_SIZE);
+        long endurance = Long.getLong("wear.endurance", WearProfiler.DEFAULT_ENDURANCE);
+        
+        BenchCard card = new BenchCard();
+        WearProfiler profiler = new WearProfiler(pageSize);
+        card.card.setWearProfiler(profiler);
+        for (byte ins : mix.keySet()) {
+            for (int i = 0; i < samples; i++) {
+                send(card, ins);
+            }
+        }
+        card.card.setWearProfiler(null);
+        
+        System.out.println(profiler.report());
+        StringBuilder line = new StringBuilder("Traffic mix (commands per day):");
+        for (Map.Entry<Byte, Double> entry : mix.entrySet()) {
+            line.append(String.format(" %02X=%.0f", entry.getKey() & 0xFF, entry.getValue()));
+        }
+        System.out.println(line);
+        System.out.print(profiler.project(mix, endurance));
+    }
+    
+    /**
+     * One command of an INS, with whatever the card needs first
+     */
+    static void send(BenchCard card, byte ins) {
+        switch (ins) {
+            case (byte) 0xA4:
+                card.check(card.select());
+                break;
+            case 0x02:
+                card.check(card.authenticate());
+                break;
+            case 0x03:
+                card.ensureTransaction();
+                card.check(card.transmit(card.prepareTransaction()));
+                break;
+            case 0x04:
+                card.ensureSession();
+                card.check(card.transmit(BALANCE));
+                break;
+            case 0x05:
+                card.check(card.transmit(STATUS));
+                break;
+            case 0x06:
+                card.check(card.updateKeys());
+                break;
+            case 0x07:
+                card.ensureSession();
+                card.check(card.transmit(VERIFY));
+                break;
+            case 0x08:
+                card.ensureBalance();
+                card.check(card.transmit(card.prepareFastDebit(1)));
+                break;
+            case 0x09:
+                card.ensureSession();
+                card.check(card.transmit(REGISTER_CLIENT));
+                break;
+            case 0x0A:
+                card.ensureSession();
+                card.check(card.transmit(READ_JOURNAL));
+                break;
+            case 0x0B:
+                card.ensureHeadroom();
+                card.check(card.transmit(card.prepareVouchers(1)));
+                break;
+            case 0x0C:
+                card.ensureSession();
+                card.check(card.transmit(SYNC));
+                break;
+            case 0x0D:
+                card.ensureSession();
+                card.check(card.transmit(VERIFY_BATCH));
+                break;
+            case (byte) 0xCA:
+                card.check(card.transmit(GET_DATA));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("No command for INS %02X", ins & 0xFF));
+        }
+    }
+    
+    /**
+     * "02=20,03=40" to INS and commands per day
+     */
+    static Map<Byte, Double> parseMix(String text) {
+        Map<Byte, Double> mix = new LinkedHashMap<Byte, Double>();
+        for (String item : text.split(",")) {
+            String[] parts = item.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected INS=commands per day, got " + item);
+            }
+            mix.put((byte) Integer.parseInt(parts[0].trim(), 16), Double.valueOf(parts[1].trim()));
+        }
+        return mix;
+    }
+}
@@ -0,0 +1,264 @@
+package com.zereans.emulator;
+
+import javacard.framework.APDU;
+import javacard.framework.APDUException;
+
+/**
+ * I/O state of the command being processed, behind the APDU object
+ *
+ * Parses short and extended command APDUs (cases 1-4), delivers the command
+ * data to the APDU buffer and collects the response. The APDU state machine
+ * and its APDUException reasons follow the Java Card API, so misuse that
+ * a card would reject is rejected here too.
+ *
+ * A receive chunk limits the data delivered per setIncomingAndReceive() or
+ * receiveBytes() call, the way a card with a small I/O buffer does; the
+ * data not yet received is then withheld from the buffer, so an applet
+ * reading past what it received sees zeros.
+ */
+public final class ApduChannel {
+    
+    // Largest response data, extended Le
+    private static final int MAX_RESPONSE_LENGTH = 32767;
+    private static final short MAX_SHORT_RESPONSE_LENGTH = 256;
+    
+    private final byte[] buffer;
+    private final byte[] response = new byte[MAX_RESPONSE_LENGTH + 2];
+    private int responseLength;
+    
+    // Current command
+    private byte[] command;
+    private int dataStart;        // offset of the command data in the command array
+    private byte cla;
+    private short lc;
+    private int le;               // expected response length, 0 when absent
+    private boolean extended;
+    private short cdataOffset;
+    
+    // Largest data delivery per receive call, 0 for as much as fits
+    private short receiveChunk;
+    
+    // Progress
+    private byte state;
+    private short received;
+    private short outgoingLength;
+    private short sent;
+    
+    /**
+     * Constructor - allocates the APDU buffer
+     */
+    public ApduChannel(int bufferLength) {
+        if (bufferLength < 261 || bufferLength > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("APDU buffer must hold 261 to 32767 bytes");
+        }
+        buffer = new byte[bufferLength];
+    }
+    
+    /**
+     * Parse a command APDU and place its header and as much data as fits
+     * in the buffer. Returns false for an encoding that is not a valid case.
+     */
+    public boolean load(byte[] apdu, int offset, int length) {
+        if (length < 4) {
+            return false;
+        }
+        command = apdu;
+        lc = 0;
+        le = 0;
+        extended = false;
+        cdataOffset = 5;
+        dataStart = offset + 5;
+        
+        if (length > 4) {
+            int p3 = apdu[offset + 4] & 0xFF;
+            if (length == 5) {
+                le = p3 == 0 ? 256 : p3;                                  // case 2S
+            } else if (p3 != 0 && length == 5 + p3) {
+                lc = (short) p3;                                          // case 3S
+            } else if (p3 != 0 && length == 6 + p3) {
+                lc = (short) p3;                                          // case 4S
+                int last = apdu[offset + length - 1] & 0xFF;
+                le = last == 0 ? 256 : last;
+            } else if (p3 == 0 && length >= 7) {
+                extended = true;
+                cdataOffset = 7;
+                dataStart = offset + 7;
+                int value = ((apdu[offset + 5] & 0xFF) << 8) | (apdu[offset + 6] & 0xFF);
+                if (length == 7) {
+                    le = value == 0 ? 65536 : value;                      // case 2E
+                } else if (value != 0 && value <= Short.MAX_VALUE && length == 7 + value) {
+                    lc = (short) value;                                   // case 3E
+                } else if (value != 0 && value <= Short.MAX_VALUE && length == 9 + value) {
+                    lc = (short) value;                                   // case 4E
+                    int last = ((apdu[offset + length - 2] & 0xFF) << 8) | (apdu[offset + length - 1] & 0xFF);
+                    le = last == 0 ? 65536 : last;
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        
+        cla = apdu[offset];
+        int header = Math.min(length, cdataOffset);
+        System.arraycopy(apdu, offset, buffer, 0, header);
+        for (int i = header; i < cdataOffset; i++) {
+            buffer[i] = 0;
+        }
+        if (lc > 0) {
+            System.arraycopy(apdu, dataStart, buffer, cdataOffset, Math.min(lc, buffer.length - cdataOffset));
+        }
+        
+        state = APDU.STATE_INITIAL;
+        received = 0;
+        outgoingLength = 0;
+        sent = 0;
+        responseLength = 0;
+        return true;
+    }
+    
+    /**
+     * Limit the data delivered per receive call; 0 delivers as much as fits
+     */
+    public void setReceiveChunk(int length) {
+        if (length < 0 || length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Receive chunk must be 0 to 32767 bytes");
+        }
+        receiveChunk = (short) length;
+    }
+    
+    /**
+     * Clear the command data loaded for the runtime before an applet
+     * receives it, when data is delivered in chunks
+     */
+    void withholdData() {
+        if (receiveChunk > 0 && lc > 0) {
+            int end = Math.min(cdataOffset + lc, buffer.length);
+            for (int i = cdataOffset; i < end; i++) {
+                buffer[i] = 0;
+            }
+        }
+    }
+    
+    public byte[] getBuffer() {
+        return buffer;
+    }
+    
+    public byte getCla() {
+        return cla;
+    }
+    
+    public boolean isExtended() {
+        return extended;
+    }
+    
+    public byte getState() {
+        return state;
+    }
+    
+    public short getIncomingLength() {
+        return lc;
+    }
+    
+    public short getOffsetCdata() {
+        return cdataOffset;
+    }
+    
+    public short setIncomingAndReceive() {
+        if (state != APDU.STATE_INITIAL) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+        }
+        received = deliver(cdataOffset, lc);
+        state = received == lc ? APDU.STATE_FULL_INCOMING : APDU.STATE_PARTIAL_INCOMING;
+        return received;
+    }
+    
+    public short receiveBytes(short bOff) {
+        if (state != APDU.STATE_PARTIAL_INCOMING && state != APDU.STATE_FULL_INCOMING) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+        }
+        if (bOff < 0 || bOff >= buffer.length) {
+            APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+        }
+        short count = deliver(bOff, (short) (lc - received));
+        received += count;
+        state = received == lc ? APDU.STATE_FULL_INCOMING : APDU.STATE_PARTIAL_INCOMING;
+        return count;
+    }
+    
+    /**
+     * Copy the next command data, at most one receive chunk, to the buffer
+     */
+    private short deliver(short bOff, short remaining) {
+        int count = Math.min(remaining, buffer.length - bOff);
+        if (receiveChunk > 0) {
+            count = Math.min(count, receiveChunk);
+        }
+        System.arraycopy(command, dataStart + received, buffer, bOff, count);
+        return (short) count;
+    }
+    
+    public short setOutgoing() {
+        if (state < APDU.STATE_INITIAL || state >= APDU.STATE_OUTGOING) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+        }
+        state = APDU.STATE_OUTGOING;
+        return (short) Math.min(le, Short.MAX_VALUE);
+    }
+    
+    public void setOutgoingLength(short length) {
+        if (state != APDU.STATE_OUTGOING) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+        }
+        if (length < 0 || (!extended && length > MAX_SHORT_RESPONSE_LENGTH)) {
+            APDUException.throwIt(APDUException.BAD_LENGTH);
+        }
+        outgoingLength = length;
+        state = APDU.STATE_OUTGOING_LENGTH_KNOWN;
+    }
+    
+    public void sendBytes(short bOff, short length) {
+        sendBytesLong(buffer, bOff, length);
+    }
+    
+    public void sendBytesLong(byte[] outData, short bOff, short length) {
+        if (state != APDU.STATE_OUTGOING_LENGTH_KNOWN && state != APDU.STATE_PARTIAL_OUTGOING) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+        }
+        if (bOff < 0 || length < 0 || bOff + length > outData.length) {
+            APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+        }
+        if (sent + length > outgoingLength) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+        }
+        System.arraycopy(outData, bOff, response, responseLength, length);
+        responseLength += length;
+        sent += length;
+        state = sent == outgoingLength ? APDU.STATE_FULL_OUTGOING : APDU.STATE_PARTIAL_OUTGOING;
+    }
+    
+    public void setOutgoingAndSend(short bOff, short length) {
+        setOutgoing();
+        setOutgoingLength(length);
+        sendBytes(bOff, length);
+    }
+    
+    /**
+     * Complete the response with a status word; data is dropped unless the
+     * command succeeded. Returns the response length.
+     */
+    int finish(short sw) {
+        if (sw != (short) 0x9000 && (sw & 0xFF00) != 0x6100) {
+            responseLength = 0;
+        }
+        response[responseLength++] = (byte) (sw >> 8);
+        response[responseLength++] = (byte) sw;
+        command = null;
+        return responseLength;
+    }
+    
+    byte[] getResponse() {
+        return response;
+    }
+}
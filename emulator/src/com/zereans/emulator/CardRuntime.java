@@ -0,0 +1,763 @@
+package com.zereans.emulator;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javacard.framework.AID;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.CardRuntimeException;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
+import javacard.framework.Shareable;
+import javacard.framework.SystemException;
+import javacard.framework.TransactionException;
+import javacardx.apdu.ExtendedLength;
+
+/**
+ * Java Card runtime environment of one emulated card
+ *
+ * Dispatches command APDUs to installed applets over 20 logical channels,
+ * handles SELECT and MANAGE CHANNEL itself, and backs the framework API:
+ * applet context, transient memory and transactions. The framework classes
+ * reach the runtime through current(), which is the card that last
+ * processed a command or was activated by the host.
+ *
+ * Transactions are implemented with a HeapSnapshot of everything reachable
+ * from the installed applets: abort restores it, so rollback covers plain
+ * field and array assignments exactly as a card does. Util non-atomic
+ * writes to persistent arrays are replayed after the restore, as they are
+ * not part of the transaction on a card either. Nested transactions and
+ * commit capacity follow the API; the capacity itself is not limited.
+ *
+ * A WearProfiler, when set, sees every command, transaction and Util write.
+ *
+ * The runtime is single-threaded, like a card.
+ */
+public final class CardRuntime {
+    
+    // Logical channels 0-19
+    public static final int MAX_CHANNELS = 20;
+    
+    private static final byte INS_MANAGE_CHANNEL = (byte) 0x70;
+    private static final byte P1_SELECT_BY_NAME = (byte) 0x04;
+    private static final byte P1_OPEN_CHANNEL = (byte) 0x00;
+    private static final byte P1_CLOSE_CHANNEL = (byte) 0x80;
+    
+    private static CardRuntime current;
+    
+    /**
+     * Installed applet instance and its AID
+     */
+    static final class Installed {
+        AID aid;
+        Applet applet;
+        
+        Installed(AID aid) {
+            this.aid = aid;
+        }
+    }
+    
+    private final ApduChannel io;
+    private final APDU apdu;
+    private final TransientMemory transients = new TransientMemory();
+    private final List<Installed> applets = new ArrayList<Installed>();
+    private final Set<Object> roots = new LinkedHashSet<Object>();
+    
+    // Channel state
+    private final Installed[] selected = new Installed[MAX_CHANNELS];
+    private final boolean[] open = new boolean[MAX_CHANNELS];
+    private byte channel;
+    private byte assignedChannel;
+    
+    // Context of the code running now
+    private Installed context;
+    private Installed previousContext;
+    private Installed installing;
+    private boolean selecting;
+    private boolean reselecting;
+    private Throwable lastError;
+    
+    // Open transaction and the non-atomic writes made during it
+    private HeapSnapshot snapshot;
+    private final List<Object[]> nonAtomicWrites = new ArrayList<Object[]>();
+    
+    private WearProfiler profiler;
+    private final Set<String> removedAlgorithms = new HashSet<String>();
+    
+    /**
+     * Constructor - powers up a card with an APDU buffer of the given size
+     */
+    CardRuntime(int bufferLength) {
+        io = new ApduChannel(bufferLength);
+        apdu = newApdu(io);
+        open[0] = true;
+    }
+    
+    /**
+     * Runtime of the card in use
+     */
+    public static CardRuntime current() {
+        if (current == null) {
+            throw new IllegalStateException("No card is active; create a CardSimulator first");
+        }
+        return current;
+    }
+    
+    /**
+     * Make this card the one the framework classes talk to
+     */
+    void activate() {
+        current = this;
+    }
+    
+    // Host side
+    
+    /**
+     * Run an applet's static install method with GlobalPlatform install
+     * parameters: instance AID, empty control info and the applet data
+     */
+    AID install(byte[] aidBytes, Class<? extends Applet> appletClass, byte[] parameters) {
+        activate();
+        if (parameters.length > 127) {
+            throw new IllegalArgumentException("Install parameters are limited to 127 bytes");
+        }
+        AID aid = new AID(aidBytes, (short) 0, (byte) aidBytes.length);
+        if (find(aid) != null) {
+            throw new IllegalStateException("An applet is already installed as " + hex(aidBytes));
+        }
+        byte[] install = new byte[aidBytes.length + parameters.length + 3];
+        int offset = 0;
+        install[offset++] = (byte) aidBytes.length;
+        System.arraycopy(aidBytes, 0, install, offset, aidBytes.length);
+        offset += aidBytes.length;
+        install[offset++] = 0;
+        install[offset++] = (byte) parameters.length;
+        System.arraycopy(parameters, 0, install, offset, parameters.length);
+        
+        installing = new Installed(aid);
+        context = installing;
+        try {
+            Method method = appletClass.getMethod("install", byte[].class, short.class, byte.class);
+            method.invoke(null, install, (short) 0, (byte) install.length);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Install of " + appletClass.getName() + " failed: " + describe(e.getCause()), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot call install of " + appletClass.getName(), e);
+        } finally {
+            if (snapshot != null) {
+                abortTransaction();
+            }
+            context = null;
+        }
+        Installed record = installing;
+        installing = null;
+        if (record.applet == null) {
+            throw new IllegalStateException(appletClass.getName() + " did not register");
+        }
+        applets.add(record);
+        return record.aid;
+    }
+    
+    /**
+     * Process one command APDU and write the response (data and status
+     * word) to the output array; returns the response length
+     */
+    int transmit(byte[] command, int offset, int length, byte[] response, int responseOffset) {
+        activate();
+        WearProfiler wear = profiler;
+        if (wear != null) {
+            wear.beginCommand(this, length > 1 ? command[offset + 1] : 0);
+        }
+        short sw = exchange(command, offset, length);
+        if (wear != null) {
+            wear.endCommand(this);
+        }
+        int responseLength = io.finish(sw);
+        System.arraycopy(io.getResponse(), 0, response, responseOffset, responseLength);
+        return responseLength;
+    }
+    
+    /**
+     * Card reset: transactions in progress are aborted, transient memory is
+     * cleared, logical channels are closed and nothing is selected
+     */
+    void reset() {
+        activate();
+        if (snapshot != null) {
+            abortTransaction();
+        }
+        transients.clearOnReset();
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            selected[i] = null;
+            open[i] = i == 0;
+        }
+        channel = 0;
+        assignedChannel = 0;
+        context = null;
+        previousContext = null;
+    }
+    
+    /**
+     * Include an object the applets do not reach, such as a component called
+     * directly by the host, in transaction rollback
+     */
+    void addRoot(Object root) {
+        roots.add(root);
+    }
+    
+    /**
+     * Run host code in the context of an installed applet, as if called
+     * from its process method
+     */
+    void enter(AID aid) {
+        activate();
+        Installed target = find(aid);
+        if (target == null) {
+            throw new IllegalArgumentException("No applet installed as " + aid);
+        }
+        context = target;
+    }
+    
+    /**
+     * Profile persistent writes of the following commands, or stop with null
+     */
+    void setProfiler(WearProfiler profiler) {
+        this.profiler = profiler;
+    }
+    
+    /**
+     * Limit the command data delivered per receive call, 0 for no limit
+     */
+    void setReceiveChunk(int length) {
+        io.setReceiveChunk(length);
+    }
+    
+    Throwable getLastError() {
+        return lastError;
+    }
+    
+    /**
+     * Leave one algorithm of an engine class out of this card
+     */
+    void removeAlgorithm(Class<?> engine, byte algorithm) {
+        removedAlgorithms.add(engine.getName() + ":" + algorithm);
+    }
+    
+    /**
+     * Whether the card in use lacks an algorithm of an engine class; crypto
+     * objects made without an active card have every emulated algorithm
+     */
+    public static boolean isAlgorithmRemoved(Class<?> engine, byte algorithm) {
+        return current != null && current.removedAlgorithms.contains(engine.getName() + ":" + algorithm);
+    }
+    
+    byte[] getBuffer() {
+        return io.getBuffer();
+    }
+    
+    // Command dispatch
+    
+    private short exchange(byte[] command, int offset, int length) {
+        lastError = null;
+        if (!io.load(command, offset, length)) {
+            return ISO7816.SW_WRONG_LENGTH;
+        }
+        byte[] buffer = io.getBuffer();
+        byte cla = buffer[ISO7816.OFFSET_CLA];
+        if (cla == (byte) 0xFF) {
+            return ISO7816.SW_CLA_NOT_SUPPORTED;
+        }
+        channel = channelOf(cla);
+        assignedChannel = channel;
+        if (!open[channel]) {
+            return ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED;
+        }
+        
+        boolean interindustry = (cla & 0x80) == 0;
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        if (interindustry && ins == INS_MANAGE_CHANNEL) {
+            return manageChannel(buffer);
+        }
+        if (interindustry && ins == ISO7816.INS_SELECT && buffer[ISO7816.OFFSET_P1] == P1_SELECT_BY_NAME) {
+            return select(buffer);
+        }
+        if (selected[channel] == null) {
+            return ISO7816.SW_COMMAND_NOT_ALLOWED;
+        }
+        return dispatch(selected[channel], false);
+    }
+    
+    /**
+     * Call process() of the applet; an ISOException gives its reason as the
+     * status word, anything else uncaught gives 6F00
+     */
+    private short dispatch(Installed target, boolean selectCommand) {
+        if (io.isExtended() && !(target.applet instanceof ExtendedLength)) {
+            return ISO7816.SW_WRONG_LENGTH;
+        }
+        if (!selectCommand) {
+            io.withholdData();
+        }
+        context = target;
+        previousContext = null;
+        selecting = selectCommand;
+        short sw = ISO7816.SW_NO_ERROR;
+        try {
+            target.applet.process(apdu);
+        } catch (ISOException e) {
+            sw = e.getReason();
+        } catch (RuntimeException e) {
+            lastError = e;
+            sw = ISO7816.SW_UNKNOWN;
+        } finally {
+            if (snapshot != null) {
+                abortTransaction();
+            }
+            context = null;
+            selecting = false;
+            reselecting = false;
+        }
+        return sw;
+    }
+    
+    /**
+     * SELECT by name: exact AID first, then the first partial match. An AID
+     * no applet answers to goes to the selected applet as a normal command.
+     */
+    private short select(byte[] buffer) {
+        short length = io.getIncomingLength();
+        short cdata = io.getOffsetCdata();
+        Installed target = null;
+        if (length >= 5 && length <= 16 && cdata + length <= buffer.length) {
+            for (Installed record : applets) {
+                if (record.aid.equals(buffer, cdata, (byte) length)) {
+                    target = record;
+                    break;
+                }
+            }
+            for (int i = 0; target == null && i < applets.size(); i++) {
+                if (applets.get(i).aid.partialEquals(buffer, cdata, (byte) length)) {
+                    target = applets.get(i);
+                }
+            }
+        }
+        if (target == null) {
+            return selected[channel] == null ? ISO7816.SW_FILE_NOT_FOUND : dispatch(selected[channel], false);
+        }
+        
+        Installed previous = selected[channel];
+        boolean reselect = previous == target;
+        if (previous != null && !reselect) {
+            deselect(channel);
+        }
+        boolean activeElsewhere = isActive(target, channel);
+        if (activeElsewhere && !(target.applet instanceof MultiSelectable)) {
+            return ISO7816.SW_CONDITIONS_NOT_SATISFIED;
+        }
+        
+        context = target;
+        boolean accepted;
+        try {
+            accepted = activeElsewhere ? ((MultiSelectable) target.applet).select(true) : target.applet.select();
+        } catch (RuntimeException e) {
+            lastError = e;
+            accepted = false;
+        } finally {
+            context = null;
+        }
+        if (!accepted) {
+            selected[channel] = null;
+            if (!isActive(target, channel)) {
+                transients.clearOnDeselect(target);
+            }
+            return ISO7816.SW_APPLET_SELECT_FAILED;
+        }
+        selected[channel] = target;
+        reselecting = reselect;
+        return dispatch(target, true);
+    }
+    
+    /**
+     * Deselect the applet of a channel, clearing its CLEAR_ON_DESELECT
+     * arrays when it is no longer active anywhere
+     */
+    private void deselect(int ch) {
+        Installed previous = selected[ch];
+        selected[ch] = null;
+        boolean activeElsewhere = isActive(previous, ch);
+        context = previous;
+        assignedChannel = (byte) ch;
+        try {
+            if (activeElsewhere && previous.applet instanceof MultiSelectable) {
+                ((MultiSelectable) previous.applet).deselect(true);
+            } else {
+                previous.applet.deselect();
+            }
+        } catch (RuntimeException e) {
+            lastError = e;
+        } finally {
+            context = null;
+            assignedChannel = channel;
+        }
+        if (!activeElsewhere) {
+            transients.clearOnDeselect(previous);
+        }
+    }
+    
+    /**
+     * MANAGE CHANNEL open (P1 00, P2 0 for the next free channel) and
+     * close (P1 80, P2 channel)
+     */
+    private short manageChannel(byte[] buffer) {
+        byte p1 = buffer[ISO7816.OFFSET_P1];
+        int p2 = buffer[ISO7816.OFFSET_P2] & 0xFF;
+        if (p1 == P1_OPEN_CHANNEL) {
+            int ch = p2;
+            if (ch == 0) {
+                for (ch = 1; ch < MAX_CHANNELS && open[ch]; ch++) {
+                }
+                if (ch == MAX_CHANNELS) {
+                    return ISO7816.SW_FUNC_NOT_SUPPORTED;
+                }
+            } else if (ch >= MAX_CHANNELS || open[ch]) {
+                return ISO7816.SW_INCORRECT_P1P2;
+            }
+            open[ch] = true;
+            selected[ch] = null;
+            if (p2 == 0) {
+                buffer[0] = (byte) ch;
+                io.setOutgoingAndSend((short) 0, (short) 1);
+            }
+            return ISO7816.SW_NO_ERROR;
+        }
+        if (p1 == P1_CLOSE_CHANNEL) {
+            if (p2 == 0 || p2 >= MAX_CHANNELS || !open[p2]) {
+                return ISO7816.SW_INCORRECT_P1P2;
+            }
+            if (selected[p2] != null) {
+                deselect(p2);
+            }
+            open[p2] = false;
+            return ISO7816.SW_NO_ERROR;
+        }
+        return ISO7816.SW_INCORRECT_P1P2;
+    }
+    
+    private boolean isActive(Installed record, int exceptChannel) {
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            if (i != exceptChannel && selected[i] == record) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Logical channel encoded in a CLA byte: b2-b1 for channels 0-3,
+     * b4-b1 plus 4 for the further interindustry channels 4-19
+     */
+    private static byte channelOf(byte cla) {
+        if ((cla & 0x40) == 0) {
+            return (byte) (cla & 0x03);
+        }
+        return (byte) ((cla & 0x0F) + 4);
+    }
+    
+    // Framework services
+    
+    public byte getLogicalChannel() {
+        return channel;
+    }
+    
+    /**
+     * Channel of the applet running now: the CLA channel, except while
+     * MANAGE CHANNEL close deselects the applet of another channel
+     */
+    public byte getAssignedChannel() {
+        return assignedChannel;
+    }
+    
+    public APDU getCurrentApdu() {
+        return apdu;
+    }
+    
+    public boolean isSelectingApplet() {
+        return selecting;
+    }
+    
+    public boolean isReselectingApplet() {
+        return reselecting;
+    }
+    
+    /**
+     * Register the applet being installed, under the install AID or an explicit one
+     */
+    public void register(Applet applet, byte[] bArray, short bOffset, byte bLength) {
+        if (installing == null || installing.applet != null) {
+            SystemException.throwIt(SystemException.ILLEGAL_AID);
+        }
+        if (bArray != null) {
+            if (bLength < 5 || bLength > 16) {
+                SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+            }
+            AID aid = new AID(bArray, bOffset, bLength);
+            if (find(aid) != null) {
+                SystemException.throwIt(SystemException.ILLEGAL_AID);
+            }
+            installing.aid = aid;
+        }
+        installing.applet = applet;
+    }
+    
+    public AID getAID() {
+        return context == null ? null : context.aid;
+    }
+    
+    public AID getPreviousContextAID() {
+        return previousContext == null ? null : previousContext.aid;
+    }
+    
+    public AID lookupAID(byte[] buffer, short offset, byte length) {
+        for (Installed record : applets) {
+            if (record.aid.equals(buffer, offset, length)) {
+                return record.aid;
+            }
+        }
+        return null;
+    }
+    
+    public boolean isAppletActive(AID aid) {
+        Installed record = find(aid);
+        return record != null && isActive(record, -1);
+    }
+    
+    public byte getTransientEvent(Object object) {
+        return transients.getEvent(object);
+    }
+    
+    /**
+     * Register a new array as transient, owned by the active context
+     */
+    public Object makeTransient(Object array, byte event) {
+        if (event != JCSystem.CLEAR_ON_RESET && event != JCSystem.CLEAR_ON_DESELECT) {
+            SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+        }
+        return transients.register(array, event, context);
+    }
+    
+    /**
+     * Shareable interface object of a server applet. Calls through the
+     * returned object run in the server's context, with the caller as the
+     * previous context.
+     */
+    public Shareable getShareableInterfaceObject(AID serverAID, byte parameter) {
+        Installed server = find(serverAID);
+        if (server == null) {
+            return null;
+        }
+        Installed caller = context;
+        Installed callerPrevious = previousContext;
+        Shareable sio;
+        context = server;
+        previousContext = caller;
+        try {
+            sio = server.applet.getShareableInterfaceObject(caller == null ? null : caller.aid, parameter);
+        } finally {
+            context = caller;
+            previousContext = callerPrevious;
+        }
+        if (sio == null) {
+            return null;
+        }
+        Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> type = sio.getClass(); type != null; type = type.getSuperclass()) {
+            for (Class<?> candidate : type.getInterfaces()) {
+                if (Shareable.class.isAssignableFrom(candidate)) {
+                    interfaces.add(candidate);
+                }
+            }
+        }
+        return (Shareable) Proxy.newProxyInstance(sio.getClass().getClassLoader(),
+            interfaces.toArray(new Class<?>[interfaces.size()]), new ContextSwitch(server, sio));
+    }
+    
+    public void beginTransaction() {
+        if (snapshot != null) {
+            TransactionException.throwIt(TransactionException.IN_PROGRESS);
+        }
+        List<Object> graph = new ArrayList<Object>(applets.size() + roots.size() + 1);
+        for (Installed record : applets) {
+            graph.add(record.applet);
+        }
+        if (installing != null && installing.applet != null) {
+            graph.add(installing.applet);
+        }
+        graph.addAll(roots);
+        snapshot = HeapSnapshot.capture(graph, this);
+        if (profiler != null) {
+            profiler.beginTransaction();
+        }
+    }
+    
+    public void commitTransaction() {
+        if (snapshot == null) {
+            TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+        }
+        if (profiler != null) {
+            profiler.endTransaction(snapshot, false);
+        }
+        snapshot = null;
+        nonAtomicWrites.clear();
+    }
+    
+    public void abortTransaction() {
+        if (snapshot == null) {
+            TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+        }
+        HeapSnapshot rollback = snapshot;
+        snapshot = null;
+        if (profiler != null) {
+            profiler.endTransaction(rollback, true);
+        }
+        rollback.restore();
+        for (Object[] write : nonAtomicWrites) {
+            byte[] data = (byte[]) write[2];
+            System.arraycopy(data, 0, write[0], (Integer) write[1], data.length);
+        }
+        nonAtomicWrites.clear();
+    }
+    
+    public byte getTransactionDepth() {
+        return snapshot == null ? (byte) 0 : (byte) 1;
+    }
+    
+    /**
+     * Called by Util after an atomic copy or fill, for the wear profiler
+     */
+    public static void atomicWrite(byte[] array, short offset, short length) {
+        CardRuntime runtime = current;
+        if (runtime != null && runtime.profiler != null) {
+            runtime.profiler.arrayWrite(array, offset, length, true);
+        }
+    }
+    
+    /**
+     * Called by the emulated keys after storing a component, for the wear profiler
+     */
+    public static void keyWrite(byte[] component, short offset, short length) {
+        CardRuntime runtime = current;
+        if (runtime != null && runtime.profiler != null) {
+            runtime.profiler.arrayWrite(component, offset, length, false);
+        }
+    }
+    
+    /**
+     * Called by Util after a non-atomic write, so abort can keep it
+     */
+    public static void nonAtomicWrite(byte[] array, short offset, short length) {
+        CardRuntime runtime = current;
+        if (runtime != null && runtime.profiler != null) {
+            runtime.profiler.arrayWrite(array, offset, length, false);
+        }
+        if (runtime != null && runtime.snapshot != null && length > 0 && !runtime.isVolatile(array)) {
+            byte[] data = new byte[length];
+            System.arraycopy(array, offset, data, 0, length);
+            runtime.nonAtomicWrites.add(new Object[] {array, Integer.valueOf(offset), data});
+        }
+    }
+    
+    /**
+     * Transient arrays and the APDU buffer live in RAM
+     */
+    boolean isVolatile(Object array) {
+        return array == io.getBuffer() || transients.getEvent(array) != JCSystem.NOT_A_TRANSIENT_OBJECT;
+    }
+    
+    /**
+     * Installed applets, for inspection of persistent state
+     */
+    List<Object> getRoots() {
+        List<Object> graph = new ArrayList<Object>(applets.size() + roots.size());
+        for (Installed record : applets) {
+            graph.add(record.applet);
+        }
+        graph.addAll(roots);
+        return graph;
+    }
+    
+    private Installed find(AID aid) {
+        if (aid == null) {
+            return null;
+        }
+        for (Installed record : applets) {
+            if (record.aid.equals(aid)) {
+                return record;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Runs calls through a shareable interface in the server context
+     */
+    private final class ContextSwitch implements InvocationHandler {
+        private final Installed server;
+        private final Object target;
+        
+        ContextSwitch(Installed server, Object target) {
+            this.server = server;
+            this.target = target;
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Installed caller = context;
+            Installed callerPrevious = previousContext;
+            context = server;
+            previousContext = caller;
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                context = caller;
+                previousContext = callerPrevious;
+            }
+        }
+    }
+    
+    private static APDU newApdu(ApduChannel io) {
+        try {
+            Constructor<APDU> constructor = APDU.class.getDeclaredConstructor(ApduChannel.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(io);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create the APDU object", e);
+        }
+    }
+    
+    private static String describe(Throwable error) {
+        if (error instanceof CardRuntimeException) {
+            return error.getClass().getSimpleName() + " " + String.format("%04X", ((CardRuntimeException) error).getReason() & 0xFFFF);
+        }
+        return String.valueOf(error);
+    }
+    
+    static String hex(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : bytes) {
+            out.append(String.format("%02X", b & 0xFF));
+        }
+        return out.toString();
+    }
+}
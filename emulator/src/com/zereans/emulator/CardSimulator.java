@@ -0,0 +1,161 @@
+package com.zereans.emulator;
+
+import javacard.framework.AID;
+import javacard.framework.Applet;
+
+/**
+ * Host-side handle of one emulated card
+ *
+ * Installs applet classes compiled against the Java Card API and exchanges
+ * command APDUs with them in-process:
+ *
+ *   CardSimulator card = new CardSimulator();
+ *   card.installApplet(aid, ZereansApplet.class, installData);
+ *   card.selectApplet(aid);
+ *   byte[] response = card.transmit(command);   // data followed by SW1 SW2
+ *
+ * Several simulators may exist; the framework classes talk to the one that
+ * was used last. Nothing here is thread-safe.
+ */
+public class CardSimulator {
+    
+    // APDU buffer size, enough for the extended commands of the wallet applet
+    public static final int DEFAULT_BUFFER_LENGTH = 1024;
+    
+    private static final int MAX_RESPONSE_LENGTH = 32767 + 2;
+    
+    private final CardRuntime runtime;
+    private final byte[] response = new byte[MAX_RESPONSE_LENGTH];
+    
+    /**
+     * Constructor - card with the default APDU buffer
+     */
+    public CardSimulator() {
+        this(DEFAULT_BUFFER_LENGTH);
+    }
+    
+    /**
+     * Constructor - card with an APDU buffer of the given size (261-32767)
+     */
+    public CardSimulator(int bufferLength) {
+        runtime = new CardRuntime(bufferLength);
+        runtime.activate();
+    }
+    
+    /**
+     * Install an applet without applet data
+     */
+    public AID installApplet(byte[] aid, Class<? extends Applet> appletClass) {
+        return installApplet(aid, appletClass, new byte[0]);
+    }
+    
+    /**
+     * Install an applet; the parameters become the applet data of the
+     * install command, as with a GlobalPlatform INSTALL [for install]
+     */
+    public AID installApplet(byte[] aid, Class<? extends Applet> appletClass, byte[] parameters) {
+        return runtime.install(aid, appletClass, parameters);
+    }
+    
+    /**
+     * SELECT an applet on the basic channel; returns the response
+     */
+    public byte[] selectApplet(byte[] aid) {
+        byte[] command = new byte[5 + aid.length + 1];
+        command[1] = (byte) 0xA4;
+        command[2] = 0x04;
+        command[4] = (byte) aid.length;
+        System.arraycopy(aid, 0, command, 5, aid.length);
+        return transmit(command);
+    }
+    
+    /**
+     * Exchange one command APDU; returns response data followed by the status word
+     */
+    public byte[] transmit(byte[] command) {
+        int length = transmit(command, 0, command.length, response, 0);
+        byte[] out = new byte[length];
+        System.arraycopy(response, 0, out, 0, length);
+        return out;
+    }
+    
+    /**
+     * Exchange one command APDU without allocating: the response, data
+     * followed by the status word, is written to the given array, which must
+     * have room for it. Returns the response length.
+     */
+    public int transmit(byte[] command, int offset, int length, byte[] out, int outOffset) {
+        return runtime.transmit(command, offset, length, out, outOffset);
+    }
+    
+    /**
+     * Card reset: clears transient memory, aborts an open transaction and
+     * closes all logical channels
+     */
+    public void reset() {
+        runtime.reset();
+    }
+    
+    /**
+     * Make this card the one the framework classes talk to, before calling
+     * applet code directly from the host
+     */
+    public void activate() {
+        runtime.activate();
+    }
+    
+    /**
+     * Make this card active and run the following direct calls in the
+     * context of an installed applet
+     */
+    public void enter(AID aid) {
+        runtime.enter(aid);
+    }
+    
+    /**
+     * Include an object outside the installed applets in transaction rollback
+     */
+    public void addRoot(Object root) {
+        runtime.addRoot(root);
+    }
+    
+    /**
+     * Profile EEPROM writes of the following commands; null stops profiling
+     */
+    public void setWearProfiler(WearProfiler profiler) {
+        runtime.setProfiler(profiler);
+    }
+    
+    /**
+     * Deliver at most length bytes of command data per receive call, as a
+     * card with a small I/O buffer does; 0 (the default) delivers as much
+     * as fits in the APDU buffer
+     */
+    public void setReceiveChunk(int length) {
+        runtime.setReceiveChunk(length);
+    }
+    
+    /**
+     * Make this card lack an algorithm, as a card without it does: the
+     * getInstance of the engine class (Signature, Cipher, MessageDigest,
+     * RandomData, KeyAgreement, or KeyBuilder for key types) fails with
+     * NO_SUCH_ALGORITHM for it from now on
+     */
+    public void removeAlgorithm(Class<?> engine, byte algorithm) {
+        runtime.removeAlgorithm(engine, algorithm);
+    }
+    
+    /**
+     * Exception behind the last 6F00 status word, or null
+     */
+    public Throwable getLastError() {
+        return runtime.getLastError();
+    }
+    
+    /**
+     * Status word of a response
+     */
+    public static int getSW(byte[] response) {
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+}
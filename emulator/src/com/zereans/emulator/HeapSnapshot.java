@@ -0,0 +1,178 @@
+package com.zereans.emulator;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy of the persistent object graph taken when a transaction begins
+ *
+ * Every object reachable from the roots is captured: instance fields of
+ * applet objects and the contents of persistent arrays. Transient arrays,
+ * the APDU buffer, TransientState objects and host library objects are
+ * left out. Restoring writes the captured values back in place, which
+ * rolls back field assignments and array stores that never went through
+ * the API as well as Util writes. Static fields are not covered.
+ */
+final class HeapSnapshot {
+    
+    // Instance fields per class, superclass fields included
+    private static final ClassValue<Field[]> FIELDS = new ClassValue<Field[]>() {
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields.toArray(new Field[fields.size()]);
+        }
+    };
+    
+    private final Map<Object, Object> saved = new IdentityHashMap<Object, Object>();
+    
+    /**
+     * Capture everything reachable from the roots
+     */
+    static HeapSnapshot capture(Iterable<?> roots, CardRuntime runtime) {
+        HeapSnapshot snapshot = new HeapSnapshot();
+        ArrayDeque<Object> pending = new ArrayDeque<Object>();
+        for (Object root : roots) {
+            pending.push(root);
+        }
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (snapshot.saved.containsKey(object)) {
+                continue;
+            }
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                if (runtime.isVolatile(object)) {
+                    continue;
+                }
+                if (object instanceof Object[]) {
+                    Object[] copy = ((Object[]) object).clone();
+                    snapshot.saved.put(object, copy);
+                    for (Object element : copy) {
+                        if (element != null) {
+                            pending.push(element);
+                        }
+                    }
+                } else {
+                    snapshot.saved.put(object, copyOf(object));
+                }
+            } else if (!isOpaque(type) && !(object instanceof TransientState)) {
+                Field[] fields = FIELDS.get(type);
+                Object[] values = new Object[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = get(fields[i], object);
+                    if (values[i] != null && !fields[i].getType().isPrimitive()) {
+                        pending.push(values[i]);
+                    }
+                }
+                snapshot.saved.put(object, values);
+            }
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Write every captured value back
+     */
+    void restore() {
+        for (Map.Entry<Object, Object> entry : saved.entrySet()) {
+            Object object = entry.getKey();
+            Object copy = entry.getValue();
+            if (object.getClass().isArray()) {
+                System.arraycopy(copy, 0, object, 0, java.lang.reflect.Array.getLength(copy));
+            } else {
+                Field[] fields = FIELDS.get(object.getClass());
+                Object[] values = (Object[]) copy;
+                for (int i = 0; i < fields.length; i++) {
+                    if (!Modifier.isFinal(fields[i].getModifiers())) {
+                        set(fields[i], object, values[i]);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Captured copy of an array or the field values of an object, null if not captured
+     */
+    Object getSaved(Object object) {
+        return saved.get(object);
+    }
+    
+    /**
+     * Objects and arrays captured
+     */
+    Iterable<Object> objects() {
+        return saved.keySet();
+    }
+    
+    /**
+     * Instance fields of a class in capture order
+     */
+    static Field[] fieldsOf(Class<?> type) {
+        return FIELDS.get(type);
+    }
+    
+    /**
+     * Host library classes and firewall proxies are not applet state
+     */
+    static boolean isOpaque(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")
+            || name.startsWith("jdk.") || name.startsWith("com.sun.") || Proxy.isProxyClass(type);
+    }
+    
+    private static Object copyOf(Object array) {
+        if (array instanceof byte[]) {
+            return ((byte[]) array).clone();
+        }
+        if (array instanceof short[]) {
+            return ((short[]) array).clone();
+        }
+        if (array instanceof boolean[]) {
+            return ((boolean[]) array).clone();
+        }
+        if (array instanceof int[]) {
+            return ((int[]) array).clone();
+        }
+        if (array instanceof long[]) {
+            return ((long[]) array).clone();
+        }
+        if (array instanceof char[]) {
+            return ((char[]) array).clone();
+        }
+        if (array instanceof float[]) {
+            return ((float[]) array).clone();
+        }
+        return ((double[]) array).clone();
+    }
+    
+    private static Object get(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot read " + field, e);
+        }
+    }
+    
+    private static void set(Field field, Object object, Object value) {
+        try {
+            field.set(object, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot restore " + field, e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.zereans.emulator;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javacard.framework.JCSystem;
+
+/**
+ * Registry of transient arrays and their clear events
+ *
+ * Arrays are held weakly, so objects dropped by the host do not pile up
+ * across long benchmark runs.
+ */
+final class TransientMemory {
+    
+    /**
+     * Clear event and owning applet of one transient array
+     */
+    private static final class Entry {
+        final byte event;
+        final Object owner;
+        
+        Entry(byte event, Object owner) {
+            this.event = event;
+            this.owner = owner;
+        }
+    }
+    
+    private final Map<Object, Entry> entries = new WeakHashMap<Object, Entry>();
+    
+    /**
+     * Register a freshly allocated array as transient
+     */
+    Object register(Object array, byte event, Object owner) {
+        entries.put(array, new Entry(event, owner));
+        return array;
+    }
+    
+    /**
+     * Clear event of an object, NOT_A_TRANSIENT_OBJECT for persistent ones
+     */
+    byte getEvent(Object object) {
+        Entry entry = object != null && object.getClass().isArray() ? entries.get(object) : null;
+        return entry == null ? JCSystem.NOT_A_TRANSIENT_OBJECT : entry.event;
+    }
+    
+    /**
+     * Card reset: every transient array is cleared
+     */
+    void clearOnReset() {
+        for (Object array : entries.keySet()) {
+            clear(array);
+        }
+    }
+    
+    /**
+     * Deselection of an applet that is no longer active on any channel
+     */
+    void clearOnDeselect(Object owner) {
+        Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, Entry> entry = it.next();
+            if (entry.getValue().event == JCSystem.CLEAR_ON_DESELECT && entry.getValue().owner == owner) {
+                clear(entry.getKey());
+            }
+        }
+    }
+    
+    private static void clear(Object array) {
+        if (array instanceof byte[]) {
+            Arrays.fill((byte[]) array, (byte) 0);
+        } else if (array instanceof short[]) {
+            Arrays.fill((short[]) array, (short) 0);
+        } else if (array instanceof boolean[]) {
+            Arrays.fill((boolean[]) array, false);
+        } else if (array instanceof Object[]) {
+            Arrays.fill((Object[]) array, null);
+        }
+    }
+}
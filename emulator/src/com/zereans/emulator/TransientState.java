@@ -0,0 +1,8 @@
+package com.zereans.emulator;
+
+/**
+ * Implemented by emulator objects whose state lives in RAM on a card,
+ * such as crypto engines. Transactions do not capture or roll them back.
+ */
+public interface TransientState {
+}
@@ -0,0 +1,773 @@
+package com.zereans.emulator;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javacard.framework.APDU;
+import javacard.security.KeyAgreement;
+import javacard.security.MessageDigest;
+import javacard.security.RandomData;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+/**
+ * EEPROM write profiler
+ *
+ * Attached to a card with CardSimulator.setWearProfiler, it records the
+ * persistent-memory writes of every command and sums them up per INS:
+ * bytes written, pages touched, page writes (program cycles) and the bytes
+ * logged in the commit buffer. Writes are attributed to the field they hit,
+ * named by its path from the applet, e.g. ZereansApplet.journal.buffer.
+ *
+ * Persistent objects are laid out in one linear address space in the order
+ * they are first seen: fields and array elements back to back, references
+ * taking 2 bytes, headers ignored. The space is cut into pages. Writes are
+ * found two ways. Util copies and fills are reported as they happen, one
+ * page write per page they span, same-value writes included. Everything
+ * else is found by comparing the persistent heap after the command with
+ * the heap before it: a changed field, or a run of adjacent changed array
+ * elements, is one write. A plain store of the value already there, or one
+ * overwritten again in the same command, is not seen.
+ *
+ * The commit buffer is a separate area. An atomic Util write outside a
+ * transaction logs its length there; a transaction logs every byte it
+ * changes, both starting at the first commit buffer page. An aborted
+ * transaction counts its stores and the restore. Transient arrays, the
+ * APDU buffer and crypto engine state live in RAM and are not counted.
+ * Host calls made with enter() are not profiled.
+ *
+ * One profiler belongs to one card.
+ */
+public final class WearProfiler {
+    
+    public static final int DEFAULT_PAGE_SIZE = 64;
+    public static final long DEFAULT_ENDURANCE = 500000; // program cycles per page
+    
+    private static final String COMMIT_BUFFER = "commit buffer";
+    
+    // Comparison modes
+    private static final int UPDATE = 0;       // count changes against the last command, update the copy
+    private static final int COLLECT = 1;      // collect changes made in a transaction
+    private static final int ROLLBACK = 2;     // collect, and count the stores of an aborted transaction
+    
+    /**
+     * Persistent object at its address, with its contents after the last command
+     */
+    private static final class Region {
+        final Object target;
+        final int address;
+        final int size;
+        final String name;
+        final int elementSize;      // arrays
+        final Field[] fields;       // objects: fields in card memory
+        final int[] slots;          // their index in HeapSnapshot.fieldsOf, the layout of copies
+        final int[] offsets;
+        final String[] fieldNames;
+        Object copy;
+        
+        Region(Object target, int address, String name) {
+            this.target = target;
+            this.address = address;
+            this.name = name;
+            Class<?> type = target.getClass();
+            if (type.isArray()) {
+                elementSize = sizeOf(type.getComponentType());
+                size = Array.getLength(target) * elementSize;
+                fields = null;
+                slots = null;
+                offsets = null;
+                fieldNames = null;
+            } else {
+                // References to host library objects, such as the JCA keys
+                // behind emulated keys, are not card memory
+                Field[] all = HeapSnapshot.fieldsOf(type);
+                List<Field> card = new ArrayList<Field>();
+                List<Integer> indexes = new ArrayList<Integer>();
+                for (int i = 0; i < all.length; i++) {
+                    if (all[i].getType().isPrimitive() || !HeapSnapshot.isOpaque(all[i].getType())) {
+                        card.add(all[i]);
+                        indexes.add(i);
+                    }
+                }
+                elementSize = 0;
+                fields = card.toArray(new Field[card.size()]);
+                slots = new int[fields.length];
+                offsets = new int[fields.length];
+                fieldNames = new String[fields.length];
+                int offset = 0;
+                for (int i = 0; i < fields.length; i++) {
+                    slots[i] = indexes.get(i);
+                    offsets[i] = offset;
+                    fieldNames[i] = name + "." + fields[i].getName();
+                    offset += sizeOf(fields[i].getType());
+                }
+                size = offset;
+            }
+        }
+        
+        String nameAt(int at) {
+            if (fields == null) {
+                return name;
+            }
+            int i = fields.length - 1;
+            while (i > 0 && address + offsets[i] > at) {
+                i--;
+            }
+            return fieldNames[i];
+        }
+    }
+    
+    /**
+     * Writes of all commands with one INS
+     */
+    public static final class Profile {
+        private final byte ins;
+        private int commands;
+        private long bytes;
+        private long pageWrites;
+        private long pagesTouched;
+        private long logged;
+        private int peakLogged;
+        private final Map<Integer, long[]> pages = new TreeMap<Integer, long[]>();
+        private final Map<String, long[]> fields = new LinkedHashMap<String, long[]>();
+        
+        Profile(byte ins) {
+            this.ins = ins;
+        }
+        
+        public byte getIns() {
+            return ins;
+        }
+        
+        public int getCommands() {
+            return commands;
+        }
+        
+        /**
+         * Bytes written, commit buffer included
+         */
+        public long getBytesWritten() {
+            return bytes;
+        }
+        
+        /**
+         * Program cycles over all pages
+         */
+        public long getPageWrites() {
+            return pageWrites;
+        }
+        
+        /**
+         * Distinct pages written, summed over the commands
+         */
+        public long getPagesTouched() {
+            return pagesTouched;
+        }
+        
+        public long getCommitBufferBytes() {
+            return logged;
+        }
+        
+        /**
+         * Most commit buffer bytes used by one transaction or atomic write
+         */
+        public int getPeakCommitBufferBytes() {
+            return peakLogged;
+        }
+        
+        /**
+         * Bytes written per field, most written first
+         */
+        public Map<String, Long> getFieldBytes() {
+            List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(fields.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    return Long.compare(b.getValue()[0], a.getValue()[0]);
+                }
+            });
+            Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, long[]> entry : entries) {
+                sorted.put(entry.getKey(), entry.getValue()[0]);
+            }
+            return sorted;
+        }
+        
+        double perCommand(long total) {
+            return commands == 0 ? 0 : (double) total / commands;
+        }
+        
+        private static void add(Map<String, long[]> map, String key, long value) {
+            long[] sum = map.get(key);
+            if (sum == null) {
+                map.put(key, sum = new long[1]);
+            }
+            sum[0] += value;
+        }
+    }
+    
+    /**
+     * Page writes per day under a traffic mix and the days until the most
+     * written page wears out
+     */
+    public static final class Projection {
+        private final long endurance;
+        private final List<Map.Entry<Integer, Double>> pages;
+        private final Map<Byte, Double> contributions;
+        private final double bytesPerDay;
+        private final WearProfiler profiler;
+        
+        Projection(WearProfiler profiler, long endurance, List<Map.Entry<Integer, Double>> pages,
+                   Map<Byte, Double> contributions, double bytesPerDay) {
+            this.profiler = profiler;
+            this.endurance = endurance;
+            this.pages = pages;
+            this.contributions = contributions;
+            this.bytesPerDay = bytesPerDay;
+        }
+        
+        /**
+         * Most written page, e.g. "page 12" or "commit buffer page 0"
+         */
+        public String getHottestPage() {
+            return pages.isEmpty() ? null : profiler.pageName(pages.get(0).getKey());
+        }
+        
+        /**
+         * Fields written on the most written page
+         */
+        public List<String> getHottestFields() {
+            return pages.isEmpty() ? Collections.<String>emptyList() : profiler.fieldsOn(pages.get(0).getKey());
+        }
+        
+        public double getPageWritesPerDay() {
+            return pages.isEmpty() ? 0 : pages.get(0).getValue();
+        }
+        
+        /**
+         * Days until the most written page reaches its endurance
+         */
+        public double getLifetimeDays() {
+            double rate = getPageWritesPerDay();
+            return rate == 0 ? Double.POSITIVE_INFINITY : endurance / rate;
+        }
+        
+        public double getBytesPerDay() {
+            return bytesPerDay;
+        }
+        
+        /**
+         * Writes per day on the most written page by INS, largest first
+         */
+        public Map<Byte, Double> getContributions() {
+            return contributions;
+        }
+        
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("Projected lifetime: %.0f days (%.1f years) at %d cycles per page%n",
+                getLifetimeDays(), getLifetimeDays() / 365, endurance));
+            out.append(String.format("Bytes written per day: %.0f%n", bytesPerDay));
+            out.append("Most written pages (writes/day, days to wear-out):\n");
+            for (int i = 0; i < pages.size() && i < 5; i++) {
+                Map.Entry<Integer, Double> page = pages.get(i);
+                out.append(String.format("  %-22s %10.1f %12.0f  %s%n", profiler.pageName(page.getKey()),
+                    page.getValue(), endurance / page.getValue(), join(profiler.fieldsOn(page.getKey()))));
+            }
+            out.append("Writes per day on the most written page by INS:\n");
+            for (Map.Entry<Byte, Double> entry : contributions.entrySet()) {
+                out.append(String.format("  %02X %10.1f%n", entry.getKey() & 0xFF, entry.getValue()));
+            }
+            return out.toString();
+        }
+    }
+    
+    private final int pageSize;
+    private final Map<Object, Region> regions = new IdentityHashMap<Object, Region>();
+    private final List<Region> layout = new ArrayList<Region>();
+    private int top;
+    private boolean mapped;
+    private final Map<Integer, Set<String>> pageFields = new HashMap<Integer, Set<String>>();
+    private final Map<Byte, Profile> profiles = new TreeMap<Byte, Profile>(new Comparator<Byte>() {
+        public int compare(Byte a, Byte b) {
+            return (a & 0xFF) - (b & 0xFF);
+        }
+    });
+    
+    // Command being profiled
+    private Profile current;
+    private final Set<Integer> touched = new HashSet<Integer>();
+    private final BitSet covered = new BitSet();
+    
+    // Open transaction: addresses written atomically and non-atomically through Util
+    private boolean inTransaction;
+    private final BitSet transactionWrites = new BitSet();
+    private final BitSet nonAtomicWrites = new BitSet();
+    
+    /**
+     * Constructor - pages of DEFAULT_PAGE_SIZE bytes
+     */
+    public WearProfiler() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+    
+    /**
+     * Constructor - pages of the given size in bytes
+     */
+    public WearProfiler(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.pageSize = pageSize;
+    }
+    
+    public int getPageSize() {
+        return pageSize;
+    }
+    
+    /**
+     * Profile of an INS, or null if no such command was seen
+     */
+    public Profile getProfile(byte ins) {
+        return profiles.get(ins);
+    }
+    
+    /**
+     * Profiles of all INS seen, in INS order
+     */
+    public List<Profile> getProfiles() {
+        return new ArrayList<Profile>(profiles.values());
+    }
+    
+    /**
+     * Forget the counts; the memory layout is kept
+     */
+    public void clear() {
+        profiles.clear();
+        pageFields.clear();
+    }
+    
+    /**
+     * Per-command averages by INS and the most written fields of each
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Page size %d bytes, %d bytes of persistent applet data%n", pageSize, top));
+        out.append(" INS  commands   bytes/cmd  pages/cmd  writes/cmd  commit avg  commit peak\n");
+        for (Profile profile : profiles.values()) {
+            out.append(String.format("  %02X %9d %11.1f %10.1f %11.1f %11.1f %12d%n", profile.ins & 0xFF,
+                profile.commands, profile.perCommand(profile.bytes), profile.perCommand(profile.pagesTouched),
+                profile.perCommand(profile.pageWrites), profile.perCommand(profile.logged), profile.peakLogged));
+        }
+        for (Profile profile : profiles.values()) {
+            if (profile.bytes == 0) {
+                continue;
+            }
+            out.append(String.format("%nINS %02X, bytes per command by field:%n", profile.ins & 0xFF));
+            int shown = 0;
+            for (Map.Entry<String, Long> entry : profile.getFieldBytes().entrySet()) {
+                if (shown++ == 8) {
+                    break;
+                }
+                out.append(String.format("  %9.1f  %s%n", profile.perCommand(entry.getValue()), entry.getKey()));
+            }
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Project the profiled averages onto a traffic mix of commands per day by INS
+     */
+    public Projection project(Map<Byte, ? extends Number> commandsPerDay, long endurance) {
+        Map<Integer, Double> rates = new TreeMap<Integer, Double>();
+        double bytesPerDay = 0;
+        for (Map.Entry<Byte, ? extends Number> entry : commandsPerDay.entrySet()) {
+            Profile profile = profiles.get(entry.getKey());
+            if (profile == null || profile.commands == 0) {
+                throw new IllegalArgumentException(String.format("INS %02X was not profiled", entry.getKey() & 0xFF));
+            }
+            double scale = entry.getValue().doubleValue() / profile.commands;
+            bytesPerDay += profile.bytes * scale;
+            for (Map.Entry<Integer, long[]> page : profile.pages.entrySet()) {
+                Double rate = rates.get(page.getKey());
+                rates.put(page.getKey(), (rate == null ? 0 : rate) + page.getValue()[0] * scale);
+            }
+        }
+        List<Map.Entry<Integer, Double>> pages = new ArrayList<Map.Entry<Integer, Double>>(rates.entrySet());
+        Collections.sort(pages, new Comparator<Map.Entry<Integer, Double>>() {
+            public int compare(Map.Entry<Integer, Double> a, Map.Entry<Integer, Double> b) {
+                return Double.compare(b.getValue(), a.getValue());
+            }
+        });
+        
+        Map<Byte, Double> contributions = new LinkedHashMap<Byte, Double>();
+        if (!pages.isEmpty()) {
+            final Map<Byte, Double> unsorted = new TreeMap<Byte, Double>();
+            Integer hottest = pages.get(0).getKey();
+            for (Map.Entry<Byte, ? extends Number> entry : commandsPerDay.entrySet()) {
+                Profile profile = profiles.get(entry.getKey());
+                long[] writes = profile.pages.get(hottest);
+                if (writes != null) {
+                    unsorted.put(entry.getKey(), writes[0] * entry.getValue().doubleValue() / profile.commands);
+                }
+            }
+            List<Byte> order = new ArrayList<Byte>(unsorted.keySet());
+            Collections.sort(order, new Comparator<Byte>() {
+                public int compare(Byte a, Byte b) {
+                    return Double.compare(unsorted.get(b), unsorted.get(a));
+                }
+            });
+            for (Byte ins : order) {
+                contributions.put(ins, unsorted.get(ins));
+            }
+        }
+        return new Projection(this, endurance, pages, contributions, bytesPerDay);
+    }
+    
+    // Runtime hooks
+    
+    void beginCommand(CardRuntime runtime, byte ins) {
+        if (!mapped) {
+            scan(runtime, false);
+            mapped = true;
+        }
+        current = profiles.get(ins);
+        if (current == null) {
+            profiles.put(ins, current = new Profile(ins));
+        }
+        current.commands++;
+        touched.clear();
+        covered.clear();
+    }
+    
+    void endCommand(CardRuntime runtime) {
+        scan(runtime, true);
+        current.pagesTouched += touched.size();
+        current = null;
+        inTransaction = false;
+    }
+    
+    /**
+     * Util copy or fill into an array
+     */
+    void arrayWrite(Object array, int offset, int length, boolean atomic) {
+        Region region = regions.get(array);
+        if (current == null || region == null || length <= 0) {
+            return;
+        }
+        int address = region.address + offset * region.elementSize;
+        int size = length * region.elementSize;
+        write(address, size, region.name);
+        if (inTransaction) {
+            (atomic ? transactionWrites : nonAtomicWrites).set(address, address + size);
+        } else if (atomic) {
+            log(size);
+        }
+    }
+    
+    void beginTransaction() {
+        inTransaction = true;
+        transactionWrites.clear();
+        nonAtomicWrites.clear();
+    }
+    
+    /**
+     * Log what the transaction changed; called before an abort restores the snapshot
+     */
+    void endTransaction(HeapSnapshot snapshot, boolean aborted) {
+        inTransaction = false;
+        if (current == null) {
+            return;
+        }
+        BitSet changed = new BitSet();
+        for (Region region : layout) {
+            Object saved = snapshot.getSaved(region.target);
+            if (saved != null) {
+                compare(region, saved, aborted ? ROLLBACK : COLLECT, changed);
+            }
+        }
+        changed.or(transactionWrites);
+        changed.andNot(nonAtomicWrites);
+        log(changed.cardinality());
+        if (aborted) {
+            Set<Integer> restored = new HashSet<Integer>();
+            for (int at = changed.nextSetBit(0); at >= 0; at = changed.nextSetBit(at + 1)) {
+                String name = nameAt(at);
+                current.bytes++;
+                Profile.add(current.fields, name, 1);
+                restored.add(at / pageSize);
+                written(at / pageSize, name);
+            }
+            for (Integer page : restored) {
+                pageWrite(page);
+            }
+        }
+    }
+    
+    // Heap walk and comparison
+    
+    /**
+     * Walk the persistent heap from the applets: map new objects and, when
+     * counting, compare known ones with their copies
+     */
+    private void scan(CardRuntime runtime, boolean count) {
+        Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+        ArrayDeque<Object> pending = new ArrayDeque<Object>();
+        ArrayDeque<String> names = new ArrayDeque<String>();
+        for (Object root : runtime.getRoots()) {
+            pending.push(root);
+            names.push(root.getClass().getSimpleName());
+        }
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            String name = names.pop();
+            if (seen.put(object, Boolean.TRUE) != null || !isPersistent(object, runtime)) {
+                continue;
+            }
+            Region region = regions.get(object);
+            if (region == null) {
+                region = new Region(object, top, name);
+                regions.put(object, region);
+                layout.add(region);
+                top += region.size;
+                if (count && region.size > 0) {
+                    write(region.address, region.size, region.name);
+                }
+                region.copy = contents(object, region);
+            } else if (count) {
+                compare(region, region.copy, UPDATE, null);
+            }
+            
+            if (object instanceof Object[]) {
+                for (Object element : (Object[]) object) {
+                    if (element != null) {
+                        pending.push(element);
+                        names.push(region.name + "[]");
+                    }
+                }
+            } else if (region.fields != null) {
+                for (int i = 0; i < region.fields.length; i++) {
+                    Object value = ((Object[]) region.copy)[region.slots[i]];
+                    if (value != null && !region.fields[i].getType().isPrimitive()) {
+                        pending.push(value);
+                        names.push(region.fieldNames[i]);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compare the live contents of a region with saved ones. UPDATE counts
+     * the writes not already reported and refreshes the copy; COLLECT and
+     * ROLLBACK add the changed addresses to the set.
+     */
+    private void compare(Region region, Object saved, int mode, BitSet changed) {
+        Object object = region.target;
+        if (region.fields == null) {
+            int length = Array.getLength(object);
+            int run = -1;
+            for (int i = 0; i <= length; i++) {
+                boolean differs = i < length && !elementEquals(object, saved, i);
+                if (differs && run < 0) {
+                    run = i;
+                } else if (!differs && run >= 0) {
+                    changed(region, region.address + run * region.elementSize, (i - run) * region.elementSize,
+                            region.name, mode, changed);
+                    run = -1;
+                }
+            }
+            if (mode == UPDATE) {
+                System.arraycopy(object, 0, saved, 0, length);
+            }
+        } else {
+            Object[] values = (Object[]) saved;
+            for (int i = 0; i < region.fields.length; i++) {
+                Object value = get(region.fields[i], object);
+                Object old = values[region.slots[i]];
+                boolean same = region.fields[i].getType().isPrimitive() ? value.equals(old) : value == old;
+                if (!same) {
+                    changed(region, region.address + region.offsets[i], sizeOf(region.fields[i].getType()),
+                            region.fieldNames[i], mode, changed);
+                    if (mode == UPDATE) {
+                        values[region.slots[i]] = value;
+                    }
+                }
+            }
+        }
+    }
+    
+    private void changed(Region region, int address, int size, String name, int mode, BitSet changed) {
+        boolean reported = covered.get(address, address + size).cardinality() == size;
+        if (mode != COLLECT && !reported) {
+            write(address, size, name);
+        }
+        if (mode != UPDATE) {
+            changed.set(address, address + size);
+        }
+    }
+    
+    // Accounting
+    
+    /**
+     * One write operation of a contiguous range
+     */
+    private void write(int address, int size, String name) {
+        current.bytes += size;
+        Profile.add(current.fields, name, size);
+        for (int page = address / pageSize; page <= (address + size - 1) / pageSize; page++) {
+            pageWrite(page);
+            written(page, name);
+        }
+        covered.set(address, address + size);
+    }
+    
+    /**
+     * Bytes logged in the commit buffer by one transaction or atomic write
+     */
+    private void log(int size) {
+        if (size == 0) {
+            return;
+        }
+        current.bytes += size;
+        current.logged += size;
+        current.peakLogged = Math.max(current.peakLogged, size);
+        Profile.add(current.fields, COMMIT_BUFFER, size);
+        for (int i = 0; i < (size + pageSize - 1) / pageSize; i++) {
+            pageWrite(-1 - i); // commit buffer pages are numbered -1, -2, ...
+        }
+    }
+    
+    private void pageWrite(int page) {
+        current.pageWrites++;
+        touched.add(page);
+        long[] writes = current.pages.get(page);
+        if (writes == null) {
+            current.pages.put(page, writes = new long[1]);
+        }
+        writes[0]++;
+    }
+    
+    private void written(int page, String name) {
+        Set<String> names = pageFields.get(page);
+        if (names == null) {
+            pageFields.put(page, names = new TreeSet<String>());
+        }
+        names.add(name);
+    }
+    
+    String pageName(int page) {
+        return page < 0 ? COMMIT_BUFFER + " page " + (-1 - page) : "page " + page;
+    }
+    
+    /**
+     * Fields written on a page
+     */
+    List<String> fieldsOn(int page) {
+        if (page < 0) {
+            return Collections.singletonList(COMMIT_BUFFER);
+        }
+        Set<String> names = pageFields.get(page);
+        return names == null ? Collections.<String>emptyList() : new ArrayList<String>(names);
+    }
+    
+    private String nameAt(int address) {
+        int low = 0;
+        int high = layout.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (layout.get(middle).address <= address) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return layout.get(low).nameAt(address);
+    }
+    
+    /**
+     * Persistent applet state: not RAM, not host library objects, not crypto engines
+     */
+    private static boolean isPersistent(Object object, CardRuntime runtime) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            return !runtime.isVolatile(object);
+        }
+        return !HeapSnapshot.isOpaque(type) && !(object instanceof TransientState)
+            && !(object instanceof Signature) && !(object instanceof Cipher) && !(object instanceof MessageDigest)
+            && !(object instanceof KeyAgreement) && !(object instanceof RandomData) && !(object instanceof APDU);
+    }
+    
+    private static Object contents(Object object, Region region) {
+        if (region.fields == null) {
+            int length = Array.getLength(object);
+            Object copy = Array.newInstance(object.getClass().getComponentType(), length);
+            System.arraycopy(object, 0, copy, 0, length);
+            return copy;
+        }
+        Field[] all = HeapSnapshot.fieldsOf(object.getClass());
+        Object[] values = new Object[all.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(all[i], object);
+        }
+        return values;
+    }
+    
+    private static boolean elementEquals(Object array, Object saved, int i) {
+        if (array instanceof byte[]) {
+            return ((byte[]) array)[i] == ((byte[]) saved)[i];
+        }
+        if (array instanceof short[]) {
+            return ((short[]) array)[i] == ((short[]) saved)[i];
+        }
+        if (array instanceof Object[]) {
+            return ((Object[]) array)[i] == ((Object[]) saved)[i];
+        }
+        return Array.get(array, i).equals(Array.get(saved, i));
+    }
+    
+    /**
+     * Bytes a field or element of the type takes on a card
+     */
+    private static int sizeOf(Class<?> type) {
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        return 2; // short, char and references
+    }
+    
+    private static String join(List<String> names) {
+        StringBuilder out = new StringBuilder();
+        for (String name : names) {
+            out.append(out.length() == 0 ? "" : ", ").append(name);
+        }
+        return out.toString();
+    }
+    
+    private static Object get(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot read " + field, e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacardx.crypto.Cipher;
+
+import com.zereans.emulator.TransientState;
+
+/**
+ * AES in CBC or ECB mode, unpadded or with PKCS#5 padding, on the JCA provider
+ *
+ * As on a card, doFinal returns the engine to the state right after init,
+ * so the same IV applies to the next message. In-place processing, with
+ * input and output in the same array, is supported.
+ */
+final class AesCipher extends Cipher implements TransientState {
+    
+    private static final int BLOCK = 16;
+    private static final byte[] ZERO_IV = new byte[BLOCK];
+    
+    private final byte algorithm;
+    private final boolean cbc;
+    private final boolean padded;
+    private final javax.crypto.Cipher jca;
+    private byte mode;
+    private byte[] keyBytes;
+    
+    AesCipher(byte algorithm, boolean cbc, boolean padded) {
+        this.algorithm = algorithm;
+        this.cbc = cbc;
+        this.padded = padded;
+        try {
+            jca = javax.crypto.Cipher.getInstance("AES/" + (cbc ? "CBC" : "ECB") + (padded ? "/PKCS5Padding" : "/NoPadding"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public void init(Key theKey, byte theMode) {
+        init(theKey, theMode, ZERO_IV, (short) 0, (short) BLOCK);
+    }
+    
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+        if ((theMode != MODE_ENCRYPT && theMode != MODE_DECRYPT) || !(theKey instanceof AesKeyImpl)) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        if (cbc ? bLen != BLOCK : bArray != ZERO_IV) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        byte[] data = ((AesKeyImpl) theKey).data();
+        keyBytes = new byte[KeyImpl.length(data)];
+        System.arraycopy(data, 2, keyBytes, 0, keyBytes.length);
+        try {
+            int jcaMode = theMode == MODE_ENCRYPT ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE;
+            SecretKeySpec spec = new SecretKeySpec(keyBytes, "AES");
+            if (cbc) {
+                jca.init(jcaMode, spec, new IvParameterSpec(bArray, bOff, bLen));
+            } else {
+                jca.init(jcaMode, spec);
+            }
+        } catch (GeneralSecurityException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        mode = theMode;
+    }
+    
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+    
+    public byte getCipherAlgorithm() {
+        return cbc ? CIPHER_AES_CBC : CIPHER_AES_ECB;
+    }
+    
+    public byte getPaddingAlgorithm() {
+        return padded ? PAD_PKCS5 : PAD_NOPAD;
+    }
+    
+    public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        requireInit();
+        try {
+            return (short) jca.update(inBuff, inOffset, inLength, outBuff, outOffset);
+        } catch (ShortBufferException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            return 0;
+        }
+    }
+    
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        requireInit();
+        try {
+            return (short) jca.doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+        } catch (IllegalBlockSizeException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        } catch (BadPaddingException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        } catch (ShortBufferException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        }
+        return 0;
+    }
+    
+    private void requireInit() {
+        if (mode == 0) {
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+        }
+    }
+}
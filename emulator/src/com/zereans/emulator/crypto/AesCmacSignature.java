@@ -0,0 +1,159 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.MessageDigest;
+import javacard.security.Signature;
+
+/**
+ * AES-CMAC (NIST SP 800-38B) with a 16-byte tag
+ *
+ * Streams over a JCA AES block cipher. The last block is held back until
+ * sign or verify, since its subkey depends on whether it is complete.
+ */
+final class AesCmacSignature extends SignatureEngine {
+    
+    private static final int BLOCK = 16;
+    
+    private final byte[] k1 = new byte[BLOCK];
+    private final byte[] k2 = new byte[BLOCK];
+    private final byte[] state = new byte[BLOCK];
+    private final byte[] pending = new byte[BLOCK];
+    private final byte[] tag = new byte[BLOCK];
+    private int pendingLength;
+    private Cipher aes;
+    private byte[] keyBytes;
+    
+    AesCmacSignature() {
+        super(Signature.ALG_AES_CMAC_128, MessageDigest.ALG_NULL, Signature.SIG_CIPHER_AES_CMAC128, javacardx.crypto.Cipher.PAD_NULL);
+    }
+    
+    public short getLength() {
+        return BLOCK;
+    }
+    
+    protected void engineInit(Key key, byte theMode) {
+        if (!(key instanceof AesKeyImpl)) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        byte[] data = ((AesKeyImpl) key).data();
+        int length = KeyImpl.length(data);
+        if (keyBytes == null || !regionEquals(keyBytes, data, length)) {
+            keyBytes = new byte[length];
+            System.arraycopy(data, 2, keyBytes, 0, length);
+            try {
+                if (aes == null) {
+                    aes = Cipher.getInstance("AES/ECB/NoPadding");
+                }
+                aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"));
+            } catch (GeneralSecurityException e) {
+                keyBytes = null;
+                CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            }
+            // Subkeys: L = AES(0), K1 = L << 1, K2 = K1 << 1 (with Rb = 0x87)
+            Arrays.fill(state, (byte) 0);
+            encrypt(state, k1);
+            doubleBlock(k1, k1);
+            doubleBlock(k1, k2);
+        }
+        restart();
+    }
+    
+    protected void engineUpdate(byte[] in, short offset, short length) {
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            if (pendingLength == BLOCK) {
+                xorInto(state, pending, 0);
+                encrypt(state, state);
+                pendingLength = 0;
+            }
+            int count = Math.min(BLOCK - pendingLength, end - position);
+            System.arraycopy(in, position, pending, pendingLength, count);
+            pendingLength += count;
+            position += count;
+        }
+    }
+    
+    protected short engineSign(byte[] in, short offset, short length, byte[] sig, short sigOffset) {
+        engineUpdate(in, offset, length);
+        finish();
+        System.arraycopy(tag, 0, sig, sigOffset, BLOCK);
+        restart();
+        return BLOCK;
+    }
+    
+    protected boolean engineVerify(byte[] in, short offset, short length, byte[] sig, short sigOffset, short sigLength) {
+        engineUpdate(in, offset, length);
+        finish();
+        boolean valid = sigLength == BLOCK;
+        int difference = 0;
+        for (int i = 0; valid && i < BLOCK; i++) {
+            difference |= tag[i] ^ sig[sigOffset + i];
+        }
+        restart();
+        return valid && difference == 0;
+    }
+    
+    /**
+     * Final block: complete blocks take K1, partial ones are padded 10..0 and take K2
+     */
+    private void finish() {
+        if (pendingLength == BLOCK) {
+            xorInto(pending, k1, 0);
+        } else {
+            pending[pendingLength] = (byte) 0x80;
+            for (int i = pendingLength + 1; i < BLOCK; i++) {
+                pending[i] = 0;
+            }
+            xorInto(pending, k2, 0);
+        }
+        xorInto(state, pending, 0);
+        encrypt(state, tag);
+    }
+    
+    private void restart() {
+        Arrays.fill(state, (byte) 0);
+        pendingLength = 0;
+    }
+    
+    private void encrypt(byte[] in, byte[] out) {
+        try {
+            aes.doFinal(in, 0, BLOCK, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static void doubleBlock(byte[] in, byte[] out) {
+        int carry = (in[0] & 0x80) != 0 ? 0x87 : 0;
+        for (int i = 0; i < BLOCK - 1; i++) {
+            out[i] = (byte) ((in[i] << 1) | ((in[i + 1] & 0xFF) >>> 7));
+        }
+        out[BLOCK - 1] = (byte) ((in[BLOCK - 1] << 1) ^ carry);
+    }
+    
+    private static void xorInto(byte[] target, byte[] source, int sourceOffset) {
+        for (int i = 0; i < BLOCK; i++) {
+            target[i] ^= source[sourceOffset + i];
+        }
+    }
+    
+    private static boolean regionEquals(byte[] key, byte[] data, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != data[2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,46 @@
+package com.zereans.emulator.crypto;
+
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+
+/**
+ * AES key
+ */
+public final class AesKeyImpl extends KeyImpl implements AESKey {
+    
+    private final byte[] key;
+    
+    public AesKeyImpl(byte type, short size, byte event) {
+        super(type, size, event);
+        if (size != 128 && size != 192 && size != 256) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
+        key = newComponent(size / 8);
+    }
+    
+    public void setKey(byte[] keyData, short kOff) {
+        set(key, keyData, kOff, (short) (getSize() / 8));
+    }
+    
+    public byte getKey(byte[] keyData, short kOff) {
+        return (byte) get(key, keyData, kOff);
+    }
+    
+    public boolean isInitialized() {
+        return isSet(key);
+    }
+    
+    public void clearKey() {
+        clear(key);
+    }
+    
+    /**
+     * Key bytes for the engines; the array holds the 2-byte length first
+     */
+    byte[] data() {
+        if (!isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,62 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javacard.security.CryptoException;
+import javacard.security.MessageDigest;
+
+import com.zereans.emulator.TransientState;
+
+/**
+ * Message digest on the JCA provider
+ */
+final class DigestEngine extends MessageDigest implements TransientState {
+    
+    private final byte algorithm;
+    private final java.security.MessageDigest jca;
+    
+    DigestEngine(byte algorithm, String name) {
+        this.algorithm = algorithm;
+        try {
+            jca = java.security.MessageDigest.getInstance(name);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+    
+    public byte getLength() {
+        return (byte) jca.getDigestLength();
+    }
+    
+    public short doIntermediateMessageDigest(byte[] outBuff, short outOffset) {
+        try {
+            java.security.MessageDigest copy = (java.security.MessageDigest) jca.clone();
+            return (short) copy.digest(outBuff, outOffset, jca.getDigestLength());
+        } catch (CloneNotSupportedException | GeneralSecurityException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            return 0;
+        }
+    }
+    
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        jca.update(inBuff, inOffset, inLength);
+        try {
+            return (short) jca.digest(outBuff, outOffset, jca.getDigestLength());
+        } catch (GeneralSecurityException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            return 0;
+        }
+    }
+    
+    public void update(byte[] inBuff, short inOffset, short inLength) {
+        jca.update(inBuff, inOffset, inLength);
+    }
+    
+    public void reset() {
+        jca.reset();
+    }
+}
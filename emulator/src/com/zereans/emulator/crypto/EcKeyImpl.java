@@ -0,0 +1,231 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+import java.security.spec.ECField;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+
+import javacard.security.CryptoException;
+import javacard.security.ECKey;
+
+/**
+ * Domain parameters of a prime field EC key
+ *
+ * Curves over F2m are not supported. The parameters are turned into a JCA
+ * ECParameterSpec on first use, so any prime curve the applet loads works
+ * with the JCA engines, not only the named ones.
+ */
+public abstract class EcKeyImpl extends KeyImpl implements ECKey {
+    
+    private final byte[] field;
+    private final byte[] a;
+    private final byte[] b;
+    private final byte[] g;
+    private final byte[] r;
+    private final byte[] k;
+    private ECParameterSpec spec;
+    
+    protected EcKeyImpl(byte type, short size, byte event) {
+        super(type, size, event);
+        int length = (size + 7) / 8;
+        field = newComponent(length);
+        a = newComponent(length);
+        b = newComponent(length);
+        g = newComponent(1 + 2 * length);
+        r = newComponent(length + 1);
+        k = newComponent(2);
+    }
+    
+    /**
+     * Bytes of a field element or coordinate
+     */
+    protected final int coordinateLength() {
+        return (getSize() + 7) / 8;
+    }
+    
+    public void setFieldFP(byte[] buffer, short offset, short length) {
+        set(field, buffer, offset, length);
+        domainChanged();
+    }
+    
+    public void setFieldF2M(short e) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    
+    public void setFieldF2M(short e1, short e2, short e3) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    
+    public void setA(byte[] buffer, short offset, short length) {
+        set(a, buffer, offset, length);
+        domainChanged();
+    }
+    
+    public void setB(byte[] buffer, short offset, short length) {
+        set(b, buffer, offset, length);
+        domainChanged();
+    }
+    
+    public void setG(byte[] buffer, short offset, short length) {
+        set(g, buffer, offset, length);
+        domainChanged();
+    }
+    
+    public void setR(byte[] buffer, short offset, short length) {
+        set(r, buffer, offset, length);
+        domainChanged();
+    }
+    
+    public void setK(short cofactor) {
+        byte[] value = {(byte) (cofactor >> 8), (byte) cofactor};
+        set(k, value, (short) 0, (short) 2);
+        domainChanged();
+    }
+    
+    public short getField(byte[] buffer, short offset) {
+        return get(field, buffer, offset);
+    }
+    
+    public short getA(byte[] buffer, short offset) {
+        return get(a, buffer, offset);
+    }
+    
+    public short getB(byte[] buffer, short offset) {
+        return get(b, buffer, offset);
+    }
+    
+    public short getG(byte[] buffer, short offset) {
+        return get(g, buffer, offset);
+    }
+    
+    public short getR(byte[] buffer, short offset) {
+        return get(r, buffer, offset);
+    }
+    
+    public short getK() {
+        if (!isSet(k)) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        return (short) (((k[2] & 0xFF) << 8) | (k[3] & 0xFF));
+    }
+    
+    public void copyDomainParametersFrom(ECKey other) {
+        if (!(other instanceof EcKeyImpl) || !((EcKeyImpl) other).isDomainSet()) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        EcKeyImpl source = (EcKeyImpl) other;
+        copy(source.field, field);
+        copy(source.a, a);
+        copy(source.b, b);
+        copy(source.g, g);
+        copy(source.r, r);
+        copy(source.k, k);
+        domainChanged();
+    }
+    
+    public void clearKey() {
+        clear(field);
+        clear(a);
+        clear(b);
+        clear(g);
+        clear(r);
+        clear(k);
+        domainChanged();
+    }
+    
+    /**
+     * All curve parameters are set; the cofactor defaults to 1
+     */
+    protected final boolean isDomainSet() {
+        return isSet(field) && isSet(a) && isSet(b) && isSet(g) && isSet(r);
+    }
+    
+    /**
+     * Called when the domain or key value changes, to drop cached JCA objects
+     */
+    protected void domainChanged() {
+        spec = null;
+    }
+    
+    /**
+     * Domain parameters as a JCA spec
+     */
+    final ECParameterSpec parameterSpec() {
+        if (!isDomainSet()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        if (spec == null) {
+            EllipticCurve curve = new EllipticCurve(new ECFieldFp(toInteger(field)), toInteger(a), toInteger(b));
+            byte[] generator = new byte[length(g)];
+            System.arraycopy(g, 2, generator, 0, generator.length);
+            int cofactor = isSet(k) ? getK() & 0xFFFF : 1;
+            spec = new ECParameterSpec(curve, decodePoint(generator, 0, generator.length, curve), toInteger(r), cofactor);
+        }
+        return spec;
+    }
+    
+    /**
+     * Load domain parameters from a JCA spec, as used by key generation
+     * when the applet has not set a curve
+     */
+    final void setParameterSpec(ECParameterSpec parameters) {
+        int length = coordinateLength();
+        ECField curveField = parameters.getCurve().getField();
+        setInteger(field, ((ECFieldFp) curveField).getP(), length);
+        setInteger(a, parameters.getCurve().getA(), length);
+        setInteger(b, parameters.getCurve().getB(), length);
+        byte[] generator = encodePoint(parameters.getGenerator(), length);
+        set(g, generator, (short) 0, (short) generator.length);
+        setInteger(r, parameters.getOrder(), 0);
+        setK((short) parameters.getCofactor());
+        domainChanged();
+    }
+    
+    /**
+     * Decode an uncompressed or compressed point
+     */
+    static ECPoint decodePoint(byte[] data, int offset, int length, EllipticCurve curve) {
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        int size = (p.bitLength() + 7) / 8;
+        byte format = data[offset];
+        if (format == 0x04 && length == 1 + 2 * size) {
+            BigInteger x = new BigInteger(1, slice(data, offset + 1, size));
+            BigInteger y = new BigInteger(1, slice(data, offset + 1 + size, size));
+            return new ECPoint(x, y);
+        }
+        if ((format == 0x02 || format == 0x03) && length == 1 + size && p.testBit(0) && p.testBit(1)) {
+            // y = sqrt(x^3 + ax + b), a single exponentiation when p = 3 mod 4
+            BigInteger x = new BigInteger(1, slice(data, offset + 1, size));
+            BigInteger rhs = x.pow(3).add(curve.getA().multiply(x)).add(curve.getB()).mod(p);
+            BigInteger y = rhs.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+            if (!y.multiply(y).mod(p).equals(rhs)) {
+                CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            }
+            if (y.testBit(0) != (format == 0x03)) {
+                y = p.subtract(y);
+            }
+            return new ECPoint(x, y);
+        }
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        return null;
+    }
+    
+    /**
+     * Uncompressed encoding of a point
+     */
+    static byte[] encodePoint(ECPoint point, int size) {
+        byte[] out = new byte[1 + 2 * size];
+        out[0] = 0x04;
+        System.arraycopy(unsigned(point.getAffineX(), size), 0, out, 1, size);
+        System.arraycopy(unsigned(point.getAffineY(), size), 0, out, 1 + size, size);
+        return out;
+    }
+    
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] out = new byte[length];
+        System.arraycopy(data, offset, out, 0, length);
+        return out;
+    }
+}
@@ -0,0 +1,71 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECPrivateKeySpec;
+
+import javacard.security.CryptoException;
+
+/**
+ * EC private key
+ */
+public final class EcPrivateKeyImpl extends EcKeyImpl implements javacard.security.ECPrivateKey {
+    
+    private final byte[] s;
+    private ECPrivateKey jcaKey;
+    
+    public EcPrivateKeyImpl(byte type, short size, byte event) {
+        super(type, size, event);
+        s = newComponent(coordinateLength() + 1);
+    }
+    
+    public void setS(byte[] buffer, short offset, short length) {
+        set(s, buffer, offset, length);
+        jcaKey = null;
+    }
+    
+    public short getS(byte[] buffer, short offset) {
+        return get(s, buffer, offset);
+    }
+    
+    public boolean isInitialized() {
+        return isSet(s) && isDomainSet();
+    }
+    
+    public void clearKey() {
+        clear(s);
+        super.clearKey();
+    }
+    
+    protected void domainChanged() {
+        super.domainChanged();
+        jcaKey = null;
+    }
+    
+    /**
+     * Key as a JCA private key
+     */
+    ECPrivateKey toJca() {
+        if (!isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        if (jcaKey == null) {
+            try {
+                KeyFactory factory = KeyFactory.getInstance("EC");
+                jcaKey = (ECPrivateKey) factory.generatePrivate(new ECPrivateKeySpec(toInteger(s), parameterSpec()));
+            } catch (GeneralSecurityException e) {
+                CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            }
+        }
+        return jcaKey;
+    }
+    
+    /**
+     * Set S from a JCA private key
+     */
+    void setFromJca(ECPrivateKey key) {
+        byte[] value = unsigned(key.getS(), coordinateLength());
+        setS(value, (short) 0, (short) value.length);
+    }
+}
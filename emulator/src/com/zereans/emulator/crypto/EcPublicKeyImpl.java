@@ -0,0 +1,74 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECPublicKeySpec;
+
+import javacard.security.CryptoException;
+
+/**
+ * EC public key; W may be set compressed or uncompressed
+ */
+public final class EcPublicKeyImpl extends EcKeyImpl implements javacard.security.ECPublicKey {
+    
+    private final byte[] w;
+    private ECPublicKey jcaKey;
+    
+    public EcPublicKeyImpl(byte type, short size, byte event) {
+        super(type, size, event);
+        w = newComponent(1 + 2 * coordinateLength());
+    }
+    
+    public void setW(byte[] buffer, short offset, short length) {
+        set(w, buffer, offset, length);
+        jcaKey = null;
+    }
+    
+    public short getW(byte[] buffer, short offset) {
+        return get(w, buffer, offset);
+    }
+    
+    public boolean isInitialized() {
+        return isSet(w) && isDomainSet();
+    }
+    
+    public void clearKey() {
+        clear(w);
+        super.clearKey();
+    }
+    
+    protected void domainChanged() {
+        super.domainChanged();
+        jcaKey = null;
+    }
+    
+    /**
+     * Key as a JCA public key
+     */
+    ECPublicKey toJca() {
+        if (!isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        if (jcaKey == null) {
+            byte[] point = new byte[length(w)];
+            System.arraycopy(w, 2, point, 0, point.length);
+            try {
+                KeyFactory factory = KeyFactory.getInstance("EC");
+                jcaKey = (ECPublicKey) factory.generatePublic(
+                    new ECPublicKeySpec(decodePoint(point, 0, point.length, parameterSpec().getCurve()), parameterSpec()));
+            } catch (GeneralSecurityException e) {
+                CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            }
+        }
+        return jcaKey;
+    }
+    
+    /**
+     * Set W from a JCA public key
+     */
+    void setFromJca(ECPublicKey key) {
+        byte[] point = encodePoint(key.getW(), coordinateLength());
+        setW(point, (short) 0, (short) point.length);
+    }
+}
@@ -0,0 +1,73 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPublicKeySpec;
+
+import javacard.security.CryptoException;
+import javacard.security.KeyAgreement;
+import javacard.security.PrivateKey;
+
+import com.zereans.emulator.TransientState;
+
+/**
+ * EC Diffie-Hellman on the JCA provider: ALG_EC_SVDP_DH returns SHA-1 of
+ * the shared x coordinate, ALG_EC_SVDP_DH_PLAIN the coordinate itself
+ */
+final class EcdhKeyAgreement extends KeyAgreement implements TransientState {
+    
+    private final byte algorithm;
+    private final javax.crypto.KeyAgreement jca;
+    private EcPrivateKeyImpl key;
+    
+    EcdhKeyAgreement(byte algorithm) {
+        this.algorithm = algorithm;
+        try {
+            jca = javax.crypto.KeyAgreement.getInstance("ECDH");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public void init(PrivateKey privKey) {
+        if (!(privKey instanceof EcPrivateKeyImpl)) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        if (!privKey.isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        key = (EcPrivateKeyImpl) privKey;
+    }
+    
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+    
+    public short generateSecret(byte[] publicData, short publicOffset, short publicLength, byte[] secret, short secretOffset) {
+        if (key == null) {
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+        }
+        try {
+            ECPrivateKey privateKey = key.toJca();
+            ECParameterSpec spec = privateKey.getParams();
+            KeyFactory factory = KeyFactory.getInstance("EC");
+            java.security.PublicKey publicKey = factory.generatePublic(new ECPublicKeySpec(
+                EcKeyImpl.decodePoint(publicData, publicOffset, publicLength, spec.getCurve()), spec));
+            jca.init(privateKey);
+            jca.doPhase(publicKey, true);
+            byte[] x = jca.generateSecret();
+            if (algorithm == ALG_EC_SVDP_DH) {
+                x = MessageDigest.getInstance("SHA-1").digest(x);
+            }
+            System.arraycopy(x, 0, secret, secretOffset, x.length);
+            return (short) x.length;
+        } catch (GeneralSecurityException e) {
+            // Point not on the curve or otherwise unusable
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.zereans.emulator.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.Signature;
+
+/**
+ * ECDSA with DER-encoded signatures, on the JCA provider
+ */
+final class EcdsaSignature extends SignatureEngine {
+    
+    private final java.security.Signature jca;
+    private final SecureRandom random;
+    private final short maxLength;
+    
+    EcdsaSignature(byte algorithm, String digest, SecureRandom random) {
+        super(algorithm, digestCode(digest), Signature.SIG_CIPHER_ECDSA, javacardx.crypto.Cipher.PAD_NULL);
+        this.random = random;
+        try {
+            jca = java.security.Signature.getInstance(digest.replace("-", "") + "withECDSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        maxLength = 72;
+    }
+    
+    public short getLength() {
+        requireInitialized();
+        return maxLength;
+    }
+    
+    protected void engineInit(Key key, byte theMode) {
+        try {
+            if (theMode == MODE_SIGN && key instanceof EcPrivateKeyImpl) {
+                jca.initSign(((EcPrivateKeyImpl) key).toJca(), random);
+                return;
+            }
+            if (theMode == MODE_VERIFY && key instanceof EcPublicKeyImpl) {
+                jca.initVerify(((EcPublicKeyImpl) key).toJca());
+                return;
+            }
+        } catch (GeneralSecurityException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    
+    protected void engineUpdate(byte[] in, short offset, short length) {
+        try {
+            jca.update(in, offset, length);
+        } catch (SignatureException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        }
+    }
+    
+    protected short engineSign(byte[] in, short offset, short length, byte[] sig, short sigOffset) {
+        try {
+            jca.update(in, offset, length);
+            byte[] der = jca.sign();
+            System.arraycopy(der, 0, sig, sigOffset, der.length);
+            return (short) der.length;
+        } catch (SignatureException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            return 0;
+        }
+    }
+    
+    protected boolean engineVerify(byte[] in, short offset, short length, byte[] sig, short sigOffset, short sigLength) {
+        try {
+            jca.update(in, offset, length);
+            return jca.verify(sig, sigOffset, sigLength);
+        } catch (SignatureException e) {
+            // Malformed DER; the JCA engine resets itself for the next message
+            return false;
+        }
+    }
+}
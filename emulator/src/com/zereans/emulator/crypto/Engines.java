@@ -0,0 +1,165 @@
+package com.zereans.emulator.crypto;
+
+import java.security.SecureRandom;
+
+import javacard.framework.JCSystem;
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.KeyAgreement;
+import javacard.security.KeyBuilder;
+import javacard.security.MessageDigest;
+import javacard.security.RandomData;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+import com.zereans.emulator.CardRuntime;
+
+/**
+ * Factories behind the getInstance and buildKey methods of the crypto API
+ *
+ * Only the algorithms below are emulated; anything else fails with
+ * NO_SUCH_ALGORITHM, which is what a card without the algorithm reports.
+ */
+public final class Engines {
+    
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private Engines() {
+    }
+    
+    static SecureRandom random() {
+        return RANDOM;
+    }
+    
+    public static Signature signature(byte algorithm) {
+        checkPresent(Signature.class, algorithm);
+        switch (algorithm) {
+            case Signature.ALG_AES_CMAC_128:
+                return new AesCmacSignature();
+            case Signature.ALG_ECDSA_SHA:
+                return new EcdsaSignature(algorithm, "SHA-1", RANDOM);
+            case Signature.ALG_ECDSA_SHA_256:
+                return new EcdsaSignature(algorithm, "SHA-256", RANDOM);
+            case Signature.ALG_RSA_SHA_PKCS1:
+                return new RsaPkcs1Signature(algorithm, "SHA-1");
+            case Signature.ALG_RSA_SHA_256_PKCS1:
+                return new RsaPkcs1Signature(algorithm, "SHA-256");
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                return null;
+        }
+    }
+    
+    public static Cipher cipher(byte algorithm) {
+        checkPresent(Cipher.class, algorithm);
+        switch (algorithm) {
+            case Cipher.ALG_AES_BLOCK_128_CBC_NOPAD:
+                return new AesCipher(algorithm, true, false);
+            case Cipher.ALG_AES_BLOCK_128_ECB_NOPAD:
+                return new AesCipher(algorithm, false, false);
+            case Cipher.ALG_AES_CBC_PKCS5:
+                return new AesCipher(algorithm, true, true);
+            case Cipher.ALG_AES_ECB_PKCS5:
+                return new AesCipher(algorithm, false, true);
+            case Cipher.ALG_RSA_PKCS1:
+            case Cipher.ALG_RSA_NOPAD:
+                return new RsaCipher(algorithm, RANDOM);
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                return null;
+        }
+    }
+    
+    public static MessageDigest digest(byte algorithm) {
+        checkPresent(MessageDigest.class, algorithm);
+        switch (algorithm) {
+            case MessageDigest.ALG_SHA:
+                return new DigestEngine(algorithm, "SHA-1");
+            case MessageDigest.ALG_SHA_256:
+                return new DigestEngine(algorithm, "SHA-256");
+            case MessageDigest.ALG_SHA_384:
+                return new DigestEngine(algorithm, "SHA-384");
+            case MessageDigest.ALG_SHA_512:
+                return new DigestEngine(algorithm, "SHA-512");
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                return null;
+        }
+    }
+    
+    public static RandomData random(byte algorithm) {
+        checkPresent(RandomData.class, algorithm);
+        switch (algorithm) {
+            case RandomData.ALG_PSEUDO_RANDOM:
+            case RandomData.ALG_SECURE_RANDOM:
+            case RandomData.ALG_TRNG:
+            case RandomData.ALG_FAST:
+            case RandomData.ALG_KEYGENERATION:
+                return new SecureRandomData(algorithm, RANDOM);
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                return null;
+        }
+    }
+    
+    public static KeyAgreement keyAgreement(byte algorithm) {
+        checkPresent(KeyAgreement.class, algorithm);
+        switch (algorithm) {
+            case KeyAgreement.ALG_EC_SVDP_DH:
+            case KeyAgreement.ALG_EC_SVDP_DH_PLAIN:
+                return new EcdhKeyAgreement(algorithm);
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                return null;
+        }
+    }
+    
+    public static Key key(byte type, short size) {
+        checkPresent(KeyBuilder.class, type);
+        switch (type) {
+            case KeyBuilder.TYPE_AES:
+                return new AesKeyImpl(type, size, JCSystem.NOT_A_TRANSIENT_OBJECT);
+            case KeyBuilder.TYPE_AES_TRANSIENT_RESET:
+                return new AesKeyImpl(type, size, JCSystem.CLEAR_ON_RESET);
+            case KeyBuilder.TYPE_AES_TRANSIENT_DESELECT:
+                return new AesKeyImpl(type, size, JCSystem.CLEAR_ON_DESELECT);
+            case KeyBuilder.TYPE_EC_FP_PUBLIC:
+                return new EcPublicKeyImpl(type, size, JCSystem.NOT_A_TRANSIENT_OBJECT);
+            case KeyBuilder.TYPE_EC_FP_PRIVATE:
+                return new EcPrivateKeyImpl(type, size, JCSystem.NOT_A_TRANSIENT_OBJECT);
+            case KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_RESET:
+                return new EcPrivateKeyImpl(type, size, JCSystem.CLEAR_ON_RESET);
+            case KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT:
+                return new EcPrivateKeyImpl(type, size, JCSystem.CLEAR_ON_DESELECT);
+            case KeyBuilder.TYPE_RSA_PUBLIC:
+            case KeyBuilder.TYPE_RSA_PRIVATE:
+                return new RsaKeyImpl(type, rsaSize(size), JCSystem.NOT_A_TRANSIENT_OBJECT);
+            case KeyBuilder.TYPE_RSA_PRIVATE_TRANSIENT_RESET:
+                return new RsaKeyImpl(type, rsaSize(size), JCSystem.CLEAR_ON_RESET);
+            case KeyBuilder.TYPE_RSA_PRIVATE_TRANSIENT_DESELECT:
+                return new RsaKeyImpl(type, rsaSize(size), JCSystem.CLEAR_ON_DESELECT);
+            case KeyBuilder.TYPE_RSA_CRT_PRIVATE:
+                return new RsaCrtKeyImpl(type, rsaSize(size), JCSystem.NOT_A_TRANSIENT_OBJECT);
+            case KeyBuilder.TYPE_RSA_CRT_PRIVATE_TRANSIENT_RESET:
+                return new RsaCrtKeyImpl(type, rsaSize(size), JCSystem.CLEAR_ON_RESET);
+            case KeyBuilder.TYPE_RSA_CRT_PRIVATE_TRANSIENT_DESELECT:
+                return new RsaCrtKeyImpl(type, rsaSize(size), JCSystem.CLEAR_ON_DESELECT);
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                return null;
+        }
+    }
+    
+    private static void checkPresent(Class<?> engine, byte algorithm) {
+        if (CardRuntime.isAlgorithmRemoved(engine, algorithm)) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
+    }
+    
+    private static short rsaSize(short size) {
+        if (size < 512 || size > 4096 || size % 32 != 0) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
+        return size;
+    }
+}
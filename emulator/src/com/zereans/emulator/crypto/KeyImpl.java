@@ -0,0 +1,129 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import com.zereans.emulator.CardRuntime;
+
+import javacard.framework.JCSystem;
+import javacard.security.CryptoException;
+import javacard.security.Key;
+
+/**
+ * Common part of the emulated keys
+ *
+ * Each key component is kept in its own byte array: a 2-byte length
+ * followed by the value, with length 0 meaning not set. Transient key
+ * types allocate these arrays as transient, so a reset or deselect
+ * uninitializes the key just as it does on a card, and persistent key
+ * data takes part in transactions like any other applet array.
+ */
+public abstract class KeyImpl implements Key {
+    
+    private final byte type;
+    private final short size;
+    private final byte event;
+    
+    protected KeyImpl(byte type, short size, byte event) {
+        this.type = type;
+        this.size = size;
+        this.event = event;
+    }
+    
+    public byte getType() {
+        return type;
+    }
+    
+    public short getSize() {
+        return size;
+    }
+    
+    /**
+     * Array for a component of up to maxLength bytes
+     */
+    protected final byte[] newComponent(int maxLength) {
+        short length = (short) (maxLength + 2);
+        return event == JCSystem.NOT_A_TRANSIENT_OBJECT ? new byte[length] : JCSystem.makeTransientByteArray(length, event);
+    }
+    
+    /**
+     * Store a component value; leading zero bytes are kept as given
+     */
+    protected static void set(byte[] component, byte[] buffer, short offset, short length) {
+        if (length <= 0 || length > component.length - 2) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        System.arraycopy(buffer, offset, component, 2, length);
+        component[0] = (byte) (length >> 8);
+        component[1] = (byte) length;
+        CardRuntime.keyWrite(component, (short) 0, (short) (length + 2));
+    }
+    
+    /**
+     * Copy a component value out and return its length
+     */
+    protected static short get(byte[] component, byte[] buffer, short offset) {
+        short length = length(component);
+        if (length == 0) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        System.arraycopy(component, 2, buffer, offset, length);
+        return length;
+    }
+    
+    protected static short length(byte[] component) {
+        return (short) (((component[0] & 0xFF) << 8) | (component[1] & 0xFF));
+    }
+    
+    protected static boolean isSet(byte[] component) {
+        return component[0] != 0 || component[1] != 0;
+    }
+    
+    protected static void clear(byte[] component) {
+        Arrays.fill(component, (byte) 0);
+        CardRuntime.keyWrite(component, (short) 0, (short) component.length);
+    }
+    
+    protected static void copy(byte[] from, byte[] to) {
+        int length = Math.min(from.length, to.length);
+        System.arraycopy(from, 0, to, 0, length);
+        CardRuntime.keyWrite(to, (short) 0, (short) length);
+    }
+    
+    /**
+     * Component as a non-negative integer
+     */
+    protected static BigInteger toInteger(byte[] component) {
+        short length = length(component);
+        if (length == 0) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        return new BigInteger(1, Arrays.copyOfRange(component, 2, 2 + length));
+    }
+    
+    /**
+     * Store a non-negative integer as a component of a fixed length, or of
+     * its minimal length when length is 0
+     */
+    protected static void setInteger(byte[] component, BigInteger value, int length) {
+        byte[] bytes = unsigned(value, length);
+        set(component, bytes, (short) 0, (short) bytes.length);
+    }
+    
+    /**
+     * Big-endian unsigned encoding, left-padded to length when it is not 0
+     */
+    static byte[] unsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        int start = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+        int size = bytes.length - start;
+        if (length == 0) {
+            length = size;
+        } else if (size > length) {
+            throw new IllegalArgumentException("Value does not fit in " + length + " bytes");
+        }
+        byte[] out = new byte[length];
+        System.arraycopy(bytes, start, out, length - size, size);
+        return out;
+    }
+}
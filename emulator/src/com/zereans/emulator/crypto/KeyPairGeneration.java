@@ -0,0 +1,80 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+import javacard.security.CryptoException;
+import javacard.security.PrivateKey;
+import javacard.security.PublicKey;
+
+/**
+ * Key pair generation behind javacard.security.KeyPair
+ */
+public final class KeyPairGeneration {
+    
+    private KeyPairGeneration() {
+    }
+    
+    /**
+     * Generate into an existing pair of key objects. EC keys use the curve
+     * already set on either key, or P-256 for 256-bit keys without one; RSA
+     * keys keep a public exponent that is already set, otherwise 65537.
+     */
+    public static void generate(PublicKey publicKey, PrivateKey privateKey) {
+        try {
+            if (publicKey instanceof EcPublicKeyImpl && privateKey instanceof EcPrivateKeyImpl) {
+                generateEc((EcPublicKeyImpl) publicKey, (EcPrivateKeyImpl) privateKey);
+            } else if (publicKey instanceof RsaKeyImpl && (privateKey instanceof RsaKeyImpl || privateKey instanceof RsaCrtKeyImpl)) {
+                generateRsa((RsaKeyImpl) publicKey, privateKey);
+            } else {
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+            }
+        } catch (GeneralSecurityException e) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+    }
+    
+    private static void generateEc(EcPublicKeyImpl publicKey, EcPrivateKeyImpl privateKey) throws GeneralSecurityException {
+        if (!publicKey.isDomainSet() && privateKey.isDomainSet()) {
+            publicKey.copyDomainParametersFrom(privateKey);
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        if (publicKey.isDomainSet()) {
+            generator.initialize(publicKey.parameterSpec(), Engines.random());
+        } else if (publicKey.getSize() == 256) {
+            generator.initialize(new ECGenParameterSpec("secp256r1"), Engines.random());
+        } else {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        KeyPair pair = generator.generateKeyPair();
+        if (!publicKey.isDomainSet()) {
+            publicKey.setParameterSpec(((ECPublicKey) pair.getPublic()).getParams());
+        }
+        if (!privateKey.isDomainSet()) {
+            privateKey.copyDomainParametersFrom(publicKey);
+        }
+        publicKey.setFromJca((ECPublicKey) pair.getPublic());
+        privateKey.setFromJca((ECPrivateKey) pair.getPrivate());
+    }
+    
+    private static void generateRsa(RsaKeyImpl publicKey, PrivateKey privateKey) throws GeneralSecurityException {
+        BigInteger exponent = publicKey.hasExponent() ? publicKey.exponentValue() : RSAKeyGenParameterSpec.F4;
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(new RSAKeyGenParameterSpec(publicKey.getSize(), exponent), Engines.random());
+        RSAPrivateCrtKey generated = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+        publicKey.set(generated.getModulus(), generated.getPublicExponent());
+        if (privateKey instanceof RsaCrtKeyImpl) {
+            ((RsaCrtKeyImpl) privateKey).set(generated.getPrimeP(), generated.getPrimeQ(),
+                generated.getPrimeExponentP(), generated.getPrimeExponentQ(), generated.getCrtCoefficient());
+        } else {
+            ((RsaKeyImpl) privateKey).set(generated.getModulus(), generated.getPrivateExponent());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacardx.crypto.Cipher;
+
+import com.zereans.emulator.TransientState;
+
+/**
+ * RSA encryption without padding or with PKCS#1 v1.5 padding
+ * (RSAES-PKCS1-v1_5), as BigInteger arithmetic
+ *
+ * Input is collected by update and processed as one block by doFinal.
+ */
+final class RsaCipher extends Cipher implements TransientState {
+    
+    private final byte algorithm;
+    private final SecureRandom random;
+    private Key key;
+    private byte mode;
+    private byte[] input = new byte[0];
+    private int inputLength;
+    
+    RsaCipher(byte algorithm, SecureRandom random) {
+        this.algorithm = algorithm;
+        this.random = random;
+    }
+    
+    public void init(Key theKey, byte theMode) {
+        if ((theMode != MODE_ENCRYPT && theMode != MODE_DECRYPT) || !isRsaKey(theKey)) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        if (!theKey.isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        key = theKey;
+        mode = theMode;
+        inputLength = 0;
+    }
+    
+    public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+    
+    public byte getCipherAlgorithm() {
+        return CIPHER_RSA;
+    }
+    
+    public byte getPaddingAlgorithm() {
+        return algorithm == ALG_RSA_PKCS1 ? PAD_PKCS1 : PAD_NOPAD;
+    }
+    
+    public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        if (key == null) {
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+        }
+        if (inputLength + inLength > input.length) {
+            input = Arrays.copyOf(input, inputLength + inLength);
+        }
+        System.arraycopy(inBuff, inOffset, input, inputLength, inLength);
+        inputLength += inLength;
+        return 0;
+    }
+    
+    public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+        update(inBuff, inOffset, inLength, outBuff, outOffset);
+        byte[] data = Arrays.copyOf(input, inputLength);
+        inputLength = 0;
+        int size = key.getSize() / 8;
+        byte[] result;
+        if (mode == MODE_ENCRYPT) {
+            byte[] block = algorithm == ALG_RSA_PKCS1 ? pad(data, size, (byte) 0x02, random) : data;
+            if (block.length != size) {
+                CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            }
+            result = KeyImpl.unsigned(apply(key, new BigInteger(1, block)), size);
+        } else {
+            if (data.length != size) {
+                CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+            }
+            byte[] block = KeyImpl.unsigned(apply(key, new BigInteger(1, data)), size);
+            result = algorithm == ALG_RSA_PKCS1 ? unpad(block, (byte) 0x02) : block;
+        }
+        System.arraycopy(result, 0, outBuff, outOffset, result.length);
+        return (short) result.length;
+    }
+    
+    static boolean isRsaKey(Key key) {
+        return key instanceof RsaKeyImpl || key instanceof RsaCrtKeyImpl;
+    }
+    
+    /**
+     * The RSA primitive with either key form
+     */
+    static BigInteger apply(Key key, BigInteger value) {
+        if (key instanceof RsaCrtKeyImpl) {
+            RsaCrtKeyImpl crt = (RsaCrtKeyImpl) key;
+            if (value.compareTo(crt.modulusValue()) >= 0) {
+                CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+            }
+            return crt.apply(value);
+        }
+        RsaKeyImpl plain = (RsaKeyImpl) key;
+        BigInteger modulus = plain.modulusValue();
+        if (value.compareTo(modulus) >= 0) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        return value.modPow(plain.exponentValue(), modulus);
+    }
+    
+    /**
+     * PKCS#1 v1.5 block: 00 | type | padding | 00 | data, with FF padding
+     * for type 1 and random non-zero padding for type 2
+     */
+    static byte[] pad(byte[] data, int size, byte type, SecureRandom random) {
+        int paddingLength = size - data.length - 3;
+        if (paddingLength < 8) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        }
+        byte[] block = new byte[size];
+        block[1] = type;
+        for (int i = 2; i < 2 + paddingLength; i++) {
+            if (type == 0x01) {
+                block[i] = (byte) 0xFF;
+            } else {
+                do {
+                    block[i] = (byte) random.nextInt(256);
+                } while (block[i] == 0);
+            }
+        }
+        System.arraycopy(data, 0, block, 3 + paddingLength, data.length);
+        return block;
+    }
+    
+    private static byte[] unpad(byte[] block, byte type) {
+        int separator = 2;
+        while (separator < block.length && block[separator] != 0) {
+            separator++;
+        }
+        if (block[0] != 0 || block[1] != type || separator < 10 || separator == block.length) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        return Arrays.copyOfRange(block, separator + 1, block.length);
+    }
+}
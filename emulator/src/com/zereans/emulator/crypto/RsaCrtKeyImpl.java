@@ -0,0 +1,108 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+
+import javacard.security.CryptoException;
+import javacard.security.RSAPrivateCrtKey;
+
+/**
+ * RSA private key in Chinese Remainder Theorem form
+ */
+public final class RsaCrtKeyImpl extends KeyImpl implements RSAPrivateCrtKey {
+    
+    private final byte[] p;
+    private final byte[] q;
+    private final byte[] dp1;
+    private final byte[] dq1;
+    private final byte[] pq;
+    
+    public RsaCrtKeyImpl(byte type, short size, byte event) {
+        super(type, size, event);
+        int length = size / 16 + 1;
+        p = newComponent(length);
+        q = newComponent(length);
+        dp1 = newComponent(length);
+        dq1 = newComponent(length);
+        pq = newComponent(length);
+    }
+    
+    public void setP(byte[] buffer, short offset, short length) {
+        set(p, buffer, offset, length);
+    }
+    
+    public void setQ(byte[] buffer, short offset, short length) {
+        set(q, buffer, offset, length);
+    }
+    
+    public void setDP1(byte[] buffer, short offset, short length) {
+        set(dp1, buffer, offset, length);
+    }
+    
+    public void setDQ1(byte[] buffer, short offset, short length) {
+        set(dq1, buffer, offset, length);
+    }
+    
+    public void setPQ(byte[] buffer, short offset, short length) {
+        set(pq, buffer, offset, length);
+    }
+    
+    public short getP(byte[] buffer, short offset) {
+        return get(p, buffer, offset);
+    }
+    
+    public short getQ(byte[] buffer, short offset) {
+        return get(q, buffer, offset);
+    }
+    
+    public short getDP1(byte[] buffer, short offset) {
+        return get(dp1, buffer, offset);
+    }
+    
+    public short getDQ1(byte[] buffer, short offset) {
+        return get(dq1, buffer, offset);
+    }
+    
+    public short getPQ(byte[] buffer, short offset) {
+        return get(pq, buffer, offset);
+    }
+    
+    public boolean isInitialized() {
+        return isSet(p) && isSet(q) && isSet(dp1) && isSet(dq1) && isSet(pq);
+    }
+    
+    public void clearKey() {
+        clear(p);
+        clear(q);
+        clear(dp1);
+        clear(dq1);
+        clear(pq);
+    }
+    
+    /**
+     * x^d mod pq by the CRT
+     */
+    BigInteger apply(BigInteger x) {
+        if (!isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        BigInteger primeP = toInteger(p);
+        BigInteger primeQ = toInteger(q);
+        BigInteger m1 = x.mod(primeP).modPow(toInteger(dp1), primeP);
+        BigInteger m2 = x.mod(primeQ).modPow(toInteger(dq1), primeQ);
+        BigInteger h = toInteger(pq).multiply(m1.subtract(m2)).mod(primeP);
+        return m2.add(h.multiply(primeQ));
+    }
+    
+    BigInteger modulusValue() {
+        return toInteger(p).multiply(toInteger(q));
+    }
+    
+    void set(BigInteger primeP, BigInteger primeQ, BigInteger expP, BigInteger expQ, BigInteger coefficient) {
+        int length = getSize() / 16;
+        setInteger(p, primeP, length);
+        setInteger(q, primeQ, length);
+        setInteger(dp1, expP, length);
+        setInteger(dq1, expQ, length);
+        setInteger(pq, coefficient, length);
+    }
+}
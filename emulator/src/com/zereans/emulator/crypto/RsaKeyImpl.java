@@ -0,0 +1,60 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * RSA key in modulus and exponent form, public or private
+ */
+public final class RsaKeyImpl extends KeyImpl implements javacard.security.RSAPublicKey, javacard.security.RSAPrivateKey {
+    
+    private final byte[] modulus;
+    private final byte[] exponent;
+    
+    public RsaKeyImpl(byte type, short size, byte event) {
+        super(type, size, event);
+        modulus = newComponent(size / 8);
+        exponent = newComponent(size / 8);
+    }
+    
+    public void setModulus(byte[] buffer, short offset, short length) {
+        set(modulus, buffer, offset, length);
+    }
+    
+    public void setExponent(byte[] buffer, short offset, short length) {
+        set(exponent, buffer, offset, length);
+    }
+    
+    public short getModulus(byte[] buffer, short offset) {
+        return get(modulus, buffer, offset);
+    }
+    
+    public short getExponent(byte[] buffer, short offset) {
+        return get(exponent, buffer, offset);
+    }
+    
+    public boolean isInitialized() {
+        return isSet(modulus) && isSet(exponent);
+    }
+    
+    public void clearKey() {
+        clear(modulus);
+        clear(exponent);
+    }
+    
+    BigInteger modulusValue() {
+        return toInteger(modulus);
+    }
+    
+    BigInteger exponentValue() {
+        return toInteger(exponent);
+    }
+    
+    boolean hasExponent() {
+        return isSet(exponent);
+    }
+    
+    void set(BigInteger n, BigInteger e) {
+        setInteger(modulus, n, getSize() / 8);
+        setInteger(exponent, e, 0);
+    }
+}
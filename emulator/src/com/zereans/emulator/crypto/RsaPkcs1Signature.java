@@ -0,0 +1,86 @@
+package com.zereans.emulator.crypto;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.KeyBuilder;
+import javacard.security.Signature;
+
+/**
+ * RSA signature with PKCS#1 v1.5 padding (EMSA-PKCS1-v1_5)
+ */
+final class RsaPkcs1Signature extends SignatureEngine {
+    
+    // DER DigestInfo prefixes
+    private static final byte[] SHA1_PREFIX = {
+        0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2B, 0x0E, 0x03, 0x02, 0x1A, 0x05, 0x00, 0x04, 0x14
+    };
+    private static final byte[] SHA256_PREFIX = {
+        0x30, 0x31, 0x30, 0x0D, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20
+    };
+    
+    private final MessageDigest digest;
+    private final byte[] prefix;
+    private Key key;
+    
+    RsaPkcs1Signature(byte algorithm, String digestName) {
+        super(algorithm, digestCode(digestName), Signature.SIG_CIPHER_RSA, javacardx.crypto.Cipher.PAD_PKCS1);
+        try {
+            digest = MessageDigest.getInstance(digestName);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        prefix = "SHA-256".equals(digestName) ? SHA256_PREFIX : SHA1_PREFIX;
+    }
+    
+    public short getLength() {
+        requireInitialized();
+        return (short) (key.getSize() / 8);
+    }
+    
+    protected void engineInit(Key theKey, byte theMode) {
+        boolean publicKey = theKey.getType() == KeyBuilder.TYPE_RSA_PUBLIC;
+        if (publicKey == (theMode == MODE_SIGN) || !RsaCipher.isRsaKey(theKey)) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        key = theKey;
+        digest.reset();
+    }
+    
+    protected void engineUpdate(byte[] in, short offset, short length) {
+        digest.update(in, offset, length);
+    }
+    
+    protected short engineSign(byte[] in, short offset, short length, byte[] sig, short sigOffset) {
+        digest.update(in, offset, length);
+        int size = key.getSize() / 8;
+        byte[] encoded = RsaCipher.pad(digestInfo(), size, (byte) 0x01, null);
+        byte[] signature = KeyImpl.unsigned(RsaCipher.apply(key, new BigInteger(1, encoded)), size);
+        System.arraycopy(signature, 0, sig, sigOffset, size);
+        return (short) size;
+    }
+    
+    protected boolean engineVerify(byte[] in, short offset, short length, byte[] sig, short sigOffset, short sigLength) {
+        digest.update(in, offset, length);
+        byte[] expected = digestInfo();
+        int size = key.getSize() / 8;
+        if (sigLength != size) {
+            return false;
+        }
+        BigInteger value = new BigInteger(1, Arrays.copyOfRange(sig, sigOffset, sigOffset + sigLength));
+        byte[] encoded = KeyImpl.unsigned(RsaCipher.apply(key, value), size);
+        return Arrays.equals(encoded, RsaCipher.pad(expected, size, (byte) 0x01, null));
+    }
+    
+    private byte[] digestInfo() {
+        byte[] hash = digest.digest();
+        byte[] info = new byte[prefix.length + hash.length];
+        System.arraycopy(prefix, 0, info, 0, prefix.length);
+        System.arraycopy(hash, 0, info, prefix.length, hash.length);
+        return info;
+    }
+}
@@ -0,0 +1,45 @@
+package com.zereans.emulator.crypto;
+
+import java.security.SecureRandom;
+
+import javacard.security.RandomData;
+
+import com.zereans.emulator.TransientState;
+
+/**
+ * Random data from the host SecureRandom
+ */
+final class SecureRandomData extends RandomData implements TransientState {
+    
+    private final byte algorithm;
+    private final SecureRandom random;
+    private byte[] scratch = new byte[0];
+    
+    SecureRandomData(byte algorithm, SecureRandom random) {
+        this.algorithm = algorithm;
+        this.random = random;
+    }
+    
+    public void generateData(byte[] buffer, short offset, short length) {
+        nextBytes(buffer, offset, length);
+    }
+    
+    public short nextBytes(byte[] buffer, short offset, short length) {
+        if (scratch.length != length) {
+            scratch = new byte[length];
+        }
+        random.nextBytes(scratch);
+        System.arraycopy(scratch, 0, buffer, offset, length);
+        return (short) (offset + length);
+    }
+    
+    public void setSeed(byte[] buffer, short offset, short length) {
+        byte[] seed = new byte[length];
+        System.arraycopy(buffer, offset, seed, 0, length);
+        random.setSeed(seed);
+    }
+    
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+}
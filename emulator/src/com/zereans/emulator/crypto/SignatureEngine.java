@@ -0,0 +1,123 @@
+package com.zereans.emulator.crypto;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.MessageDigest;
+import javacard.security.Signature;
+
+import com.zereans.emulator.TransientState;
+
+/**
+ * Common part of the signature engines: algorithm identity, mode and
+ * the call sequence checks
+ */
+abstract class SignatureEngine extends Signature implements TransientState {
+    
+    private final byte algorithm;
+    private final byte digestAlgorithm;
+    private final byte cipherAlgorithm;
+    private final byte paddingAlgorithm;
+    protected byte mode;
+    
+    SignatureEngine(byte algorithm, byte digestAlgorithm, byte cipherAlgorithm, byte paddingAlgorithm) {
+        this.algorithm = algorithm;
+        this.digestAlgorithm = digestAlgorithm;
+        this.cipherAlgorithm = cipherAlgorithm;
+        this.paddingAlgorithm = paddingAlgorithm;
+    }
+    
+    public void init(Key key, byte theMode) {
+        if (theMode != MODE_SIGN && theMode != MODE_VERIFY) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        if (key == null) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        if (!key.isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        mode = 0;
+        engineInit(key, theMode);
+        mode = theMode;
+    }
+    
+    public void init(Key key, byte theMode, byte[] bArray, short bOff, short bLen) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    
+    public void setInitialDigest(byte[] state, short stateOffset, short stateLength,
+            byte[] digestedMsgLen, short digestedMsgLenOffset, short digestedMsgLenLength) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+    }
+    
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+    
+    public byte getMessageDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+    
+    public byte getCipherAlgorithm() {
+        return cipherAlgorithm;
+    }
+    
+    public byte getPaddingAlgorithm() {
+        return paddingAlgorithm;
+    }
+    
+    public void update(byte[] inBuff, short inOffset, short inLength) {
+        requireInitialized();
+        engineUpdate(inBuff, inOffset, inLength);
+    }
+    
+    public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+        requireMode(MODE_SIGN);
+        return engineSign(inBuff, inOffset, inLength, sigBuff, sigOffset);
+    }
+    
+    public boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength) {
+        requireMode(MODE_VERIFY);
+        return engineVerify(inBuff, inOffset, inLength, sigBuff, sigOffset, sigLength);
+    }
+    
+    public short signPreComputedHash(byte[] hashBuff, short hashOffset, short hashLength, byte[] sigBuff, short sigOffset) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        return 0;
+    }
+    
+    public boolean verifyPreComputedHash(byte[] hashBuff, short hashOffset, short hashLength,
+            byte[] sigBuff, short sigOffset, short sigLength) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        return false;
+    }
+    
+    protected final void requireInitialized() {
+        if (mode == 0) {
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+        }
+    }
+    
+    protected final void requireMode(byte expected) {
+        requireInitialized();
+        if (mode != expected) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+        }
+    }
+    
+    /**
+     * Digest algorithm code for a JCA name, as reported by getMessageDigestAlgorithm
+     */
+    static byte digestCode(String jcaName) {
+        return "SHA-256".equals(jcaName) ? MessageDigest.ALG_SHA_256 : MessageDigest.ALG_SHA;
+    }
+    
+    protected abstract void engineInit(Key key, byte theMode);
+    
+    protected abstract void engineUpdate(byte[] inBuff, short inOffset, short inLength);
+    
+    protected abstract short engineSign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset);
+    
+    protected abstract boolean engineVerify(byte[] inBuff, short inOffset, short inLength,
+            byte[] sigBuff, short sigOffset, short sigLength);
+}
@@ -0,0 +1,88 @@
+package javacard.framework;
+
+/**
+ * Application identifier: 5-byte RID followed by an optional PIX, 5 to 16 bytes
+ */
+public class AID {
+    
+    private static final short RID_LENGTH = 5;
+    private static final short MAX_LENGTH = 16;
+    
+    private final byte[] aid;
+    
+    /**
+     * Constructor - copies the AID bytes
+     */
+    public AID(byte[] bArray, short offset, byte length) {
+        if (length < RID_LENGTH || length > MAX_LENGTH) {
+            SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+        }
+        aid = new byte[length];
+        Util.arrayCopyNonAtomic(bArray, offset, aid, (short) 0, length);
+    }
+    
+    /**
+     * Copy the AID bytes into dest; returns the AID length
+     */
+    public final byte getBytes(byte[] dest, short offset) {
+        Util.arrayCopyNonAtomic(aid, (short) 0, dest, offset, (short) aid.length);
+        return (byte) aid.length;
+    }
+    
+    /**
+     * Compare with another AID object
+     */
+    public final boolean equals(Object anObject) {
+        if (!(anObject instanceof AID)) {
+            return false;
+        }
+        byte[] other = ((AID) anObject).aid;
+        return equals(other, (short) 0, (byte) other.length);
+    }
+    
+    /**
+     * Compare with AID bytes in an array
+     */
+    public final boolean equals(byte[] bArray, short offset, byte length) {
+        if (bArray == null || length != aid.length) {
+            return false;
+        }
+        return Util.arrayCompare(aid, (short) 0, bArray, offset, length) == 0;
+    }
+    
+    /**
+     * Check whether the AID starts with the given bytes
+     */
+    public final boolean partialEquals(byte[] bArray, short offset, byte length) {
+        if (bArray == null || length > aid.length) {
+            return false;
+        }
+        return Util.arrayCompare(aid, (short) 0, bArray, offset, length) == 0;
+    }
+    
+    /**
+     * Compare the RID with that of another AID
+     */
+    public final boolean RIDEquals(AID otherAID) {
+        if (otherAID == null) {
+            return false;
+        }
+        return Util.arrayCompare(aid, (short) 0, otherAID.aid, (short) 0, RID_LENGTH) == 0;
+    }
+    
+    /**
+     * Copy part of the AID bytes; returns the number of bytes copied
+     */
+    public final byte getPartialBytes(short aidOffset, byte[] dest, short oOffset, byte oLength) {
+        short length = oLength == 0 ? (short) (aid.length - aidOffset) : oLength;
+        if (length > (short) (aid.length - aidOffset)) {
+            length = (short) (aid.length - aidOffset);
+        }
+        Util.arrayCopyNonAtomic(aid, aidOffset, dest, oOffset, length);
+        return (byte) length;
+    }
+    
+    public int hashCode() {
+        return java.util.Arrays.hashCode(aid);
+    }
+}
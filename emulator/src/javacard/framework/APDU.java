@@ -0,0 +1,161 @@
+package javacard.framework;
+
+import com.zereans.emulator.ApduChannel;
+import com.zereans.emulator.CardRuntime;
+
+/**
+ * Command APDU being processed and its response
+ *
+ * One instance is owned by the runtime and handed to process(); the I/O
+ * state lives in the runtime's ApduChannel.
+ */
+public final class APDU {
+    
+    // States returned by getCurrentState()
+    public static final byte STATE_INITIAL = 0;
+    public static final byte STATE_PARTIAL_INCOMING = 1;
+    public static final byte STATE_FULL_INCOMING = 2;
+    public static final byte STATE_OUTGOING = 3;
+    public static final byte STATE_OUTGOING_LENGTH_KNOWN = 4;
+    public static final byte STATE_PARTIAL_OUTGOING = 5;
+    public static final byte STATE_FULL_OUTGOING = 6;
+    public static final byte STATE_ERROR_NO_T0_GETRESPONSE = -1;
+    public static final byte STATE_ERROR_T1_IFD_ABORT = -2;
+    public static final byte STATE_ERROR_IO = -3;
+    public static final byte STATE_ERROR_NO_T0_REISSUE = -4;
+    
+    // Protocol and media
+    public static final byte PROTOCOL_MEDIA_MASK = (byte) 0xF0;
+    public static final byte PROTOCOL_TYPE_MASK = 0x0F;
+    public static final byte PROTOCOL_T0 = 0;
+    public static final byte PROTOCOL_T1 = 1;
+    public static final byte PROTOCOL_MEDIA_DEFAULT = 0;
+    public static final byte PROTOCOL_MEDIA_CONTACTLESS_TYPE_A = (byte) 0x80;
+    public static final byte PROTOCOL_MEDIA_CONTACTLESS_TYPE_B = (byte) 0x90;
+    public static final byte PROTOCOL_MEDIA_USB = (byte) 0xA0;
+    public static final byte PROTOCOL_MEDIA_HCI_APDU_GATE = (byte) 0xB0;
+    public static final byte PROTOCOL_MEDIA_CONTACTLESS_TYPE_F = (byte) 0xB0;
+    
+    // Lc encodings
+    public static final byte LC_ENCODING_NO = 0;
+    public static final byte LC_ENCODING_TYPE_4 = 1;
+    public static final byte LC_ENCODING_TYPE_4_TYPE_16 = 2;
+    
+    // T=1 information field size
+    private static final short BLOCK_SIZE = 254;
+    
+    private final ApduChannel io;
+    
+    /**
+     * Constructor - used by the runtime only
+     */
+    APDU(ApduChannel io) {
+        this.io = io;
+    }
+    
+    public byte[] getBuffer() {
+        return io.getBuffer();
+    }
+    
+    public static short getInBlockSize() {
+        return BLOCK_SIZE;
+    }
+    
+    public static short getOutBlockSize() {
+        return BLOCK_SIZE;
+    }
+    
+    public static byte getProtocol() {
+        return PROTOCOL_T1;
+    }
+    
+    public byte getNAD() {
+        return 0;
+    }
+    
+    public short setOutgoing() throws APDUException {
+        return io.setOutgoing();
+    }
+    
+    public short setOutgoingNoChaining() throws APDUException {
+        return io.setOutgoing();
+    }
+    
+    public void setOutgoingLength(short len) throws APDUException {
+        io.setOutgoingLength(len);
+    }
+    
+    public short receiveBytes(short bOff) throws APDUException {
+        return io.receiveBytes(bOff);
+    }
+    
+    public short setIncomingAndReceive() throws APDUException {
+        return io.setIncomingAndReceive();
+    }
+    
+    public void sendBytes(short bOff, short len) throws APDUException {
+        io.sendBytes(bOff, len);
+    }
+    
+    public void sendBytesLong(byte[] outData, short bOff, short len) throws APDUException {
+        io.sendBytesLong(outData, bOff, len);
+    }
+    
+    public void setOutgoingAndSend(short bOff, short len) throws APDUException {
+        io.setOutgoingAndSend(bOff, len);
+    }
+    
+    public byte getCurrentState() {
+        return io.getState();
+    }
+    
+    public static APDU getCurrentAPDU() {
+        return CardRuntime.current().getCurrentApdu();
+    }
+    
+    public static byte[] getCurrentAPDUBuffer() {
+        return getCurrentAPDU().getBuffer();
+    }
+    
+    /**
+     * Logical channel encoded in the CLA byte of the current command
+     */
+    public static byte getCLAChannel() {
+        return CardRuntime.current().getLogicalChannel();
+    }
+    
+    public static void waitExtension() throws APDUException {
+    }
+    
+    public boolean isCommandChainingCLA() {
+        return (io.getCla() & 0x10) != 0;
+    }
+    
+    public boolean isSecureMessagingCLA() {
+        byte cla = io.getCla();
+        if ((cla & 0x40) == 0) {
+            return (cla & 0x0C) != 0;
+        }
+        return (cla & 0x20) != 0;
+    }
+    
+    public boolean isISOInterindustryCLA() {
+        return (io.getCla() & 0x80) == 0;
+    }
+    
+    public boolean isValidCLA() {
+        return io.getCla() != (byte) 0xFF;
+    }
+    
+    public short getIncomingLength() {
+        return io.getIncomingLength();
+    }
+    
+    public short getOffsetCdata() {
+        return io.getOffsetCdata();
+    }
+    
+    public byte getLogicalChannelEncoding() {
+        return (io.getCla() & 0x40) == 0 ? LC_ENCODING_TYPE_4 : LC_ENCODING_TYPE_4_TYPE_16;
+    }
+}
@@ -0,0 +1,36 @@
+package javacard.framework;
+
+/**
+ * Misuse of the APDU object or an I/O error
+ */
+public class APDUException extends CardRuntimeException {
+    
+    public static final short ILLEGAL_USE = 1;
+    public static final short BUFFER_BOUNDS = 2;
+    public static final short BAD_LENGTH = 3;
+    public static final short IO_ERROR = 4;
+    public static final short NO_T0_GETRESPONSE = 170;
+    public static final short T1_IFD_ABORT = 171;
+    public static final short NO_T0_REISSUE = 172;
+    
+    private static final APDUException systemInstance = new APDUException((short) 0, true);
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public APDUException(short reason) {
+        super(reason);
+    }
+    
+    private APDUException(short reason, boolean systemOwned) {
+        super(reason, systemOwned);
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+}
@@ -0,0 +1,76 @@
+package javacard.framework;
+
+import com.zereans.emulator.CardRuntime;
+
+/**
+ * Base class of all applets; instances are created by install() and
+ * registered with the runtime
+ */
+public abstract class Applet {
+    
+    protected Applet() {
+    }
+    
+    /**
+     * Create and register an instance; every applet class defines its own
+     */
+    public static void install(byte[] bArray, short bOffset, byte bLength) throws ISOException {
+        ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+    }
+    
+    /**
+     * Process one command APDU
+     */
+    public abstract void process(APDU apdu) throws ISOException;
+    
+    /**
+     * Called before the applet is selected; false rejects the selection
+     */
+    public boolean select() {
+        return true;
+    }
+    
+    /**
+     * Called when the applet is deselected
+     */
+    public void deselect() {
+    }
+    
+    /**
+     * Shareable interface object for a client applet, or null
+     */
+    public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {
+        return null;
+    }
+    
+    /**
+     * Register under the instance AID of the install command
+     */
+    protected final void register() throws SystemException {
+        CardRuntime.current().register(this, null, (short) 0, (byte) 0);
+    }
+    
+    /**
+     * Register under an explicit AID
+     */
+    protected final void register(byte[] bArray, short bOffset, byte bLength) throws SystemException {
+        if (bArray == null) {
+            SystemException.throwIt(SystemException.ILLEGAL_AID);
+        }
+        CardRuntime.current().register(this, bArray, bOffset, bLength);
+    }
+    
+    /**
+     * True while processing the SELECT command that selected this applet
+     */
+    protected final boolean selectingApplet() {
+        return CardRuntime.current().isSelectingApplet();
+    }
+    
+    /**
+     * True while processing a SELECT of the applet already selected on the channel
+     */
+    protected static boolean reSelectingApplet() {
+        return CardRuntime.current().isReselectingApplet();
+    }
+}
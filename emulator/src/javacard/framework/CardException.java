@@ -0,0 +1,40 @@
+package javacard.framework;
+
+/**
+ * Root of the checked Java Card exceptions
+ */
+public class CardException extends Exception {
+    
+    private static final CardException systemInstance = new CardException((short) 0);
+    
+    private short reason;
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public CardException(short reason) {
+        this.reason = reason;
+    }
+    
+    /**
+     * Reason code
+     */
+    public short getReason() {
+        return reason;
+    }
+    
+    /**
+     * Set the reason code
+     */
+    public void setReason(short reason) {
+        this.reason = reason;
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) throws CardException {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+}
@@ -0,0 +1,56 @@
+package javacard.framework;
+
+/**
+ * Root of the Java Card runtime exceptions
+ *
+ * As on a card, the static throwIt() methods reuse one system-owned
+ * instance per exception class, so throwing a status word allocates
+ * nothing. System instances carry no stack trace.
+ */
+public class CardRuntimeException extends RuntimeException {
+    
+    private static final CardRuntimeException systemInstance = new CardRuntimeException((short) 0, true);
+    
+    private short reason;
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public CardRuntimeException(short reason) {
+        this.reason = reason;
+    }
+    
+    /**
+     * Constructor for the system-owned instances thrown by throwIt()
+     */
+    protected CardRuntimeException(short reason, boolean systemOwned) {
+        super(null, null, false, false);
+        this.reason = reason;
+    }
+    
+    /**
+     * Reason code
+     */
+    public short getReason() {
+        return reason;
+    }
+    
+    /**
+     * Set the reason code
+     */
+    public void setReason(short reason) {
+        this.reason = reason;
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) throws CardRuntimeException {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+    
+    public String getMessage() {
+        return getClass().getName() + " reason 0x" + Integer.toHexString(reason & 0xFFFF);
+    }
+}
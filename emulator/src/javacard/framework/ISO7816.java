@@ -0,0 +1,48 @@
+package javacard.framework;
+
+/**
+ * ISO 7816 header offsets and status words
+ */
+public interface ISO7816 {
+    
+    // Status words
+    public static final short SW_NO_ERROR = (short) 0x9000;
+    public static final short SW_BYTES_REMAINING_00 = 0x6100;
+    public static final short SW_WRONG_LENGTH = 0x6700;
+    public static final short SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    public static final short SW_FILE_INVALID = 0x6983;
+    public static final short SW_AUTHENTICATION_METHOD_BLOCKED = 0x6983;
+    public static final short SW_DATA_INVALID = 0x6984;
+    public static final short SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    public static final short SW_COMMAND_NOT_ALLOWED = 0x6986;
+    public static final short SW_APPLET_SELECT_FAILED = 0x6999;
+    public static final short SW_WRONG_DATA = 0x6A80;
+    public static final short SW_FUNC_NOT_SUPPORTED = 0x6A81;
+    public static final short SW_FILE_NOT_FOUND = 0x6A82;
+    public static final short SW_RECORD_NOT_FOUND = 0x6A83;
+    public static final short SW_INCORRECT_P1P2 = 0x6A86;
+    public static final short SW_WRONG_P1P2 = 0x6B00;
+    public static final short SW_CORRECT_LENGTH_00 = 0x6C00;
+    public static final short SW_INS_NOT_SUPPORTED = 0x6D00;
+    public static final short SW_CLA_NOT_SUPPORTED = 0x6E00;
+    public static final short SW_UNKNOWN = 0x6F00;
+    public static final short SW_FILE_FULL = 0x6A84;
+    public static final short SW_LOGICAL_CHANNEL_NOT_SUPPORTED = 0x6881;
+    public static final short SW_SECURE_MESSAGING_NOT_SUPPORTED = 0x6882;
+    public static final short SW_WARNING_STATE_UNCHANGED = 0x6200;
+    public static final short SW_LAST_COMMAND_EXPECTED = 0x6883;
+    public static final short SW_COMMAND_CHAINING_NOT_SUPPORTED = 0x6884;
+    
+    // Header offsets
+    public static final byte OFFSET_CLA = 0;
+    public static final byte OFFSET_INS = 1;
+    public static final byte OFFSET_P1 = 2;
+    public static final byte OFFSET_P2 = 3;
+    public static final byte OFFSET_LC = 4;
+    public static final byte OFFSET_CDATA = 5;
+    public static final byte OFFSET_EXT_CDATA = 7;
+    
+    public static final byte CLA_ISO7816 = 0x00;
+    public static final byte INS_SELECT = (byte) 0xA4;
+    public static final byte INS_EXTERNAL_AUTHENTICATE = (byte) 0x82;
+}
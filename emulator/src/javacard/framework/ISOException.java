@@ -0,0 +1,28 @@
+package javacard.framework;
+
+/**
+ * Status word thrown to the reader; the reason is the SW returned
+ */
+public class ISOException extends CardRuntimeException {
+    
+    private static final ISOException systemInstance = new ISOException((short) 0, true);
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public ISOException(short reason) {
+        super(reason);
+    }
+    
+    private ISOException(short reason, boolean systemOwned) {
+        super(reason, systemOwned);
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+}
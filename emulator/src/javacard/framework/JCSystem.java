@@ -0,0 +1,152 @@
+package javacard.framework;
+
+import com.zereans.emulator.CardRuntime;
+
+/**
+ * Runtime services: transient memory, transactions, applet context and
+ * shareable interface lookup, all backed by the running CardRuntime
+ */
+public final class JCSystem {
+    
+    // Memory types
+    public static final byte MEMORY_TYPE_PERSISTENT = 0;
+    public static final byte MEMORY_TYPE_TRANSIENT_RESET = 1;
+    public static final byte MEMORY_TYPE_TRANSIENT_DESELECT = 2;
+    
+    // Array types
+    public static final byte ARRAY_TYPE_BOOLEAN = 1;
+    public static final byte ARRAY_TYPE_BYTE = 2;
+    public static final byte ARRAY_TYPE_SHORT = 3;
+    public static final byte ARRAY_TYPE_INT = 4;
+    public static final byte ARRAY_TYPE_OBJECT = 5;
+    
+    // Array view attributes
+    public static final short ATTR_READABLE_VIEW = 1;
+    public static final short ATTR_WRITABLE_VIEW = 2;
+    
+    // Transient clear events
+    public static final byte NOT_A_TRANSIENT_OBJECT = 0;
+    public static final byte CLEAR_ON_RESET = 1;
+    public static final byte CLEAR_ON_DESELECT = 2;
+    
+    // Java Card API version 3.2
+    private static final short API_VERSION = 0x0302;
+    
+    JCSystem() {
+    }
+    
+    /**
+     * Clear event of a transient object, or NOT_A_TRANSIENT_OBJECT
+     */
+    public static byte isTransient(Object theObj) {
+        return CardRuntime.current().getTransientEvent(theObj);
+    }
+    
+    public static boolean[] makeTransientBooleanArray(short length, byte event) {
+        return (boolean[]) CardRuntime.current().makeTransient(new boolean[checkLength(length)], event);
+    }
+    
+    public static byte[] makeTransientByteArray(short length, byte event) {
+        return (byte[]) CardRuntime.current().makeTransient(new byte[checkLength(length)], event);
+    }
+    
+    public static short[] makeTransientShortArray(short length, byte event) {
+        return (short[]) CardRuntime.current().makeTransient(new short[checkLength(length)], event);
+    }
+    
+    public static Object[] makeTransientObjectArray(short length, byte event) {
+        return (Object[]) CardRuntime.current().makeTransient(new Object[checkLength(length)], event);
+    }
+    
+    public static short getVersion() {
+        return API_VERSION;
+    }
+    
+    /**
+     * AID of the applet whose context is active
+     */
+    public static AID getAID() {
+        return CardRuntime.current().getAID();
+    }
+    
+    /**
+     * AID of an installed applet, or null
+     */
+    public static AID lookupAID(byte[] buffer, short offset, byte length) {
+        return CardRuntime.current().lookupAID(buffer, offset, length);
+    }
+    
+    public static void beginTransaction() throws TransactionException {
+        CardRuntime.current().beginTransaction();
+    }
+    
+    public static void abortTransaction() throws TransactionException {
+        CardRuntime.current().abortTransaction();
+    }
+    
+    public static void commitTransaction() throws TransactionException {
+        CardRuntime.current().commitTransaction();
+    }
+    
+    public static byte getTransactionDepth() {
+        return CardRuntime.current().getTransactionDepth();
+    }
+    
+    /**
+     * Commit capacity is not limited by the emulator
+     */
+    public static short getUnusedCommitCapacity() {
+        return Short.MAX_VALUE;
+    }
+    
+    public static short getMaxCommitCapacity() {
+        return Short.MAX_VALUE;
+    }
+    
+    /**
+     * AID of the context that called into the active one across the firewall
+     */
+    public static AID getPreviousContextAID() {
+        return CardRuntime.current().getPreviousContextAID();
+    }
+    
+    /**
+     * Host memory is not accounted; reports the largest value a short can hold
+     */
+    public static short getAvailableMemory(byte memoryType) throws SystemException {
+        if (memoryType < MEMORY_TYPE_PERSISTENT || memoryType > MEMORY_TYPE_TRANSIENT_DESELECT) {
+            SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+        }
+        return Short.MAX_VALUE;
+    }
+    
+    /**
+     * Shareable interface object of a server applet, or null
+     */
+    public static Shareable getAppletShareableInterfaceObject(AID serverAID, byte parameter) {
+        return CardRuntime.current().getShareableInterfaceObject(serverAID, parameter);
+    }
+    
+    public static boolean isObjectDeletionSupported() {
+        return false;
+    }
+    
+    public static void requestObjectDeletion() throws SystemException {
+        SystemException.throwIt(SystemException.ILLEGAL_USE);
+    }
+    
+    public static byte getAssignedChannel() {
+        return CardRuntime.current().getAssignedChannel();
+    }
+    
+    public static boolean isAppletActive(AID theApplet) {
+        return CardRuntime.current().isAppletActive(theApplet);
+    }
+    
+    private static int checkLength(short length) {
+        if (length < 0) {
+            throw new NegativeArraySizeException();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,19 @@
+package javacard.framework;
+
+/**
+ * Applets that can be selected on several logical channels at once
+ */
+public interface MultiSelectable {
+    
+    /**
+     * Selection while the applet is already active on another channel
+     * (appInstAlreadyActive set) or in the same package
+     */
+    public boolean select(boolean appInstAlreadyActive);
+    
+    /**
+     * Deselection while the applet stays active on another channel
+     * (appInstStillActive set) or in the same package
+     */
+    public void deselect(boolean appInstStillActive);
+}
@@ -0,0 +1,7 @@
+package javacard.framework;
+
+/**
+ * Marker for interfaces that may be shared across the applet firewall
+ */
+public interface Shareable {
+}
@@ -0,0 +1,35 @@
+package javacard.framework;
+
+/**
+ * Failure of a runtime service: allocation, registration or AID handling
+ */
+public class SystemException extends CardRuntimeException {
+    
+    public static final short ILLEGAL_VALUE = 1;
+    public static final short NO_TRANSIENT_SPACE = 2;
+    public static final short ILLEGAL_TRANSIENT = 3;
+    public static final short ILLEGAL_AID = 4;
+    public static final short NO_RESOURCE = 5;
+    public static final short ILLEGAL_USE = 6;
+    
+    private static final SystemException systemInstance = new SystemException((short) 0, true);
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public SystemException(short reason) {
+        super(reason);
+    }
+    
+    private SystemException(short reason, boolean systemOwned) {
+        super(reason, systemOwned);
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+}
@@ -0,0 +1,34 @@
+package javacard.framework;
+
+/**
+ * Misuse of the transaction API
+ */
+public class TransactionException extends CardRuntimeException {
+    
+    public static final short IN_PROGRESS = 1;
+    public static final short NOT_IN_PROGRESS = 2;
+    public static final short BUFFER_FULL = 3;
+    public static final short INTERNAL_FAILURE = 4;
+    public static final short ILLEGAL_USE = 5;
+    
+    private static final TransactionException systemInstance = new TransactionException((short) 0, true);
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public TransactionException(short reason) {
+        super(reason);
+    }
+    
+    private TransactionException(short reason, boolean systemOwned) {
+        super(reason, systemOwned);
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+}
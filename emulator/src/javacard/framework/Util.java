@@ -0,0 +1,105 @@
+package javacard.framework;
+
+import com.zereans.emulator.CardRuntime;
+
+/**
+ * Array and short helpers
+ *
+ * Copies and fills are reported to the runtime. Non-atomic writes are kept
+ * when a transaction that encloses them is aborted, as a card does.
+ */
+public class Util {
+    
+    Util() {
+    }
+    
+    /**
+     * Atomic copy; returns destOff + length
+     */
+    public static final short arrayCopy(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        CardRuntime.atomicWrite(dest, destOff, length);
+        return (short) (destOff + length);
+    }
+    
+    /**
+     * Non-atomic copy; returns destOff + length
+     */
+    public static final short arrayCopyNonAtomic(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        CardRuntime.nonAtomicWrite(dest, destOff, length);
+        return (short) (destOff + length);
+    }
+    
+    /**
+     * Atomic fill; returns bOff + bLen
+     */
+    public static final short arrayFill(byte[] bArray, short bOff, short bLen, byte bValue) {
+        fill(bArray, bOff, bLen, bValue);
+        CardRuntime.atomicWrite(bArray, bOff, bLen);
+        return (short) (bOff + bLen);
+    }
+    
+    /**
+     * Non-atomic fill; returns bOff + bLen
+     */
+    public static final short arrayFillNonAtomic(byte[] bArray, short bOff, short bLen, byte bValue) {
+        fill(bArray, bOff, bLen, bValue);
+        CardRuntime.nonAtomicWrite(bArray, bOff, bLen);
+        return (short) (bOff + bLen);
+    }
+    
+    /**
+     * Compare two ranges as signed bytes: 0 if equal, -1 or 1 at the first difference
+     */
+    public static final byte arrayCompare(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        if (src == null || dest == null) {
+            throw new NullPointerException();
+        }
+        if (length < 0 || srcOff < 0 || destOff < 0
+                || srcOff + length > src.length || destOff + length > dest.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        for (short i = 0; i < length; i++) {
+            byte a = src[srcOff + i];
+            byte b = dest[destOff + i];
+            if (a != b) {
+                return a < b ? (byte) -1 : (byte) 1;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Big-endian short from two bytes
+     */
+    public static final short makeShort(byte b1, byte b2) {
+        return (short) (((b1 & 0xFF) << 8) | (b2 & 0xFF));
+    }
+    
+    /**
+     * Big-endian short at an offset
+     */
+    public static final short getShort(byte[] bArray, short bOff) {
+        return (short) (((bArray[bOff] & 0xFF) << 8) | (bArray[bOff + 1] & 0xFF));
+    }
+    
+    /**
+     * Store a big-endian short; returns bOff + 2
+     */
+    public static final short setShort(byte[] bArray, short bOff, short sValue) {
+        if (bOff < 0 || bOff + 2 > bArray.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        bArray[bOff] = (byte) (sValue >> 8);
+        bArray[bOff + 1] = (byte) sValue;
+        return (short) (bOff + 2);
+    }
+    
+    private static void fill(byte[] bArray, short bOff, short bLen, byte bValue) {
+        if (bLen < 0 || bOff < 0 || bOff + bLen > bArray.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        java.util.Arrays.fill(bArray, bOff, bOff + bLen, bValue);
+    }
+}
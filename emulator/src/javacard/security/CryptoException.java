@@ -0,0 +1,36 @@
+package javacard.security;
+
+import javacard.framework.CardRuntimeException;
+
+/**
+ * Failure of a cryptographic operation: bad key, algorithm or call sequence
+ */
+public class CryptoException extends CardRuntimeException {
+    
+    public static final short ILLEGAL_VALUE = 1;
+    public static final short UNINITIALIZED_KEY = 2;
+    public static final short NO_SUCH_ALGORITHM = 3;
+    public static final short INVALID_INIT = 4;
+    public static final short ILLEGAL_USE = 5;
+    
+    private static final CryptoException systemInstance = new CryptoException((short) 0, true);
+    
+    /**
+     * Constructor - exception with the given reason code
+     */
+    public CryptoException(short reason) {
+        super(reason);
+    }
+    
+    private CryptoException(short reason, boolean systemOwned) {
+        super(reason, systemOwned);
+    }
+    
+    /**
+     * Throw the system instance with the given reason
+     */
+    public static void throwIt(short reason) {
+        systemInstance.setReason(reason);
+        throw systemInstance;
+    }
+}
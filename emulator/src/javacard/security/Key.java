@@ -0,0 +1,15 @@
+package javacard.security;
+
+/**
+ * Base interface of all keys
+ */
+public interface Key {
+    
+    boolean isInitialized();
+    
+    void clearKey();
+    
+    byte getType();
+    
+    short getSize();
+}
@@ -0,0 +1,36 @@
+package javacard.security;
+
+import com.zereans.emulator.crypto.Engines;
+
+/**
+ * Key agreement engines
+ */
+public abstract class KeyAgreement {
+    
+    public static final byte ALG_EC_SVDP_DH = 1;
+    public static final byte ALG_EC_SVDP_DH_KDF = 1;
+    public static final byte ALG_EC_SVDP_DHC = 2;
+    public static final byte ALG_EC_SVDP_DHC_KDF = 2;
+    public static final byte ALG_EC_SVDP_DH_PLAIN = 3;
+    public static final byte ALG_EC_SVDP_DHC_PLAIN = 4;
+    public static final byte ALG_EC_PACE_GM = 5;
+    public static final byte ALG_EC_SVDP_DH_PLAIN_XY = 6;
+    public static final byte ALG_DH_PLAIN = 7;
+    public static final byte ALG_XDH = 8;
+    public static final byte ALG_SM2 = 9;
+    public static final byte ALG_SM2_WITH_CONFIRMATION = 10;
+    
+    protected KeyAgreement() {
+    }
+    
+    public static final KeyAgreement getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+        return Engines.keyAgreement(algorithm);
+    }
+    
+    public abstract void init(PrivateKey privKey) throws CryptoException;
+    
+    public abstract byte getAlgorithm();
+    
+    public abstract short generateSecret(byte[] publicData, short publicOffset, short publicLength,
+            byte[] secret, short secretOffset) throws CryptoException;
+}
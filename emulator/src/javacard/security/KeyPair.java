@@ -0,0 +1,68 @@
+package javacard.security;
+
+import com.zereans.emulator.crypto.KeyPairGeneration;
+
+/**
+ * Container for a public and private key, with key generation
+ */
+public final class KeyPair {
+    
+    public static final byte ALG_RSA = 1;
+    public static final byte ALG_RSA_CRT = 2;
+    public static final byte ALG_DSA = 3;
+    public static final byte ALG_EC_F2M = 4;
+    public static final byte ALG_EC_FP = 5;
+    public static final byte ALG_DH = 6;
+    
+    private final PublicKey publicKey;
+    private final PrivateKey privateKey;
+    
+    /**
+     * Constructor - builds an uninitialized pair for the algorithm
+     */
+    public KeyPair(byte algorithm, short keyLength) throws CryptoException {
+        switch (algorithm) {
+            case ALG_RSA:
+                publicKey = (PublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, keyLength, false);
+                privateKey = (PrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE, keyLength, false);
+                break;
+            case ALG_RSA_CRT:
+                publicKey = (PublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, keyLength, false);
+                privateKey = (PrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, keyLength, false);
+                break;
+            case ALG_EC_FP:
+                publicKey = (PublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, keyLength, false);
+                privateKey = (PrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, keyLength, false);
+                break;
+            default:
+                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                throw new IllegalStateException();
+        }
+    }
+    
+    /**
+     * Constructor - wraps existing key objects
+     */
+    public KeyPair(PublicKey publicKey, PrivateKey privateKey) throws CryptoException {
+        if (publicKey == null || privateKey == null) {
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        }
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+    }
+    
+    /**
+     * Generate new key values into the pair's key objects
+     */
+    public final void genKeyPair() throws CryptoException {
+        KeyPairGeneration.generate(publicKey, privateKey);
+    }
+    
+    public PublicKey getPublic() {
+        return publicKey;
+    }
+    
+    public PrivateKey getPrivate() {
+        return privateKey;
+    }
+}
@@ -0,0 +1,7 @@
+package javacard.security;
+
+/**
+ * Private half of a key pair
+ */
+public interface PrivateKey extends Key {
+}
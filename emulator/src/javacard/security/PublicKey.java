@@ -0,0 +1,7 @@
+package javacard.security;
+
+/**
+ * Public half of a key pair
+ */
+public interface PublicKey extends Key {
+}
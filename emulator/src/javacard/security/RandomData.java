@@ -0,0 +1,35 @@
+package javacard.security;
+
+import com.zereans.emulator.crypto.Engines;
+
+/**
+ * Random number generators, all backed by the host SecureRandom
+ */
+public abstract class RandomData {
+    
+    public static final byte ALG_PSEUDO_RANDOM = 1;
+    public static final byte ALG_SECURE_RANDOM = 2;
+    public static final byte ALG_TRNG = 3;
+    public static final byte ALG_PRESEEDED_DRBG = 4;
+    public static final byte ALG_FAST = 5;
+    public static final byte ALG_KEYGENERATION = 6;
+    
+    protected RandomData() {
+    }
+    
+    public static final RandomData getInstance(byte algorithm) throws CryptoException {
+        return Engines.random(algorithm);
+    }
+    
+    public static final RandomData getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+        return Engines.random(algorithm);
+    }
+    
+    public abstract void generateData(byte[] buffer, short offset, short length) throws CryptoException;
+    
+    public abstract short nextBytes(byte[] buffer, short offset, short length) throws CryptoException;
+    
+    public abstract void setSeed(byte[] buffer, short offset, short length);
+    
+    public abstract byte getAlgorithm();
+}
@@ -0,0 +1,7 @@
+package javacard.security;
+
+/**
+ * Symmetric key
+ */
+public interface SecretKey extends Key {
+}
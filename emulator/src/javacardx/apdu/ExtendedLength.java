@@ -0,0 +1,7 @@
+package javacardx.apdu;
+
+/**
+ * Marker for applets that accept extended length APDUs
+ */
+public interface ExtendedLength {
+}
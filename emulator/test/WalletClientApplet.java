@@ -0,0 +1,52 @@
+package com.zereans.applet.test;
+
+import javacard.framework.*;
+
+import com.zereans.applet.ZereansWallet;
+
+/**
+ * Co-resident client of the ZereansWallet interface for the emulator tests
+ * INS 10 asks the wallet for its interface and keeps it (6985 when refused),
+ * INS 12 debits amount(2) | reference(2) through the kept interface and
+ * returns the new balance. Wallet status words pass through unchanged.
+ */
+public class WalletClientApplet extends Applet {
+    
+    private static final byte[] WALLET_AID = {(byte)0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x06};
+    private static final byte INS_GET_INTERFACE = (byte) 0x10;
+    private static final byte INS_DEBIT = (byte) 0x12;
+    
+    private ZereansWallet wallet;
+    
+    public static void install(byte[] bArray, short bOffset, byte bLength) {
+        new WalletClientApplet().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+    }
+    
+    public void process(APDU apdu) {
+        if (selectingApplet()) {
+            return;
+        }
+        byte[] buffer = apdu.getBuffer();
+        switch (buffer[ISO7816.OFFSET_INS]) {
+            case INS_GET_INTERFACE:
+                AID server = JCSystem.lookupAID(WALLET_AID, (short) 0, (byte) WALLET_AID.length);
+                wallet = (ZereansWallet) JCSystem.getAppletShareableInterfaceObject(server, (byte) 0);
+                if (wallet == null) {
+                    ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                }
+                break;
+            case INS_DEBIT:
+                if (wallet == null) {
+                    ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                }
+                apdu.setIncomingAndReceive();
+                short offset = apdu.getOffsetCdata();
+                short balance = wallet.debit(Util.getShort(buffer, offset), Util.getShort(buffer, (short) (offset + 2)));
+                Util.setShort(buffer, (short) 0, balance);
+                apdu.setOutgoingAndSend((short) 0, (short) 2);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+    }
+}
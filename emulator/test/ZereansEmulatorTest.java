@@ -0,0 +1,1386 @@
+package com.zereans.applet.test;
+
+import java.math.BigInteger;
+import java.security.*;
+import java.security.interfaces.*;
+import java.security.spec.*;
+import java.util.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.zereans.applet.NetworkProtocol;
+import com.zereans.applet.Secp256r1;
+import com.zereans.applet.ZereansApplet;
+import com.zereans.emulator.CardSimulator;
+import com.zereans.emulator.WearProfiler;
+
+/**
+ * End-to-end tests of the compiled applet on the in-JVM card emulator
+ * Every command goes through SELECT, the APDU state machine, transactions
+ * and the crypto engines the way it would on a card.
+ */
+public class ZereansEmulatorTest {
+    
+    private static final byte[] APPLET_AID = {(byte)0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x06};
+    private static final byte[] CARD_ID = {0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte)0x88};
+    private static final byte[] MASTER_KEY = {
+        0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte)0x88, (byte)0x99, (byte)0xAA, (byte)0xBB, (byte)0xCC, (byte)0xDD, (byte)0xEE, (byte)0xFF
+    };
+    private static final byte[] SESSION_KEY = {
+        0x0F, 0x1E, 0x2D, 0x3C, 0x4B, 0x5A, 0x69, 0x78, (byte)0x87, (byte)0x96, (byte)0xA5, (byte)0xB4, (byte)0xC3, (byte)0xD2, (byte)0xE1, (byte)0xF0
+    };
+    private static final byte[] CLIENT_AID = {(byte)0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x07};
+    private static final byte[] OTHER_CLIENT_AID = {(byte)0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x08};
+    private static final byte PARTNER_ID = 0x07;
+    private static final int SW_OK = 0x9000;
+    
+    private static int testCount = 0;
+    private static int passedTests = 0;
+    private static int failedTests = 0;
+    
+    private static CardSimulator card;
+    private static KeyPair serverKeys;
+    private static KeyPair cardKeys;
+    private static KeyPair partnerKeys;
+    private static int balance;
+    private static int counter;
+    
+    /**
+     * Install, select and personalize a fresh card
+     */
+    public static boolean testPersonalization() {
+        testCount++;
+        try {
+            System.out.println("Testing install and personalization...");
+            
+            card = new CardSimulator();
+            byte[] installData = {(byte)0x81, 0x02, 0x01, 0x00}; // 256-byte journal
+            card.installApplet(APPLET_AID, ZereansApplet.class, installData);
+            
+            byte[] fci = card.selectApplet(APPLET_AID);
+            boolean selectOk = CardSimulator.getSW(fci) == SW_OK && fci[0] == 0x6F;
+            System.out.println("✓ SELECT returns FCI: " + bytesToHex(fci));
+            
+            serverKeys = generateEcKeyPair();
+            cardKeys = generateEcKeyPair();
+            partnerKeys = generateEcKeyPair();
+            
+            // First segment: card ID, master and session keys, server key and card EC key pair (chained)
+            byte[] first = concat(
+                tlv(0x5A, CARD_ID),
+                tlv(0x81, MASTER_KEY),
+                tlv(0x82, SESSION_KEY),
+                tlv(0x91, encodePoint(serverKeys)),
+                tlv(0x99, scalar(cardKeys)),
+                tlv(0x9A, encodePoint(cardKeys)));
+            int sw1 = sw(command(0x10, 0x01, 0x00, 0x00, first));
+            
+            // Last segment: partner key
+            byte[] second = tlv(0x9B, concat(new byte[] {PARTNER_ID}, encodePoint(partnerKeys)));
+            int sw2 = sw(command(0x00, 0x01, 0x00, 0x00, second));
+            System.out.println("✓ Chained INITIALIZE: " + hex16(sw1) + " " + hex16(sw2));
+            
+            byte[] status = card.transmit(new byte[] {0x00, 0x05, 0x00, 0x00, 0x04});
+            boolean stateOk = CardSimulator.getSW(status) == SW_OK && status[0] == 0x01;
+            System.out.println("✓ GET STATUS: " + bytesToHex(status));
+            
+            balance = 1000;
+            counter = 0;
+            return result(selectOk && sw1 == SW_OK && sw2 == SW_OK && stateOk);
+        } catch (Exception e) {
+            return failure("Personalization", e);
+        }
+    }
+    
+    /**
+     * Authenticate and debit with the extended commands
+     */
+    public static boolean testSessionAndTransaction() {
+        testCount++;
+        try {
+            System.out.println("Testing extended AUTHENTICATE and TRANSACTION...");
+            
+            byte[] response = authenticate();
+            boolean authOk = CardSimulator.getSW(response) == SW_OK && response.length == 34;
+            System.out.println("✓ AUTHENTICATE: " + hex16(CardSimulator.getSW(response)) + ", " + (response.length - 2) + " bytes");
+            
+            boolean balanceOk = getBalance() == balance;
+            System.out.println("✓ GET BALANCE: " + balance);
+            
+            // Signatures by another key, or over another card ID, are refused
+            byte[] challenge = getChallenge(0);
+            int forgedSw = sw(extendedCommand(0x02, concat(challenge, sign(partnerKeys, concat(challenge, CARD_ID)))));
+            byte[] otherCard = CARD_ID.clone();
+            otherCard[0] ^= 0x01;
+            challenge = getChallenge(0);
+            int otherCardSw = sw(extendedCommand(0x02, concat(challenge, sign(serverKeys, concat(challenge, otherCard)))));
+            int unsignedSw = sw(extendedCommand(0x03, concat(new byte[] {0x00, 0x64, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09},
+                sign(partnerKeys, new byte[] {0x00, 0x64}))));
+            authenticate();
+            int otherCardTxnSw = CardSimulator.getSW(transaction(100, new byte[] {0x09, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09}, otherCard));
+            byte[] otherCardToken = cmac(MASTER_KEY, concat(new byte[] {0x01}, otherCard,
+                new byte[] {(byte)(counter >> 8), (byte)counter, 0x00, 0x19}));
+            int otherCardDebitSw = sw(command(0x00, 0x08, 0x00, 0x00,
+                concat(new byte[] {0x00, 0x19, (byte)(counter >> 8), (byte)counter}, otherCardToken)));
+            boolean forgedOk = forgedSw == 0x6982 && otherCardSw == 0x6982 && unsignedSw == 0x6982
+                && otherCardTxnSw == 0x6982 && otherCardDebitSw == 0x6982;
+            System.out.println("✓ Foreign signatures refused: " + hex16(forgedSw) + " " + hex16(otherCardSw) + " " + hex16(unsignedSw)
+                + ", other card ID in TRANSACTION: " + hex16(otherCardTxnSw) + ", in FAST DEBIT token: " + hex16(otherCardDebitSw));
+            
+            // Only the challenge the card issued, and only once
+            challenge = getChallenge(0);
+            byte[] signedAuth = extendedCommand(0x02, concat(challenge, sign(serverKeys, concat(challenge, CARD_ID))));
+            int issuedSw = sw(signedAuth);
+            int replayedSw = sw(signedAuth);
+            byte[] ownChallenge = new byte[32];
+            new SecureRandom().nextBytes(ownChallenge);
+            getChallenge(0);
+            int ownSw = sw(extendedCommand(0x02, concat(ownChallenge, sign(serverKeys, concat(ownChallenge, CARD_ID)))));
+            boolean challengeOk = issuedSw == SW_OK && replayedSw == 0x6982 && ownSw == 0x6982;
+            System.out.println("✓ Card challenge: " + hex16(issuedSw) + ", replayed AUTHENTICATE: " + hex16(replayedSw)
+                + ", host challenge: " + hex16(ownSw));
+            authenticate();
+            
+            byte[] txnId = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08};
+            byte[] txn = transaction(100, txnId);
+            boolean debitOk = CardSimulator.getSW(txn) == SW_OK && getShort(txn, 0) == balance - 100;
+            balance -= 100;
+            counter++;
+            System.out.println("✓ TRANSACTION 100: balance " + getShort(txn, 0));
+            
+            // A retry with the same ID returns the stored result without debiting again
+            byte[] retry = transaction(100, txnId);
+            boolean retryOk = CardSimulator.getSW(retry) == SW_OK && getShort(retry, 0) == balance && getBalance() == balance;
+            System.out.println("✓ Retry returns stored result: " + (retryOk ? "SUCCESS" : "FAILED"));
+            
+            // After a reset the retry is one command, without AUTHENTICATE
+            card.transmit(concat(new byte[] {0x00, (byte)0xA4, 0x04, 0x00, (byte)APPLET_AID.length}, APPLET_AID));
+            byte[] resumed = transaction(100, txnId);
+            int newDebitSw = CardSimulator.getSW(transaction(100, new byte[] {0x09, 0x08, 0x07, 0x06, 0x05, 0x04, 0x03, 0x02}));
+            authenticate();
+            boolean resumeOk = CardSimulator.getSW(resumed) == SW_OK && getShort(resumed, 0) == balance
+                && newDebitSw == 0x6985 && getBalance() == balance;
+            System.out.println("✓ Retry after reset without a session: balance " + getShort(resumed, 0)
+                + ", new transaction without a session: " + hex16(newDebitSw));
+            
+            // The same command as a short APDU cannot carry its data
+            int shortSw = sw(command(0x00, 0x02, 0x00, 0x00, new byte[255]));
+            boolean lengthOk = shortSw == 0x6700;
+            System.out.println("✓ Short AUTHENTICATE rejected: " + hex16(shortSw));
+            
+            return result(authOk && balanceOk && forgedOk && challengeOk && debitOk && retryOk && resumeOk && lengthOk);
+        } catch (Exception e) {
+            return failure("Session and transaction", e);
+        }
+    }
+    
+    /**
+     * A session runs at most 16 transactions; the 17th needs a new AUTHENTICATE
+     */
+    public static boolean testSessionBudget() {
+        testCount++;
+        try {
+            System.out.println("Testing the session transaction budget...");
+            
+            authenticate();
+            boolean budgetOk = true;
+            for (int i = 0; i < 16; i++) {
+                byte[] response = transaction(1, new byte[] {0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) i});
+                budgetOk &= CardSimulator.getSW(response) == SW_OK && getShort(response, 0) == balance - 1;
+                balance -= 1;
+                counter++;
+            }
+            int refusedSw = CardSimulator.getSW(transaction(1, new byte[] {0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00}));
+            boolean refusedOk = refusedSw == 0x6982 && getBalance() == balance;
+            System.out.println("✓ 16 transactions in one session: " + budgetOk + ", 17th: " + hex16(refusedSw));
+            
+            authenticate();
+            byte[] renewed = transaction(1, new byte[] {0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00});
+            boolean renewedOk = CardSimulator.getSW(renewed) == SW_OK;
+            if (renewedOk) {
+                balance -= 1;
+                counter++;
+            }
+            System.out.println("✓ After a new AUTHENTICATE: " + bytesToHex(renewed));
+            
+            return result(budgetOk && refusedOk && renewedOk);
+        } catch (Exception e) {
+            return failure("Session budget", e);
+        }
+    }
+    
+    /**
+     * Install probe on a card without AES-CMAC: the install goes through,
+     * GET DATA reports the missing algorithms and commands that need them
+     * return 6A81 while the rest of the profile keeps working
+     */
+    public static boolean testMissingAlgorithm() {
+        testCount++;
+        try {
+            System.out.println("Testing the install probe on a card without AES-CMAC...");
+            
+            CardSimulator probe = new CardSimulator();
+            probe.removeAlgorithm(javacard.security.Signature.class, javacard.security.Signature.ALG_AES_CMAC_128);
+            probe.installApplet(APPLET_AID, ZereansApplet.class, new byte[] {(byte)0x84, 0x01, 0x3B});
+            boolean selectOk = CardSimulator.getSW(probe.selectApplet(APPLET_AID)) == SW_OK;
+            
+            // The secure update stream needs CMAC as well, so AES goes missing with it
+            byte[] available = probe.transmit(new byte[] {0x00, (byte)0xCA, 0x00, (byte)0xC8, 0x00});
+            byte[] missing = probe.transmit(new byte[] {0x00, (byte)0xCA, 0x00, (byte)0xCB, 0x00});
+            boolean reportOk = selectOk && CardSimulator.getSW(available) == SW_OK && available[2] == 0x32
+                && CardSimulator.getSW(missing) == SW_OK && missing[2] == 0x09;
+            System.out.println("✓ C8: " + bytesToHex(available) + ", CB: " + bytesToHex(missing));
+            
+            int keySw = CardSimulator.getSW(probe.transmit(command(0x00, 0x01, 0x00, 0x00,
+                concat(tlv(0x5A, CARD_ID), tlv(0x81, MASTER_KEY)))));
+            int initSw = CardSimulator.getSW(probe.transmit(command(0x00, 0x01, 0x00, 0x00,
+                concat(tlv(0x5A, CARD_ID), tlv(0x91, encodePoint(serverKeys))))));
+            int challengeSw = CardSimulator.getSW(probe.transmit(new byte[] {0x00, (byte)0x84, 0x00, 0x00, 0x20}));
+            boolean commandsOk = keySw == 0x6A81 && initSw == SW_OK && challengeSw == SW_OK;
+            System.out.println("✓ INITIALIZE with a master key: " + hex16(keySw) + ", without: " + hex16(initSw)
+                + ", GET CHALLENGE: " + hex16(challengeSw));
+            
+            return result(reportOk && commandsOk);
+        } catch (Exception e) {
+            return failure("Missing algorithm", e);
+        } finally {
+            card.activate();
+        }
+    }
+    
+    /**
+     * Fast debit token and receipt, checked with an independent host CMAC
+     */
+    public static boolean testFastDebit() {
+        testCount++;
+        try {
+            System.out.println("Testing FAST DEBIT...");
+            
+            int amount = 25;
+            byte[] token = cmac(MASTER_KEY, concat(new byte[] {0x01}, CARD_ID, new byte[] {(byte)(counter >> 8), (byte)counter, 0x00, (byte)amount}));
+            byte[] data = concat(new byte[] {0x00, (byte)amount, (byte)(counter >> 8), (byte)counter}, token);
+            byte[] response = card.transmit(command(0x00, 0x08, 0x00, 0x00, data));
+            balance -= amount;
+            counter++;
+            
+            boolean stateOk = CardSimulator.getSW(response) == SW_OK
+                && getShort(response, 0) == balance && getShort(response, 2) == counter;
+            byte[] receipt = cmac(MASTER_KEY, new byte[] {0x02, (byte)(counter >> 8), (byte)counter, 0x00, (byte)amount,
+                (byte)(balance >> 8), (byte)balance});
+            boolean receiptOk = Arrays.equals(receipt, Arrays.copyOfRange(response, 4, 20));
+            System.out.println("✓ Balance " + getShort(response, 0) + ", receipt MAC " + (receiptOk ? "verified" : "MISMATCH"));
+            
+            // A replayed token no longer matches the counter
+            int replaySw = sw(command(0x00, 0x08, 0x00, 0x00, data));
+            System.out.println("✓ Replayed token: " + hex16(replaySw));
+            
+            return result(stateOk && receiptOk && replaySw == 0x6982);
+        } catch (Exception e) {
+            return failure("Fast debit", e);
+        }
+    }
+    
+    /**
+     * Voucher batches commit together; a batch failing midway leaves no trace
+     */
+    public static boolean testVouchers() {
+        testCount++;
+        try {
+            System.out.println("Testing REDEEM VOUCHERS and rollback...");
+            
+            byte[] response = card.transmit(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {10, 11}, new int[] {40, 60})));
+            boolean creditOk = CardSimulator.getSW(response) == SW_OK && getShort(response, 0) == balance + 100;
+            balance += 100;
+            counter += 2;
+            System.out.println("✓ Two vouchers credited: balance " + getShort(response, 0));
+            
+            // Voucher 12 is credited inside the transaction, then 12 again is a replay
+            int rollbackSw = sw(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {12, 12}, new int[] {30, 30})));
+            boolean rollbackOk = rollbackSw == 0x6982 && getBalance() == balance;
+            System.out.println("✓ Replay inside batch: " + hex16(rollbackSw) + ", balance unchanged " + (rollbackOk ? "SUCCESS" : "FAILED"));
+            
+            // Voucher 12 was rolled back with the batch, so it is still redeemable
+            byte[] single = card.transmit(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {12}, new int[] {30})));
+            boolean laterOk = CardSimulator.getSW(single) == SW_OK && getShort(single, 0) == balance + 30;
+            balance += 30;
+            counter++;
+            System.out.println("✓ Rolled back voucher redeemed later: " + (laterOk ? "SUCCESS" : "FAILED"));
+            
+            return result(creditOk && rollbackOk && laterOk);
+        } catch (Exception e) {
+            return failure("Vouchers", e);
+        }
+    }
+    
+    /**
+     * Journal readout and sync decode to the card's own counter and balance
+     */
+    public static boolean testJournalAndSync() {
+        testCount++;
+        try {
+            System.out.println("Testing READ JOURNAL and SYNC...");
+            
+            byte[] readout = card.transmit(new byte[] {0x00, 0x0A, 0x00, 0x00, 0x00});
+            List<JournalDecoder.Record> records = JournalDecoder.decode(Arrays.copyOf(readout, readout.length - 2));
+            for (JournalDecoder.Record record : records) {
+                System.out.println("✓ " + record);
+            }
+            JournalDecoder.Record last = records.get(records.size() - 1);
+            boolean journalOk = records.size() == 5 && last.balance == balance && last.counter == counter;
+            
+            byte[] sync = card.transmit(command(0x00, 0x0C, 0x00, 0x00, new byte[] {0x00, 0x02}, 0x00));
+            boolean syncOk = CardSimulator.getSW(sync) == SW_OK
+                && getShort(sync, 3) == counter && getShort(sync, 5) == balance;
+            List<JournalDecoder.Record> newer = JournalDecoder.decode(Arrays.copyOfRange(sync, 10, sync.length - 2));
+            syncOk &= newer.size() == 3;
+            System.out.println("✓ SYNC from counter 2: " + newer.size() + " newer records");
+            
+            return result(journalOk && syncOk);
+        } catch (Exception e) {
+            return failure("Journal and sync", e);
+        }
+    }
+    
+    /**
+     * Batched ECDSA verification against the server and a partner key
+     */
+    public static boolean testVerifyBatch() {
+        testCount++;
+        try {
+            System.out.println("Testing VERIFY BATCH...");
+            
+            byte[][] messages = {"first".getBytes("UTF-8"), "second".getBytes("UTF-8"), "third".getBytes("UTF-8")};
+            byte[] pairs = new byte[0];
+            for (int i = 0; i < messages.length; i++) {
+                byte[] signature = sign(serverKeys, messages[i]);
+                if (i == 1) {
+                    signature = sign(serverKeys, "other".getBytes("UTF-8"));
+                }
+                pairs = concat(pairs, new byte[] {(byte)messages[i].length}, messages[i], new byte[] {(byte)signature.length}, signature);
+            }
+            byte[] result = card.transmit(command(0x00, 0x0D, 0x00, 0x00, pairs));
+            boolean serverOk = CardSimulator.getSW(result) == SW_OK && result[0] == 3 && result[1] == 0x05;
+            System.out.println("✓ Server key: " + bytesToHex(result));
+            
+            byte[] message = "partner".getBytes("UTF-8");
+            byte[] signature = sign(partnerKeys, message);
+            byte[] partner = card.transmit(command(0x00, 0x0D, 0x01, PARTNER_ID,
+                concat(new byte[] {(byte)message.length}, message, new byte[] {(byte)signature.length}, signature)));
+            boolean partnerOk = CardSimulator.getSW(partner) == SW_OK && partner[0] == 1 && partner[1] == 0x01;
+            System.out.println("✓ Partner key: " + bytesToHex(partner));
+            
+            return result(serverOk && partnerOk);
+        } catch (Exception e) {
+            return failure("Verify batch", e);
+        }
+    }
+    
+    /**
+     * Reset drops the session; logical channels keep separate sessions
+     */
+    public static boolean testResetAndChannels() {
+        testCount++;
+        try {
+            System.out.println("Testing reset and logical channels...");
+            
+            card.reset();
+            int noSelection = sw(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            card.selectApplet(APPLET_AID);
+            int noSession = sw(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            boolean resetOk = noSelection == 0x6986 && noSession == 0x6985;
+            System.out.println("✓ After reset: " + hex16(noSelection) + ", after SELECT: " + hex16(noSession));
+            
+            authenticate();
+            byte[] open = card.transmit(new byte[] {0x00, 0x70, 0x00, 0x00, 0x01});
+            int channel = open[0];
+            byte[] select = {(byte)channel, (byte)0xA4, 0x04, 0x00, (byte)APPLET_AID.length};
+            card.transmit(concat(select, APPLET_AID));
+            int otherChannel = sw(new byte[] {(byte)channel, 0x04, 0x00, 0x00, 0x02});
+            boolean basicStillOpen = getBalance() == balance;
+            int close = sw(new byte[] {0x00, 0x70, (byte)0x80, (byte)channel});
+            boolean channelsOk = CardSimulator.getSW(open) == SW_OK && channel == 1
+                && otherChannel == 0x6985 && basicStillOpen && close == SW_OK;
+            System.out.println("✓ Channel " + channel + " has its own session: " + (channelsOk ? "SUCCESS" : "FAILED"));
+            
+            return result(resetOk && channelsOk);
+        } catch (Exception e) {
+            return failure("Reset and channels", e);
+        }
+    }
+    
+    /**
+     * Wear profile of a debit: balance and commit buffer writes, none for a read
+     */
+    public static boolean testWearProfiler() {
+        testCount++;
+        try {
+            System.out.println("Testing EEPROM wear profiler...");
+            
+            WearProfiler profiler = new WearProfiler();
+            card.setWearProfiler(profiler);
+            authenticate();
+            getBalance();
+            byte[] txn = transaction(5, new byte[] {0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18});
+            card.setWearProfiler(null);
+            boolean debitOk = CardSimulator.getSW(txn) == SW_OK;
+            balance -= 5;
+            counter++;
+            System.out.print(profiler.report());
+            
+            WearProfiler.Profile debit = profiler.getProfile((byte) 0x03);
+            WearProfiler.Profile read = profiler.getProfile((byte) 0x04);
+            boolean profileOk = debit.getFieldBytes().containsKey("ZereansApplet.balance")
+                && debit.getPeakCommitBufferBytes() > 0 && read.getBytesWritten() == 0;
+            System.out.println("✓ Debit writes balance and logs " + debit.getPeakCommitBufferBytes() + " commit buffer bytes");
+            
+            Map<Byte, Integer> mix = new HashMap<Byte, Integer>();
+            mix.put((byte) 0x03, 100);
+            mix.put((byte) 0x04, 100);
+            WearProfiler.Projection projection = profiler.project(mix, WearProfiler.DEFAULT_ENDURANCE);
+            boolean projectionOk = projection.getLifetimeDays() > 0 && !Double.isInfinite(projection.getLifetimeDays())
+                && projection.getContributions().containsKey((byte) 0x03);
+            System.out.println("✓ Lifetime at 100 debits a day: " + Math.round(projection.getLifetimeDays()) + " days");
+            
+            return result(debitOk && profileOk && projectionOk);
+        } catch (Exception e) {
+            return failure("Wear profiler", e);
+        }
+    }
+    
+    /**
+     * Extended and short commands with the data delivered a few bytes per call
+     */
+    public static boolean testChunkedReceive() {
+        testCount++;
+        try {
+            System.out.println("Testing command data delivered in parts...");
+            
+            card.setReceiveChunk(32);
+            byte[] response = authenticate();
+            boolean authOk = CardSimulator.getSW(response) == SW_OK && response.length == 34;
+            System.out.println("✓ AUTHENTICATE in 32-byte parts: " + hex16(CardSimulator.getSW(response)));
+            
+            byte[] txn = transaction(7, new byte[] {0x21, 0x22, 0x23, 0x24, 0x25, 0x26, 0x27, 0x28});
+            boolean debitOk = CardSimulator.getSW(txn) == SW_OK && getShort(txn, 0) == balance - 7;
+            balance -= 7;
+            counter++;
+            System.out.println("✓ TRANSACTION in 32-byte parts: balance " + getShort(txn, 0));
+            
+            card.setReceiveChunk(3);
+            byte[] credit = card.transmit(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {20}, new int[] {7})));
+            boolean creditOk = CardSimulator.getSW(credit) == SW_OK && getShort(credit, 0) == balance + 7;
+            balance += 7;
+            counter++;
+            System.out.println("✓ REDEEM VOUCHERS in 3-byte parts: balance " + getShort(credit, 0));
+            card.setReceiveChunk(0);
+            
+            return result(authOk && debitOk && creditOk);
+        } catch (Exception e) {
+            card.setReceiveChunk(0);
+            return failure("Chunked receive", e);
+        }
+    }
+    
+    /**
+     * Import of a server-generated RSA-2048 CRT card key, chained in short
+     * APDUs cut across data objects, and in one extended APDU
+     */
+    public static boolean testRsaImport() {
+        testCount++;
+        CardSimulator walletCard = card;
+        try {
+            System.out.println("Testing RSA card key import...");
+            
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            RSAPrivateCrtKey key = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+            byte[] payload = concat(
+                tlv(0x5A, CARD_ID),
+                tlv(0x81, MASTER_KEY),
+                tlv(0x91, encodePoint(serverKeys)),
+                tlv(0x92, unsigned(key.getModulus(), 256)),
+                tlv(0x93, unsigned(key.getPublicExponent(), 3)),
+                tlv(0x94, unsigned(key.getPrimeP(), 128)),
+                tlv(0x95, unsigned(key.getPrimeQ(), 128)),
+                tlv(0x96, unsigned(key.getPrimeExponentP(), 128)),
+                tlv(0x97, unsigned(key.getPrimeExponentQ(), 128)),
+                tlv(0x98, unsigned(key.getCrtCoefficient(), 128)));
+            
+            // Short APDUs of 200 bytes, so the 260-byte modulus spans two segments
+            card = newCard();
+            int chainSw = SW_OK;
+            for (int offset = 0; offset < payload.length && chainSw == SW_OK; offset += 200) {
+                boolean last = offset + 200 >= payload.length;
+                chainSw = sw(command(last ? 0x80 : 0x90, 0x01, 0x00, 0x00,
+                    Arrays.copyOfRange(payload, offset, Math.min(offset + 200, payload.length))));
+            }
+            byte[] status = card.transmit(new byte[] {0x00, 0x05, 0x00, 0x00, 0x04});
+            byte[] response = authenticate();
+            boolean chainOk = chainSw == SW_OK && status[0] == 0x01 && CardSimulator.getSW(response) == SW_OK;
+            System.out.println("✓ Chained INITIALIZE in " + (payload.length + 199) / 200 + " segments: " + hex16(chainSw)
+                + ", AUTHENTICATE with the RSA key: " + hex16(CardSimulator.getSW(response)));
+            
+            // The same payload as one extended APDU, data at offset 7
+            card = newCard();
+            int extendedSw = sw(extendedCommand(0x01, payload));
+            response = authenticate();
+            boolean extendedOk = extendedSw == SW_OK && CardSimulator.getSW(response) == SW_OK;
+            System.out.println("✓ Extended INITIALIZE: " + hex16(extendedSw)
+                + ", AUTHENTICATE: " + hex16(CardSimulator.getSW(response)));
+            
+            // A data object cut by the last segment is rejected
+            card = newCard();
+            int cutSw = sw(command(0x80, 0x01, 0x00, 0x00, Arrays.copyOf(payload, 200)));
+            System.out.println("✓ Truncated object in last segment: " + hex16(cutSw));
+            
+            return result(chainOk && extendedOk && cutSw == 0x6A80);
+        } catch (Exception e) {
+            return failure("RSA import", e);
+        } finally {
+            card = walletCard;
+            card.activate();
+        }
+    }
+    
+    /**
+     * Partner-initiated handshake signed with the static keys: a point
+     * signed by anyone else or tampered with is refused without spending
+     * its sequence number, and the answer gives both sides the session key
+     */
+    public static boolean testNetworkHandshake() {
+        testCount++;
+        try {
+            System.out.println("Testing signed network handshake...");
+            
+            CardSimulator host = new CardSimulator();
+            host.enter(host.installApplet(APPLET_AID, ZereansApplet.class));
+            NetworkProtocol wallet = new NetworkProtocol();
+            NetworkProtocol partner = new NetworkProtocol();
+            NetworkProtocol intruder = new NetworkProtocol();
+            javacard.security.KeyPair walletKeys = newSigningKeys(wallet);
+            javacard.security.KeyPair partnerSigningKeys = newSigningKeys(partner);
+            newSigningKeys(intruder);
+            trust(wallet, partnerSigningKeys);
+            trust(partner, walletKeys);
+            trust(intruder, walletKeys);
+            byte[] frame = new byte[256];
+            byte[] reply = new byte[256];
+            
+            short length = intruder.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            boolean forgedRefused = length > 0 && !wallet.parseMessage(frame, (short) 0, length)
+                && !wallet.isHandshakeReplyPending(PARTNER_ID);
+            System.out.println("✓ Handshake signed by another key refused: " + forgedRefused);
+            
+            length = partner.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            frame[length - 1] ^= 0x01;
+            boolean tamperedRefused = !wallet.parseMessage(frame, (short) 0, length);
+            frame[length - 1] ^= 0x01;
+            boolean accepted = wallet.parseMessage(frame, (short) 0, length) && wallet.isHandshakeReplyPending(PARTNER_ID);
+            short replyLength = wallet.createHandshakeMessage(PARTNER_ID, reply, (short) 0);
+            boolean answered = replyLength > 0 && partner.parseMessage(reply, (short) 0, replyLength)
+                && !wallet.isHandshakeReplyPending(PARTNER_ID);
+            System.out.println("✓ Tampered handshake refused: " + tamperedRefused
+                + ", original accepted with the same sequence: " + accepted + ", answered: " + answered);
+            
+            byte[] data = {0x01, 0x02, 0x03, 0x04};
+            length = partner.createTransactionMessage(PARTNER_ID, data, (short) data.length, frame, (short) 0);
+            frame[length - 1] ^= 0x01;
+            boolean badMacRefused = !wallet.parseMessage(frame, (short) 0, length);
+            frame[length - 1] ^= 0x01;
+            boolean macOk = wallet.parseMessage(frame, (short) 0, length);
+            System.out.println("✓ Transaction with a bad MAC refused: " + badMacRefused + ", valid MAC accepted: " + macOk);
+            
+            // Each direction has its own key: a frame sent back to its sender fails
+            wallet.createTransactionMessage(PARTNER_ID, data, (short) data.length, frame, (short) 0);
+            length = wallet.createTransactionMessage(PARTNER_ID, data, (short) data.length, frame, (short) 0);
+            boolean reflectedRefused = !wallet.parseMessage(frame, (short) 0, length)
+                && partner.parseMessage(frame, (short) 0, length);
+            System.out.println("✓ Frame reflected to its sender refused: " + reflectedRefused);
+            
+            // An answer covers the initiator's point, so it cannot answer a later handshake
+            length = wallet.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            partner.parseMessage(frame, (short) 0, length);
+            replyLength = partner.createHandshakeMessage(PARTNER_ID, reply, (short) 0);
+            length = wallet.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            boolean staleRefused = !wallet.parseMessage(reply, (short) 0, replyLength);
+            partner.parseMessage(frame, (short) 0, length);
+            replyLength = partner.createHandshakeMessage(PARTNER_ID, reply, (short) 0);
+            boolean freshAccepted = wallet.parseMessage(reply, (short) 0, replyLength);
+            System.out.println("✓ Answer to an earlier handshake refused: " + staleRefused + ", current answer accepted: " + freshAccepted);
+            
+            return result(forgedRefused && tamperedRefused && accepted && answered && badMacRefused && macOk
+                && reflectedRefused && staleRefused && freshAccepted);
+        } catch (Exception e) {
+            return failure("Network handshake", e);
+        } finally {
+            card.activate();
+        }
+    }
+    
+    /**
+     * Partner frames relayed through NETWORK MESSAGE: the card answers a
+     * partner handshake, runs a batch of debits and returns one batch of
+     * responses; the replayed batch is refused
+     */
+    public static boolean testNetworkMessage() {
+        testCount++;
+        try {
+            System.out.println("Testing partner frames over NETWORK MESSAGE...");
+            
+            CardSimulator host = new CardSimulator();
+            javacard.framework.AID hostApplet = host.installApplet(APPLET_AID, ZereansApplet.class);
+            host.enter(hostApplet);
+            NetworkProtocol partner = partnerProtocol(partnerKeys, cardKeys);
+            byte[] frame = new byte[512];
+            
+            short length = partner.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            authenticate();
+            byte[] reply = card.transmit(networkCommand(frame, length));
+            host.enter(hostApplet);
+            boolean handshakeOk = CardSimulator.getSW(reply) == SW_OK
+                && partner.parseMessage(reply, (short) 0, (short) (reply.length - 2)) && partner.hasSessionKey(PARTNER_ID);
+            System.out.println("✓ Handshake answered by the card: " + handshakeOk);
+            
+            // Two debits, a malformed amount and an acknowledgement in one frame
+            byte[] balanceBefore = card.transmit(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            int before = ((balanceBefore[0] & 0xFF) << 8) | (balanceBefore[1] & 0xFF);
+            host.enter(hostApplet);
+            partner.beginBatch(PARTNER_ID);
+            partner.addBatchEntry(NetworkProtocol.MSG_TRANSACTION, new byte[] {0x00, 0x0A, 0x00, 0x01}, (short) 0, (short) 4);
+            partner.addBatchEntry(NetworkProtocol.MSG_TRANSACTION, new byte[] {0x00, 0x00, 0x00, 0x02}, (short) 0, (short) 4);
+            partner.addBatchEntry(NetworkProtocol.MSG_RESPONSE, new byte[] {0x00}, (short) 0, (short) 1);
+            partner.addBatchEntry(NetworkProtocol.MSG_TRANSACTION, new byte[] {0x00, 0x05, 0x00, 0x03}, (short) 0, (short) 4);
+            length = partner.createBatchMessage(frame, (short) 0);
+            byte[] batch = Arrays.copyOf(frame, length);
+            reply = card.transmit(networkCommand(batch, length));
+            
+            host.enter(hostApplet);
+            boolean parsed = CardSimulator.getSW(reply) == SW_OK
+                && partner.parseMessage(reply, (short) 0, (short) (reply.length - 2)) && partner.getBatchEntryCount() == 3;
+            int[] expected = {0x00, before - 10, NetworkProtocol.ERR_NETWORK_ERROR, before - 10, 0x00, before - 15};
+            byte[] entry = new byte[3];
+            boolean tooLongOk = partner.nextBatchEntry(entry, (short) 1) == NetworkProtocol.ENTRY_TOO_LONG;
+            boolean entriesOk = parsed && tooLongOk;
+            StringBuilder codes = new StringBuilder();
+            for (int i = 0; parsed && i < 3; i++) {
+                boolean read = partner.nextBatchEntry(entry, (short) 0) == 3 && partner.getBatchEntryType() == NetworkProtocol.MSG_RESPONSE;
+                int balance = ((entry[1] & 0xFF) << 8) | (entry[2] & 0xFF);
+                entriesOk &= read && entry[0] == expected[2 * i] && balance == expected[2 * i + 1];
+                codes.append(String.format(" %02X/%d", entry[0], balance));
+            }
+            balance -= 15;
+            counter += 2;
+            System.out.println("✓ Batch answered in one frame:" + codes + " " + (entriesOk ? "SUCCESS" : "FAILED")
+                + ", entry longer than the output left: " + tooLongOk);
+            
+            int replaySw = sw(networkCommand(batch, length));
+            byte[] balanceAfter = card.transmit(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            int after = ((balanceAfter[0] & 0xFF) << 8) | (balanceAfter[1] & 0xFF);
+            boolean replayOk = replaySw == 0x6982 && after == before - 15;
+            System.out.println("✓ Replayed batch: " + hex16(replaySw) + ", balance " + before + " -> " + after);
+            
+            return result(handshakeOk && entriesOk && replayOk);
+        } catch (Exception e) {
+            return failure("Network message", e);
+        } finally {
+            card.activate();
+        }
+    }
+    
+    /**
+     * Version 2 fragmentation: a message split over several frames is
+     * reassembled, while a fragment out of order, a duplicate fragment or
+     * one that overflows the reassembly buffer drops the partial message
+     */
+    public static boolean testNetworkFragments() {
+        testCount++;
+        try {
+            System.out.println("Testing network message fragments...");
+            
+            CardSimulator host = new CardSimulator();
+            host.enter(host.installApplet(APPLET_AID, ZereansApplet.class));
+            NetworkProtocol wallet = new NetworkProtocol();
+            NetworkProtocol partner = new NetworkProtocol();
+            javacard.security.KeyPair walletKeys = newSigningKeys(wallet);
+            trust(wallet, newSigningKeys(partner));
+            trust(partner, walletKeys);
+            byte[] frame = new byte[512];
+            short length = partner.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            wallet.parseMessage(frame, (short) 0, length);
+            length = wallet.createHandshakeMessage(PARTNER_ID, frame, (short) 0);
+            boolean keysOk = partner.parseMessage(frame, (short) 0, length) && wallet.hasSessionKey(PARTNER_ID);
+            
+            // 300 data bytes and the MAC in frames of at most 100 data bytes
+            byte[] data = new byte[300];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            partner.createTransactionMessage(PARTNER_ID, data, (short) data.length, frame, (short) 0);
+            byte[][] fragments = fragments(partner, (short) 100);
+            boolean partialOk = true;
+            for (int i = 0; i < fragments.length - 1; i++) {
+                partialOk &= wallet.parseMessage(fragments[i], (short) 0, (short) fragments[i].length) && !wallet.isMessageComplete();
+            }
+            byte[] received = new byte[512];
+            boolean wholeOk = fragments.length == 4 && partialOk
+                && wallet.parseMessage(fragments[3], (short) 0, (short) fragments[3].length) && wallet.isMessageComplete()
+                && wallet.getMessageData(received, (short) 0) == data.length && Arrays.equals(Arrays.copyOf(received, data.length), data);
+            System.out.println("✓ " + fragments.length + " fragments reassembled: " + wholeOk);
+            
+            // Out of order and duplicate fragments; the sequence number is not spent
+            partner.createTransactionMessage(PARTNER_ID, data, (short) data.length, frame, (short) 0);
+            fragments = fragments(partner, (short) 100);
+            boolean skipRefused = wallet.parseMessage(fragments[0], (short) 0, (short) fragments[0].length)
+                && !wallet.parseMessage(fragments[2], (short) 0, (short) fragments[2].length)
+                && !wallet.parseMessage(fragments[1], (short) 0, (short) fragments[1].length);
+            boolean duplicateRefused = wallet.parseMessage(fragments[0], (short) 0, (short) fragments[0].length)
+                && wallet.parseMessage(fragments[1], (short) 0, (short) fragments[1].length)
+                && !wallet.parseMessage(fragments[1], (short) 0, (short) fragments[1].length)
+                && !wallet.parseMessage(fragments[2], (short) 0, (short) fragments[2].length);
+            boolean resentOk = true;
+            for (byte[] fragment : fragments) {
+                resentOk &= wallet.parseMessage(fragment, (short) 0, (short) fragment.length);
+            }
+            resentOk &= wallet.isMessageComplete();
+            System.out.println("✓ Skipped fragment refused: " + skipRefused + ", duplicate refused: " + duplicateRefused
+                + ", message resent in order accepted: " + resentOk);
+            
+            // A second fragment longer than the room left after the first
+            partner.createTransactionMessage(PARTNER_ID, new byte[400], (short) 400, frame, (short) 0);
+            fragments = fragments(partner, (short) 400);
+            byte[] overflow = Arrays.copyOf(fragments[1], 12 + 200);
+            overflow[10] = 0x00;
+            overflow[11] = (byte) 200;
+            boolean overflowRefused = fragments.length == 2
+                && wallet.parseMessage(fragments[0], (short) 0, (short) fragments[0].length)
+                && !wallet.parseMessage(overflow, (short) 0, (short) overflow.length)
+                && !wallet.parseMessage(fragments[1], (short) 0, (short) fragments[1].length) && !wallet.isMessageComplete();
+            System.out.println("✓ Fragment overflowing the reassembly buffer refused: " + overflowRefused);
+            
+            return result(keysOk && wholeOk && skipRefused && duplicateRefused && resentOk && overflowRefused);
+        } catch (Exception e) {
+            return failure("Network fragments", e);
+        } finally {
+            card.activate();
+        }
+    }
+    
+    /**
+     * The voucher window keeps the 256 counters up to the highest redeemed
+     * one: a voucher below it is too old, one inside it redeemed once
+     */
+    public static boolean testVoucherWindow() {
+        testCount++;
+        try {
+            System.out.println("Testing voucher window boundary...");
+            
+            int before = getBalance();
+            byte[] high = card.transmit(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {300}, new int[] {1})));
+            byte[] edge = card.transmit(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {45}, new int[] {1})));
+            boolean edgeOk = CardSimulator.getSW(high) == SW_OK && CardSimulator.getSW(edge) == SW_OK
+                && getShort(edge, 0) == before + 2;
+            balance += 2;
+            counter += 2;
+            System.out.println("✓ Voucher 300, then 45 at the window edge: " + hex16(CardSimulator.getSW(edge)));
+            
+            int tooOldSw = sw(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {44}, new int[] {1})));
+            int redeemedSw = sw(command(0x00, 0x0B, 0x00, 0x00, voucherBatch(new int[] {45}, new int[] {1})));
+            boolean refusedOk = tooOldSw == 0x6984 && redeemedSw == 0x6982 && getBalance() == before + 2;
+            System.out.println("✓ Voucher 44 too old: " + hex16(tooOldSw) + ", 45 again: " + hex16(redeemedSw));
+            
+            return result(edgeOk && refusedOk);
+        } catch (Exception e) {
+            return failure("Voucher window", e);
+        }
+    }
+    
+    /**
+     * GET DATA takes one tag from P1-P2 (0000 for every field), the odd
+     * INS CB a tag list in the command data
+     */
+    public static boolean testGetData() {
+        testCount++;
+        try {
+            System.out.println("Testing GET DATA tag selection...");
+            
+            byte[] one = card.transmit(new byte[] {0x00, (byte)0xCA, 0x00, (byte)0xC2, 0x00});
+            byte[] all = card.transmit(new byte[] {0x00, (byte)0xCA, 0x00, 0x00, 0x00});
+            boolean p1p2Ok = CardSimulator.getSW(one) == SW_OK && one.length == 6 && one[0] == (byte)0xC2
+                && getShort(one, 2) == balance && CardSimulator.getSW(all) == SW_OK && all[0] == (byte)0xC1;
+            System.out.println("✓ Tag C2 from P1-P2: " + bytesToHex(one) + ", 0000: " + (all.length - 2) + " bytes");
+            
+            byte[] list = card.transmit(command(0x00, 0xCB, 0x00, 0x00, new byte[] {(byte)0xC3, 0x5A}, 0x00));
+            boolean listOk = CardSimulator.getSW(list) == SW_OK && list[0] == (byte)0xC3 && list[4] == 0x5A
+                && Arrays.equals(Arrays.copyOfRange(list, 6, 14), CARD_ID);
+            System.out.println("✓ Tag list with INS CB: " + bytesToHex(list));
+            
+            int unknownSw = sw(new byte[] {0x00, (byte)0xCA, 0x00, (byte)0x99, 0x00});
+            int dataSw = sw(command(0x00, 0xCA, 0x00, 0x00, new byte[] {(byte)0xC2}, 0x00));
+            boolean rejectOk = unknownSw == 0x6A86 && dataSw == 0x6700;
+            System.out.println("✓ Unknown tag: " + hex16(unknownSw) + ", tag list with INS CA: " + hex16(dataSw));
+            
+            return result(p1p2Ok && listOk && rejectOk);
+        } catch (Exception e) {
+            return failure("Get data", e);
+        }
+    }
+    
+    /**
+     * ZereansWallet across the firewall from co-resident client applets:
+     * a registered client debits within its limit, an unregistered one is
+     * refused the interface and a revoked one loses both the interface and
+     * calls through the reference it already holds
+     */
+    public static boolean testWalletClients() {
+        testCount++;
+        try {
+            System.out.println("Testing the shareable wallet interface...");
+            
+            card.installApplet(CLIENT_AID, WalletClientApplet.class);
+            card.installApplet(OTHER_CLIENT_AID, WalletClientApplet.class);
+            authenticate();
+            int registerSw = sw(command(0x00, 0x09, 0x00, 0x00, concat(new byte[] {0x02, 0x00, 0x32}, CLIENT_AID)));
+            
+            byte[] open = card.transmit(new byte[] {0x00, 0x70, 0x00, 0x00, 0x01});
+            int channel = open[0];
+            card.transmit(concat(new byte[] {(byte)channel, (byte)0xA4, 0x04, 0x00, (byte)CLIENT_AID.length}, CLIENT_AID));
+            int grantedSw = sw(new byte[] {(byte)channel, 0x10, 0x00, 0x00});
+            byte[] debit = card.transmit(command(channel, 0x12, 0x00, 0x00, new byte[] {0x00, 0x14, 0x00, 0x01}, 0x02));
+            boolean debitOk = registerSw == SW_OK && grantedSw == SW_OK && CardSimulator.getSW(debit) == SW_OK
+                && getShort(debit, 0) == balance - 20 && getBalance() == balance - 20;
+            if (debitOk) {
+                balance -= 20;
+                counter++;
+            }
+            int overLimitSw = sw(command(channel, 0x12, 0x00, 0x00, new byte[] {0x00, 0x33, 0x00, 0x02}, 0x02));
+            debitOk = debitOk && overLimitSw == 0x6A80 && getBalance() == balance;
+            System.out.println("✓ Registered client: interface " + hex16(grantedSw) + ", debit of 20 "
+                + bytesToHex(debit) + ", over its limit " + hex16(overLimitSw));
+            
+            card.transmit(concat(new byte[] {(byte)channel, (byte)0xA4, 0x04, 0x00, (byte)OTHER_CLIENT_AID.length}, OTHER_CLIENT_AID));
+            int unregisteredSw = sw(new byte[] {(byte)channel, 0x10, 0x00, 0x00});
+            int unregisteredDebitSw = sw(command(channel, 0x12, 0x00, 0x00, new byte[] {0x00, 0x01, 0x00, 0x03}, 0x02));
+            boolean unregisteredOk = unregisteredSw == 0x6985 && unregisteredDebitSw == 0x6985 && getBalance() == balance;
+            System.out.println("✓ Unregistered client: interface " + hex16(unregisteredSw));
+            
+            // The revoked client still holds the reference it got before
+            card.transmit(concat(new byte[] {(byte)channel, (byte)0xA4, 0x04, 0x00, (byte)CLIENT_AID.length}, CLIENT_AID));
+            int revokeSw = sw(command(0x00, 0x09, 0x00, 0x00, concat(new byte[] {0x00, 0x00, 0x00}, CLIENT_AID)));
+            int staleDebitSw = sw(command(channel, 0x12, 0x00, 0x00, new byte[] {0x00, 0x01, 0x00, 0x04}, 0x02));
+            int revokedSw = sw(new byte[] {(byte)channel, 0x10, 0x00, 0x00});
+            boolean revokedOk = revokeSw == SW_OK && staleDebitSw == 0x6982 && revokedSw == 0x6985 && getBalance() == balance;
+            System.out.println("✓ Revoked client: debit through the held interface " + hex16(staleDebitSw)
+                + ", new interface " + hex16(revokedSw));
+            card.transmit(new byte[] {0x00, 0x70, (byte)0x80, (byte)channel});
+            
+            return result(debitOk && unregisteredOk && revokedOk);
+        } catch (Exception e) {
+            return failure("Wallet clients", e);
+        }
+    }
+    
+    /**
+     * UPDATE KEYS with the TLVs encrypted and tagged segment by segment;
+     * a bad tag and a bad padding get the same status word
+     */
+    public static boolean testSecureUpdateKeys() {
+        testCount++;
+        try {
+            System.out.println("Testing encrypted UPDATE KEYS...");
+            
+            byte[] plaintext = concat(tlv(0x81, MASTER_KEY), tlv(0x9B, concat(new byte[] {PARTNER_ID}, encodePoint(partnerKeys))));
+            byte[] padded = concat(plaintext, pkcs5(plaintext.length));
+            
+            // Loaded keys are not replaced in clear, even in a session
+            authenticate();
+            int plainSw = sw(command(0x00, 0x06, 0x00, 0x00, tlv(0x81, MASTER_KEY)));
+            int serverSw = sw(command(0x00, 0x06, 0x00, 0x00, tlv(0x91, encodePoint(serverKeys))));
+            boolean plainOk = plainSw == 0x6985 && serverSw == 0x6985;
+            System.out.println("✓ Plaintext UPDATE KEYS with tag 81: " + hex16(plainSw) + ", tag 91: " + hex16(serverSw));
+            
+            // Three segments; the partner key object is cut by the first boundary
+            authenticate();
+            List<byte[]> segments = sealStream(padded, 32);
+            int chainSw = SW_OK;
+            for (int i = 0; i < segments.size() && chainSw == SW_OK; i++) {
+                chainSw = sw(command(i < segments.size() - 1 ? 0x10 : 0x00, 0x0E, 0x00, 0x00, segments.get(i)));
+            }
+            int sessionSw = sw(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            boolean loadOk = segments.size() == 3 && chainSw == SW_OK && sessionSw == 0x6985;
+            System.out.println("✓ Encrypted UPDATE KEYS in " + segments.size() + " segments: " + hex16(chainSw)
+                + ", sessions closed: " + hex16(sessionSw));
+            
+            // A changed ciphertext byte in the second segment fails its tag
+            authenticate();
+            segments = sealStream(padded, 32);
+            segments.get(1)[0] ^= 0x01;
+            int first = sw(command(0x10, 0x0E, 0x00, 0x00, segments.get(0)));
+            int tamperedSw = sw(command(0x10, 0x0E, 0x00, 0x00, segments.get(1)));
+            int afterSw = sw(command(0x00, 0x0E, 0x00, 0x00, segments.get(2)));
+            
+            // Correctly tagged ciphertext with bad padding gets the same answer
+            byte[] badPadding = concat(plaintext, new byte[16 - plaintext.length % 16]);
+            List<byte[]> single = sealStream(badPadding, badPadding.length);
+            int paddingSw = sw(command(0x00, 0x0E, 0x00, 0x00, single.get(0)));
+            boolean rejectOk = first == SW_OK && tamperedSw == 0x6982 && afterSw == 0x6982 && paddingSw == 0x6982;
+            System.out.println("✓ Bad tag: " + hex16(tamperedSw) + ", rest of chain: " + hex16(afterSw)
+                + ", bad padding: " + hex16(paddingSw));
+            
+            return result(plainOk && loadOk && rejectOk);
+        } catch (Exception e) {
+            return failure("Secure update keys", e);
+        }
+    }
+    
+    /**
+     * A command chain belongs to its channel: commands on another channel
+     * run in between without dropping it, chainable ones wait for it, and
+     * closing the channel drops it
+     */
+    public static boolean testInterleavedChannels() {
+        testCount++;
+        try {
+            System.out.println("Testing command chains on interleaved channels...");
+            
+            byte[] open = card.transmit(new byte[] {0x00, 0x70, 0x00, 0x00, 0x01});
+            int channel = open[0];
+            card.transmit(concat(new byte[] {(byte)channel, (byte)0xA4, 0x04, 0x00, (byte)APPLET_AID.length}, APPLET_AID));
+            authenticate();
+            int channelAuthSw = CardSimulator.getSW(authenticate(channel));
+            
+            // UPDATE KEYS chained on the other channel, cut inside the partner key
+            byte[] keys = tlv(0x9B, concat(new byte[] {PARTNER_ID}, encodePoint(partnerKeys)));
+            byte[] firstPart = Arrays.copyOf(keys, 40);
+            int firstSw = sw(command(0x10 | channel, 0x06, 0x00, 0x00, firstPart));
+            int balanceSw = sw(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            int refusedSw = sw(command(0x00, 0x06, 0x00, 0x00, keys));
+            int lastSw = sw(command(channel, 0x06, 0x00, 0x00, Arrays.copyOfRange(keys, 40, keys.length)));
+            int closedSw = sw(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+            boolean chainOk = channelAuthSw == SW_OK && firstSw == SW_OK && balanceSw == SW_OK
+                && refusedSw == 0x6985 && lastSw == SW_OK && closedSw == 0x6985;
+            System.out.println("✓ Chain on channel " + channel + ": " + hex16(firstSw) + " " + hex16(lastSw)
+                + ", channel 0 in between: GET BALANCE " + hex16(balanceSw) + ", UPDATE KEYS " + hex16(refusedSw));
+            
+            // A batch chained on channel 1 keeps its partner key while
+            // AUTHENTICATE on channel 0 verifies with the server key
+            authenticate(channel);
+            authenticate();
+            byte[] first = signedPair(partnerKeys, "first".getBytes("UTF-8"));
+            byte[] second = signedPair(partnerKeys, "second".getBytes("UTF-8"));
+            int batchSw = sw(command(0x10 | channel, 0x0D, 0x01, PARTNER_ID, first));
+            int serverAuthSw = CardSimulator.getSW(authenticate());
+            int batchRefusedSw = sw(command(0x00, 0x0D, 0x01, PARTNER_ID, second));
+            byte[] batch = card.transmit(command(channel, 0x0D, 0x01, PARTNER_ID, second));
+            boolean batchOk = batchSw == SW_OK && serverAuthSw == SW_OK && batchRefusedSw == 0x6985
+                && CardSimulator.getSW(batch) == SW_OK && batch[0] == 2 && batch[1] == 0x03;
+            System.out.println("✓ Batch on channel " + channel + " around AUTHENTICATE on channel 0: " + bytesToHex(batch));
+            
+            // Closing the channel drops its chain
+            authenticate(channel);
+            int openSw = sw(command(0x10 | channel, 0x06, 0x00, 0x00, firstPart));
+            int closeSw = sw(new byte[] {0x00, 0x70, (byte)0x80, (byte)channel});
+            authenticate();
+            int freedSw = sw(command(0x00, 0x06, 0x00, 0x00, keys));
+            boolean closeOk = openSw == SW_OK && closeSw == SW_OK && freedSw == SW_OK;
+            System.out.println("✓ Chain dropped with its channel: UPDATE KEYS on channel 0 " + hex16(freedSw));
+            
+            return result(chainOk && batchOk && closeOk);
+        } catch (Exception e) {
+            return failure("Interleaved channels", e);
+        }
+    }
+    
+    // Commands
+    
+    private static byte[] authenticate() {
+        return authenticate(0);
+    }
+    
+    private static byte[] authenticate(int channel) {
+        try {
+            byte[] challenge = getChallenge(channel);
+            byte[] command = extendedCommand(0x02, concat(challenge, sign(serverKeys, concat(challenge, CARD_ID))));
+            command[0] = (byte) channel;
+            return card.transmit(command);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * GET CHALLENGE on a channel; the card nonce the next AUTHENTICATE there signs
+     */
+    private static byte[] getChallenge(int channel) {
+        return Arrays.copyOf(card.transmit(new byte[] {(byte) channel, (byte) 0x84, 0x00, 0x00, 0x20}), 32);
+    }
+    
+    private static javacard.security.KeyPair newSigningKeys(NetworkProtocol protocol) {
+        javacard.security.KeyPair keys = new javacard.security.KeyPair(
+            javacard.security.KeyPair.ALG_EC_FP, javacard.security.KeyBuilder.LENGTH_EC_FP_256);
+        Secp256r1.setParameters((javacard.security.ECKey) keys.getPublic());
+        Secp256r1.setParameters((javacard.security.ECKey) keys.getPrivate());
+        keys.genKeyPair();
+        protocol.addPartner(PARTNER_ID);
+        protocol.setSigningKey((javacard.security.ECPrivateKey) keys.getPrivate());
+        return keys;
+    }
+    
+    /**
+     * Host-side protocol signing with signer and trusting peer, both known
+     * to each other as PARTNER_ID
+     */
+    private static NetworkProtocol partnerProtocol(KeyPair signer, KeyPair peer) {
+        javacard.security.KeyPair keys = new javacard.security.KeyPair(
+            javacard.security.KeyPair.ALG_EC_FP, javacard.security.KeyBuilder.LENGTH_EC_FP_256);
+        javacard.security.ECPrivateKey signingKey = (javacard.security.ECPrivateKey) keys.getPrivate();
+        Secp256r1.setParameters(signingKey);
+        byte[] s = scalar(signer);
+        signingKey.setS(s, (short) 0, (short) s.length);
+        NetworkProtocol protocol = new NetworkProtocol();
+        protocol.addPartner(PARTNER_ID);
+        protocol.setSigningKey(signingKey);
+        byte[] point = encodePoint(peer);
+        protocol.setPartnerKey(PARTNER_ID, point, (short) 0, (short) point.length);
+        return protocol;
+    }
+    
+    private static byte[] networkCommand(byte[] frame, int length) {
+        return extendedCommand(0x0F, Arrays.copyOf(frame, length));
+    }
+    
+    /**
+     * Frames of the last message a protocol created
+     */
+    private static byte[][] fragments(NetworkProtocol protocol, short fragmentLength) {
+        byte[][] frames = new byte[protocol.getFragmentCount(fragmentLength)][];
+        byte[] frame = new byte[512];
+        for (short i = 0; i < frames.length; i++) {
+            frames[i] = Arrays.copyOf(frame, protocol.createFragment(i, fragmentLength, frame, (short) 0));
+        }
+        return frames;
+    }
+    
+    private static void trust(NetworkProtocol protocol, javacard.security.KeyPair peerKeys) {
+        byte[] point = new byte[65];
+        short length = ((javacard.security.ECPublicKey) peerKeys.getPublic()).getW(point, (short) 0);
+        protocol.setPartnerKey(PARTNER_ID, point, (short) 0, length);
+    }
+    
+    /**
+     * Host side of a SecurityManager decrypt stream under SESSION_KEY:
+     * segments of segmentLength padded bytes, the IV ahead of the first,
+     * each followed by CMAC(index | last | previous tag or IV | ciphertext)
+     */
+    private static List<byte[]> sealStream(byte[] padded, int segmentLength) throws Exception {
+        byte[] label = {'Z', 'S', 'E', 'C'};
+        byte[] encryptionKey = cmac(SESSION_KEY, concat(new byte[] {0x01}, label));
+        byte[] macKey = cmac(SESSION_KEY, concat(new byte[] {0x02}, label));
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encryptionKey, "AES"), new IvParameterSpec(iv));
+        
+        List<byte[]> segments = new ArrayList<byte[]>();
+        byte[] chain = iv;
+        for (int offset = 0, index = 0; offset < padded.length; offset += segmentLength, index++) {
+            boolean last = offset + segmentLength >= padded.length;
+            byte[] ciphertext = aes.update(Arrays.copyOfRange(padded, offset, Math.min(offset + segmentLength, padded.length)));
+            chain = cmac(macKey, concat(new byte[] {(byte)(index >> 8), (byte)index, (byte)(last ? 1 : 0)}, chain, ciphertext));
+            segments.add(concat(index == 0 ? iv : new byte[0], ciphertext, chain));
+        }
+        return segments;
+    }
+    
+    private static byte[] pkcs5(int length) {
+        byte[] pad = new byte[16 - length % 16];
+        Arrays.fill(pad, (byte) pad.length);
+        return pad;
+    }
+    
+    private static CardSimulator newCard() {
+        CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(APPLET_AID, ZereansApplet.class);
+        simulator.selectApplet(APPLET_AID);
+        return simulator;
+    }
+    
+    /**
+     * Debit signed by the server over amount | balance | counter | transaction ID | card ID
+     */
+    private static byte[] transaction(int amount, byte[] txnId) {
+        return transaction(amount, txnId, CARD_ID);
+    }
+    
+    private static byte[] transaction(int amount, byte[] txnId, byte[] cardId) {
+        try {
+            byte[] signed = concat(new byte[] {(byte)(amount >> 8), (byte)amount, (byte)(balance >> 8), (byte)balance,
+                (byte)(counter >> 8), (byte)counter}, txnId, cardId);
+            byte[] signature = sign(serverKeys, signed);
+            return card.transmit(extendedCommand(0x03, concat(new byte[] {(byte)(amount >> 8), (byte)amount}, txnId, signature)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static int getBalance() {
+        byte[] response = card.transmit(new byte[] {0x00, 0x04, 0x00, 0x00, 0x02});
+        return CardSimulator.getSW(response) == SW_OK ? getShort(response, 0) : -1;
+    }
+    
+    private static byte[] signedPair(KeyPair keys, byte[] message) throws Exception {
+        byte[] signature = sign(keys, message);
+        return concat(new byte[] {(byte)message.length}, message, new byte[] {(byte)signature.length}, signature);
+    }
+    
+    private static byte[] voucherBatch(int[] counters, int[] amounts) throws Exception {
+        byte[] vouchers = new byte[1 + counters.length * 4];
+        vouchers[0] = (byte) counters.length;
+        for (int i = 0; i < counters.length; i++) {
+            vouchers[1 + i * 4] = (byte)(counters[i] >> 8);
+            vouchers[2 + i * 4] = (byte)counters[i];
+            vouchers[3 + i * 4] = (byte)(amounts[i] >> 8);
+            vouchers[4 + i * 4] = (byte)amounts[i];
+        }
+        byte[] mac = cmac(MASTER_KEY, concat(new byte[] {0x03}, CARD_ID, vouchers));
+        return concat(vouchers, mac);
+    }
+    
+    // Helper methods
+    
+    private static int sw(byte[] command) {
+        return CardSimulator.getSW(card.transmit(command));
+    }
+    
+    private static byte[] command(int cla, int ins, int p1, int p2, byte[] data) {
+        byte[] apdu = new byte[5 + data.length];
+        apdu[0] = (byte)cla;
+        apdu[1] = (byte)ins;
+        apdu[2] = (byte)p1;
+        apdu[3] = (byte)p2;
+        apdu[4] = (byte)data.length;
+        System.arraycopy(data, 0, apdu, 5, data.length);
+        return apdu;
+    }
+    
+    private static byte[] command(int cla, int ins, int p1, int p2, byte[] data, int le) {
+        return concat(command(cla, ins, p1, p2, data), new byte[] {(byte)le});
+    }
+    
+    private static byte[] extendedCommand(int ins, byte[] data) {
+        byte[] header = {0x00, (byte)ins, 0x00, 0x00, 0x00, (byte)(data.length >> 8), (byte)data.length};
+        return concat(header, data, new byte[] {0x00, 0x00});
+    }
+    
+    private static byte[] tlv(int tag, byte[] value) {
+        if (value.length > 0xFF) {
+            return concat(new byte[] {(byte)tag, (byte)0x82, (byte)(value.length >> 8), (byte)value.length}, value);
+        }
+        if (value.length > 0x7F) {
+            return concat(new byte[] {(byte)tag, (byte)0x81, (byte)value.length}, value);
+        }
+        return concat(new byte[] {(byte)tag, (byte)value.length}, value);
+    }
+    
+    private static KeyPair generateEcKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+    
+    private static byte[] encodePoint(KeyPair pair) {
+        ECPoint w = ((ECPublicKey) pair.getPublic()).getW();
+        return concat(new byte[] {0x04}, unsigned(w.getAffineX()), unsigned(w.getAffineY()));
+    }
+    
+    private static byte[] scalar(KeyPair pair) {
+        return unsigned(((ECPrivateKey) pair.getPrivate()).getS());
+    }
+    
+    private static byte[] unsigned(BigInteger value) {
+        return unsigned(value, 32);
+    }
+    
+    private static byte[] unsigned(BigInteger value, int size) {
+        byte[] bytes = value.toByteArray();
+        byte[] out = new byte[size];
+        int length = Math.min(bytes.length, size);
+        System.arraycopy(bytes, bytes.length - length, out, size - length, length);
+        return out;
+    }
+    
+    private static byte[] sign(KeyPair pair, byte[] message) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(pair.getPrivate());
+        signature.update(message);
+        return signature.sign();
+    }
+    
+    /**
+     * AES-CMAC (RFC 4493) computed on the host
+     */
+    private static byte[] cmac(byte[] key, byte[] message) throws Exception {
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        byte[] k1 = shiftLeft(aes.doFinal(new byte[16]));
+        byte[] k2 = shiftLeft(k1);
+        
+        int blocks = Math.max(1, (message.length + 15) / 16);
+        boolean complete = message.length > 0 && message.length % 16 == 0;
+        byte[] last = new byte[16];
+        int lastStart = (blocks - 1) * 16;
+        System.arraycopy(message, lastStart, last, 0, message.length - lastStart);
+        if (!complete) {
+            last[message.length - lastStart] = (byte)0x80;
+        }
+        byte[] subkey = complete ? k1 : k2;
+        
+        byte[] x = new byte[16];
+        for (int i = 0; i < blocks; i++) {
+            for (int j = 0; j < 16; j++) {
+                x[j] ^= i < blocks - 1 ? message[i * 16 + j] : (byte)(last[j] ^ subkey[j]);
+            }
+            x = aes.doFinal(x);
+        }
+        return x;
+    }
+    
+    private static byte[] shiftLeft(byte[] block) {
+        byte[] out = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            out[i] = (byte)((block[i] << 1) | (i < 15 ? (block[i + 1] & 0xFF) >>> 7 : 0));
+        }
+        if ((block[0] & 0x80) != 0) {
+            out[15] ^= (byte)0x87;
+        }
+        return out;
+    }
+    
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+        return out;
+    }
+    
+    private static int getShort(byte[] data, int offset) {
+        return (short)(((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+    }
+    
+    private static String hex16(int value) {
+        return String.format("%04X", value);
+    }
+    
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02X ", b));
+        }
+        return sb.toString().trim();
+    }
+    
+    private static boolean result(boolean passed) {
+        if (passed) {
+            passedTests++;
+        } else {
+            failedTests++;
+            Throwable error = card == null ? null : card.getLastError();
+            if (error != null) {
+                System.err.println("Last card error: " + error);
+            }
+        }
+        return passed;
+    }
+    
+    private static boolean failure(String name, Exception e) {
+        System.err.println(name + " test failed: " + e);
+        failedTests++;
+        return false;
+    }
+    
+    /**
+     * Run all tests
+     */
+    public static void runAllTests() {
+        System.out.println("=== Zereans Applet Emulator Tests ===");
+        System.out.println();
+        
+        String[] names = {"Personalization", "Session and transaction", "Fast debit", "Vouchers",
+            "Journal and sync", "Verify batch", "Reset and channels", "Wear profiler", "Chunked receive", "RSA import",
+            "Network handshake", "Secure update keys", "Interleaved channels", "Network message",
+            "Voucher window", "Get data", "Wallet clients", "Network fragments", "Session budget", "Missing algorithm"};
+        boolean[] results = new boolean[names.length];
+        results[0] = testPersonalization();
+        System.out.println();
+        results[1] = testSessionAndTransaction();
+        System.out.println();
+        results[2] = testFastDebit();
+        System.out.println();
+        results[3] = testVouchers();
+        System.out.println();
+        results[4] = testJournalAndSync();
+        System.out.println();
+        results[5] = testVerifyBatch();
+        System.out.println();
+        results[6] = testResetAndChannels();
+        System.out.println();
+        results[7] = testWearProfiler();
+        System.out.println();
+        results[8] = testChunkedReceive();
+        System.out.println();
+        results[9] = testRsaImport();
+        System.out.println();
+        results[10] = testNetworkHandshake();
+        System.out.println();
+        results[11] = testSecureUpdateKeys();
+        System.out.println();
+        results[12] = testInterleavedChannels();
+        System.out.println();
+        results[13] = testNetworkMessage();
+        System.out.println();
+        results[14] = testVoucherWindow();
+        System.out.println();
+        results[15] = testGetData();
+        System.out.println();
+        results[16] = testWalletClients();
+        System.out.println();
+        results[17] = testNetworkFragments();
+        System.out.println();
+        results[18] = testSessionBudget();
+        System.out.println();
+        results[19] = testMissingAlgorithm();
+        System.out.println();
+        
+        System.out.println("=== Test Results ===");
+        for (int i = 0; i < names.length; i++) {
+            System.out.println(names[i] + ": " + (results[i] ? "PASS" : "FAIL"));
+        }
+        
+        System.out.println("\n=== Summary ===");
+        System.out.println("Total tests: " + testCount);
+        System.out.println("Passed: " + passedTests);
+        System.out.println("Failed: " + failedTests);
+        
+        if (failedTests == 0) {
+            System.out.println("\nOK All tests passed!");
+        } else {
+            System.out.println("\nX Some tests failed!");
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Main method
+     */
+    public static void main(String[] args) {
+        runAllTests();
+    }
+}
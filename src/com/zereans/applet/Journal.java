@@ -0,0 +1,329 @@
+package com.zereans.applet;
+
+import javacard.framework.*;
+
+/**
+ * On-card transaction journal
+ *
+ * Compact ring of variable-length records kept in EEPROM. Counter and
+ * balance are not stored per record: each record carries only its counter
+ * delta, and the balance delta follows from the record type and amount.
+ * A base checkpoint (counter and balance before the oldest record) is
+ * advanced whenever the oldest records are overwritten, so absolute values
+ * can always be rebuilt by replaying the ring from the base. Records are
+ * not signed; a typical debit takes 2-3 bytes instead of 10. The ring size
+ * is chosen at install.
+ *
+ * Record encoding:
+ *   header(1)          type(b8-b7) | source(b6) | reference(b5) |
+ *                      explicit balance(b4) | counter delta(b3-b1, 7 = varint)
+ *   [counter delta]    varint, when the header field is 7
+ *   amount             varint
+ *   [source]           1 byte, when b6 is set
+ *   [reference]        varint, when b5 is set
+ *   [balance delta]    zigzag varint, when the delta is not implied by type
+ *
+ * Varints are unsigned LEB128 of 16-bit values (1-3 bytes).
+ */
+public class Journal {
+    
+    // Record types
+    public static final byte TYPE_DEBIT = (byte) 0x01;
+    public static final byte TYPE_CREDIT = (byte) 0x02;
+    public static final byte TYPE_CLIENT = (byte) 0x03;
+    
+    // Record sources
+    public static final byte SOURCE_CARD = (byte) 0x00; // clients use slot + 1
+    
+    // Header bits
+    private static final byte HEADER_SOURCE = (byte) 0x20;
+    private static final byte HEADER_REFERENCE = (byte) 0x10;
+    private static final byte HEADER_BALANCE = (byte) 0x08;
+    private static final byte HEADER_COUNTER_MASK = (byte) 0x07;
+    private static final byte COUNTER_DELTA_VARINT = (byte) 0x07;
+    
+    // Decoded record fields
+    public static final short FIELD_TYPE = 0;
+    public static final short FIELD_COUNTER_DELTA = 1;
+    public static final short FIELD_AMOUNT = 2;
+    public static final short FIELD_SOURCE = 3;
+    public static final short FIELD_REFERENCE = 4;
+    public static final short FIELD_BALANCE_DELTA = 5;
+    public static final short FIELD_LENGTH = 6;
+    private static final short FIELD_COUNT = 7;
+    
+    // Ring size limits in bytes; the default is the budget of 32 fixed 10-byte records
+    public static final short DEFAULT_CAPACITY = 320;
+    public static final short MIN_CAPACITY = 64;
+    public static final short MAX_CAPACITY = 4096;
+    private static final short MAX_RECORD_LENGTH = 14;
+    
+    // Persistent journal state
+    private byte[] ring;
+    private short capacity;
+    private short tail;          // ring offset of the oldest record
+    private short used;          // encoded bytes held
+    private short head;          // sequence number of the newest record
+    private short count;         // records held
+    private short baseCounter;   // counter before the oldest record
+    private short baseBalance;   // balance before the oldest record
+    private short lastCounter;   // counter after the newest record
+    private short lastBalance;   // balance after the newest record
+    
+    // Transient encode buffer and decoded record
+    private byte[] scratch;
+    private short[] fields;
+    
+    /**
+     * Constructor - allocates a ring of the given size in bytes
+     */
+    public Journal(short capacity) {
+        if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        this.capacity = capacity;
+        ring = new byte[capacity];
+        scratch = JCSystem.makeTransientByteArray(MAX_RECORD_LENGTH, JCSystem.CLEAR_ON_RESET);
+        fields = JCSystem.makeTransientShortArray(FIELD_COUNT, JCSystem.CLEAR_ON_RESET);
+    }
+    
+    /**
+     * Append a record for the wallet state after the operation and return
+     * its sequence number. The oldest records are folded into the base
+     * checkpoint when the ring is full.
+     */
+    public short append(byte type, short counter, short balance, short amount, byte source, short reference) {
+        // Encode into scratch
+        short counterDelta = (short) (counter - lastCounter);
+        short balanceDelta = (short) (balance - lastBalance);
+        boolean explicitBalance = balanceDelta != impliedBalanceDelta(type, amount);
+        
+        byte header = (byte) (type << 6);
+        if (source != SOURCE_CARD) {
+            header |= HEADER_SOURCE;
+        }
+        if (reference != 0) {
+            header |= HEADER_REFERENCE;
+        }
+        if (explicitBalance) {
+            header |= HEADER_BALANCE;
+        }
+        boolean shortDelta = counterDelta >= 0 && counterDelta < COUNTER_DELTA_VARINT;
+        header |= shortDelta ? (byte) counterDelta : COUNTER_DELTA_VARINT;
+        
+        scratch[0] = header;
+        short length = 1;
+        if (!shortDelta) {
+            length = writeVarint(counterDelta, length);
+        }
+        length = writeVarint(amount, length);
+        if (source != SOURCE_CARD) {
+            scratch[length++] = source;
+        }
+        if (reference != 0) {
+            length = writeVarint(reference, length);
+        }
+        if (explicitBalance) {
+            length = writeVarint((short) ((balanceDelta << 1) ^ (balanceDelta >> 15)), length);
+        }
+        
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        
+        // Fold the oldest records into the base until the new one fits
+        while ((short) (used + length) > capacity) {
+            short oldest = decode((short) 0);
+            baseCounter += fields[FIELD_COUNTER_DELTA];
+            baseBalance += fields[FIELD_BALANCE_DELTA];
+            tail = wrap((short) (tail + oldest));
+            used -= oldest;
+            count--;
+        }
+        
+        // Write, split across the end of the ring if needed
+        short position = wrap((short) (tail + used));
+        short first = (short) (capacity - position);
+        if (first >= length) {
+            Util.arrayCopy(scratch, (short) 0, ring, position, length);
+        } else {
+            Util.arrayCopy(scratch, (short) 0, ring, position, first);
+            Util.arrayCopy(scratch, first, ring, (short) 0, (short) (length - first));
+        }
+        used += length;
+        count++;
+        head++;
+        lastCounter = counter;
+        lastBalance = balance;
+        
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+        return head;
+    }
+    
+    /**
+     * Decode the record at a logical position (bytes from the oldest record)
+     * into the field array and return its encoded length
+     */
+    public short decode(short position) {
+        short start = position;
+        byte header = ring[wrap((short) (tail + position++))];
+        byte type = (byte) ((header >> 6) & 0x03);
+        fields[FIELD_TYPE] = type;
+        
+        short counterDelta = (short) (header & HEADER_COUNTER_MASK);
+        if (counterDelta == COUNTER_DELTA_VARINT) {
+            counterDelta = readVarint(position);
+            position = fields[FIELD_LENGTH];
+        }
+        fields[FIELD_COUNTER_DELTA] = counterDelta;
+        
+        short amount = readVarint(position);
+        position = fields[FIELD_LENGTH];
+        fields[FIELD_AMOUNT] = amount;
+        
+        fields[FIELD_SOURCE] = SOURCE_CARD;
+        if ((header & HEADER_SOURCE) != 0) {
+            fields[FIELD_SOURCE] = ring[wrap((short) (tail + position++))];
+        }
+        
+        short reference = 0;
+        if ((header & HEADER_REFERENCE) != 0) {
+            reference = readVarint(position);
+            position = fields[FIELD_LENGTH];
+        }
+        fields[FIELD_REFERENCE] = reference;
+        
+        short balanceDelta = impliedBalanceDelta(type, amount);
+        if ((header & HEADER_BALANCE) != 0) {
+            short zigzag = readVarint(position);
+            position = fields[FIELD_LENGTH];
+            balanceDelta = (short) (((zigzag >> 1) & 0x7FFF) ^ (short) -(zigzag & 1));
+        }
+        fields[FIELD_BALANCE_DELTA] = balanceDelta;
+        
+        fields[FIELD_LENGTH] = (short) (position - start);
+        return fields[FIELD_LENGTH];
+    }
+    
+    /**
+     * Field of the record last decoded
+     */
+    public short getField(short field) {
+        return fields[field];
+    }
+    
+    /**
+     * Copy encoded bytes starting at a logical position; returns the count copied
+     */
+    public short read(short position, byte[] output, short offset, short length) {
+        if (position < 0 || position >= used) {
+            return 0;
+        }
+        if (length > (short) (used - position)) {
+            length = (short) (used - position);
+        }
+        short start = wrap((short) (tail + position));
+        short first = (short) (capacity - start);
+        if (first >= length) {
+            Util.arrayCopyNonAtomic(ring, start, output, offset, length);
+        } else {
+            Util.arrayCopyNonAtomic(ring, start, output, offset, first);
+            Util.arrayCopyNonAtomic(ring, (short) 0, output, (short) (offset + first), (short) (length - first));
+        }
+        return length;
+    }
+    
+    /**
+     * Sequence number of the newest record
+     */
+    public short getHead() {
+        return head;
+    }
+    
+    /**
+     * Number of records held
+     */
+    public short getCount() {
+        return count;
+    }
+    
+    /**
+     * Ring size in bytes
+     */
+    public short getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Encoded bytes held
+     */
+    public short getUsed() {
+        return used;
+    }
+    
+    /**
+     * Counter before the oldest record held
+     */
+    public short getBaseCounter() {
+        return baseCounter;
+    }
+    
+    /**
+     * Balance before the oldest record held
+     */
+    public short getBaseBalance() {
+        return baseBalance;
+    }
+    
+    /**
+     * Balance change implied by a record type
+     */
+    private static short impliedBalanceDelta(byte type, short amount) {
+        if (type == TYPE_DEBIT) {
+            return (short) -amount;
+        }
+        if (type == TYPE_CREDIT) {
+            return amount;
+        }
+        return 0;
+    }
+    
+    /**
+     * Append an unsigned 16-bit varint to scratch; returns the new length
+     */
+    private short writeVarint(short value, short offset) {
+        while ((value & (short) 0xFF80) != 0) {
+            scratch[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value = (short) ((value >> 7) & 0x01FF);
+        }
+        scratch[offset++] = (byte) value;
+        return offset;
+    }
+    
+    /**
+     * Read an unsigned 16-bit varint at a logical position; the position
+     * after it is left in FIELD_LENGTH
+     */
+    private short readVarint(short position) {
+        short value = 0;
+        short shift = 0;
+        byte b;
+        do {
+            b = ring[wrap((short) (tail + position++))];
+            value |= (short) ((b & 0x7F) << shift);
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 21);
+        fields[FIELD_LENGTH] = position;
+        return value;
+    }
+    
+    /**
+     * Ring offset of a position that may run past the end
+     */
+    private short wrap(short offset) {
+        return offset >= capacity ? (short) (offset - capacity) : offset;
+    }
+}
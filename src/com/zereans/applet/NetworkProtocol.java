@@ -5,64 +5,208 @@ import javacard.security.*;
 
 /**
  * Secure Network Protocol for partner network communication
+ * 
+ * Every registered partner has its own 32-bit send counter and an
+ * IPsec-style 64-message sliding window for inbound sequence numbers, so
+ * duplicated and stale partner messages are rejected in constant time.
+ * 
+ * Version 2 frames carry a 16-bit data length and a fragment header
+ * (message ID, fragment index, fragment count). Messages larger than one
+ * APDU are sent as several fragments and reassembled in the message
+ * buffer; the sequence number is accepted once the last fragment arrives.
+ * 
+ * The handshake runs an ephemeral EC Diffie-Hellman exchange on P-256 with
+ * the partner and derives two AES-128 session keys per partner, one for
+ * each direction, so a frame reflected back to its sender fails its MAC.
+ * Each side signs the handshake transcript with its static P-256 key (the
+ * card key set with setSigningKey(), the partner key loaded at
+ * personalization): header, role, its own ephemeral point and, in the
+ * answer, the initiator's point too, so a man in the middle can neither
+ * substitute a point nor pass an old answer off as fresh. Either side may
+ * start: a handshake the card did not start is answered by the next
+ * createHandshakeMessage() for that partner. Transaction, response and
+ * error messages then carry a truncated AES-CMAC over the whole frame and
+ * are refused until the partner has session keys.
+ * 
+ * A batch message packs many small transaction, response and error
+ * messages behind one header, sequence number and MAC; each entry has a
+ * two-byte header (type, length). Received batches are validated once and
+ * then walked with nextBatchEntry().
+ * 
+ * Each partner slot also owns a preallocated P-256 public key for partner
+ * signatures. Keys are loaded once (at personalization) and looked up by
+ * partner ID through a direct index, so verification never allocates or
+ * rewrites key objects.
  */
 public class NetworkProtocol {
     
     // Protocol constants
-    private static final byte PROTOCOL_VERSION = (byte) 0x01;
-    private static final byte MAX_PARTNERS = (byte) 0x10;
+    private static final byte PROTOCOL_VERSION = (byte) 0x02;
+    private static final byte DEFAULT_PARTNERS = (byte) 0x10;
+    private static final byte MAX_PARTNERS = (byte) 0x40;
     private static final short MAX_MESSAGE_LENGTH = 512; // Increased for security
     private static final short SIGNATURE_LENGTH = 256;
     private static final short HASH_LENGTH = 32;
     
+    // Session keys and message MACs
+    private static final short EC_POINT_LENGTH = 65; // uncompressed P-256 point
+    private static final short SESSION_KEY_LENGTH = 16;
+    private static final short SESSION_KEYS_LENGTH = (short) (2 * SESSION_KEY_LENGTH); // send key | receive key
+    private static final short MAC_LENGTH = 8;       // truncated AES-CMAC
+    private static final short CRYPTO_SCRATCH_LENGTH = 64; // session keys | ECDH secret (32)
+    private static final short NO_PENDING_HANDSHAKE = -1;
+    private static final short MAX_HANDSHAKE_SIGNATURE_LENGTH = 72; // DER ECDSA P-256
+    private static final short MIN_HANDSHAKE_SIGNATURE_LENGTH = 8;
+    private static final byte[] KDF_LABEL_INITIATOR = { 'Z', 'N', 'P', 'I' }; // key of frames the initiator sends
+    private static final byte[] KDF_LABEL_RESPONDER = { 'Z', 'N', 'P', 'R' }; // key of frames the responder sends
+    private static final byte ROLE_INITIATOR = (byte) 0x01;
+    private static final byte ROLE_RESPONDER = (byte) 0x02;
+    
+    // Sequence numbers and replay window
+    private static final short SEQUENCE_LENGTH = 4;
+    private static final short WINDOW_LENGTH = 8; // 64-message bitmap
+    private static final short WINDOW_BITS = 64;
+    private static final short RECEIVE_STATE_LENGTH = (short) (SEQUENCE_LENGTH + WINDOW_LENGTH);
+    
     // Message types
-    private static final byte MSG_HANDSHAKE = (byte) 0x01;
-    private static final byte MSG_TRANSACTION = (byte) 0x02;
-    private static final byte MSG_RESPONSE = (byte) 0x03;
-    private static final byte MSG_ERROR = (byte) 0x04;
-    private static final byte MSG_AUTHENTICATION = (byte) 0x05;
+    public static final byte MSG_HANDSHAKE = (byte) 0x01;
+    public static final byte MSG_TRANSACTION = (byte) 0x02;
+    public static final byte MSG_RESPONSE = (byte) 0x03;
+    public static final byte MSG_ERROR = (byte) 0x04;
+    public static final byte MSG_AUTHENTICATION = (byte) 0x05;
+    public static final byte MSG_BATCH = (byte) 0x06;
+    
+    // nextBatchEntry() result for an entry longer than the room left in the output
+    public static final short ENTRY_TOO_LONG = -2;
     
     // Error codes
-    private static final byte ERR_INVALID_PARTNER = (byte) 0x01;
-    private static final byte ERR_INSUFFICIENT_FUNDS = (byte) 0x02;
-    private static final byte ERR_INVALID_SIGNATURE = (byte) 0x03;
-    private static final byte ERR_NETWORK_ERROR = (byte) 0x04;
-    private static final byte ERR_AUTHENTICATION_FAILED = (byte) 0x05;
+    public static final byte ERR_INVALID_PARTNER = (byte) 0x01;
+    public static final byte ERR_INSUFFICIENT_FUNDS = (byte) 0x02;
+    public static final byte ERR_INVALID_SIGNATURE = (byte) 0x03;
+    public static final byte ERR_NETWORK_ERROR = (byte) 0x04;
+    public static final byte ERR_AUTHENTICATION_FAILED = (byte) 0x05;
     
     // Message structure
     private static final short OFFSET_VERSION = 0;
     private static final short OFFSET_TYPE = 1;
     private static final short OFFSET_PARTNER_ID = 2;
-    private static final short OFFSET_SEQUENCE = 3;
-    private static final short OFFSET_DATA_LENGTH = 4;
-    private static final short OFFSET_DATA = 5;
-    private static final short OFFSET_SIGNATURE = 5; // Will be calculated dynamically
+    private static final short OFFSET_SEQUENCE = 3; // 32-bit big-endian
+    private static final short OFFSET_MESSAGE_ID = 7;
+    private static final short OFFSET_FRAGMENT_INDEX = 8;
+    private static final short OFFSET_FRAGMENT_COUNT = 9;
+    private static final short OFFSET_DATA_LENGTH = 10; // 16-bit big-endian
+    private static final short OFFSET_DATA = 12;
+    private static final short OFFSET_SIGNATURE = 12; // Will be calculated dynamically
+    private static final short MAX_DATA_LENGTH = (short) (MAX_MESSAGE_LENGTH - OFFSET_DATA);
+    
+    // Reassembly state, cleared on reset
+    private static final short REASSEMBLY_NEXT_INDEX = 0;
+    private static final short REASSEMBLY_COUNT = 1;
+    private static final short REASSEMBLY_LENGTH = 2;
+    private static final short REASSEMBLY_COMPLETE = 3;
+    private static final short REASSEMBLY_STATE_LENGTH = 4;
+    
+    // Batch entries: type(1) | length(1) | data
+    private static final short BATCH_ENTRY_HEADER_LENGTH = 2;
+    private static final short MAX_BATCH_ENTRY_LENGTH = 0xFF;
+    private static final short MAX_BATCH_ENTRIES = 0xFF;
+    private static final short BATCH_LENGTH = 0;     // data bytes of the batch being built
+    private static final short BATCH_CURSOR = 1;     // next entry of the received batch
+    private static final short BATCH_ENTRY_TYPE = 2; // type of the entry last read
+    private static final short BATCH_STATE_LENGTH = 3;
     
     // Secure buffers
     private byte[] messageBuffer;
     private byte[] partnerList;
-    private byte[] signatureBuffer;
+    private byte[] partnerSlots;   // partner ID -> slot + 1, 0 when not registered
     private byte[] hashBuffer;
-    private byte sequenceNumber;
     private boolean isInitialized;
     
+    // Per-partner sequence state, indexed by partner slot
+    private byte[] sendCounters;   // next outbound sequence - 1
+    private byte[] receiveState;   // highest inbound sequence | window bitmap
+    private byte[] windowScratch;  // transient image of one receive state
+    
+    // Outbound message ID and inbound reassembly progress
+    private byte nextMessageId;
+    private short[] reassemblyState;
+    private short[] batchState;
+    
+    // Per-partner send and receive session keys, indexed by partner slot
+    private byte[] sessionKeys;
+    private byte[] sessionKeyState; // non-zero once the handshake completed
+    private ECPublicKey[] partnerKeys; // partner signature keys, null without EC support
+    private short pendingHandshake; // slot awaiting the partner's public key
+    private short replyHandshake;   // slot owed an answer to its handshake
+    private byte[] initiatorPoint;  // ephemeral point of the handshake being answered
+    private ECPrivateKey signingKey; // card key signing handshakes
+    private byte[] cryptoScratch;
+    
+    // Crypto engines, created on first use
+    private KeyPair ecKeyPair;
+    private KeyAgreement keyAgreement;
+    private MessageDigest digest;
+    private Signature mac;
+    private AESKey macKey;
+    private Signature ecdsa;
+    
+    
     /**
-     * Secure constructor with proper initialization
+     * Secure constructor with the default partner table size
      */
     public NetworkProtocol() {
+        this(DEFAULT_PARTNERS);
+    }
+    
+    /**
+     * Secure constructor with a partner table sized by the deployment,
+     * typically from the applet's install parameters
+     */
+    public NetworkProtocol(byte partners) {
+        if (partners < 1 || partners > MAX_PARTNERS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
         messageBuffer = new byte[MAX_MESSAGE_LENGTH];
-        partnerList = new byte[MAX_PARTNERS];
-        signatureBuffer = new byte[SIGNATURE_LENGTH];
+        partnerList = new byte[partners];
+        partnerSlots = new byte[256];
         hashBuffer = new byte[HASH_LENGTH];
-        sequenceNumber = 0;
+        sendCounters = new byte[(short) (partners * SEQUENCE_LENGTH)];
+        receiveState = new byte[(short) (partners * RECEIVE_STATE_LENGTH)];
+        windowScratch = JCSystem.makeTransientByteArray(RECEIVE_STATE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        reassemblyState = JCSystem.makeTransientShortArray(REASSEMBLY_STATE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        batchState = JCSystem.makeTransientShortArray(BATCH_STATE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        nextMessageId = 0;
+        sessionKeys = new byte[(short) (partners * SESSION_KEYS_LENGTH)];
+        sessionKeyState = new byte[partners];
+        partnerKeys = new ECPublicKey[partners];
+        try {
+            for (short i = 0; i < partners; i++) {
+                partnerKeys[i] = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, KeyBuilder.LENGTH_EC_FP_256, false);
+                Secp256r1.setParameters(partnerKeys[i]);
+            }
+        } catch (CryptoException e) {
+            partnerKeys = null;
+        }
+        pendingHandshake = NO_PENDING_HANDSHAKE;
+        replyHandshake = NO_PENDING_HANDSHAKE;
+        initiatorPoint = new byte[EC_POINT_LENGTH];
+        cryptoScratch = JCSystem.makeTransientByteArray(CRYPTO_SCRATCH_LENGTH, JCSystem.CLEAR_ON_RESET);
         isInitialized = true;
     }
     
     /**
-     * Create secure handshake message with authentication
+     * Create handshake message carrying an ephemeral EC public key signed
+     * with the card key. When the partner started the handshake, this is
+     * the answer and uses the key pair its handshake was agreed with;
+     * otherwise a fresh key pair is generated and parsing the partner's
+     * answer derives the session keys. The signature covers the header,
+     * the role and the point, and an answer also the initiator's point.
+     * Only one handshake runs at a time: starting one drops an answer still
+     * owed to another partner.
      */
     public short createHandshakeMessage(byte partnerId, byte[] output, short offset) {
-        if (!isInitialized) {
+        short slot = findPartnerSlot(partnerId);
+        if (!isInitialized || slot < 0 || signingKey == null) {
             return 0;
         }
         
@@ -71,17 +215,41 @@ public class NetworkProtocol {
             Util.arrayFillNonAtomic(messageBuffer, (short) 0, (short) messageBuffer.length, (byte) 0x00);
             
             // Build handshake message
-            messageBuffer[OFFSET_VERSION] = PROTOCOL_VERSION;
-            messageBuffer[OFFSET_TYPE] = MSG_HANDSHAKE;
-            messageBuffer[OFFSET_PARTNER_ID] = partnerId;
-            messageBuffer[OFFSET_SEQUENCE] = sequenceNumber++;
-            messageBuffer[OFFSET_DATA_LENGTH] = 0;
+            if (!writeHeader(MSG_HANDSHAKE, partnerId, EC_POINT_LENGTH)) {
+                return 0;
+            }
+            
+            // Answer with the agreed key pair, or start with a new one
+            KeyPair pair = getEcKeyPair();
+            boolean answer = replyHandshake == slot;
+            if (!answer) {
+                pair.genKeyPair();
+            }
+            ((ECPublicKey) pair.getPublic()).getW(messageBuffer, OFFSET_DATA);
             
-            short messageLength = (short) (OFFSET_DATA + messageBuffer[OFFSET_DATA_LENGTH]);
-            Util.arrayCopy(messageBuffer, (short) 0, output, offset, messageLength);
+            // Transcript: version, type, partner, sequence, role, the point
+            // and, in an answer, the initiator's point
+            short roleOffset = (short) (OFFSET_DATA + EC_POINT_LENGTH);
+            short signatureOffset = (short) (roleOffset + 1);
+            messageBuffer[roleOffset] = answer ? ROLE_RESPONDER : ROLE_INITIATOR;
+            Signature signer = getEcdsa();
+            signer.init(signingKey, Signature.MODE_SIGN);
+            signer.update(messageBuffer, (short) 0, OFFSET_MESSAGE_ID);
+            signer.update(messageBuffer, roleOffset, (short) 1);
+            short signatureLength;
+            if (answer) {
+                signer.update(messageBuffer, OFFSET_DATA, EC_POINT_LENGTH);
+                signatureLength = signer.sign(initiatorPoint, (short) 0, EC_POINT_LENGTH, messageBuffer, signatureOffset);
+            } else {
+                signatureLength = signer.sign(messageBuffer, OFFSET_DATA, EC_POINT_LENGTH, messageBuffer, signatureOffset);
+            }
+            Util.setShort(messageBuffer, OFFSET_DATA_LENGTH, (short) (EC_POINT_LENGTH + 1 + signatureLength));
             
-            return messageLength;
-        } catch (Exception e) {
+            replyHandshake = NO_PENDING_HANDSHAKE;
+            pendingHandshake = answer ? NO_PENDING_HANDSHAKE : slot;
+            return finishMessage(output, offset);
+        } catch (CryptoException e) {
+            pendingHandshake = NO_PENDING_HANDSHAKE;
             return 0;
         }
     }
@@ -91,22 +259,17 @@ public class NetworkProtocol {
      */
     public short createTransactionMessage(byte partnerId, byte[] transactionData, 
                                         short dataLength, byte[] output, short offset) {
-        if (dataLength > (MAX_MESSAGE_LENGTH - OFFSET_DATA)) {
+        if (dataLength < 0 || dataLength > (short) (MAX_DATA_LENGTH - MAC_LENGTH)) {
             return 0;
         }
         
-        messageBuffer[OFFSET_VERSION] = PROTOCOL_VERSION;
-        messageBuffer[OFFSET_TYPE] = MSG_TRANSACTION;
-        messageBuffer[OFFSET_PARTNER_ID] = partnerId;
-        messageBuffer[OFFSET_SEQUENCE] = sequenceNumber++;
-        messageBuffer[OFFSET_DATA_LENGTH] = (byte) dataLength;
+        if (!writeHeader(MSG_TRANSACTION, partnerId, dataLength)) {
+            return 0;
+        }
         
         Util.arrayCopy(transactionData, (short) 0, messageBuffer, OFFSET_DATA, dataLength);
         
-        short messageLength = (short) (OFFSET_DATA + dataLength);
-        Util.arrayCopy(messageBuffer, (short) 0, output, offset, messageLength);
-        
-        return messageLength;
+        return finishMessage(output, offset);
     }
     
     /**
@@ -115,24 +278,19 @@ public class NetworkProtocol {
     public short createResponseMessage(byte partnerId, byte responseCode, 
                                      byte[] responseData, short dataLength,
                                      byte[] output, short offset) {
-        if (dataLength > (MAX_MESSAGE_LENGTH - OFFSET_DATA)) {
+        if (dataLength < 0 || dataLength >= (short) (MAX_DATA_LENGTH - MAC_LENGTH)) {
             return 0;
         }
         
-        messageBuffer[OFFSET_VERSION] = PROTOCOL_VERSION;
-        messageBuffer[OFFSET_TYPE] = MSG_RESPONSE;
-        messageBuffer[OFFSET_PARTNER_ID] = partnerId;
-        messageBuffer[OFFSET_SEQUENCE] = sequenceNumber++;
-        messageBuffer[OFFSET_DATA_LENGTH] = (byte) (dataLength + 1);
+        if (!writeHeader(MSG_RESPONSE, partnerId, (short) (dataLength + 1))) {
+            return 0;
+        }
         
         messageBuffer[OFFSET_DATA] = responseCode;
         Util.arrayCopy(responseData, (short) 0, messageBuffer, 
                       (short) (OFFSET_DATA + 1), dataLength);
         
-        short messageLength = (short) (OFFSET_DATA + dataLength + 1);
-        Util.arrayCopy(messageBuffer, (short) 0, output, offset, messageLength);
-        
-        return messageLength;
+        return finishMessage(output, offset);
     }
     
     /**
@@ -140,38 +298,244 @@ public class NetworkProtocol {
      */
     public short createErrorMessage(byte partnerId, byte errorCode, 
                                   byte[] output, short offset) {
-        messageBuffer[OFFSET_VERSION] = PROTOCOL_VERSION;
-        messageBuffer[OFFSET_TYPE] = MSG_ERROR;
-        messageBuffer[OFFSET_PARTNER_ID] = partnerId;
-        messageBuffer[OFFSET_SEQUENCE] = sequenceNumber++;
-        messageBuffer[OFFSET_DATA_LENGTH] = 1;
+        if (!writeHeader(MSG_ERROR, partnerId, (short) 1)) {
+            return 0;
+        }
         messageBuffer[OFFSET_DATA] = errorCode;
         
-        short messageLength = (short) (OFFSET_DATA + 1);
-        Util.arrayCopy(messageBuffer, (short) 0, output, offset, messageLength);
-        
-        return messageLength;
+        return finishMessage(output, offset);
     }
     
     /**
-     * Parse incoming message
+     * Parse one incoming frame.
+     * Fragments are appended to the reassembly buffer in order; the message
+     * is available through the getters once isMessageComplete() is true.
+     * Rejects unknown partners, malformed fragments and duplicate or stale
+     * sequence numbers.
      */
     public boolean parseMessage(byte[] data, short offset, short length) {
-        if (length < OFFSET_DATA) {
+        if (length < OFFSET_DATA || length > MAX_MESSAGE_LENGTH) {
             return false;
         }
         
-        // Check protocol version
-        if (data[offset + OFFSET_VERSION] != PROTOCOL_VERSION) {
+        // Check protocol version and frame length
+        if (data[(short) (offset + OFFSET_VERSION)] != PROTOCOL_VERSION) {
+            return false;
+        }
+        short fragmentLength = Util.getShort(data, (short) (offset + OFFSET_DATA_LENGTH));
+        if (fragmentLength != (short) (length - OFFSET_DATA)) {
             return false;
         }
         
-        // Copy data to buffer
-        Util.arrayCopy(data, offset, messageBuffer, (short) 0, length);
+        // Check sender
+        short slot = findPartnerSlot(data[(short) (offset + OFFSET_PARTNER_ID)]);
+        if (slot < 0) {
+            return false;
+        }
         
+        short index = (short) (data[(short) (offset + OFFSET_FRAGMENT_INDEX)] & 0xFF);
+        short count = (short) (data[(short) (offset + OFFSET_FRAGMENT_COUNT)] & 0xFF);
+        if (count == 0 || index >= count) {
+            abortReassembly();
+            return false;
+        }
+        
+        short received;
+        if (index == 0) {
+            // First fragment starts a new message and drops any partial one
+            Util.arrayCopy(data, offset, messageBuffer, (short) 0, length);
+            reassemblyState[REASSEMBLY_COUNT] = count;
+            received = fragmentLength;
+        } else {
+            // Later fragments must continue the message in progress
+            if (reassemblyState[REASSEMBLY_COMPLETE] != 0
+                    || index != reassemblyState[REASSEMBLY_NEXT_INDEX]
+                    || count != reassemblyState[REASSEMBLY_COUNT]
+                    || Util.arrayCompare(data, (short) (offset + OFFSET_PARTNER_ID), messageBuffer,
+                                         OFFSET_PARTNER_ID, (short) (OFFSET_FRAGMENT_INDEX - OFFSET_PARTNER_ID)) != 0
+                    || data[(short) (offset + OFFSET_TYPE)] != messageBuffer[OFFSET_TYPE]) {
+                abortReassembly();
+                return false;
+            }
+            received = reassemblyState[REASSEMBLY_LENGTH];
+            if (fragmentLength > (short) (MAX_DATA_LENGTH - received)) {
+                abortReassembly();
+                return false;
+            }
+            Util.arrayCopy(data, (short) (offset + OFFSET_DATA), messageBuffer,
+                          (short) (OFFSET_DATA + received), fragmentLength);
+            received += fragmentLength;
+        }
+        reassemblyState[REASSEMBLY_NEXT_INDEX] = (short) (index + 1);
+        reassemblyState[REASSEMBLY_LENGTH] = received;
+        reassemblyState[REASSEMBLY_COMPLETE] = 0;
+        
+        if (index != (short) (count - 1)) {
+            return true;
+        }
+        
+        // Last fragment: authenticate and check the replay window; the
+        // sequence number is spent only when the whole message is accepted
+        Util.setShort(messageBuffer, OFFSET_DATA_LENGTH, received);
+        messageBuffer[OFFSET_FRAGMENT_INDEX] = 0;
+        messageBuffer[OFFSET_FRAGMENT_COUNT] = 1;
+        byte type = messageBuffer[OFFSET_TYPE];
+        if ((isMacType(type) && !verifyMac(slot, received))
+                || (type == MSG_BATCH && !validateBatch(received))
+                || !checkSequence(slot, messageBuffer, OFFSET_SEQUENCE)
+                || (type == MSG_HANDSHAKE && !agreeHandshake(slot, received))) {
+            Util.arrayFillNonAtomic(cryptoScratch, (short) 0, CRYPTO_SCRATCH_LENGTH, (byte) 0x00);
+            abortReassembly();
+            return false;
+        }
+        acceptMessage(slot, type);
+        reassemblyState[REASSEMBLY_COMPLETE] = 1;
+        batchState[BATCH_CURSOR] = (short) (OFFSET_DATA + 1);
         return true;
     }
     
+    /**
+     * Start building a batch message for a partner in the message buffer
+     */
+    public boolean beginBatch(byte partnerId) {
+        short slot = findPartnerSlot(partnerId);
+        if (slot < 0 || sessionKeyState[slot] == 0) {
+            return false;
+        }
+        
+        abortReassembly();
+        messageBuffer[OFFSET_TYPE] = MSG_BATCH;
+        messageBuffer[OFFSET_PARTNER_ID] = partnerId;
+        messageBuffer[OFFSET_DATA] = 0; // entry count
+        batchState[BATCH_LENGTH] = 1;
+        return true;
+    }
+    
+    /**
+     * Append one transaction, response or error entry to the batch being built
+     */
+    public boolean addBatchEntry(byte type, byte[] data, short offset, short length) {
+        short batchLength = batchState[BATCH_LENGTH];
+        if (batchLength == 0 || !isBatchEntryType(type) || length < 0 || length > MAX_BATCH_ENTRY_LENGTH
+                || (short) (messageBuffer[OFFSET_DATA] & 0xFF) >= MAX_BATCH_ENTRIES
+                || (short) (batchLength + BATCH_ENTRY_HEADER_LENGTH + length) > (short) (MAX_DATA_LENGTH - MAC_LENGTH)) {
+            return false;
+        }
+        
+        short entry = (short) (OFFSET_DATA + batchLength);
+        messageBuffer[entry] = type;
+        messageBuffer[(short) (entry + 1)] = (byte) length;
+        Util.arrayCopyNonAtomic(data, offset, messageBuffer, (short) (entry + BATCH_ENTRY_HEADER_LENGTH), length);
+        messageBuffer[OFFSET_DATA]++;
+        batchState[BATCH_LENGTH] = (short) (batchLength + BATCH_ENTRY_HEADER_LENGTH + length);
+        return true;
+    }
+    
+    /**
+     * Close the batch being built: one header, sequence number and MAC for
+     * all entries. Returns the message length, or 0.
+     */
+    public short createBatchMessage(byte[] output, short offset) {
+        short batchLength = batchState[BATCH_LENGTH];
+        batchState[BATCH_LENGTH] = 0;
+        if (batchLength == 0 || !writeHeader(MSG_BATCH, messageBuffer[OFFSET_PARTNER_ID], batchLength)) {
+            return 0;
+        }
+        return finishMessage(output, offset);
+    }
+    
+    /**
+     * Number of entries in the received batch message
+     */
+    public short getBatchEntryCount() {
+        if (!isMessageComplete() || messageBuffer[OFFSET_TYPE] != MSG_BATCH) {
+            return 0;
+        }
+        return (short) (messageBuffer[OFFSET_DATA] & 0xFF);
+    }
+    
+    /**
+     * Copy the data of the next entry of the received batch.
+     * Returns its length, -1 after the last entry, or ENTRY_TOO_LONG without
+     * copying or moving on when the entry does not fit behind offset; the
+     * entry type is available from getBatchEntryType().
+     */
+    public short nextBatchEntry(byte[] output, short offset) {
+        if (!isMessageComplete() || messageBuffer[OFFSET_TYPE] != MSG_BATCH) {
+            return -1;
+        }
+        
+        short entry = batchState[BATCH_CURSOR];
+        short end = (short) (OFFSET_DATA + Util.getShort(messageBuffer, OFFSET_DATA_LENGTH) - MAC_LENGTH);
+        if (entry >= end) {
+            return -1;
+        }
+        
+        short length = (short) (messageBuffer[(short) (entry + 1)] & 0xFF);
+        if (length > (short) (output.length - offset)) {
+            return ENTRY_TOO_LONG;
+        }
+        Util.arrayCopyNonAtomic(messageBuffer, (short) (entry + BATCH_ENTRY_HEADER_LENGTH), output, offset, length);
+        batchState[BATCH_ENTRY_TYPE] = messageBuffer[entry];
+        batchState[BATCH_CURSOR] = (short) (entry + BATCH_ENTRY_HEADER_LENGTH + length);
+        return length;
+    }
+    
+    /**
+     * Type of the batch entry last returned by nextBatchEntry()
+     */
+    public byte getBatchEntryType() {
+        return (byte) batchState[BATCH_ENTRY_TYPE];
+    }
+    
+    /**
+     * Check whether the last parsed frame completed a message
+     */
+    public boolean isMessageComplete() {
+        return reassemblyState[REASSEMBLY_COMPLETE] != 0;
+    }
+    
+    /**
+     * Number of frames needed to send the last created message with at most
+     * fragmentLength data bytes per frame
+     */
+    public short getFragmentCount(short fragmentLength) {
+        if (fragmentLength <= 0) {
+            return 0;
+        }
+        short dataLength = Util.getShort(messageBuffer, OFFSET_DATA_LENGTH);
+        if (dataLength == 0) {
+            return 1;
+        }
+        return (short) ((short) (dataLength + fragmentLength - 1) / fragmentLength);
+    }
+    
+    /**
+     * Write fragment index of the last created message as a frame with at
+     * most fragmentLength data bytes. Returns the frame length, or 0.
+     */
+    public short createFragment(short index, short fragmentLength, byte[] output, short offset) {
+        short count = getFragmentCount(fragmentLength);
+        if (index < 0 || index >= count || count > 0xFF) {
+            return 0;
+        }
+        
+        short dataLength = Util.getShort(messageBuffer, OFFSET_DATA_LENGTH);
+        short start = (short) (index * fragmentLength);
+        short length = (short) (dataLength - start);
+        if (length > fragmentLength) {
+            length = fragmentLength;
+        }
+        
+        Util.arrayCopyNonAtomic(messageBuffer, (short) 0, output, offset, OFFSET_FRAGMENT_INDEX);
+        output[(short) (offset + OFFSET_FRAGMENT_INDEX)] = (byte) index;
+        output[(short) (offset + OFFSET_FRAGMENT_COUNT)] = (byte) count;
+        Util.setShort(output, (short) (offset + OFFSET_DATA_LENGTH), length);
+        Util.arrayCopyNonAtomic(messageBuffer, (short) (OFFSET_DATA + start), output,
+                               (short) (offset + OFFSET_DATA), length);
+        return (short) (OFFSET_DATA + length);
+    }
+    
     /**
      * Get message type
      */
@@ -187,28 +551,37 @@ public class NetworkProtocol {
     }
     
     /**
-     * Get sequence number
+     * Get 32-bit sequence number of the parsed message
      */
-    public byte getSequenceNumber() {
-        return messageBuffer[OFFSET_SEQUENCE];
+    public short getSequenceNumber(byte[] output, short offset) {
+        Util.arrayCopyNonAtomic(messageBuffer, OFFSET_SEQUENCE, output, offset, SEQUENCE_LENGTH);
+        return SEQUENCE_LENGTH;
     }
     
     /**
      * Get message data
      */
     public short getMessageData(byte[] output, short offset) {
-        short dataLength = messageBuffer[OFFSET_DATA_LENGTH];
+        short dataLength = Util.getShort(messageBuffer, OFFSET_DATA_LENGTH);
+        if (isMacType(messageBuffer[OFFSET_TYPE])) {
+            dataLength -= MAC_LENGTH;
+        }
         Util.arrayCopy(messageBuffer, OFFSET_DATA, output, offset, dataLength);
         return dataLength;
     }
     
     /**
-     * Add partner to list
+     * Add partner to list with fresh sequence state
      */
     public boolean addPartner(byte partnerId) {
-        for (byte i = 0; i < MAX_PARTNERS; i++) {
+        if (partnerId == 0 || findPartnerSlot(partnerId) >= 0) {
+            return false;
+        }
+        for (byte i = 0; i < (short) partnerList.length; i++) {
             if (partnerList[i] == 0) {
+                clearSequenceState(i);
                 partnerList[i] = partnerId;
+                partnerSlots[(short) (partnerId & 0xFF)] = (byte) (i + 1);
                 return true;
             }
         }
@@ -219,12 +592,7 @@ public class NetworkProtocol {
      * Check partner existence
      */
     public boolean isPartnerValid(byte partnerId) {
-        for (byte i = 0; i < MAX_PARTNERS; i++) {
-            if (partnerList[i] == partnerId) {
-                return true;
-            }
-        }
-        return false;
+        return findPartnerSlot(partnerId) >= 0;
     }
     
     /**
@@ -235,13 +603,14 @@ public class NetworkProtocol {
             return false;
         }
         
-        for (byte i = 0; i < MAX_PARTNERS; i++) {
-            if (partnerList[i] == partnerId) {
-                partnerList[i] = 0;
-                return true;
-            }
+        short slot = findPartnerSlot(partnerId);
+        if (slot < 0) {
+            return false;
         }
-        return false;
+        partnerList[slot] = 0;
+        partnerSlots[(short) (partnerId & 0xFF)] = 0;
+        clearSequenceState(slot);
+        return true;
     }
     
     /**
@@ -249,7 +618,7 @@ public class NetworkProtocol {
      */
     public short createAuthenticationMessage(byte partnerId, byte[] authData, short dataLength,
                                          byte[] output, short offset) {
-        if (!isInitialized || dataLength > (MAX_MESSAGE_LENGTH - OFFSET_DATA - SIGNATURE_LENGTH)) {
+        if (!isInitialized || dataLength < 0 || dataLength > (short) (MAX_DATA_LENGTH - SIGNATURE_LENGTH)) {
             return 0;
         }
         
@@ -258,19 +627,14 @@ public class NetworkProtocol {
             Util.arrayFillNonAtomic(messageBuffer, (short) 0, (short) messageBuffer.length, (byte) 0x00);
             
             // Build authentication message
-            messageBuffer[OFFSET_VERSION] = PROTOCOL_VERSION;
-            messageBuffer[OFFSET_TYPE] = MSG_AUTHENTICATION;
-            messageBuffer[OFFSET_PARTNER_ID] = partnerId;
-            messageBuffer[OFFSET_SEQUENCE] = sequenceNumber++;
-            messageBuffer[OFFSET_DATA_LENGTH] = (byte) dataLength;
+            if (!writeHeader(MSG_AUTHENTICATION, partnerId, dataLength)) {
+                return 0;
+            }
             
             // Copy authentication data
             Util.arrayCopy(authData, (short) 0, messageBuffer, OFFSET_DATA, dataLength);
             
-            short messageLength = (short) (OFFSET_DATA + dataLength);
-            Util.arrayCopy(messageBuffer, (short) 0, output, offset, messageLength);
-            
-            return messageLength;
+            return finishMessage(output, offset);
         } catch (Exception e) {
             return 0;
         }
@@ -286,20 +650,24 @@ public class NetworkProtocol {
         
         try {
             // Check protocol version
-            if (message[offset + OFFSET_VERSION] != PROTOCOL_VERSION) {
+            if (message[(short) (offset + OFFSET_VERSION)] != PROTOCOL_VERSION) {
                 return false;
             }
             
             // Check message type validity
-            byte msgType = message[offset + OFFSET_TYPE];
-            if (msgType < MSG_HANDSHAKE || msgType > MSG_AUTHENTICATION) {
+            byte msgType = message[(short) (offset + OFFSET_TYPE)];
+            if (msgType < MSG_HANDSHAKE || msgType > MSG_BATCH) {
                 return false;
             }
             
-            // Check data length consistency
-            byte dataLength = message[offset + OFFSET_DATA_LENGTH];
-            short expectedLength = (short) (OFFSET_DATA + dataLength);
-            if (length != expectedLength) {
+            // Check data length and fragment header consistency
+            short dataLength = Util.getShort(message, (short) (offset + OFFSET_DATA_LENGTH));
+            if (dataLength < 0 || dataLength > MAX_DATA_LENGTH || length != (short) (OFFSET_DATA + dataLength)) {
+                return false;
+            }
+            short index = (short) (message[(short) (offset + OFFSET_FRAGMENT_INDEX)] & 0xFF);
+            short count = (short) (message[(short) (offset + OFFSET_FRAGMENT_COUNT)] & 0xFF);
+            if (index >= count) {
                 return false;
             }
             
@@ -310,21 +678,76 @@ public class NetworkProtocol {
     }
     
     /**
-     * Get message signature
+     * Get the truncated CMAC of the current message, or 0 if it carries none
      */
     public short getMessageSignature(byte[] output, short offset) {
-        if (!isInitialized) {
+        if (!isInitialized || !isMacType(messageBuffer[OFFSET_TYPE])) {
             return 0;
         }
         
         try {
-            Util.arrayCopy(signatureBuffer, (short) 0, output, offset, SIGNATURE_LENGTH);
-            return SIGNATURE_LENGTH;
+            short macOffset = (short) (OFFSET_DATA + Util.getShort(messageBuffer, OFFSET_DATA_LENGTH) - MAC_LENGTH);
+            Util.arrayCopy(messageBuffer, macOffset, output, offset, MAC_LENGTH);
+            return MAC_LENGTH;
         } catch (Exception e) {
             return 0;
         }
     }
     
+    /**
+     * Check whether a session key has been agreed with the partner
+     */
+    public boolean hasSessionKey(byte partnerId) {
+        short slot = findPartnerSlot(partnerId);
+        return slot >= 0 && sessionKeyState[slot] != 0;
+    }
+    
+    /**
+     * Load the signature public key of a registered partner (P-256 point,
+     * compressed or uncompressed). Meant to run once, at personalization.
+     */
+    public boolean setPartnerKey(byte partnerId, byte[] buffer, short offset, short length) {
+        short slot = findPartnerSlot(partnerId);
+        if (slot < 0 || partnerKeys == null) {
+            return false;
+        }
+        partnerKeys[slot].setW(buffer, offset, length);
+        return true;
+    }
+    
+    /**
+     * Set the card's static P-256 key that signs handshake messages
+     */
+    public void setSigningKey(ECPrivateKey key) {
+        signingKey = key;
+    }
+    
+    /**
+     * Check whether the card owes the partner an answer to its handshake
+     */
+    public boolean isHandshakeReplyPending(byte partnerId) {
+        short slot = findPartnerSlot(partnerId);
+        return slot >= 0 && replyHandshake == slot;
+    }
+    
+    /**
+     * Signature public key of a partner, or null when none was loaded
+     */
+    public ECPublicKey getPartnerKey(byte partnerId) {
+        short slot = findPartnerSlot(partnerId);
+        if (slot < 0 || partnerKeys == null || !partnerKeys[slot].isInitialized()) {
+            return null;
+        }
+        return partnerKeys[slot];
+    }
+    
+    /**
+     * Number of partner slots
+     */
+    public byte getPartnerCapacity() {
+        return (byte) partnerList.length;
+    }
+    
     /**
      * Clear all sensitive data
      */
@@ -334,8 +757,417 @@ public class NetworkProtocol {
         }
         
         Util.arrayFillNonAtomic(messageBuffer, (short) 0, (short) messageBuffer.length, (byte) 0x00);
-        Util.arrayFillNonAtomic(signatureBuffer, (short) 0, (short) signatureBuffer.length, (byte) 0x00);
         Util.arrayFillNonAtomic(hashBuffer, (short) 0, (short) hashBuffer.length, (byte) 0x00);
+        Util.arrayFillNonAtomic(cryptoScratch, (short) 0, CRYPTO_SCRATCH_LENGTH, (byte) 0x00);
+        abortReassembly();
+    }
+    
+    /**
+     * Write the header of a single-frame message with the next sequence
+     * number and message ID into the message buffer. The length includes
+     * room for the MAC of authenticated types. Fails for unknown partners,
+     * for authenticated types without a session key and when the 32-bit
+     * counter is spent.
+     */
+    private boolean writeHeader(byte type, byte partnerId, short dataLength) {
+        short slot = findPartnerSlot(partnerId);
+        if (slot < 0) {
+            return false;
+        }
+        if (isMacType(type)) {
+            if (sessionKeyState[slot] == 0) {
+                return false;
+            }
+            dataLength += MAC_LENGTH;
+        }
+        
+        // Increment the big-endian send counter; refuse to wrap to zero
+        short counterOffset = (short) (slot * SEQUENCE_LENGTH);
+        Util.arrayCopyNonAtomic(sendCounters, counterOffset, windowScratch, (short) 0, SEQUENCE_LENGTH);
+        short i = (short) (SEQUENCE_LENGTH - 1);
+        while (i >= 0 && ++windowScratch[i] == 0) {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        Util.arrayCopy(windowScratch, (short) 0, sendCounters, counterOffset, SEQUENCE_LENGTH);
+        
+        messageBuffer[OFFSET_VERSION] = PROTOCOL_VERSION;
+        messageBuffer[OFFSET_TYPE] = type;
+        messageBuffer[OFFSET_PARTNER_ID] = partnerId;
+        Util.arrayCopyNonAtomic(windowScratch, (short) 0, messageBuffer, OFFSET_SEQUENCE, SEQUENCE_LENGTH);
+        messageBuffer[OFFSET_MESSAGE_ID] = nextMessageId++;
+        messageBuffer[OFFSET_FRAGMENT_INDEX] = 0;
+        messageBuffer[OFFSET_FRAGMENT_COUNT] = 1;
+        Util.setShort(messageBuffer, OFFSET_DATA_LENGTH, dataLength);
+        return true;
+    }
+    
+    /**
+     * Append the MAC to an authenticated message and copy the frame out
+     */
+    private short finishMessage(byte[] output, short offset) {
+        short messageLength = (short) (OFFSET_DATA + Util.getShort(messageBuffer, OFFSET_DATA_LENGTH));
+        if (isMacType(messageBuffer[OFFSET_TYPE])) {
+            short macOffset = (short) (messageLength - MAC_LENGTH);
+            computeMac(findPartnerSlot(messageBuffer[OFFSET_PARTNER_ID]), macOffset, false);
+            Util.arrayCopyNonAtomic(cryptoScratch, (short) 0, messageBuffer, macOffset, MAC_LENGTH);
+        }
+        Util.arrayCopy(messageBuffer, (short) 0, output, offset, messageLength);
+        return messageLength;
+    }
+    
+    /**
+     * Message types that carry a session MAC
+     */
+    private static boolean isMacType(byte type) {
+        return isBatchEntryType(type) || type == MSG_BATCH;
+    }
+    
+    /**
+     * Message types that may be packed into a batch
+     */
+    private static boolean isBatchEntryType(byte type) {
+        return type == MSG_TRANSACTION || type == MSG_RESPONSE || type == MSG_ERROR;
+    }
+    
+    /**
+     * Walk a received batch once: entry types must be valid and the entries
+     * must fill the data exactly, up to the MAC
+     */
+    private boolean validateBatch(short dataLength) {
+        short end = (short) (OFFSET_DATA + dataLength - MAC_LENGTH);
+        short entry = (short) (OFFSET_DATA + 1);
+        short count = 0;
+        while (entry < end) {
+            if ((short) (end - entry) < BATCH_ENTRY_HEADER_LENGTH || !isBatchEntryType(messageBuffer[entry])) {
+                return false;
+            }
+            entry += (short) (BATCH_ENTRY_HEADER_LENGTH + (messageBuffer[(short) (entry + 1)] & 0xFF));
+            count++;
+        }
+        return entry == end && count == (short) (messageBuffer[OFFSET_DATA] & 0xFF);
+    }
+    
+    /**
+     * AES-CMAC of the first length bytes of the message buffer into
+     * cryptoScratch, under the partner's receive or send key
+     */
+    private void computeMac(short slot, short length, boolean receive) {
+        AESKey key = getMacKey();
+        short keyOffset = (short) (slot * SESSION_KEYS_LENGTH);
+        key.setKey(sessionKeys, receive ? (short) (keyOffset + SESSION_KEY_LENGTH) : keyOffset);
+        Signature engine = getMac();
+        engine.init(key, Signature.MODE_SIGN);
+        engine.sign(messageBuffer, (short) 0, length, cryptoScratch, (short) 0);
+    }
+    
+    /**
+     * Check the truncated MAC of a reassembled message with dataLength data bytes
+     */
+    private boolean verifyMac(short slot, short dataLength) {
+        if (sessionKeyState[slot] == 0 || dataLength < MAC_LENGTH) {
+            return false;
+        }
+        short macOffset = (short) (OFFSET_DATA + dataLength - MAC_LENGTH);
+        try {
+            computeMac(slot, macOffset, true);
+        } catch (CryptoException e) {
+            return false;
+        }
+        
+        // Compare every byte, so the time taken does not reveal the first mismatch
+        byte difference = 0;
+        for (short i = 0; i < MAC_LENGTH; i++) {
+            difference |= (byte) (cryptoScratch[i] ^ messageBuffer[(short) (macOffset + i)]);
+        }
+        return difference == 0;
+    }
+    
+    /**
+     * Check the partner's signature on its handshake transcript and derive
+     * the session keys from its public key into cryptoScratch, send key
+     * first: key = SHA-256(ECDH secret | partner ID | label), first 16
+     * bytes, with one label per direction. An answer to the card's handshake
+     * must be signed by the responder over both points; a handshake the card
+     * did not start, by the initiator, gets a fresh key pair, answered by
+     * the next createHandshakeMessage(), and drops a handshake the card
+     * started with another partner.
+     */
+    private boolean agreeHandshake(short slot, short dataLength) {
+        short signatureLength = (short) (dataLength - EC_POINT_LENGTH - 1);
+        if (partnerKeys == null || !partnerKeys[slot].isInitialized() || signingKey == null
+                || signatureLength < MIN_HANDSHAKE_SIGNATURE_LENGTH
+                || signatureLength > MAX_HANDSHAKE_SIGNATURE_LENGTH) {
+            return false;
+        }
+        
+        boolean initiator = pendingHandshake == slot;
+        short roleOffset = (short) (OFFSET_DATA + EC_POINT_LENGTH);
+        if (messageBuffer[roleOffset] != (initiator ? ROLE_RESPONDER : ROLE_INITIATOR)) {
+            return false;
+        }
+        
+        try {
+            Signature verifier = getEcdsa();
+            verifier.init(partnerKeys[slot], Signature.MODE_VERIFY);
+            verifier.update(messageBuffer, (short) 0, OFFSET_MESSAGE_ID);
+            verifier.update(messageBuffer, roleOffset, (short) 1);
+            short signatureOffset = (short) (roleOffset + 1);
+            boolean verified;
+            if (initiator) {
+                // Own point from the key pair, behind the received frame
+                short ownPoint = (short) (OFFSET_DATA + dataLength);
+                ((ECPublicKey) getEcKeyPair().getPublic()).getW(messageBuffer, ownPoint);
+                verifier.update(messageBuffer, OFFSET_DATA, EC_POINT_LENGTH);
+                verified = verifier.verify(messageBuffer, ownPoint, EC_POINT_LENGTH,
+                                           messageBuffer, signatureOffset, signatureLength);
+            } else {
+                verified = verifier.verify(messageBuffer, OFFSET_DATA, EC_POINT_LENGTH,
+                                           messageBuffer, signatureOffset, signatureLength);
+            }
+            if (!verified) {
+                return false;
+            }
+            
+            if (!initiator) {
+                getEcKeyPair().genKeyPair();
+                pendingHandshake = NO_PENDING_HANDSHAKE;
+                replyHandshake = NO_PENDING_HANDSHAKE;
+            }
+            KeyAgreement agreement = getKeyAgreement();
+            agreement.init(getEcKeyPair().getPrivate());
+            short secretLength = agreement.generateSecret(messageBuffer, OFFSET_DATA, EC_POINT_LENGTH,
+                                                          cryptoScratch, SESSION_KEYS_LENGTH);
+            
+            // The digest has read the secret before each key overwrites it
+            deriveKey(secretLength, initiator ? KDF_LABEL_INITIATOR : KDF_LABEL_RESPONDER, (short) 0);
+            deriveKey(secretLength, initiator ? KDF_LABEL_RESPONDER : KDF_LABEL_INITIATOR, SESSION_KEY_LENGTH);
+        } catch (CryptoException e) {
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * SHA-256(secret | partner ID | label) of the ECDH secret behind the
+     * keys in cryptoScratch, written at offset; its first 16 bytes are the key
+     */
+    private void deriveKey(short secretLength, byte[] label, short offset) {
+        MessageDigest kdf = getDigest();
+        kdf.reset();
+        kdf.update(cryptoScratch, SESSION_KEYS_LENGTH, secretLength);
+        kdf.update(messageBuffer, OFFSET_PARTNER_ID, (short) 1);
+        kdf.doFinal(label, (short) 0, (short) label.length, cryptoScratch, offset);
+    }
+    
+    /**
+     * Commit an authenticated message: its sequence number from
+     * windowScratch and, for a handshake, the session keys from cryptoScratch
+     * and the point of a handshake the card has to answer
+     */
+    private void acceptMessage(short slot, byte type) {
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        Util.arrayCopy(windowScratch, (short) 0, receiveState, (short) (slot * RECEIVE_STATE_LENGTH), RECEIVE_STATE_LENGTH);
+        if (type == MSG_HANDSHAKE) {
+            Util.arrayCopy(cryptoScratch, (short) 0, sessionKeys, (short) (slot * SESSION_KEYS_LENGTH), SESSION_KEYS_LENGTH);
+            sessionKeyState[slot] = 1;
+            if (pendingHandshake == slot) {
+                pendingHandshake = NO_PENDING_HANDSHAKE;
+            } else {
+                Util.arrayCopy(messageBuffer, OFFSET_DATA, initiatorPoint, (short) 0, EC_POINT_LENGTH);
+                replyHandshake = slot;
+            }
+        }
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+        Util.arrayFillNonAtomic(cryptoScratch, (short) 0, CRYPTO_SCRATCH_LENGTH, (byte) 0x00);
+    }
+    
+    /**
+     * Ephemeral P-256 key pair, created on first use
+     */
+    private KeyPair getEcKeyPair() {
+        if (ecKeyPair == null) {
+            ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+            Secp256r1.setParameters((ECKey) ecKeyPair.getPublic());
+            Secp256r1.setParameters((ECKey) ecKeyPair.getPrivate());
+        }
+        return ecKeyPair;
+    }
+    
+    /**
+     * ECDH key agreement with the plain x coordinate as the secret, created on first use
+     */
+    private KeyAgreement getKeyAgreement() {
+        if (keyAgreement == null) {
+            keyAgreement = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
+        }
+        return keyAgreement;
+    }
+    
+    /**
+     * SHA-256 digest for key derivation, created on first use
+     */
+    private MessageDigest getDigest() {
+        if (digest == null) {
+            digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        }
+        return digest;
+    }
+    
+    /**
+     * ECDSA engine for handshake signatures, created on first use
+     */
+    private Signature getEcdsa() {
+        if (ecdsa == null) {
+            ecdsa = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+        }
+        return ecdsa;
+    }
+    
+    /**
+     * AES-CMAC engine, created on first use
+     */
+    private Signature getMac() {
+        if (mac == null) {
+            mac = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+        }
+        return mac;
+    }
+    
+    /**
+     * Transient AES key loaded with the session key of the current partner
+     */
+    private AESKey getMacKey() {
+        if (macKey == null) {
+            macKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, KeyBuilder.LENGTH_AES_128, false);
+        }
+        return macKey;
+    }
+    
+    /**
+     * Drop a partially reassembled message
+     */
+    private void abortReassembly() {
+        reassemblyState[REASSEMBLY_NEXT_INDEX] = 0;
+        reassemblyState[REASSEMBLY_COUNT] = 0;
+        reassemblyState[REASSEMBLY_LENGTH] = 0;
+        reassemblyState[REASSEMBLY_COMPLETE] = 0;
+    }
+    
+    /**
+     * Sliding-window check of an inbound 32-bit sequence number.
+     * Bit i of the window marks (highest - i) as seen. Newer numbers slide
+     * the window forward, numbers inside the window are accepted once, and
+     * anything older than 64 messages is rejected. The updated state is
+     * left in windowScratch; acceptMessage() commits it.
+     */
+    private boolean checkSequence(short slot, byte[] data, short seqOffset) {
+        short stateOffset = (short) (slot * RECEIVE_STATE_LENGTH);
+        
+        short seqHigh = Util.getShort(data, seqOffset);
+        short seqLow = Util.getShort(data, (short) (seqOffset + 2));
+        if (seqHigh == 0 && seqLow == 0) {
+            return false;
+        }
+        short topHigh = Util.getShort(receiveState, stateOffset);
+        short topLow = Util.getShort(receiveState, (short) (stateOffset + 2));
+        
+        // 32-bit difference seq - highest in serial number arithmetic
+        short diffLow = (short) (seqLow - topLow);
+        short diffHigh = (short) (seqHigh - topHigh);
+        if (lessThanUnsigned(seqLow, topLow)) {
+            diffHigh--;
+        }
+        
+        Util.arrayCopyNonAtomic(receiveState, stateOffset, windowScratch, (short) 0, RECEIVE_STATE_LENGTH);
+        
+        if (diffHigh > 0 || (diffHigh == 0 && diffLow != 0)) {
+            // Newer than anything seen: slide the window
+            short shift = (diffHigh != 0 || lessThanUnsigned(WINDOW_BITS, diffLow)) ? WINDOW_BITS : diffLow;
+            shiftWindow(shift);
+            windowScratch[SEQUENCE_LENGTH] |= 0x01;
+            Util.arrayCopyNonAtomic(data, seqOffset, windowScratch, (short) 0, SEQUENCE_LENGTH);
+        } else {
+            // Duplicate, or older: must fall inside the window and be unseen
+            boolean duplicateOfTop = diffHigh == 0 && diffLow == 0;
+            if (!duplicateOfTop && (diffHigh != -1 || diffLow == 0)) {
+                return false;
+            }
+            short age = (short) -diffLow;
+            if (age < 0 || age >= WINDOW_BITS) {
+                return false;
+            }
+            short bitByte = (short) (SEQUENCE_LENGTH + (age >> 3));
+            byte bitMask = (byte) (1 << (age & 0x07));
+            if ((windowScratch[bitByte] & bitMask) != 0) {
+                return false;
+            }
+            windowScratch[bitByte] |= bitMask;
+        }
+        return true;
+    }
+    
+    /**
+     * Shift the window bitmap in windowScratch towards older positions
+     */
+    private void shiftWindow(short shift) {
+        short byteShift = (short) (shift >> 3);
+        short bitShift = (short) (shift & 0x07);
+        for (short i = (short) (WINDOW_LENGTH - 1); i >= 0; i--) {
+            short src = (short) (i - byteShift);
+            byte value = 0;
+            if (src >= 0) {
+                value = (byte) (windowScratch[(short) (SEQUENCE_LENGTH + src)] << bitShift);
+                if (src > 0 && bitShift != 0) {
+                    value |= (byte) ((windowScratch[(short) (SEQUENCE_LENGTH + src - 1)] & 0xFF) >> (8 - bitShift));
+                }
+            }
+            windowScratch[(short) (SEQUENCE_LENGTH + i)] = value;
+        }
+    }
+    
+    /**
+     * Unsigned 16-bit comparison a < b
+     */
+    private static boolean lessThanUnsigned(short a, short b) {
+        return (short) (a ^ (short) 0x8000) < (short) (b ^ (short) 0x8000);
+    }
+    
+    /**
+     * Find the registry slot of a partner, or -1
+     */
+    private short findPartnerSlot(byte partnerId) {
+        if (partnerId == 0) {
+            return -1;
+        }
+        return (short) (partnerSlots[(short) (partnerId & 0xFF)] - 1);
+    }
+    
+    /**
+     * Reset send counter, receive window, session key and signature key of a partner slot
+     */
+    private void clearSequenceState(short slot) {
+        Util.arrayFillNonAtomic(sessionKeys, (short) (slot * SESSION_KEYS_LENGTH), SESSION_KEYS_LENGTH, (byte) 0x00);
+        sessionKeyState[slot] = 0;
+        if (partnerKeys != null) {
+            partnerKeys[slot].clearKey();
+            Secp256r1.setParameters(partnerKeys[slot]);
+        }
+        if (pendingHandshake == slot) {
+            pendingHandshake = NO_PENDING_HANDSHAKE;
+        }
+        if (replyHandshake == slot) {
+            replyHandshake = NO_PENDING_HANDSHAKE;
+        }
+        Util.arrayFillNonAtomic(sendCounters, (short) (slot * SEQUENCE_LENGTH), SEQUENCE_LENGTH, (byte) 0x00);
+        Util.arrayFillNonAtomic(receiveState, (short) (slot * RECEIVE_STATE_LENGTH), RECEIVE_STATE_LENGTH, (byte) 0x00);
     }
     
     /**
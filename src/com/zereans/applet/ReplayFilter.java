@@ -0,0 +1,138 @@
+package com.zereans.applet;
+
+import javacard.framework.*;
+
+/**
+ * Compact on-card replay filter for counter-bound tokens.
+ *
+ * Counters are checked against a sliding window of the 256 counters up to
+ * the highest accepted one, which covers the vouchers the issuer can have
+ * outstanding for one card; an older counter is refused as too old even if
+ * it was never seen, so no token is ever accepted twice however many the
+ * filter has seen. Lookup and insert are constant time and the filter
+ * never grows after construction.
+ */
+public class ReplayFilter {
+    
+    // Counter window width in bits
+    private static final short WINDOW_BITS = 256;
+    private static final short WINDOW_BYTES = (short) (WINDOW_BITS / 8);
+    
+    // Results of acceptCounter()
+    public static final byte COUNTER_ACCEPTED = (byte) 0x00;
+    public static final byte COUNTER_REPLAYED = (byte) 0x01;
+    public static final byte COUNTER_TOO_OLD = (byte) 0x02;
+    
+    // Persistent filter state
+    private byte[] windowBitmap;
+    private short highestCounter;
+    private boolean windowStarted;
+    
+    // Transient scratch for window updates
+    private byte[] scratch;
+    
+    /**
+     * Constructor - allocates the fixed-size filter
+     */
+    public ReplayFilter() {
+        windowBitmap = new byte[WINDOW_BYTES];
+        highestCounter = 0;
+        windowStarted = false;
+        scratch = JCSystem.makeTransientByteArray(WINDOW_BYTES, JCSystem.CLEAR_ON_RESET);
+    }
+    
+    /**
+     * Accept a counter-bound token once.
+     * Counters newer than the highest seen advance the window; older counters
+     * are accepted only inside the window and only if not seen before.
+     * Returns COUNTER_ACCEPTED, COUNTER_REPLAYED or COUNTER_TOO_OLD.
+     */
+    public byte acceptCounter(short counter) {
+        if (!windowStarted) {
+            Util.arrayFillNonAtomic(scratch, (short) 0, WINDOW_BYTES, (byte) 0x00);
+            scratch[0] = 0x01;
+            commitWindow(counter);
+            windowStarted = true;
+            return COUNTER_ACCEPTED;
+        }
+        
+        short delta = (short) (counter - highestCounter);
+        if (delta > 0) {
+            slideWindow(delta);
+            setBit(scratch, (short) 0);
+            commitWindow(counter);
+            return COUNTER_ACCEPTED;
+        }
+        
+        short age = (short) -delta;
+        if (age < 0 || age >= WINDOW_BITS) {
+            return COUNTER_TOO_OLD;
+        }
+        if (isBitSet(windowBitmap, age)) {
+            return COUNTER_REPLAYED;
+        }
+        Util.arrayCopyNonAtomic(windowBitmap, (short) 0, scratch, (short) 0, WINDOW_BYTES);
+        setBit(scratch, age);
+        commitWindow(highestCounter);
+        return COUNTER_ACCEPTED;
+    }
+    
+    /**
+     * Forget all accepted counters
+     */
+    public void reset() {
+        Util.arrayFillNonAtomic(windowBitmap, (short) 0, WINDOW_BYTES, (byte) 0x00);
+        highestCounter = 0;
+        windowStarted = false;
+    }
+    
+    /**
+     * Window bitmap moved delta counters older into scratch, a byte and
+     * a bit shift at a time, so bit 0 is free for the new highest counter
+     */
+    private void slideWindow(short delta) {
+        Util.arrayFillNonAtomic(scratch, (short) 0, WINDOW_BYTES, (byte) 0x00);
+        if (delta >= WINDOW_BITS) {
+            return;
+        }
+        short byteShift = (short) (delta >> 3);
+        short bitShift = (short) (delta & 0x07);
+        for (short i = (short) (WINDOW_BYTES - 1); i >= byteShift; i--) {
+            short source = (short) (i - byteShift);
+            short value = (short) ((windowBitmap[source] & 0xFF) << bitShift);
+            if (source > 0) {
+                value |= (short) ((windowBitmap[(short) (source - 1)] & 0xFF) >> (short) (8 - bitShift));
+            }
+            scratch[i] = (byte) value;
+        }
+    }
+    
+    /**
+     * Write the window bitmap from scratch and the highest counter atomically
+     */
+    private void commitWindow(short counter) {
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        Util.arrayCopy(scratch, (short) 0, windowBitmap, (short) 0, WINDOW_BYTES);
+        highestCounter = counter;
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+    }
+    
+    /**
+     * Test one bit of a little-endian bitmap
+     */
+    private static boolean isBitSet(byte[] bitmap, short bit) {
+        return (bitmap[(short) (bit >> 3)] & (byte) (1 << (bit & 0x07))) != 0;
+    }
+    
+    /**
+     * Set one bit of a little-endian bitmap
+     */
+    private static void setBit(byte[] bitmap, short bit) {
+        bitmap[(short) (bit >> 3)] |= (byte) (1 << (bit & 0x07));
+    }
+}
@@ -18,6 +18,25 @@ public class SecurityManager {
     private static final short AES_KEY_LENGTH = 16;
     private static final short RSA_KEY_LENGTH = 256; // 2048 bits = 256 bytes
     
+    // Streaming AES-CBC modes
+    public static final byte STREAM_NONE = (byte) 0x00;
+    public static final byte STREAM_ENCRYPT = (byte) 0x01;
+    public static final byte STREAM_DECRYPT = (byte) 0x02;
+    public static final short STREAM_TAG_LENGTH = 16;
+    private static final short AES_BLOCK_LENGTH = 16;
+    
+    // Stream state: mode(1) | segment index(2) | last flag(1) | chain value(16) | scratch(16).
+    // A segment tag is AES-CMAC over index, last flag and chain value, then
+    // the ciphertext; the chain value is the IV, then the previous tag.
+    private static final short STREAM_MODE = 0;
+    private static final short STREAM_INDEX = 1;
+    private static final short STREAM_LAST = 3;
+    private static final short STREAM_CHAIN = 4;
+    private static final short STREAM_SCRATCH = (short) (STREAM_CHAIN + AES_BLOCK_LENGTH);
+    private static final short STREAM_STATE_LENGTH = (short) (STREAM_SCRATCH + AES_BLOCK_LENGTH);
+    private static final short STREAM_HEADER_LENGTH = (short) (STREAM_SCRATCH - STREAM_INDEX);
+    private static final byte[] STREAM_KEY_LABEL = { 'Z', 'S', 'E', 'C' };
+    
     // Key buffers
     private byte[] aesKey;
     private byte[] rsaPrivateKey;
@@ -25,7 +44,7 @@ public class SecurityManager {
     private byte[] sessionKey;
     private byte[] tempBuffer;
     
-    // Cryptographic objects
+    // Cryptographic objects (created on first use)
     private Cipher aesCipher;
     private Cipher rsaCipher;
     private MessageDigest digest;
@@ -33,8 +52,17 @@ public class SecurityManager {
     private RandomData random;
     private Signature signature;
     
+    // Streaming cipher: CBC state lives in the engine between segments
+    private Cipher streamCipher;
+    private AESKey streamKey;
+    private Signature streamMac;
+    private AESKey streamMacKey;
+    private byte[] streamState;
+    
     /**
-     * Secure constructor - NO key generation in constructor
+     * Secure constructor - NO key generation and no engine allocation.
+     * Engines are created on first use; an algorithm missing on the card
+     * makes only the operations that need it fail.
      */
     public SecurityManager() {
         // Initialize buffers
@@ -43,22 +71,80 @@ public class SecurityManager {
         rsaPublicKey = new byte[RSA_KEY_LENGTH];
         sessionKey = new byte[AES_KEY_LENGTH];
         tempBuffer = new byte[512]; // Temporary buffer for operations
-        
-        try {
-            // Initialize cryptographic objects (NO key generation)
+        streamState = JCSystem.makeTransientByteArray(STREAM_STATE_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+    }
+    
+    /**
+     * AES cipher, created on first use
+     */
+    private Cipher getAesCipher() {
+        if (aesCipher == null) {
             aesCipher = Cipher.getInstance(Cipher.ALG_AES_CBC_PKCS5, false);
+        }
+        return aesCipher;
+    }
+    
+    /**
+     * Unpadded AES-CBC cipher and AES-CMAC for streaming, created on first use
+     */
+    private Cipher getStreamCipher() {
+        if (streamCipher == null) {
+            streamMac = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+            streamKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+            streamMacKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+            streamCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        }
+        return streamCipher;
+    }
+    
+    /**
+     * RSA cipher, created on first use
+     */
+    private Cipher getRsaCipher() {
+        if (rsaCipher == null) {
             rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+        }
+        return rsaCipher;
+    }
+    
+    /**
+     * SHA-256 digest, created on first use
+     */
+    private MessageDigest getDigest() {
+        if (digest == null) {
             digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        }
+        return digest;
+    }
+    
+    /**
+     * RSA signature engine, created on first use
+     */
+    private Signature getSignature() {
+        if (signature == null) {
             signature = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+        }
+        return signature;
+    }
+    
+    /**
+     * Secure random generator, created on first use
+     */
+    private RandomData getRandom() {
+        if (random == null) {
             random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-            
-            // Create key pair object (NO generation yet)
+        }
+        return random;
+    }
+    
+    /**
+     * RSA-2048 key pair container (NO generation), created on first use
+     */
+    private KeyPair getKeyPair() {
+        if (keyPair == null) {
             keyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
-            
-        } catch (Exception e) {
-            // Handle initialization errors
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
+        return keyPair;
     }
     
     /**
@@ -67,10 +153,11 @@ public class SecurityManager {
     public boolean generateSessionKey() {
         try {
             // Generate random AES session key
-            random.generateData(sessionKey, (short) 0, (short) sessionKey.length);
+            getRandom().generateData(sessionKey, (short) 0, (short) sessionKey.length);
             
             // Encrypt session key with RSA public key
-            PublicKey publicKey = (PublicKey) keyPair.getPublic();
+            PublicKey publicKey = (PublicKey) getKeyPair().getPublic();
+            Cipher rsaCipher = getRsaCipher();
             rsaCipher.init(publicKey, Cipher.MODE_ENCRYPT);
             short encryptedLength = rsaCipher.doFinal(sessionKey, (short) 0, (short) sessionKey.length, 
                                                      aesKey, (short) 0);
@@ -90,6 +177,7 @@ public class SecurityManager {
             // Create AES key from session key
             AESKey aesKeyObj = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
             aesKeyObj.setKey(sessionKey, (short) 0);
+            Cipher aesCipher = getAesCipher();
             aesCipher.init(aesKeyObj, Cipher.MODE_ENCRYPT);
             
             short encryptedLength = aesCipher.doFinal(data, offset, length, output, outputOffset);
@@ -112,6 +200,7 @@ public class SecurityManager {
             // Create AES key from session key
             AESKey aesKeyObj = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
             aesKeyObj.setKey(sessionKey, (short) 0);
+            Cipher aesCipher = getAesCipher();
             aesCipher.init(aesKeyObj, Cipher.MODE_DECRYPT);
             
             short decryptedLength = aesCipher.doFinal(data, offset, length, output, outputOffset);
@@ -125,13 +214,197 @@ public class SecurityManager {
         }
     }
     
+    /**
+     * Create the stream engines now; throws CryptoException when the card lacks them
+     */
+    public void loadStreamEngines() {
+        getStreamCipher();
+    }
+    
+    /**
+     * Derive the stream keys from a 16-byte AES key:
+     * encryption key = AES-CMAC(key, 01 | "ZSEC"), MAC key = AES-CMAC(key, 02 | "ZSEC").
+     * Closes any open stream.
+     */
+    public void setStreamKey(AESKey key) {
+        getStreamCipher();
+        streamState[STREAM_MODE] = STREAM_NONE;
+        Util.arrayCopyNonAtomic(STREAM_KEY_LABEL, (short) 0, streamState, (short) (STREAM_SCRATCH + 1),
+                                (short) STREAM_KEY_LABEL.length);
+        short labelLength = (short) (1 + STREAM_KEY_LABEL.length);
+        streamMac.init(key, Signature.MODE_SIGN);
+        streamState[STREAM_SCRATCH] = 0x01;
+        streamMac.sign(streamState, STREAM_SCRATCH, labelLength, streamState, STREAM_CHAIN);
+        streamKey.setKey(streamState, STREAM_CHAIN);
+        streamState[STREAM_SCRATCH] = 0x02;
+        streamMac.sign(streamState, STREAM_SCRATCH, labelLength, streamState, STREAM_CHAIN);
+        streamMacKey.setKey(streamState, STREAM_CHAIN);
+        Util.arrayFillNonAtomic(streamState, (short) 0, STREAM_STATE_LENGTH, (byte) 0x00);
+    }
+    
+    /**
+     * Start streaming AES-CBC with encrypt-then-MAC under the stream keys,
+     * with the given 16-byte IV. Segments are then processed in place,
+     * typically straight in the APDU buffer of each chained command, so RAM
+     * cost does not depend on the payload size. Every segment carries its
+     * own 16-byte tag, chained to the previous one, so a segment is
+     * authenticated before any of it is decrypted or released.
+     */
+    public void beginStream(byte mode, byte[] iv, short ivOffset) {
+        if (mode != STREAM_ENCRYPT && mode != STREAM_DECRYPT) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+        Cipher cipher = getStreamCipher();
+        if (!streamKey.isInitialized() || !streamMacKey.isInitialized()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        cipher.init(streamKey, mode == STREAM_ENCRYPT ? Cipher.MODE_ENCRYPT : Cipher.MODE_DECRYPT,
+                    iv, ivOffset, AES_BLOCK_LENGTH);
+        Util.arrayFillNonAtomic(streamState, (short) 0, STREAM_STATE_LENGTH, (byte) 0x00);
+        Util.arrayCopyNonAtomic(iv, ivOffset, streamState, STREAM_CHAIN, AES_BLOCK_LENGTH);
+        streamState[STREAM_MODE] = mode;
+    }
+    
+    /**
+     * Process a non-final segment in place; CBC chaining carries over to
+     * the next segment. Encryption takes whole blocks of plaintext and
+     * appends the tag, so the buffer needs STREAM_TAG_LENGTH bytes of room
+     * after the segment; it returns ciphertext and tag length. Decryption
+     * takes whole blocks of ciphertext followed by the tag and returns the
+     * plaintext length.
+     */
+    public short updateStream(byte[] buffer, short offset, short length) {
+        return processSegment(buffer, offset, length, false);
+    }
+    
+    /**
+     * Process the final segment in place and close the stream.
+     * Encryption appends PKCS5 padding and the tag, so the buffer needs up
+     * to one block plus STREAM_TAG_LENGTH bytes of room after the segment.
+     * Decryption checks the tag, then strips the padding, and returns the
+     * plaintext length.
+     */
+    public short finishStream(byte[] buffer, short offset, short length) {
+        return processSegment(buffer, offset, length, true);
+    }
+    
+    /**
+     * Current stream mode, STREAM_NONE when no stream is open
+     */
+    public byte getStreamMode() {
+        return streamState[STREAM_MODE];
+    }
+    
+    /**
+     * Encrypt and tag, or check and decrypt, one segment
+     */
+    private short processSegment(byte[] buffer, short offset, short length, boolean last) {
+        byte mode = streamState[STREAM_MODE];
+        if (mode == STREAM_NONE) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        streamState[STREAM_LAST] = last ? (byte) 0x01 : (byte) 0x00;
+        if (last) {
+            streamState[STREAM_MODE] = STREAM_NONE;
+        }
+        if (mode == STREAM_ENCRYPT) {
+            return sealSegment(buffer, offset, length, last);
+        }
+        return openSegment(buffer, offset, length, last);
+    }
+    
+    /**
+     * Pad the last segment, encrypt in place and append the segment tag
+     */
+    private short sealSegment(byte[] buffer, short offset, short length, boolean last) {
+        if (last) {
+            byte pad = (byte) (AES_BLOCK_LENGTH - length % AES_BLOCK_LENGTH);
+            Util.arrayFillNonAtomic(buffer, (short) (offset + length), pad, pad);
+            length += pad;
+            streamCipher.doFinal(buffer, offset, length, buffer, offset);
+        } else {
+            if (length < 0 || length % AES_BLOCK_LENGTH != 0) {
+                streamState[STREAM_MODE] = STREAM_NONE;
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            if (length > 0) {
+                streamCipher.update(buffer, offset, length, buffer, offset);
+            }
+        }
+        
+        streamMac.init(streamMacKey, Signature.MODE_SIGN);
+        streamMac.update(streamState, STREAM_INDEX, STREAM_HEADER_LENGTH);
+        streamMac.sign(buffer, offset, length, buffer, (short) (offset + length));
+        nextSegment(buffer, (short) (offset + length));
+        return (short) (length + STREAM_TAG_LENGTH);
+    }
+    
+    /**
+     * Check the segment tag, then decrypt in place and, for the last
+     * segment, strip the padding. A bad length, tag or padding all close
+     * the stream with the same status word, so a failed segment tells the
+     * sender nothing about the plaintext.
+     */
+    private short openSegment(byte[] buffer, short offset, short length, boolean last) {
+        short cipherLength = (short) (length - STREAM_TAG_LENGTH);
+        if (cipherLength < (last ? AES_BLOCK_LENGTH : 0) || cipherLength % AES_BLOCK_LENGTH != 0) {
+            rejectStream();
+        }
+        
+        short tagOffset = (short) (offset + cipherLength);
+        streamMac.init(streamMacKey, Signature.MODE_VERIFY);
+        streamMac.update(streamState, STREAM_INDEX, STREAM_HEADER_LENGTH);
+        if (!streamMac.verify(buffer, offset, cipherLength, buffer, tagOffset, STREAM_TAG_LENGTH)) {
+            rejectStream();
+        }
+        nextSegment(buffer, tagOffset);
+        
+        if (!last) {
+            if (cipherLength > 0) {
+                streamCipher.update(buffer, offset, cipherLength, buffer, offset);
+            }
+            return cipherLength;
+        }
+        streamCipher.doFinal(buffer, offset, cipherLength, buffer, offset);
+        
+        // Check every padding byte, not just the last one
+        short pad = (short) (buffer[(short) (offset + cipherLength - 1)] & 0xFF);
+        if (pad == 0 || pad > AES_BLOCK_LENGTH) {
+            rejectStream();
+        }
+        byte difference = 0;
+        for (short i = (short) (cipherLength - pad); i < cipherLength; i++) {
+            difference |= (byte) (buffer[(short) (offset + i)] ^ pad);
+        }
+        if (difference != 0) {
+            rejectStream();
+        }
+        return (short) (cipherLength - pad);
+    }
+    
+    /**
+     * Chain the tag just produced or checked into the next segment
+     */
+    private void nextSegment(byte[] tag, short tagOffset) {
+        Util.arrayCopyNonAtomic(tag, tagOffset, streamState, STREAM_CHAIN, STREAM_TAG_LENGTH);
+        Util.setShort(streamState, STREAM_INDEX, (short) (Util.getShort(streamState, STREAM_INDEX) + 1));
+    }
+    
+    /**
+     * Close the stream after an inbound segment failed any check
+     */
+    private void rejectStream() {
+        streamState[STREAM_MODE] = STREAM_NONE;
+        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+    }
+    
     /**
      * Secure hash computation
      */
     public short computeHash(byte[] data, short offset, short length,
                            byte[] output, short outputOffset) {
         try {
-            return digest.doFinal(data, offset, length, output, outputOffset);
+            return getDigest().doFinal(data, offset, length, output, outputOffset);
         } catch (Exception e) {
             return 0;
         }
@@ -184,6 +457,7 @@ public class SecurityManager {
             clearSensitiveData();
             
             // Generate new key pair
+            KeyPair keyPair = getKeyPair();
             keyPair.genKeyPair();
             
             // Extract and store keys
@@ -211,6 +485,7 @@ public class SecurityManager {
             clearSensitiveData();
             
             // Generate new key pair
+            KeyPair keyPair = getKeyPair();
             keyPair.genKeyPair();
             
             // Extract and store new keys
@@ -244,6 +519,11 @@ public class SecurityManager {
                                (short) rsaPublicKey.length, (byte) 0x00);
         Util.arrayFillNonAtomic(tempBuffer, (short) 0, 
                                (short) tempBuffer.length, (byte) 0x00);
+        if (streamKey != null) {
+            streamKey.clearKey();
+            streamMacKey.clearKey();
+        }
+        Util.arrayFillNonAtomic(streamState, (short) 0, STREAM_STATE_LENGTH, (byte) 0x00);
     }
     
     /**
@@ -252,9 +532,10 @@ public class SecurityManager {
     public short signData(byte[] data, short offset, short length, 
                         byte[] signature, short sigOffset) {
         try {
-            PrivateKey privateKey = (PrivateKey) keyPair.getPrivate();
-            this.signature.init(privateKey, Signature.MODE_SIGN);
-            return this.signature.sign(data, offset, length, signature, sigOffset);
+            PrivateKey privateKey = (PrivateKey) getKeyPair().getPrivate();
+            Signature engine = getSignature();
+            engine.init(privateKey, Signature.MODE_SIGN);
+            return engine.sign(data, offset, length, signature, sigOffset);
         } catch (Exception e) {
             return 0;
         }
@@ -266,9 +547,10 @@ public class SecurityManager {
     public boolean verifySignature(byte[] data, short offset, short length,
                                  byte[] signature, short sigOffset, short sigLength) {
         try {
-            PublicKey publicKey = (PublicKey) keyPair.getPublic();
-            this.signature.init(publicKey, Signature.MODE_VERIFY);
-            return this.signature.verify(data, offset, length, signature, sigOffset, sigLength);
+            PublicKey publicKey = (PublicKey) getKeyPair().getPublic();
+            Signature engine = getSignature();
+            engine.init(publicKey, Signature.MODE_VERIFY);
+            return engine.verify(data, offset, length, signature, sigOffset, sigLength);
         } catch (Exception e) {
             return false;
         }
@@ -0,0 +1,164 @@
+package com.zereans.applet;
+
+import javacard.framework.*;
+
+/**
+ * Allocation-free single-pass BER-TLV reader.
+ * 
+ * Walks a list of data objects in place, one object per call to next().
+ * The cursor is kept in a transient array and the buffer is passed on
+ * every call, since the APDU buffer must not be stored in a field.
+ * One- and two-byte tags and lengths up to 82 xx xx are supported;
+ * 00 and FF padding between objects is skipped.
+ */
+public class TlvParser {
+    
+    // Cursor layout
+    private static final short POSITION = 0;
+    private static final short END = 1;
+    private static final short TAG = 2;
+    private static final short VALUE_OFFSET = 3;
+    private static final short VALUE_LENGTH = 4;
+    private static final short STATE_LENGTH = 5;
+    
+    private short[] state;
+    
+    /**
+     * Constructor - allocates the transient cursor
+     */
+    public TlvParser() {
+        state = JCSystem.makeTransientShortArray(STATE_LENGTH, JCSystem.CLEAR_ON_RESET);
+    }
+    
+    /**
+     * Start reading the data objects in buffer[offset, offset + length)
+     */
+    public void init(short offset, short length) {
+        state[POSITION] = offset;
+        state[END] = (short) (offset + length);
+        state[TAG] = 0;
+        state[VALUE_OFFSET] = 0;
+        state[VALUE_LENGTH] = 0;
+    }
+    
+    /**
+     * Advance to the next data object.
+     * Returns false at the end of the list; malformed encodings throw SW_WRONG_DATA.
+     */
+    public boolean next(byte[] buffer) {
+        short position = state[POSITION];
+        short end = state[END];
+        
+        while (position < end && (buffer[position] == 0x00 || buffer[position] == (byte) 0xFF)) {
+            position++;
+        }
+        if (position >= end) {
+            state[POSITION] = end;
+            return false;
+        }
+        
+        // Tag: one byte, or two when b5-b1 of the first byte are all set
+        short tag = (short) (buffer[position++] & 0xFF);
+        if ((tag & 0x1F) == 0x1F) {
+            if (position >= end || (buffer[position] & 0x80) != 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            tag = (short) ((tag << 8) | (buffer[position++] & 0xFF));
+        }
+        
+        // Length: short form, 81 xx or 82 xx xx
+        if (position >= end) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short length = (short) (buffer[position++] & 0xFF);
+        if (length == 0x81) {
+            if (position >= end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            length = (short) (buffer[position++] & 0xFF);
+        } else if (length == 0x82) {
+            if ((short) (end - position) < 2) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            length = Util.getShort(buffer, position);
+            position += 2;
+        } else if (length > 0x7F) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (length < 0 || length > (short) (end - position)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        
+        state[TAG] = tag;
+        state[VALUE_OFFSET] = position;
+        state[VALUE_LENGTH] = length;
+        state[POSITION] = (short) (position + length);
+        return true;
+    }
+    
+    /**
+     * Encoded length (tag, length and value) of the data object starting at
+     * offset, or -1 while fewer than its tag and length bytes are available.
+     * Lets a reader carry an object that is split across buffers.
+     */
+    public static short getObjectLength(byte[] buffer, short offset, short available) {
+        short end = (short) (offset + available);
+        short position = offset;
+        if (position >= end) {
+            return -1;
+        }
+        if ((buffer[position++] & 0x1F) == 0x1F) {
+            if (position >= end) {
+                return -1;
+            }
+            if ((buffer[position++] & 0x80) != 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+        }
+        
+        if (position >= end) {
+            return -1;
+        }
+        short length = (short) (buffer[position++] & 0xFF);
+        if (length == 0x81) {
+            if (position >= end) {
+                return -1;
+            }
+            length = (short) (buffer[position++] & 0xFF);
+        } else if (length == 0x82) {
+            if ((short) (end - position) < 2) {
+                return -1;
+            }
+            length = Util.getShort(buffer, position);
+            position += 2;
+        } else if (length > 0x7F) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short header = (short) (position - offset);
+        if (length < 0 || length > (short) (0x7FFF - header)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return (short) (header + length);
+    }
+    
+    /**
+     * Tag of the current data object
+     */
+    public short getTag() {
+        return state[TAG];
+    }
+    
+    /**
+     * Offset of the current value in the buffer
+     */
+    public short getValueOffset() {
+        return state[VALUE_OFFSET];
+    }
+    
+    /**
+     * Length of the current value
+     */
+    public short getValueLength() {
+        return state[VALUE_LENGTH];
+    }
+}
@@ -26,30 +26,41 @@ public class TransactionManager {
     private short transactionId;
     private boolean isInitialized;
     
-    // Cryptographic objects
+    // Cryptographic objects (created on first use)
     private Signature signature;
     private MessageDigest digest;
-    private RandomData random;
     
     /**
-     * Secure constructor with proper initialization
+     * Secure constructor with proper initialization.
+     * Engines are created on first use, so a missing algorithm fails the
+     * operation that needs it instead of the whole install.
      */
     public TransactionManager() {
         transactionData = new byte[TXN_DATA_LENGTH];
         signatureBuffer = new byte[SIGNATURE_LENGTH];
         hashBuffer = new byte[HASH_LENGTH];
         transactionId = 0;
-        isInitialized = false;
-        
-        try {
+        isInitialized = true;
+    }
+    
+    /**
+     * RSA signature engine, created on first use
+     */
+    private Signature getSignature() {
+        if (signature == null) {
             signature = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+        }
+        return signature;
+    }
+    
+    /**
+     * SHA-256 digest, created on first use
+     */
+    private MessageDigest getDigest() {
+        if (digest == null) {
             digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
-            random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-            isInitialized = true;
-        } catch (Exception e) {
-            // Handle initialization errors
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
+        return digest;
     }
     
     /**
@@ -72,7 +83,7 @@ public class TransactionManager {
             Util.arrayCopy(data, offset, transactionData, (short) 0, length);
             
             // Generate secure hash of transaction data
-            short hashLength = digest.doFinal(transactionData, (short) 0, length, 
+            short hashLength = getDigest().doFinal(transactionData, (short) 0, length, 
                                            hashBuffer, (short) 0);
             
             if (hashLength != HASH_LENGTH) {
@@ -82,6 +93,7 @@ public class TransactionManager {
             }
             
             // Sign the hash with private key
+            Signature signature = getSignature();
             signature.init(privateKey, Signature.MODE_SIGN);
             short sigLength = signature.sign(hashBuffer, (short) 0, HASH_LENGTH, 
                                             signatureBuffer, (short) 0);
@@ -116,13 +128,14 @@ public class TransactionManager {
         try {
             // Compute hash of input data
             byte[] computedHash = new byte[HASH_LENGTH];
-            short hashLength = digest.doFinal(data, offset, length, computedHash, (short) 0);
+            short hashLength = getDigest().doFinal(data, offset, length, computedHash, (short) 0);
             
             if (hashLength != HASH_LENGTH) {
                 return false;
             }
             
             // Verify signature
+            Signature signature = getSignature();
             signature.init(publicKey, Signature.MODE_VERIFY);
             boolean isValid = signature.verify(computedHash, (short) 0, HASH_LENGTH, 
                                              signatureBuffer, (short) 0, SIGNATURE_LENGTH);
@@ -2,13 +2,19 @@ package com.zereans.applet;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.*;
 import javacardx.crypto.*;
 
 /**
  * Zereans Applet - Main applet for partner network
  * Supports secure transactions between partners
+ * 
+ * The wallet is shared by all logical channels while authentication and
+ * session state are kept per channel, so several host processes can use
+ * the card in parallel. Registered co-resident applets reach the wallet
+ * in-card through the ZereansWallet shareable interface.
  */
-public class ZereansApplet extends Applet {
+public class ZereansApplet extends Applet implements MultiSelectable, ExtendedLength, ZereansWallet {
     
     // Command constants
     private static final byte INS_INITIALIZE = (byte) 0x01;
@@ -18,73 +24,395 @@ public class ZereansApplet extends Applet {
     private static final byte INS_GET_STATUS = (byte) 0x05;
     private static final byte INS_UPDATE_KEYS = (byte) 0x06;
     private static final byte INS_VERIFY_SIGNATURE = (byte) 0x07;
+    private static final byte INS_FAST_DEBIT = (byte) 0x08;
+    private static final byte INS_REGISTER_CLIENT = (byte) 0x09;
+    private static final byte INS_READ_JOURNAL = (byte) 0x0A;
+    private static final byte INS_REDEEM_VOUCHERS = (byte) 0x0B;
+    private static final byte INS_SYNC = (byte) 0x0C;
+    private static final byte INS_VERIFY_BATCH = (byte) 0x0D;
+    private static final byte INS_SECURE_UPDATE_KEYS = (byte) 0x0E;
+    private static final byte INS_NETWORK_MESSAGE = (byte) 0x0F;
+    private static final byte INS_GET_CHALLENGE = (byte) 0x84;
+    private static final byte INS_GET_DATA = (byte) 0xCA;
+    private static final byte INS_GET_DATA_LIST = (byte) 0xCB;
     
     // State constants
     private static final byte STATE_INITIALIZED = (byte) 0x01;
     private static final byte STATE_AUTHENTICATED = (byte) 0x02;
     private static final byte STATE_ACTIVE = (byte) 0x03;
     
-    // Buffer sizes
-    private static final short MAX_DATA_LENGTH = 256;
+    // Logical channels supported by the platform (basic channel + 19)
+    private static final short MAX_LOGICAL_CHANNELS = 20;
+    
+    // Session budget granted by one authentication
+    private static final short SESSION_MAX_TRANSACTIONS = 16;
+    private static final short SESSION_MAX_VALUE = 30000;
+    private static final short SESSION_MAX_COMMANDS = 64; // command window before the session expires
+    
+    // Buffer sizes; the scratch buffer can be resized at install
+    private static final short DEFAULT_SCRATCH_LENGTH = 256;
+    private static final short MIN_SCRATCH_LENGTH = 64;
+    private static final short MAX_SCRATCH_LENGTH = 1024;
     private static final short KEY_LENGTH = 16;
     private static final short IV_LENGTH = 16;
     private static final short CHALLENGE_LENGTH = 32;
     private static final short SIGNATURE_LENGTH = 256;
+    private static final short MIN_SERVER_SIGNATURE_LENGTH = 8;
+    private static final short MAX_SERVER_SIGNATURE_LENGTH = 72; // DER ECDSA P-256
+    private static final short MAC_LENGTH = 16;
+    
+    // Transaction layout: amount(2) | transaction ID(8) | server signature
+    private static final short TXN_ID_LENGTH = 8;
+    
+    // Results of recent transactions for idempotent retries, one slot per
+    // transaction of a full session budget:
+    // transaction ID(8) | amount(2) | balance after(2)
+    private static final short RESUME_SLOTS = SESSION_MAX_TRANSACTIONS;
+    private static final short RESUME_AMOUNT = TXN_ID_LENGTH;
+    private static final short RESUME_BALANCE = (short) (RESUME_AMOUNT + 2);
+    private static final short RESUME_ENTRY_LENGTH = (short) (RESUME_BALANCE + 2);
+    
+    // Fast debit layout: amount(2) | counter(2) | token(16)
+    private static final short FAST_DEBIT_LENGTH = (short) (4 + MAC_LENGTH);
+    
+    // Voucher batch layout: count(1) | count x (voucher counter(2) | amount(2)) | MAC(16)
+    private static final short VOUCHER_LENGTH = 4;
+    private static final short MAX_VOUCHERS = 16;
+    private static final short MAX_BALANCE = 32767;
+    
+    // MAC domain separators for server tokens and card receipts
+    private static final byte MAC_DOMAIN_TOKEN = (byte) 0x01;
+    private static final byte MAC_DOMAIN_RECEIPT = (byte) 0x02;
+    private static final byte MAC_DOMAIN_VOUCHER = (byte) 0x03;
+    private static final byte MAC_DOMAIN_VOUCHER_RECEIPT = (byte) 0x04;
+    
+    // Shareable interface clients; the table can be resized at install
+    private static final short DEFAULT_CLIENTS = 4;
+    private static final short MAX_CLIENTS = 16;
+    
+    // Network partners with a preallocated signature key each; resizable at install
+    private static final short DEFAULT_PARTNERS = 4;
+    private static final short MAX_PARTNERS = 64;
+    private static final short MAX_AID_LENGTH = 16;
+    private static final short CLIENT_ENTRY_LENGTH = (short) (1 + MAX_AID_LENGTH); // length | AID
+    
+    // Applet version reported in the FCI (major, minor)
+    private static final short APPLET_VERSION = (short) 0x0100;
+    
+    // Supported algorithm bits
+    private static final byte ALG_BIT_AES = (byte) 0x01;
+    private static final byte ALG_BIT_RSA = (byte) 0x02;
+    private static final byte ALG_BIT_CMAC = (byte) 0x08;
+    private static final byte ALG_BIT_RANDOM = (byte) 0x10;
+    private static final byte ALG_BIT_EC = (byte) 0x20;
+    
+    // Algorithms probed and instantiated at install; others are loaded on first use
+    private static final byte DEFAULT_PROFILE = (byte) (ALG_BIT_RSA | ALG_BIT_CMAC | ALG_BIT_RANDOM | ALG_BIT_EC);
+    private static final byte ALL_ALGORITHMS = (byte) 0x3B;
+    
+    // Install parameters, TLVs in the applet data of the install command
+    private static final short TAG_INSTALL_JOURNAL = (short) 0x81;  // journal size in bytes(2)
+    private static final short TAG_INSTALL_CLIENTS = (short) 0x82;  // client table entries(1)
+    private static final short TAG_INSTALL_SCRATCH = (short) 0x83;  // scratch buffer size(2)
+    private static final short TAG_INSTALL_PROFILE = (short) 0x84;  // algorithm bits probed at install(1)
+    private static final short TAG_INSTALL_PARTNERS = (short) 0x85; // partner table entries(1)
+    
+    // Personalization TLV tags (INITIALIZE / UPDATE_KEYS data)
+    private static final short TAG_PERSO_CARD_ID = (short) 0x5A;
+    private static final short TAG_PERSO_MASTER_KEY = (short) 0x81;
+    private static final short TAG_PERSO_SESSION_KEY = (short) 0x82;
+    private static final short TAG_PERSO_SERVER_KEY = (short) 0x91;
+    private static final short TAG_PERSO_RSA_MODULUS = (short) 0x92;
+    private static final short TAG_PERSO_RSA_EXPONENT = (short) 0x93;
+    private static final short TAG_PERSO_RSA_P = (short) 0x94;
+    private static final short TAG_PERSO_RSA_Q = (short) 0x95;
+    private static final short TAG_PERSO_RSA_DP = (short) 0x96;
+    private static final short TAG_PERSO_RSA_DQ = (short) 0x97;
+    private static final short TAG_PERSO_RSA_QINV = (short) 0x98;
+    private static final short TAG_PERSO_EC_PRIVATE = (short) 0x99;
+    private static final short TAG_PERSO_EC_PUBLIC = (short) 0x9A;
+    private static final short TAG_PERSO_PARTNER_KEY = (short) 0x9B; // partner ID(1) | EC point
+    private static final short CARD_ID_LENGTH = 8;
+    private static final short EC_COMPRESSED_POINT_LENGTH = 33;
+    private static final short EC_POINT_LENGTH = 65;
+    
+    // Wallet state set by personalization
+    private static final short INITIAL_BALANCE = 1000;
+    
+    // Command chain state: INS of the open chain, key material seen so far,
+    // bytes of a data object carried over from the previous segment, and the
+    // logical channel that owns the chain
+    private static final short CHAIN_INS = 0;
+    private static final short CHAIN_FLAGS = 1;
+    private static final short CHAIN_CARRY = 2;
+    private static final short CHAIN_CHANNEL = 3;
+    private static final short CHAIN_KEY = 4;
+    private static final short CHAIN_STATE_LENGTH = 5;
+    private static final short MAX_PERSO_OBJECT_LENGTH = (short) (4 + 256); // tag, 82 xx xx, RSA-2048 modulus
+    private static final byte PERSO_SYMMETRIC = (byte) 0x01;
+    private static final byte PERSO_RSA = (byte) 0x02;
+    private static final byte PERSO_EC = (byte) 0x04;
+    
+    // Batch verification: pair count(1) | result bitmap, bit i set when pair i verified
+    private static final byte BATCH_KEY_SERVER = (byte) 0x00;
+    private static final byte BATCH_KEY_PARTNER = (byte) 0x01; // P2 = partner ID
+    private static final short MAX_BATCH_SIGNATURES = 64;
+    private static final short BATCH_COUNT = 0;
+    private static final short BATCH_BITMAP = 1;
+    private static final short BATCH_BITMAP_LENGTH = (short) (MAX_BATCH_SIGNATURES / 8);
+    
+    // Partner batches: transaction entry amount(2) | reference(2),
+    // response entry code(1) | balance(2)
+    private static final short NETWORK_ENTRY_LENGTH = 4;
+    private static final short NETWORK_RESULT_LENGTH = 3;
+    private static final byte NETWORK_RESULT_OK = (byte) 0x00;
+    private static final short MAX_NETWORK_BATCH_ENTRIES = 64;
+    
+    // Transaction limits
+    private static final short MAX_TRANSACTION_AMOUNT = 10000;
+    
+    // Journal readout: header of first sequence, base counter, base balance, length
+    private static final short JOURNAL_HEADER_LENGTH = 8;
+    private static final short JOURNAL_READ_MAX = 256;
+    
+    // Sync response: status(1) | next counter(2) | counter(2) | balance(2) |
+    // balance delta(2) | key ID(1), then a journal readout
+    private static final short SYNC_HEADER_LENGTH = 10;
+    private static final byte SYNC_MORE = (byte) 0x01;
+    private static final byte SYNC_HISTORY_LOST = (byte) 0x02;
+    private static final byte SYNC_KEYS_CHANGED = (byte) 0x04;
+    
+    // GET DATA tags
+    private static final byte TAG_STATE = (byte) 0xC1;
+    private static final byte TAG_BALANCE = (byte) 0xC2;
+    private static final byte TAG_COUNTER = (byte) 0xC3;
+    private static final byte TAG_KEY_ID = (byte) 0xC4;
+    private static final byte TAG_JOURNAL_HEAD = (byte) 0xC5;
+    private static final byte TAG_LIMITS = (byte) 0xC6;
+    private static final byte TAG_VERSION = (byte) 0xC7;
+    private static final byte TAG_ALGORITHMS = (byte) 0xC8;
+    private static final byte TAG_BUFFER_LIMITS = (byte) 0xC9;
+    private static final byte TAG_SESSION_BUDGET = (byte) 0xCA;
+    private static final byte TAG_MISSING_ALGORITHMS = (byte) 0xCB;
+    private static final byte TAG_MEMORY_LAYOUT = (byte) 0xCC;
+    private static final byte TAG_CARD_ID = (byte) 0x5A;
+    private static final short MAX_DATA_OBJECT_LENGTH = 10; // tag + length + largest value
+    
+    // Tags returned by GET DATA for P1-P2 0000, the only tags it accepts
+    private static final byte[] DEFAULT_DATA_TAGS = {
+        TAG_STATE, TAG_BALANCE, TAG_COUNTER, TAG_KEY_ID, TAG_JOURNAL_HEAD, TAG_LIMITS,
+        TAG_VERSION, TAG_ALGORITHMS, TAG_BUFFER_LIMITS, TAG_SESSION_BUDGET, TAG_MISSING_ALGORITHMS,
+        TAG_MEMORY_LAYOUT, TAG_CARD_ID
+    };
+    
+    // FCI template tags
+    private static final byte TAG_FCI = (byte) 0x6F;
+    private static final byte TAG_DF_NAME = (byte) 0x84;
+    private static final byte TAG_FCI_PROPRIETARY = (byte) 0xA5;
+    
+    // Wallet fields carried in the SELECT response
+    private static final byte[] FCI_DATA_TAGS = {
+        TAG_VERSION, TAG_STATE, TAG_BALANCE, TAG_COUNTER, TAG_ALGORITHMS, TAG_BUFFER_LIMITS
+    };
     
     // Applet fields
     private byte appletState;
+    // Per-command scratch in RAM (install tag 83): signed transaction data,
+    // AUTHENTICATE response, VERIFY SIGNATURE data
     private byte[] transactionBuffer;
     private byte[] keyBuffer;
     private byte[] ivBuffer;
     private byte[] challengeBuffer;
+    private byte[] challengeOwner; // channel + 1 that the outstanding challenge was issued on, 0 if none
     private byte[] signatureBuffer;
     private short balance;
     private short transactionCounter;
-    private boolean isAuthenticated;
+    private byte keyId;
+    private short keyCounter; // transaction counter at the last key change
+    private byte[] cardId;
+    private boolean keysLoaded; // set once personalization loaded key material
+    private Journal journal;
+    private byte[] resumeLog;
+    private byte resumeNext;
+    
+    // Authorized shareable interface clients, indexed by client slot
+    private byte[] clientAids;
+    private byte[] clientRights;
+    private short[] clientDebitLimits;
+    
+    // Per-channel session state and remaining budget (transient, indexed by logical channel)
+    private byte[] sessionState;
+    private short[] sessionTransactions;
+    private short[] sessionValue;
+    private short[] sessionCommands;
+    
+    // Algorithm capability bitmaps recorded by the probe
+    private byte availableAlgorithms;
+    private byte missingAlgorithms;
     
-    // Cryptographic objects
-    private Cipher cipher;
-    private MessageDigest digest;
+    // Cryptographic objects (instantiated by loadAlgorithm)
     private Signature signature;
     private KeyPair keyPair;
     private PrivateKey privateKey;
     private PublicKey publicKey;
     private RandomData random;
+    private Signature macSignature;
+    private AESKey tokenKey;
+    private AESKey sessionKey;
+    private ECPublicKey serverKey;
+    private KeyPair cardEcKeyPair;
+    private Signature ecSignature;
+    
+    // Personalization data reader and command chain state
+    private TlvParser tlvParser;
+    private short[] chainState;
+    private byte[] chainCarry; // allocated when a chain first splits a data object
+    private byte[] batchResults;
+    
+    // Partner registry and per-partner signature keys
+    private NetworkProtocol network;
+    
+    // Replay window for voucher counters
+    private ReplayFilter replayFilter;
+    
+    // Encrypt-then-MAC streams for confidential chained payloads, created on first use
+    private SecurityManager security;
     
     /**
-     * Applet constructor - secure initialization
+     * Applet constructor - secure initialization.
+     * Memory layout and algorithm profile come from the install parameters;
+     * tags that are absent keep their defaults.
      */
-    public ZereansApplet() {
+    public ZereansApplet(byte[] parameters, short offset, short length) {
+        short journalCapacity = Journal.DEFAULT_CAPACITY;
+        short clients = DEFAULT_CLIENTS;
+        short partners = DEFAULT_PARTNERS;
+        short scratchLength = DEFAULT_SCRATCH_LENGTH;
+        byte profile = DEFAULT_PROFILE;
+        
+        tlvParser = new TlvParser();
+        tlvParser.init(offset, length);
+        while (tlvParser.next(parameters)) {
+            short valueOffset = tlvParser.getValueOffset();
+            short valueLength = tlvParser.getValueLength();
+            switch (tlvParser.getTag()) {
+                case TAG_INSTALL_JOURNAL:
+                    journalCapacity = getInstallValue(parameters, valueOffset, valueLength, Journal.MIN_CAPACITY, Journal.MAX_CAPACITY);
+                    break;
+                case TAG_INSTALL_CLIENTS:
+                    clients = getInstallValue(parameters, valueOffset, valueLength, (short) 1, MAX_CLIENTS);
+                    break;
+                case TAG_INSTALL_SCRATCH:
+                    scratchLength = getInstallValue(parameters, valueOffset, valueLength, MIN_SCRATCH_LENGTH, MAX_SCRATCH_LENGTH);
+                    break;
+                case TAG_INSTALL_PARTNERS:
+                    partners = getInstallValue(parameters, valueOffset, valueLength, (short) 1, MAX_PARTNERS);
+                    break;
+                case TAG_INSTALL_PROFILE:
+                    profile = (byte) (getInstallValue(parameters, valueOffset, valueLength, (short) 0, (short) 0xFF) & ALL_ALGORITHMS);
+                    break;
+                default:
+                    // Unknown parameters are ignored for forward compatibility
+                    break;
+            }
+        }
+        
         // Initialize buffers
-        transactionBuffer = new byte[MAX_DATA_LENGTH];
+        transactionBuffer = JCSystem.makeTransientByteArray(scratchLength, JCSystem.CLEAR_ON_DESELECT);
         keyBuffer = new byte[KEY_LENGTH];
         ivBuffer = new byte[IV_LENGTH];
-        challengeBuffer = new byte[CHALLENGE_LENGTH];
+        challengeBuffer = JCSystem.makeTransientByteArray(CHALLENGE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        challengeOwner = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
         signatureBuffer = new byte[SIGNATURE_LENGTH];
         
         // Initialize state
         appletState = 0x00;
         balance = 0;
         transactionCounter = 0;
-        isAuthenticated = false;
+        keyId = 0;
+        cardId = new byte[CARD_ID_LENGTH];
+        keysLoaded = false;
+        journal = new Journal(journalCapacity);
+        resumeLog = new byte[(short) (RESUME_SLOTS * RESUME_ENTRY_LENGTH)];
+        resumeNext = 0;
+        clientAids = new byte[(short) (clients * CLIENT_ENTRY_LENGTH)];
+        clientRights = new byte[clients];
+        clientDebitLimits = new short[clients];
+        sessionState = JCSystem.makeTransientByteArray(MAX_LOGICAL_CHANNELS, JCSystem.CLEAR_ON_RESET);
+        sessionTransactions = JCSystem.makeTransientShortArray(MAX_LOGICAL_CHANNELS, JCSystem.CLEAR_ON_RESET);
+        sessionValue = JCSystem.makeTransientShortArray(MAX_LOGICAL_CHANNELS, JCSystem.CLEAR_ON_RESET);
+        sessionCommands = JCSystem.makeTransientShortArray(MAX_LOGICAL_CHANNELS, JCSystem.CLEAR_ON_RESET);
+        replayFilter = new ReplayFilter();
+        network = new NetworkProtocol((byte) partners);
+        chainState = JCSystem.makeTransientShortArray(CHAIN_STATE_LENGTH, JCSystem.CLEAR_ON_RESET);
+        batchResults = JCSystem.makeTransientByteArray((short) (BATCH_BITMAP + BATCH_BITMAP_LENGTH), JCSystem.CLEAR_ON_RESET);
         
-        // Initialize cryptographic objects (NO key generation in constructor)
-        try {
-            cipher = Cipher.getInstance(Cipher.ALG_AES_CBC_PKCS5, false);
-            digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
-            signature = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
-            keyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
-            random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-        } catch (Exception e) {
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
-        }
+        // Probe the profile's algorithms (NO key generation in constructor).
+        // Missing algorithms are recorded and reported, install still succeeds.
+        availableAlgorithms = 0;
+        missingAlgorithms = 0;
+        probeCapabilities(profile);
     }
     
     /**
-     * Applet installation
+     * Applet installation. The install data is instance AID, control
+     * information and applet data, each preceded by its length; the applet
+     * data holds the install parameter TLVs.
      */
     public static void install(byte[] bArray, short bOffset, byte bLength) {
-        new ZereansApplet().register();
+        short offset = bOffset;
+        offset += (short) ((bArray[offset] & 0xFF) + 1);
+        offset += (short) ((bArray[offset] & 0xFF) + 1);
+        short length = (short) (bArray[offset] & 0xFF);
+        new ZereansApplet(bArray, (short) (offset + 1), length).register();
+    }
+    
+    /**
+     * Read a one- or two-byte install parameter and check its range
+     */
+    private static short getInstallValue(byte[] buffer, short offset, short length, short min, short max) {
+        short value = 0;
+        if (length == 1) {
+            value = (short) (buffer[offset] & 0xFF);
+        } else if (length == 2) {
+            value = Util.getShort(buffer, offset);
+        } else {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (value < min || value > max) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return value;
+    }
+    
+    /**
+     * Selection on the first channel - start with a fresh session
+     */
+    public boolean select() {
+        resetChannel();
+        return true;
+    }
+    
+    /**
+     * Selection while another channel already has this applet active
+     */
+    public boolean select(boolean appInstAlreadyActive) {
+        resetChannel();
+        return true;
+    }
+    
+    /**
+     * Deselection of the last channel - drop its session
+     */
+    public void deselect() {
+        resetChannel();
+    }
+    
+    /**
+     * Deselection while the applet stays active on other channels
+     */
+    public void deselect(boolean appInstStillActive) {
+        resetChannel();
     }
     
     /**
@@ -94,6 +422,7 @@ public class ZereansApplet extends Applet {
         byte[] buffer = apdu.getBuffer();
         
         if (selectingApplet()) {
+            sendFci(apdu);
             return;
         }
         
@@ -103,16 +432,41 @@ public class ZereansApplet extends Applet {
         byte p2 = buffer[ISO7816.OFFSET_P2];
         byte lc = buffer[ISO7816.OFFSET_LC];
         
-        // Check command class
-        if (cla != 0x00) {
+        // Check command class (logical channel bits are ignored)
+        if (!isSupportedCla(cla)) {
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
         }
         
+        // Only personalization and batch verification may be chained
+        if (apdu.isCommandChainingCLA() && !isChainable(ins)) {
+            ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+        }
+        
+        // An open chain belongs to its channel: any other command there drops
+        // it, chainable commands on other channels are refused until it ends
+        byte channel = APDU.getCLAChannel();
+        if (chainState[CHAIN_INS] != 0 && chainState[CHAIN_CHANNEL] != channel) {
+            if (isChainable(ins)) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+        } else {
+            if (chainState[CHAIN_INS] != ins) {
+                chainState[CHAIN_INS] = 0;
+            }
+            chainState[CHAIN_CHANNEL] = channel;
+        }
+        
+        // Every command on an open session consumes its command window
+        tickSessionWindow();
+        
         // Process commands
         switch (ins) {
             case INS_INITIALIZE:
                 initialize(apdu);
                 break;
+            case INS_GET_CHALLENGE:
+                getChallenge(apdu);
+                break;
             case INS_AUTHENTICATE:
                 authenticate(apdu);
                 break;
@@ -131,19 +485,57 @@ public class ZereansApplet extends Applet {
             case INS_VERIFY_SIGNATURE:
                 verifySignature(apdu);
                 break;
+            case INS_GET_DATA:
+            case INS_GET_DATA_LIST:
+                getData(apdu);
+                break;
+            case INS_FAST_DEBIT:
+                fastDebit(apdu);
+                break;
+            case INS_REGISTER_CLIENT:
+                registerClient(apdu);
+                break;
+            case INS_READ_JOURNAL:
+                readJournal(apdu);
+                break;
+            case INS_REDEEM_VOUCHERS:
+                redeemVouchers(apdu);
+                break;
+            case INS_SYNC:
+                syncState(apdu);
+                break;
+            case INS_VERIFY_BATCH:
+                verifyBatch(apdu);
+                break;
+            case INS_SECURE_UPDATE_KEYS:
+                secureUpdateKeys(apdu);
+                break;
+            case INS_NETWORK_MESSAGE:
+                networkMessage(apdu);
+                break;
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
     }
     
     /**
-     * Secure applet initialization with proper key management
+     * Secure applet initialization with proper key management.
+     * With TLV data the card is personalized from the payload; without
+     * data a key pair is generated on the card.
      */
     private void initialize(APDU apdu) throws ISOException {
         if (appletState != 0x00) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         
+        short dataLength = receiveData(apdu);
+        if (dataLength > 0) {
+            personalize(apdu, apdu.getOffsetCdata(), dataLength, true, false);
+            resetSession();
+            return;
+        }
+        requireRsaKeyPair();
+        
         try {
             // Clear any existing keys securely
             clearSensitiveData();
@@ -152,13 +544,14 @@ public class ZereansApplet extends Applet {
             keyPair.genKeyPair();
             privateKey = (PrivateKey) keyPair.getPrivate();
             publicKey = (PublicKey) keyPair.getPublic();
+            keyId = 1;
             
             // Set initial balance
-            balance = 1000; // Initial balance
+            balance = INITIAL_BALANCE;
             transactionCounter = 0;
             
             appletState = STATE_INITIALIZED;
-            isAuthenticated = false;
+            resetSession();
             
             // Send public key securely (simplified)
             byte[] buffer = apdu.getBuffer();
@@ -177,77 +570,133 @@ public class ZereansApplet extends Applet {
     }
     
     /**
-     * Authentication with secure challenge-response
+     * GET CHALLENGE: a fresh 32-byte card nonce for the next AUTHENTICATE
+     * on this channel. Only the last challenge issued is outstanding, and
+     * the AUTHENTICATE that follows uses it up whether it succeeds or not.
+     */
+    private void getChallenge(APDU apdu) throws ISOException {
+        if (appletState != STATE_INITIALIZED) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        requireAlgorithm(ALG_BIT_RANDOM);
+        
+        random.nextBytes(challengeBuffer, (short) 0, CHALLENGE_LENGTH);
+        challengeOwner[0] = (byte) (APDU.getCLAChannel() + 1);
+        byte[] buffer = apdu.getBuffer();
+        Util.arrayCopyNonAtomic(challengeBuffer, (short) 0, buffer, (short) 0, CHALLENGE_LENGTH);
+        apdu.setOutgoingAndSend((short) 0, CHALLENGE_LENGTH);
+    }
+    
+    /**
+     * Authentication with secure challenge-response.
+     * Data: challenge(32) | server ECDSA signature over challenge | card ID,
+     * where the challenge is the one GET CHALLENGE issued on this channel,
+     * so a recorded AUTHENTICATE is never accepted again.
+     * Opens a session on the current channel with a fresh transaction budget;
+     * authenticating again on an open session renews the budget.
      */
     private void authenticate(APDU apdu) throws ISOException {
         if (appletState != STATE_INITIALIZED) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
+        Signature cardSignature = getCardSignature();
+        requireAlgorithm(ALG_BIT_RANDOM);
         
         try {
             byte[] buffer = apdu.getBuffer();
-            short dataLength = apdu.setIncomingAndReceive();
+            short dataLength = receiveData(apdu);
+            short dataOffset = apdu.getOffsetCdata();
             
             // Validate data length (challenge + signature)
-            if (dataLength < (CHALLENGE_LENGTH + SIGNATURE_LENGTH)) {
+            short signatureLength = (short) (dataLength - CHALLENGE_LENGTH);
+            if (signatureLength < MIN_SERVER_SIGNATURE_LENGTH || signatureLength > MAX_SERVER_SIGNATURE_LENGTH) {
                 ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
             }
             
-            // Extract challenge and signature
-            Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, challengeBuffer, (short) 0, CHALLENGE_LENGTH);
-            Util.arrayCopy(buffer, (short)(ISO7816.OFFSET_CDATA + CHALLENGE_LENGTH), 
-                         signatureBuffer, (short) 0, SIGNATURE_LENGTH);
+            // Only the outstanding challenge of this channel, used up by this attempt
+            boolean issued = challengeOwner[0] == (byte) (APDU.getCLAChannel() + 1)
+                && Util.arrayCompare(buffer, dataOffset, challengeBuffer, (short) 0, CHALLENGE_LENGTH) == 0;
+            challengeOwner[0] = 0;
+            if (!issued) {
+                ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
             
             // Verify challenge signature
-            if (!verifyChallengeSignature(challengeBuffer, signatureBuffer)) {
+            if (!verifyChallengeSignature(challengeBuffer, buffer, (short) (dataOffset + CHALLENGE_LENGTH),
+                                          signatureLength)) {
                 ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
             }
             
             // Generate secure response
-            byte[] response = new byte[CHALLENGE_LENGTH];
-            random.generateData(response, (short) 0, CHALLENGE_LENGTH);
+            random.nextBytes(transactionBuffer, (short) 0, CHALLENGE_LENGTH);
             
             // Sign response with private key
-            signature.init(privateKey, Signature.MODE_SIGN);
-            short sigLength = signature.sign(response, (short) 0, CHALLENGE_LENGTH, 
+            cardSignature.init(privateKey, Signature.MODE_SIGN);
+            short sigLength = cardSignature.sign(transactionBuffer, (short) 0, CHALLENGE_LENGTH, 
                                             signatureBuffer, (short) 0);
             
-            appletState = STATE_AUTHENTICATED;
-            isAuthenticated = true;
+            openSession();
             
             // Send signed response
-            Util.arrayCopy(response, (short) 0, buffer, (short) 0, CHALLENGE_LENGTH);
+            Util.arrayCopyNonAtomic(transactionBuffer, (short) 0, buffer, (short) 0, CHALLENGE_LENGTH);
             apdu.setOutgoingAndSend((short) 0, CHALLENGE_LENGTH);
             
+        } catch (ISOException e) {
+            throw e;
         } catch (Exception e) {
             ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
     }
     
     /**
-     * Secure transaction processing with signature verification
+     * Secure transaction processing with signature verification.
+     * Any number of transactions may run within the session budget.
+     * Data: amount(2) | transaction ID(8) | server signature over amount |
+     * balance | counter | transaction ID | card ID. The debit, its journal
+     * record and its result are committed in one transaction, so a tear
+     * either leaves no trace or a stored result. A retry with the ID of one
+     * of the last 16 committed transactions returns that result without a
+     * session and without executing or verifying again; an older one is
+     * verified as new and fails, as its signature covers the old balance.
+     * The stored balance is no secret: SELECT and GET DATA return it too.
      */
     private void processTransaction(APDU apdu) throws ISOException {
-        if (!isAuthenticated || appletState != STATE_AUTHENTICATED) {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-        }
-        
         try {
             byte[] buffer = apdu.getBuffer();
-            short dataLength = apdu.setIncomingAndReceive();
+            short dataLength = receiveData(apdu);
             
-            // Validate data length (amount + signature)
-            if (dataLength < (2 + SIGNATURE_LENGTH)) {
+            // Validate data length (amount + transaction ID + signature)
+            short signatureLength = (short) (dataLength - 2 - TXN_ID_LENGTH);
+            if (signatureLength < MIN_SERVER_SIGNATURE_LENGTH || signatureLength > MAX_SERVER_SIGNATURE_LENGTH) {
                 ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
             }
             
-            // Extract transaction data
-            short amount = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
-            Util.arrayCopy(buffer, (short)(ISO7816.OFFSET_CDATA + 2), 
-                         signatureBuffer, (short) 0, SIGNATURE_LENGTH);
+            // Extract transaction data; the data offset is 7 in an extended APDU
+            short amountOffset = apdu.getOffsetCdata();
+            short idOffset = (short) (amountOffset + 2);
+            short signatureOffset = (short) (idOffset + TXN_ID_LENGTH);
+            short amount = Util.getShort(buffer, amountOffset);
+            if (isZero(buffer, idOffset, TXN_ID_LENGTH)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            
+            // A retry of a committed transaction gets the stored result
+            short entry = findResumeEntry(buffer, idOffset);
+            if (entry >= 0) {
+                if (Util.getShort(resumeLog, (short) (entry + RESUME_AMOUNT)) != amount) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                Util.arrayCopyNonAtomic(resumeLog, (short) (entry + RESUME_BALANCE), buffer, (short) 0, (short) 2);
+                apdu.setOutgoingAndSend((short) 0, (short) 2);
+                return;
+            }
+            
+            if (!isSessionAuthenticated()) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
             
             // Validate amount
-            if (amount <= 0 || amount > 10000) { // Max transaction limit
+            if (amount <= 0 || amount > MAX_TRANSACTION_AMOUNT) {
                 ISOException.throwIt(ISO7816.SW_WRONG_DATA);
             }
             
@@ -256,200 +705,1653 @@ public class ZereansApplet extends Applet {
                 ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
             }
             
+            // Check remaining session budget - exhausted budget requires re-authentication
+            if (!hasSessionBudget(amount)) {
+                ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            
             // Create transaction data for signature verification
-            byte[] txnData = new byte[6];
+            byte[] txnData = transactionBuffer;
             Util.setShort(txnData, (short) 0, amount);
             Util.setShort(txnData, (short) 2, balance);
             Util.setShort(txnData, (short) 4, transactionCounter);
+            Util.arrayCopyNonAtomic(buffer, idOffset, txnData, (short) 6, TXN_ID_LENGTH);
+            Util.arrayCopyNonAtomic(cardId, (short) 0, txnData, (short) (6 + TXN_ID_LENGTH), CARD_ID_LENGTH);
             
             // Verify transaction signature
-            if (!verifyTransactionSignature(txnData, signatureBuffer)) {
+            if (!verifyServerSignature(txnData, (short) (6 + TXN_ID_LENGTH + CARD_ID_LENGTH), buffer, signatureOffset, signatureLength)) {
                 ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
             }
             
-            // Atomic transaction
-            short oldBalance = balance;
-            short oldCounter = transactionCounter;
+            // Atomic transaction: debit, journal and stored result. The
+            // counter moves on, so the signature never verifies again.
+            JCSystem.beginTransaction();
+            balance -= amount;
+            transactionCounter++;
+            logTransactionSecurely(Journal.TYPE_DEBIT, amount, Journal.SOURCE_CARD, (short) 0);
+            storeResumeEntry(buffer, idOffset, amount);
+            JCSystem.commitTransaction();
             
-            try {
-                // Execute transaction
-                balance -= amount;
-                transactionCounter++;
-                
-                // Secure transaction logging
-                logTransactionSecurely(amount);
-                
-                // Send confirmation with new balance
-                Util.setShort(buffer, (short) 0, balance);
-                apdu.setOutgoingAndSend((short) 0, (short) 2);
-                
-                appletState = STATE_ACTIVE;
-            } catch (Exception e) {
-                // Rollback on error
-                balance = oldBalance;
-                transactionCounter = oldCounter;
-                ISOException.throwIt(ISO7816.SW_UNKNOWN);
-            }
+            consumeSessionBudget(amount);
+            setSessionState(STATE_ACTIVE);
+            
+            // Send confirmation with new balance
+            Util.setShort(buffer, (short) 0, balance);
+            apdu.setOutgoingAndSend((short) 0, (short) 2);
+        } catch (ISOException e) {
+            abortOpenTransaction();
+            // Keep validation status words visible to the reader
+            throw e;
         } catch (Exception e) {
+            abortOpenTransaction();
             ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
     }
     
     /**
-     * Get balance with proper authentication and state checks
+     * Find the stored result of a transaction ID, or -1
      */
-    private void getBalance(APDU apdu) throws ISOException {
-        if (!isAuthenticated || appletState == 0x00 || appletState < STATE_INITIALIZED) {
+    private short findResumeEntry(byte[] buffer, short idOffset) {
+        for (short entry = 0; entry < (short) resumeLog.length; entry += RESUME_ENTRY_LENGTH) {
+            if (Util.arrayCompare(buffer, idOffset, resumeLog, entry, TXN_ID_LENGTH) == 0) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Store the result of the current transaction over the oldest entry;
+     * called inside the transaction that commits the debit
+     */
+    private void storeResumeEntry(byte[] buffer, short idOffset, short amount) {
+        short entry = (short) (resumeNext * RESUME_ENTRY_LENGTH);
+        Util.arrayCopy(buffer, idOffset, resumeLog, entry, TXN_ID_LENGTH);
+        Util.setShort(resumeLog, (short) (entry + RESUME_AMOUNT), amount);
+        Util.setShort(resumeLog, (short) (entry + RESUME_BALANCE), balance);
+        resumeNext = (byte) ((resumeNext + 1) % RESUME_SLOTS);
+    }
+    
+    /**
+     * Abort a transaction left open by a failed command
+     */
+    private static void abortOpenTransaction() {
+        if (JCSystem.getTransactionDepth() != 0) {
+            JCSystem.abortTransaction();
+        }
+    }
+    
+    /**
+     * Check for an all-zero value (reserved, matches empty entries)
+     */
+    private static boolean isZero(byte[] buffer, short offset, short length) {
+        for (short i = 0; i < length; i++) {
+            if (buffer[(short) (offset + i)] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * One-shot authenticated debit for the contactless fast path.
+     * The server token is a CMAC over (domain, card ID, counter, amount) under
+     * the token key, bound to this card and to the current transaction counter
+     * so it can be used once.
+     * Response: balance(2) | counter(2) | receipt CMAC(16)
+     */
+    private void fastDebit(APDU apdu) throws ISOException {
+        if (appletState != STATE_INITIALIZED) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        requireAlgorithm(ALG_BIT_CMAC);
+        if (!tokenKey.isInitialized()) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         
         byte[] buffer = apdu.getBuffer();
+        short dataLength = receiveData(apdu);
+        if (dataLength != FAST_DEBIT_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        short dataOffset = apdu.getOffsetCdata();
+        short amount = Util.getShort(buffer, dataOffset);
+        short counter = Util.getShort(buffer, (short) (dataOffset + 2));
+        short tokenOffset = (short) (dataOffset + 4);
+        
+        if (amount <= 0 || amount > MAX_TRANSACTION_AMOUNT) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (counter != transactionCounter) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (amount > balance) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        // Verify token; MAC input is assembled behind the command data
+        short macInput = (short) (tokenOffset + MAC_LENGTH);
+        buffer[macInput] = MAC_DOMAIN_TOKEN;
+        short macEnd = Util.arrayCopyNonAtomic(cardId, (short) 0, buffer, (short) (macInput + 1), CARD_ID_LENGTH);
+        macEnd = Util.setShort(buffer, macEnd, counter);
+        macEnd = Util.setShort(buffer, macEnd, amount);
+        macSignature.init(tokenKey, Signature.MODE_VERIFY);
+        if (!macSignature.verify(buffer, macInput, (short) (macEnd - macInput), buffer, tokenOffset, MAC_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        // Debit and commit atomically
+        JCSystem.beginTransaction();
+        balance -= amount;
+        transactionCounter++;
+        logTransactionSecurely(Journal.TYPE_DEBIT, amount, Journal.SOURCE_CARD, (short) 0);
+        JCSystem.commitTransaction();
+        
+        // Receipt over the committed state
+        buffer[macInput] = MAC_DOMAIN_RECEIPT;
+        Util.setShort(buffer, (short) (macInput + 1), transactionCounter);
+        Util.setShort(buffer, (short) (macInput + 3), amount);
+        Util.setShort(buffer, (short) (macInput + 5), balance);
+        macSignature.init(tokenKey, Signature.MODE_SIGN);
+        macSignature.sign(buffer, macInput, (short) 7, buffer, (short) 4);
+        
         Util.setShort(buffer, (short) 0, balance);
-        apdu.setOutgoingAndSend((short) 0, (short) 2);
+        Util.setShort(buffer, (short) 2, transactionCounter);
+        apdu.setOutgoingAndSend((short) 0, (short) (4 + MAC_LENGTH));
     }
     
     /**
-     * Get status with security information
+     * Credit a batch of server-issued vouchers in one exchange.
+     * Each voucher carries a unique voucher counter and an amount; the batch
+     * is authenticated by one CMAC under the token key over
+     * (domain, card ID, voucher data), which binds every voucher to this card.
+     * Voucher counters go through the replay filter window, so each voucher
+     * is accepted once: a redeemed voucher gets 6982, one 256 or more below
+     * the highest redeemed counter 6984. All credits and their journal
+     * records are committed together or not at all.
+     * Response: balance(2) | counter(2) | receipt CMAC(16)
      */
-    private void getStatus(APDU apdu) throws ISOException {
+    private void redeemVouchers(APDU apdu) throws ISOException {
+        if (appletState != STATE_INITIALIZED || isZero(cardId, (short) 0, CARD_ID_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        requireAlgorithm(ALG_BIT_CMAC);
+        if (!tokenKey.isInitialized()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
         byte[] buffer = apdu.getBuffer();
-        buffer[0] = appletState;
-        buffer[1] = (byte) transactionCounter;
-        buffer[2] = isAuthenticated ? (byte) 0x01 : (byte) 0x00;
-        apdu.setOutgoingAndSend((short) 0, (short) 3);
+        short dataLength = receiveData(apdu);
+        short dataOffset = apdu.getOffsetCdata();
+        short count = dataLength > 0 ? (short) (buffer[dataOffset] & 0xFF) : 0;
+        if (count == 0 || count > MAX_VOUCHERS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short signedLength = (short) (1 + count * VOUCHER_LENGTH);
+        if (dataLength != (short) (signedLength + MAC_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short macOffset = (short) (dataOffset + signedLength);
+        
+        // Check amounts and the resulting balance before touching any state
+        short total = 0;
+        for (short i = 0; i < count; i++) {
+            short amount = Util.getShort(buffer, (short) (dataOffset + 3 + i * VOUCHER_LENGTH));
+            if (amount <= 0 || amount > MAX_TRANSACTION_AMOUNT) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            if (amount > (short) (MAX_BALANCE - balance - total)) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            total += amount;
+        }
+        
+        // One MAC over the card-bound batch; prefix is assembled behind the command data
+        short macInput = (short) (macOffset + MAC_LENGTH);
+        buffer[macInput] = MAC_DOMAIN_VOUCHER;
+        Util.arrayCopyNonAtomic(cardId, (short) 0, buffer, (short) (macInput + 1), CARD_ID_LENGTH);
+        macSignature.init(tokenKey, Signature.MODE_VERIFY);
+        macSignature.update(buffer, macInput, (short) (1 + CARD_ID_LENGTH));
+        if (!macSignature.verify(buffer, dataOffset, signedLength, buffer, macOffset, MAC_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        // Mark every voucher counter, credit and journal atomically
+        try {
+            JCSystem.beginTransaction();
+            for (short i = 0; i < count; i++) {
+                short voucher = (short) (dataOffset + 1 + i * VOUCHER_LENGTH);
+                short voucherCounter = Util.getShort(buffer, voucher);
+                short amount = Util.getShort(buffer, (short) (voucher + 2));
+                byte accepted = replayFilter.acceptCounter(voucherCounter);
+                if (accepted == ReplayFilter.COUNTER_REPLAYED) {
+                    ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                if (accepted == ReplayFilter.COUNTER_TOO_OLD) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+                balance += amount;
+                transactionCounter++;
+                logTransactionSecurely(Journal.TYPE_CREDIT, amount, Journal.SOURCE_CARD, voucherCounter);
+            }
+            JCSystem.commitTransaction();
+        } catch (ISOException e) {
+            abortOpenTransaction();
+            throw e;
+        }
+        
+        // Receipt over the committed state
+        buffer[macInput] = MAC_DOMAIN_VOUCHER_RECEIPT;
+        Util.setShort(buffer, (short) (macInput + 1), transactionCounter);
+        Util.setShort(buffer, (short) (macInput + 3), total);
+        Util.setShort(buffer, (short) (macInput + 5), balance);
+        macSignature.init(tokenKey, Signature.MODE_SIGN);
+        macSignature.sign(buffer, macInput, (short) 7, buffer, (short) 4);
+        
+        Util.setShort(buffer, (short) 0, balance);
+        Util.setShort(buffer, (short) 2, transactionCounter);
+        apdu.setOutgoingAndSend((short) 0, (short) (4 + MAC_LENGTH));
     }
     
     /**
-     * Secure key update with authentication
+     * Register, update or remove a shareable interface client.
+     * Data: rights(1) | debit limit(2) | client AID; rights 0 removes the client.
      */
-    private void updateKeys(APDU apdu) throws ISOException {
-        if (!isAuthenticated || appletState != STATE_AUTHENTICATED) {
+    private void registerClient(APDU apdu) throws ISOException {
+        if (!isSessionAuthenticated()) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         
-        try {
-            // Generate new key pair
-            keyPair.genKeyPair();
-            privateKey = (PrivateKey) keyPair.getPrivate();
-            publicKey = (PublicKey) keyPair.getPublic();
-            
-            // Reset authentication after key update
-            isAuthenticated = false;
-            appletState = STATE_INITIALIZED;
-            
-            // Send new public key (simplified)
-            byte[] buffer = apdu.getBuffer();
-            short keyLength = publicKey.getSize();
-            // publicKey.getW(buffer, (short) 0); // Simplified for Java Card
-            apdu.setOutgoingAndSend((short) 0, keyLength);
-        } catch (Exception e) {
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        byte[] buffer = apdu.getBuffer();
+        short dataLength = receiveData(apdu);
+        short aidLength = (short) (dataLength - 3);
+        if (aidLength < 5 || aidLength > MAX_AID_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        short dataOffset = apdu.getOffsetCdata();
+        byte rights = buffer[dataOffset];
+        short debitLimit = Util.getShort(buffer, (short) (dataOffset + 1));
+        short aidOffset = (short) (dataOffset + 3);
+        
+        short slot = findClient(buffer, aidOffset, (byte) aidLength);
+        if (rights == 0) {
+            if (slot < 0) {
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+            }
+            clientRights[slot] = 0;
+            Util.arrayFillNonAtomic(clientAids, (short) (slot * CLIENT_ENTRY_LENGTH), CLIENT_ENTRY_LENGTH, (byte) 0x00);
+            return;
+        }
+        
+        if (slot < 0) {
+            slot = findClient(null, (short) 0, (byte) 0);
+            if (slot < 0) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
         }
+        
+        JCSystem.beginTransaction();
+        short entry = (short) (slot * CLIENT_ENTRY_LENGTH);
+        clientAids[entry] = (byte) aidLength;
+        Util.arrayCopy(buffer, aidOffset, clientAids, (short) (entry + 1), aidLength);
+        clientRights[slot] = rights;
+        clientDebitLimits[slot] = debitLimit;
+        JCSystem.commitTransaction();
     }
     
     /**
-     * Secure transaction logging with cryptographic integrity
+     * Find the slot of a registered client AID; a null AID finds a free slot
      */
-    private void logTransactionSecurely(short amount) {
-        try {
-            // Create secure transaction record
-            byte[] logEntry = new byte[10];
-            Util.setShort(logEntry, (short) 0, transactionCounter);
-            Util.setShort(logEntry, (short) 2, amount);
-            Util.setShort(logEntry, (short) 4, balance);
-            Util.setShort(logEntry, (short) 6, (short) 0x1234); // Secure timestamp placeholder
-            Util.setShort(logEntry, (short) 8, (short) 0x5678); // Additional integrity data
-            
-            // Create hash for integrity verification
-            byte[] hash = new byte[32];
-            digest.doFinal(logEntry, (short) 0, (short) 10, hash, (short) 0);
-            
-            // Sign the log entry for tamper detection
-            signature.init(privateKey, Signature.MODE_SIGN);
-            byte[] logSignature = new byte[256];
-            signature.sign(logEntry, (short) 0, (short) 10, logSignature, (short) 0);
-            
-            // In real implementation, store in EEPROM with signature
-            // For demo, securely clear buffers
-            Util.arrayFillNonAtomic(logEntry, (short) 0, (short) 10, (byte) 0x00);
-            Util.arrayFillNonAtomic(hash, (short) 0, (short) 32, (byte) 0x00);
-            Util.arrayFillNonAtomic(logSignature, (short) 0, (short) 256, (byte) 0x00);
-        } catch (Exception e) {
-            // Log error without interrupting transaction
+    private short findClient(byte[] aid, short offset, byte length) {
+        for (short slot = 0; slot < (short) clientRights.length; slot++) {
+            short entry = (short) (slot * CLIENT_ENTRY_LENGTH);
+            if (aid == null) {
+                if (clientRights[slot] == 0) {
+                    return slot;
+                }
+            } else if (clientRights[slot] != 0 && clientAids[entry] == length
+                    && Util.arrayCompare(aid, offset, clientAids, (short) (entry + 1), length) == 0) {
+                return slot;
+            }
         }
+        return -1;
     }
     
     /**
-     * Verify challenge signature (simplified)
+     * Find the slot of a registered client by its AID object
      */
-    private boolean verifyChallengeSignature(byte[] challenge, byte[] signature) {
-        try {
-            // Simplified verification for Java Card compatibility
-            // In real implementation, would use proper signature verification
-            return true; // Simplified for demo
-        } catch (Exception e) {
-            return false;
+    private short findClient(AID aid) {
+        if (aid == null) {
+            return -1;
         }
+        for (short slot = 0; slot < (short) clientRights.length; slot++) {
+            short entry = (short) (slot * CLIENT_ENTRY_LENGTH);
+            if (clientRights[slot] != 0 && aid.equals(clientAids, (short) (entry + 1), clientAids[entry])) {
+                return slot;
+            }
+        }
+        return -1;
     }
     
     /**
-     * Verify transaction signature (simplified)
+     * Hand the wallet interface only to registered client applets
      */
-    private boolean verifyTransactionSignature(byte[] txnData, byte[] signature) {
-        try {
-            // Simplified verification for Java Card compatibility
-            // In real implementation, would use proper signature verification
-            return true; // Simplified for demo
-        } catch (Exception e) {
-            return false;
+    public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {
+        if (findClient(clientAID) < 0) {
+            return null;
         }
+        return this;
     }
     
     /**
-     * Verify signature command
+     * Check the calling applet against the client table and return its slot
      */
-    private void verifySignature(APDU apdu) throws ISOException {
-        if (!isAuthenticated) {
+    private short authorizeClient(byte right) {
+        short slot = findClient(JCSystem.getPreviousContextAID());
+        if (slot < 0 || (clientRights[slot] & right) == 0) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (appletState != STATE_INITIALIZED) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        return slot;
+    }
+    
+    /**
+     * ZereansWallet - balance read for co-resident applets
+     */
+    public short getBalance() {
+        authorizeClient(RIGHT_READ);
+        return balance;
+    }
+    
+    /**
+     * ZereansWallet - authorized debit, committed together with its journal record
+     */
+    public short debit(short amount, short reference) {
+        short slot = authorizeClient(RIGHT_DEBIT);
+        if (amount <= 0 || amount > MAX_TRANSACTION_AMOUNT || amount > clientDebitLimits[slot]) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (amount > balance) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         
-        try {
-            byte[] buffer = apdu.getBuffer();
-            short dataLength = apdu.setIncomingAndReceive();
-            
-            if (dataLength < (32 + SIGNATURE_LENGTH)) {
-                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-            }
-            
-            // Extract data and signature
-            byte[] data = new byte[32];
-            byte[] sig = new byte[SIGNATURE_LENGTH];
-            Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, data, (short) 0, (short) 32);
-            Util.arrayCopy(buffer, (short)(ISO7816.OFFSET_CDATA + 32), sig, (short) 0, SIGNATURE_LENGTH);
-            
-            // Verify signature
-            boolean isValid = verifyTransactionSignature(data, sig);
-            
-            // Send result
-            buffer[0] = isValid ? (byte) 0x01 : (byte) 0x00;
-            apdu.setOutgoingAndSend((short) 0, (short) 1);
-        } catch (Exception e) {
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        // Join the caller's transaction if it has one open
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
         }
+        balance -= amount;
+        transactionCounter++;
+        logTransactionSecurely(Journal.TYPE_DEBIT, amount, (byte) (slot + 1), reference);
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+        return balance;
     }
     
     /**
-     * Secure clearing of all sensitive data
+     * ZereansWallet - client record in the wallet journal
      */
-    private void clearSensitiveData() {
-        // Clear all buffers containing sensitive data
-        Util.arrayFillNonAtomic(transactionBuffer, (short) 0, (short) transactionBuffer.length, (byte) 0x00);
-        Util.arrayFillNonAtomic(keyBuffer, (short) 0, (short) keyBuffer.length, (byte) 0x00);
-        Util.arrayFillNonAtomic(ivBuffer, (short) 0, (short) ivBuffer.length, (byte) 0x00);
-        Util.arrayFillNonAtomic(challengeBuffer, (short) 0, (short) challengeBuffer.length, (byte) 0x00);
-        Util.arrayFillNonAtomic(signatureBuffer, (short) 0, (short) signatureBuffer.length, (byte) 0x00);
-        
+    public short appendJournal(short amount, short reference) {
+        short slot = authorizeClient(RIGHT_JOURNAL);
+        logTransactionSecurely(Journal.TYPE_CLIENT, amount, (byte) (slot + 1), reference);
+        return journal.getHead();
+    }
+    
+    /**
+     * Get balance with proper authentication and state checks
+     */
+    private void getBalance(APDU apdu) throws ISOException {
+        if (!isSessionAuthenticated() || appletState == 0x00) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        Util.setShort(buffer, (short) 0, balance);
+        apdu.setOutgoingAndSend((short) 0, (short) 2);
+    }
+    
+    /**
+     * Read the compact journal. P1P2 is the byte offset into the encoded
+     * records; the response is first sequence(2) | base counter(2) |
+     * base balance(2) | encoded length(2) followed by as many encoded bytes
+     * as fit in Le. The host replays the records from the base to rebuild
+     * counters and balances.
+     */
+    private void readJournal(APDU apdu) throws ISOException {
+        if (!isSessionAuthenticated() || appletState == 0x00) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        short position = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        short used = journal.getUsed();
+        if (position < 0 || position > used) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+        
+        short le = apdu.setOutgoing();
+        if (le == 0 || le > JOURNAL_READ_MAX) {
+            le = JOURNAL_READ_MAX;
+        }
+        if (le < JOURNAL_HEADER_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        short offset = Util.setShort(buffer, (short) 0, (short) (journal.getHead() - journal.getCount() + 1));
+        offset = Util.setShort(buffer, offset, journal.getBaseCounter());
+        offset = Util.setShort(buffer, offset, journal.getBaseBalance());
+        offset = Util.setShort(buffer, offset, used);
+        offset += journal.read(position, buffer, offset, (short) (le - JOURNAL_HEADER_LENGTH));
+        
+        apdu.setOutgoingLength(offset);
+        apdu.sendBytes((short) 0, offset);
+    }
+    
+    /**
+     * Report what changed since the last transaction counter the host
+     * acknowledged. Data: acknowledged counter(2). The response carries the
+     * current counter and balance, the balance change since that counter and
+     * the key state, followed by a journal readout (same layout as
+     * READ JOURNAL) holding only the newer records. Records sharing a counter
+     * are never split; when they do not all fit, SYNC_MORE is set and the
+     * host repeats the command with the returned next counter.
+     */
+    private void syncState(APDU apdu) throws ISOException {
+        if (!isSessionAuthenticated() || appletState == 0x00) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        if (receiveData(apdu) != 2) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short acknowledged = Util.getShort(buffer, apdu.getOffsetCdata());
+        
+        short le = apdu.setOutgoing();
+        if (le == 0 || le > JOURNAL_READ_MAX) {
+            le = JOURNAL_READ_MAX;
+        }
+        if (le < (short) (SYNC_HEADER_LENGTH + JOURNAL_HEADER_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        // Replay the journal up to the acknowledged counter
+        byte status = 0;
+        short used = journal.getUsed();
+        short sequence = (short) (journal.getHead() - journal.getCount() + 1);
+        short counter = journal.getBaseCounter();
+        short ackBalance = journal.getBaseBalance();
+        if ((short) (acknowledged - counter) < 0) {
+            status |= SYNC_HISTORY_LOST;
+        }
+        short position = 0;
+        while (position < used) {
+            short length = journal.decode(position);
+            short recordCounter = (short) (counter + journal.getField(Journal.FIELD_COUNTER_DELTA));
+            if ((short) (recordCounter - acknowledged) > 0) {
+                break;
+            }
+            counter = recordCounter;
+            ackBalance += journal.getField(Journal.FIELD_BALANCE_DELTA);
+            position += length;
+            sequence++;
+        }
+        if ((short) (keyCounter - acknowledged) >= 0) {
+            status |= SYNC_KEYS_CHANGED;
+        }
+        
+        // Select newer records that fit, cutting only between counters
+        short start = position;
+        short room = (short) (le - SYNC_HEADER_LENGTH - JOURNAL_HEADER_LENGTH);
+        short groupStart = position;
+        short groupCounter = counter;
+        short next = acknowledged;
+        short lastCounter = counter;
+        while (position < used) {
+            short length = journal.decode(position);
+            short recordCounter = (short) (lastCounter + journal.getField(Journal.FIELD_COUNTER_DELTA));
+            if (recordCounter != lastCounter) {
+                groupStart = position;
+                groupCounter = lastCounter;
+            }
+            if ((short) (position + length - start) > room) {
+                status |= SYNC_MORE;
+                if (groupStart > start) {
+                    position = groupStart;
+                    lastCounter = groupCounter;
+                }
+                break;
+            }
+            lastCounter = recordCounter;
+            position += length;
+        }
+        if (position > start) {
+            next = lastCounter;
+        }
+        
+        short offset = 0;
+        buffer[offset++] = status;
+        offset = Util.setShort(buffer, offset, next);
+        offset = Util.setShort(buffer, offset, transactionCounter);
+        offset = Util.setShort(buffer, offset, balance);
+        offset = Util.setShort(buffer, offset, (short) (balance - ackBalance));
+        buffer[offset++] = keyId;
+        
+        offset = Util.setShort(buffer, offset, sequence);
+        offset = Util.setShort(buffer, offset, counter);
+        offset = Util.setShort(buffer, offset, ackBalance);
+        offset = Util.setShort(buffer, offset, (short) (position - start));
+        offset += journal.read(start, buffer, offset, (short) (position - start));
+        
+        apdu.setOutgoingLength(offset);
+        apdu.sendBytes((short) 0, offset);
+    }
+    
+    /**
+     * Get status with security information
+     */
+    private void getStatus(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        buffer[0] = getEffectiveState();
+        buffer[1] = (byte) transactionCounter;
+        buffer[2] = isSessionAuthenticated() ? (byte) 0x01 : (byte) 0x00;
+        buffer[3] = missingAlgorithms;
+        apdu.setOutgoingAndSend((short) 0, (short) 4);
+    }
+    
+    /**
+     * GET DATA - return wallet fields as BER-TLV in one exchange.
+     * INS CA takes one tag from P1-P2 (00C2, 005A, ...), 0000 returns every
+     * field; INS CB takes a list of one-byte tags as command data.
+     */
+    private void getData(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        short selector = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        short tagCount = receiveData(apdu);
+        short tagOffset = apdu.getOffsetCdata();
+        
+        // Response is assembled behind the tag list so no tag is overwritten before it is read
+        short outStart = (short) (tagOffset + tagCount);
+        short outOffset = outStart;
+        
+        if (buffer[ISO7816.OFFSET_INS] == INS_GET_DATA_LIST) {
+            if (selector != 0) {
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+            }
+            if (tagCount == 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            for (short i = 0; i < tagCount; i++) {
+                outOffset = writeDataObject(buffer[(short) (tagOffset + i)], buffer, outOffset);
+            }
+        } else if (tagCount != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        } else if (selector == 0) {
+            for (short i = 0; i < (short) DEFAULT_DATA_TAGS.length; i++) {
+                outOffset = writeDataObject(DEFAULT_DATA_TAGS[i], buffer, outOffset);
+            }
+        } else {
+            if ((selector & (short) 0xFF00) != 0 || !isDataTag((byte) selector)) {
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+            }
+            outOffset = writeDataObject((byte) selector, buffer, outOffset);
+        }
+        
+        apdu.setOutgoingAndSend(outStart, (short) (outOffset - outStart));
+    }
+    
+    /**
+     * Check for a tag GET DATA can return
+     */
+    private static boolean isDataTag(byte tag) {
+        for (short i = 0; i < (short) DEFAULT_DATA_TAGS.length; i++) {
+            if (DEFAULT_DATA_TAGS[i] == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Send the FCI template in the SELECT response so a read-only tap
+     * needs no further command: 6F { 84 AID, A5 { wallet data objects } }
+     */
+    private void sendFci(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        
+        // AID as DF name
+        short offset = 2;
+        buffer[offset++] = TAG_DF_NAME;
+        short aidLength = JCSystem.getAID().getBytes(buffer, (short) (offset + 1));
+        buffer[offset++] = (byte) aidLength;
+        offset += aidLength;
+        
+        // Proprietary template with wallet fields
+        short proprietaryOffset = offset;
+        offset += 2;
+        for (short i = 0; i < (short) FCI_DATA_TAGS.length; i++) {
+            offset = writeDataObject(FCI_DATA_TAGS[i], buffer, offset);
+        }
+        buffer[proprietaryOffset] = TAG_FCI_PROPRIETARY;
+        buffer[(short) (proprietaryOffset + 1)] = (byte) (offset - proprietaryOffset - 2);
+        
+        buffer[0] = TAG_FCI;
+        buffer[1] = (byte) (offset - 2);
+        apdu.setOutgoingAndSend((short) 0, offset);
+    }
+    
+    /**
+     * Probe every algorithm of the profile, instantiating only those engines
+     */
+    private void probeCapabilities(byte profile) {
+        for (byte bit = ALG_BIT_AES; bit <= ALG_BIT_EC; bit <<= 1) {
+            if ((profile & bit) != 0) {
+                loadAlgorithm(bit);
+            }
+        }
+    }
+    
+    /**
+     * Instantiate the engine behind one algorithm bit on first use and
+     * record whether the card supports it
+     */
+    private boolean loadAlgorithm(byte algorithm) {
+        if ((availableAlgorithms & algorithm) != 0) {
+            return true;
+        }
+        if ((missingAlgorithms & algorithm) != 0) {
+            return false;
+        }
+        
+        try {
+            switch (algorithm) {
+                case ALG_BIT_AES:
+                    getSecurityManager().loadStreamEngines();
+                    break;
+                case ALG_BIT_RSA:
+                    signature = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+                    break;
+                case ALG_BIT_CMAC:
+                    macSignature = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+                    tokenKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+                    sessionKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+                    break;
+                case ALG_BIT_RANDOM:
+                    random = RandomData.getInstance(RandomData.ALG_KEYGENERATION, false);
+                    break;
+                case ALG_BIT_EC:
+                    serverKey = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, KeyBuilder.LENGTH_EC_FP_256, false);
+                    Secp256r1.setParameters(serverKey);
+                    ecSignature = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+                    break;
+                default:
+                    return false;
+            }
+            availableAlgorithms |= algorithm;
+            return true;
+        } catch (CryptoException e) {
+            missingAlgorithms |= algorithm;
+            return false;
+        }
+    }
+    
+    /**
+     * Load an algorithm or reject the command when the card lacks it
+     */
+    private void requireAlgorithm(byte algorithm) {
+        if (!loadAlgorithm(algorithm)) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+    }
+    
+    /**
+     * Allocate the RSA-2048 CRT key pair on first initialization rather than at install
+     */
+    private void requireRsaKeyPair() {
+        requireAlgorithm(ALG_BIT_RSA);
+        if (keyPair != null) {
+            return;
+        }
+        try {
+            keyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+        } catch (CryptoException e) {
+            availableAlgorithms &= (byte) ~ALG_BIT_RSA;
+            missingAlgorithms |= ALG_BIT_RSA;
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+    }
+    
+    /**
+     * Allocate the card's P-256 key pair for an imported EC key
+     */
+    private void requireEcKeyPair() {
+        requireAlgorithm(ALG_BIT_EC);
+        if (cardEcKeyPair != null) {
+            return;
+        }
+        cardEcKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+        Secp256r1.setParameters((ECKey) cardEcKeyPair.getPublic());
+        Secp256r1.setParameters((ECKey) cardEcKeyPair.getPrivate());
+    }
+    
+    /**
+     * Signature engine matching the card key (RSA or imported EC)
+     */
+    private Signature getCardSignature() {
+        if (privateKey == null || !privateKey.isInitialized()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (privateKey.getType() == KeyBuilder.TYPE_EC_FP_PRIVATE) {
+            requireAlgorithm(ALG_BIT_EC);
+            return ecSignature;
+        }
+        requireAlgorithm(ALG_BIT_RSA);
+        return signature;
+    }
+    
+    /**
+     * Append one wallet data object (tag, length, value) to the buffer
+     */
+    private short writeDataObject(byte tag, byte[] buffer, short offset) {
+        if ((short) (offset + MAX_DATA_OBJECT_LENGTH) > (short) buffer.length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        buffer[offset++] = tag;
+        switch (tag) {
+            case TAG_STATE:
+                buffer[offset++] = 1;
+                buffer[offset++] = getEffectiveState();
+                break;
+            case TAG_BALANCE:
+                buffer[offset++] = 2;
+                offset = Util.setShort(buffer, offset, balance);
+                break;
+            case TAG_COUNTER:
+                buffer[offset++] = 2;
+                offset = Util.setShort(buffer, offset, transactionCounter);
+                break;
+            case TAG_KEY_ID:
+                buffer[offset++] = 1;
+                buffer[offset++] = keyId;
+                break;
+            case TAG_JOURNAL_HEAD:
+                buffer[offset++] = 2;
+                offset = Util.setShort(buffer, offset, journal.getHead());
+                break;
+            case TAG_LIMITS:
+                buffer[offset++] = 6;
+                offset = Util.setShort(buffer, offset, MAX_TRANSACTION_AMOUNT);
+                offset = Util.setShort(buffer, offset, SESSION_MAX_TRANSACTIONS);
+                offset = Util.setShort(buffer, offset, SESSION_MAX_VALUE);
+                break;
+            case TAG_VERSION:
+                buffer[offset++] = 2;
+                offset = Util.setShort(buffer, offset, APPLET_VERSION);
+                break;
+            case TAG_ALGORITHMS:
+                buffer[offset++] = 1;
+                buffer[offset++] = availableAlgorithms;
+                break;
+            case TAG_MISSING_ALGORITHMS:
+                buffer[offset++] = 1;
+                buffer[offset++] = missingAlgorithms;
+                break;
+            case TAG_CARD_ID:
+                buffer[offset++] = (byte) CARD_ID_LENGTH;
+                offset = Util.arrayCopyNonAtomic(cardId, (short) 0, buffer, offset, CARD_ID_LENGTH);
+                break;
+            case TAG_MEMORY_LAYOUT:
+                buffer[offset++] = 6;
+                offset = Util.setShort(buffer, offset, journal.getCapacity());
+                buffer[offset++] = (byte) clientRights.length;
+                offset = Util.setShort(buffer, offset, (short) transactionBuffer.length);
+                buffer[offset++] = network.getPartnerCapacity();
+                break;
+            case TAG_BUFFER_LIMITS:
+                buffer[offset++] = 4;
+                offset = Util.setShort(buffer, offset, (short) transactionBuffer.length);
+                offset = Util.setShort(buffer, offset, (short) buffer.length);
+                break;
+            case TAG_SESSION_BUDGET:
+                byte channel = APDU.getCLAChannel();
+                buffer[offset++] = 6;
+                offset = Util.setShort(buffer, offset, sessionTransactions[channel]);
+                offset = Util.setShort(buffer, offset, sessionValue[channel]);
+                offset = Util.setShort(buffer, offset, sessionCommands[channel]);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return offset;
+    }
+    
+    /**
+     * Secure key update with authentication.
+     * With TLV data the keys are loaded from the payload; the first load
+     * after INITIALIZE is allowed without a session so the personalization
+     * line needs no authentication. Once keys are loaded, key TLVs are
+     * refused here (6985) and rotated through SECURE UPDATE KEYS only.
+     * Without data a new key pair is generated.
+     */
+    private void updateKeys(APDU apdu) throws ISOException {
+        short dataLength = receiveData(apdu);
+        if (dataLength > 0) {
+            if (appletState == 0x00 || (keysLoaded && !isSessionAuthenticated())) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            personalize(apdu, apdu.getOffsetCdata(), dataLength, false, false);
+            if (!apdu.isCommandChainingCLA()) {
+                Util.arrayFillNonAtomic(sessionState, (short) 0, MAX_LOGICAL_CHANNELS, (byte) 0x00);
+            }
+            return;
+        }
+        
+        if (!isSessionAuthenticated()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        requireRsaKeyPair();
+        
+        try {
+            // Generate new key pair
+            keyPair.genKeyPair();
+            privateKey = (PrivateKey) keyPair.getPrivate();
+            publicKey = (PublicKey) keyPair.getPublic();
+            keyId++;
+            keyCounter = transactionCounter;
+            
+            // Reset authentication on every channel after key update
+            Util.arrayFillNonAtomic(sessionState, (short) 0, MAX_LOGICAL_CHANNELS, (byte) 0x00);
+            appletState = STATE_INITIALIZED;
+            
+            // Send new public key (simplified)
+            byte[] buffer = apdu.getBuffer();
+            short keyLength = publicKey.getSize();
+            // publicKey.getW(buffer, (short) 0); // Simplified for Java Card
+            apdu.setOutgoingAndSend((short) 0, keyLength);
+        } catch (Exception e) {
+            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        }
+    }
+    
+    /**
+     * Receive the whole command data into the APDU buffer, however many
+     * bytes the platform delivers per call. The data starts at
+     * apdu.getOffsetCdata(), 5 for a short and 7 for an extended APDU.
+     */
+    private short receiveData(APDU apdu) {
+        short offset = apdu.getOffsetCdata();
+        short expected = apdu.getIncomingLength();
+        if (expected > (short) (apdu.getBuffer().length - offset)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short received = apdu.setIncomingAndReceive();
+        while (received < expected) {
+            received += apdu.receiveBytes((short) (offset + received));
+        }
+        return received;
+    }
+    
+    /**
+     * UPDATE KEYS with the personalization TLVs encrypted under the session
+     * key (tag 82), so key material never crosses the interface in clear.
+     * Data: IV(16) in the first segment, then in every segment AES-CBC
+     * ciphertext followed by its 16-byte tag (SecurityManager streams).
+     * Each segment is authenticated before it is decrypted and loaded;
+     * every failed check returns 6982 and drops the chain.
+     */
+    private void secureUpdateKeys(APDU apdu) throws ISOException {
+        if (appletState == 0x00 || !isSessionAuthenticated()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        requireAlgorithm(ALG_BIT_CMAC);
+        requireAlgorithm(ALG_BIT_AES);
+        if (!sessionKey.isInitialized()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        short length = receiveData(apdu);
+        short offset = apdu.getOffsetCdata();
+        boolean lastSegment = !apdu.isCommandChainingCLA();
+        SecurityManager stream = getSecurityManager();
+        try {
+            if (chainState[CHAIN_INS] != INS_SECURE_UPDATE_KEYS) {
+                if (length < IV_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                stream.setStreamKey(sessionKey);
+                stream.beginStream(SecurityManager.STREAM_DECRYPT, buffer, offset);
+                offset += IV_LENGTH;
+                length -= IV_LENGTH;
+            } else if (stream.getStreamMode() != SecurityManager.STREAM_DECRYPT) {
+                ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            length = lastSegment ? stream.finishStream(buffer, offset, length)
+                                 : stream.updateStream(buffer, offset, length);
+        } catch (ISOException e) {
+            chainState[CHAIN_INS] = 0;
+            throw e;
+        } catch (CryptoException e) {
+            chainState[CHAIN_INS] = 0;
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        // Plaintext key material does not stay in the APDU buffer
+        try {
+            personalize(apdu, offset, length, false, true);
+        } catch (ISOException e) {
+            Util.arrayFillNonAtomic(buffer, offset, length, (byte) 0x00);
+            throw e;
+        }
+        Util.arrayFillNonAtomic(buffer, offset, length, (byte) 0x00);
+        if (lastSegment) {
+            Util.arrayFillNonAtomic(sessionState, (short) 0, MAX_LOGICAL_CHANNELS, (byte) 0x00);
+        }
+    }
+    
+    /**
+     * Stream cipher manager, created on first use
+     */
+    private SecurityManager getSecurityManager() {
+        if (security == null) {
+            security = new SecurityManager();
+        }
+        return security;
+    }
+    
+    /**
+     * Load personalization TLVs from the command data in one pass and one
+     * atomic commit per APDU. Card ID (5A) is accepted only when
+     * initializing; symmetric keys (81, 82), server public key (91) and an
+     * imported card key pair - RSA CRT (92-98) or EC (99, 9A) - always.
+     * Large payloads are sent either as one extended APDU or split with
+     * command chaining at any byte; a data object cut by a segment boundary
+     * is carried over and loaded once the next segment completes it, so an
+     * RSA modulus larger than a short APDU can be chained. Wallet state and
+     * the new card key take effect with the last segment. No key material
+     * is generated on the card. The TLVs are read from the APDU buffer at
+     * offset, where a decrypted segment may also be left; encrypted tells
+     * that it was, as only such a segment may replace loaded keys.
+     */
+    private void personalize(APDU apdu, short offset, short length, boolean initializing, boolean encrypted) {
+        byte[] buffer = apdu.getBuffer();
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        boolean lastSegment = !apdu.isCommandChainingCLA();
+        if (chainState[CHAIN_INS] != ins) {
+            chainState[CHAIN_FLAGS] = 0;
+            chainState[CHAIN_CARRY] = 0;
+        }
+        chainState[CHAIN_INS] = lastSegment ? 0 : ins;
+        
+        short position = offset;
+        short end = (short) (position + length);
+        
+        JCSystem.beginTransaction();
+        try {
+            byte flags = (byte) chainState[CHAIN_FLAGS];
+            
+            // Complete the data object split off the previous segment
+            short carried = chainState[CHAIN_CARRY];
+            while (carried > 0 && position < end) {
+                short total = TlvParser.getObjectLength(chainCarry, (short) 0, carried);
+                if (total > MAX_PERSO_OBJECT_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                short count = total < 0 ? 1 : (short) (total - carried);
+                if (count > (short) (end - position)) {
+                    count = (short) (end - position);
+                }
+                Util.arrayCopyNonAtomic(buffer, position, chainCarry, carried, count);
+                position += count;
+                carried += count;
+                if (carried == total) {
+                    flags |= loadPersonalizationObject(chainCarry, (short) 0, total, initializing, encrypted);
+                    carried = 0;
+                }
+            }
+            
+            // Objects inside the segment are read in place, a cut one is carried over
+            while (position < end) {
+                if (buffer[position] == 0x00 || buffer[position] == (byte) 0xFF) {
+                    position++; // padding between objects
+                    continue;
+                }
+                short available = (short) (end - position);
+                short total = TlvParser.getObjectLength(buffer, position, available);
+                if (total >= 0 && total <= available) {
+                    flags |= loadPersonalizationObject(buffer, position, total, initializing, encrypted);
+                    position += total;
+                    continue;
+                }
+                if (lastSegment || total > MAX_PERSO_OBJECT_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                Util.arrayCopyNonAtomic(buffer, position, getChainCarry(), (short) 0, available);
+                carried = available;
+                position = end;
+            }
+            if (lastSegment && carried != 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            chainState[CHAIN_CARRY] = carried;
+            chainState[CHAIN_FLAGS] = flags;
+            
+            if (lastSegment) {
+                finishPersonalization(flags, initializing);
+            }
+            JCSystem.commitTransaction();
+        } catch (ISOException e) {
+            JCSystem.abortTransaction();
+            chainState[CHAIN_INS] = 0;
+            throw e;
+        } catch (CryptoException e) {
+            JCSystem.abortTransaction();
+            chainState[CHAIN_INS] = 0;
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+    }
+    
+    /**
+     * Buffer for a data object split across chain segments, allocated on
+     * first use so cards personalized in single objects never pay for it
+     */
+    private byte[] getChainCarry() {
+        if (chainCarry == null) {
+            chainCarry = JCSystem.makeTransientByteArray(MAX_PERSO_OBJECT_LENGTH, JCSystem.CLEAR_ON_RESET);
+        }
+        return chainCarry;
+    }
+    
+    /**
+     * Load one complete personalization data object of total encoded bytes
+     * into its key object or field; returns the kind of key material it carried
+     */
+    private byte loadPersonalizationObject(byte[] buffer, short offset, short total,
+                                           boolean initializing, boolean encrypted) {
+        tlvParser.init(offset, total);
+        tlvParser.next(buffer);
+        short tag = tlvParser.getTag();
+        short valueOffset = tlvParser.getValueOffset();
+        short valueLength = tlvParser.getValueLength();
+        
+        // Loaded keys are replaced only under the session key
+        if (keysLoaded && !encrypted && tag != TAG_PERSO_CARD_ID && tag != TAG_PERSO_PARTNER_KEY) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        switch (tag) {
+            case TAG_PERSO_CARD_ID:
+                if (!initializing || valueLength != CARD_ID_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                Util.arrayCopy(buffer, valueOffset, cardId, (short) 0, CARD_ID_LENGTH);
+                return 0;
+            case TAG_PERSO_MASTER_KEY:
+                requireAlgorithm(ALG_BIT_CMAC);
+                loadAesKey(tokenKey, buffer, valueOffset, valueLength);
+                return PERSO_SYMMETRIC;
+            case TAG_PERSO_SESSION_KEY:
+                requireAlgorithm(ALG_BIT_CMAC);
+                loadAesKey(sessionKey, buffer, valueOffset, valueLength);
+                return PERSO_SYMMETRIC;
+            case TAG_PERSO_SERVER_KEY:
+                requireAlgorithm(ALG_BIT_EC);
+                if (valueLength != EC_COMPRESSED_POINT_LENGTH && valueLength != EC_POINT_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                serverKey.setW(buffer, valueOffset, valueLength);
+                return PERSO_SYMMETRIC;
+            case TAG_PERSO_RSA_MODULUS:
+                requireRsaKeyPair();
+                ((RSAPublicKey) keyPair.getPublic()).setModulus(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_RSA_EXPONENT:
+                requireRsaKeyPair();
+                ((RSAPublicKey) keyPair.getPublic()).setExponent(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_RSA_P:
+                requireRsaKeyPair();
+                ((RSAPrivateCrtKey) keyPair.getPrivate()).setP(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_RSA_Q:
+                requireRsaKeyPair();
+                ((RSAPrivateCrtKey) keyPair.getPrivate()).setQ(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_RSA_DP:
+                requireRsaKeyPair();
+                ((RSAPrivateCrtKey) keyPair.getPrivate()).setDP1(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_RSA_DQ:
+                requireRsaKeyPair();
+                ((RSAPrivateCrtKey) keyPair.getPrivate()).setDQ1(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_RSA_QINV:
+                requireRsaKeyPair();
+                ((RSAPrivateCrtKey) keyPair.getPrivate()).setPQ(buffer, valueOffset, valueLength);
+                return PERSO_RSA;
+            case TAG_PERSO_EC_PRIVATE:
+                requireEcKeyPair();
+                ((ECPrivateKey) cardEcKeyPair.getPrivate()).setS(buffer, valueOffset, valueLength);
+                return PERSO_EC;
+            case TAG_PERSO_EC_PUBLIC:
+                requireEcKeyPair();
+                ((ECPublicKey) cardEcKeyPair.getPublic()).setW(buffer, valueOffset, valueLength);
+                return PERSO_EC;
+            case TAG_PERSO_PARTNER_KEY:
+                loadPartnerKey(buffer, valueOffset, valueLength);
+                return 0;
+            default:
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return 0;
+    }
+    
+    /**
+     * Apply the loaded personalization: switch to an imported card key
+     * and update wallet state
+     */
+    private void finishPersonalization(byte flags, boolean initializing) {
+        if ((flags & PERSO_RSA) != 0) {
+            if ((flags & PERSO_EC) != 0 || !keyPair.getPrivate().isInitialized()
+                    || !keyPair.getPublic().isInitialized()) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            privateKey = keyPair.getPrivate();
+            publicKey = keyPair.getPublic();
+        } else if ((flags & PERSO_EC) != 0) {
+            if (!cardEcKeyPair.getPrivate().isInitialized()) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            privateKey = cardEcKeyPair.getPrivate();
+            publicKey = cardEcKeyPair.getPublic();
+            network.setSigningKey((ECPrivateKey) privateKey);
+        }
+        
+        if (initializing) {
+            balance = INITIAL_BALANCE;
+            transactionCounter = 0;
+            keyId = 1;
+            appletState = STATE_INITIALIZED;
+        } else {
+            keyId++;
+        }
+        keyCounter = transactionCounter;
+        if (flags != 0) {
+            keysLoaded = true;
+        }
+    }
+    
+    /**
+     * Register a partner if needed and load its signature key into the
+     * partner's preallocated key object
+     */
+    private void loadPartnerKey(byte[] buffer, short offset, short length) {
+        requireAlgorithm(ALG_BIT_EC);
+        short pointLength = (short) (length - 1);
+        if (pointLength != EC_COMPRESSED_POINT_LENGTH && pointLength != EC_POINT_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        byte partnerId = buffer[offset];
+        if (!network.isPartnerValid(partnerId) && !network.addPartner(partnerId)) {
+            ISOException.throwIt(partnerId == 0 ? ISO7816.SW_WRONG_DATA : ISO7816.SW_FILE_FULL);
+        }
+        if (!network.setPartnerKey(partnerId, buffer, (short) (offset + 1), pointLength)) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+    }
+    
+    /**
+     * Load an AES-128 key value from the buffer
+     */
+    private static void loadAesKey(AESKey key, byte[] buffer, short offset, short length) {
+        if (length != KEY_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        key.setKey(buffer, offset);
+    }
+    
+    /**
+     * Record the operation in the compact on-card journal. Records are
+     * delta-encoded and unsigned; their integrity rests on the transaction
+     * that commits them together with the balance.
+     */
+    private void logTransactionSecurely(byte type, short amount, byte source, short reference) {
+        journal.append(type, transactionCounter, balance, amount, source, reference);
+    }
+    
+    /**
+     * Verify many (data, signature) pairs against one key in a single pass.
+     * Data: repeated data length(1) | data | signature length(1) | signature,
+     * with pairs never split across segments. The batch may be sent as a
+     * command chain; the first segment chooses the key for the whole chain
+     * and every segment initializes the verifier with it again, as commands
+     * on other channels between segments use the same engine. The last
+     * segment returns pair count(1) | result bitmap, bit i (LSB first) set
+     * when pair i verified.
+     * P1 00 (P2 00) selects the server key, P1 01 the signature key of the
+     * partner whose ID is in P2; both are ECDSA P-256.
+     */
+    private void verifyBatch(APDU apdu) throws ISOException {
+        if (!isSessionAuthenticated()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        boolean lastSegment = !apdu.isCommandChainingCLA();
+        boolean firstSegment = chainState[CHAIN_INS] != ins;
+        chainState[CHAIN_INS] = lastSegment ? 0 : ins;
+        short length = receiveData(apdu);
+        
+        try {
+            short selector = firstSegment ? Util.getShort(buffer, ISO7816.OFFSET_P1) : chainState[CHAIN_KEY];
+            ecSignature.init(getBatchKey(selector), Signature.MODE_VERIFY);
+            if (firstSegment) {
+                chainState[CHAIN_KEY] = selector;
+                Util.arrayFillNonAtomic(batchResults, (short) 0, (short) batchResults.length, (byte) 0x00);
+            }
+            
+            short offset = apdu.getOffsetCdata();
+            short end = (short) (offset + length);
+            while (offset < end) {
+                short dataLength = (short) (buffer[offset++] & 0xFF);
+                if (dataLength > (short) (end - offset - 1)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                short dataOffset = offset;
+                offset += dataLength;
+                short signatureLength = (short) (buffer[offset++] & 0xFF);
+                if (signatureLength > (short) (end - offset)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                short index = (short) (batchResults[BATCH_COUNT] & 0xFF);
+                if (index >= MAX_BATCH_SIGNATURES) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                
+                // verify() leaves the engine initialized with the same key
+                boolean valid;
+                try {
+                    valid = ecSignature.verify(buffer, dataOffset, dataLength, buffer, offset, signatureLength);
+                } catch (CryptoException e) {
+                    valid = false; // malformed signature encoding
+                }
+                if (valid) {
+                    batchResults[(short) (BATCH_BITMAP + (index >> 3))] |= (byte) (1 << (index & 0x07));
+                }
+                batchResults[BATCH_COUNT] = (byte) (index + 1);
+                offset += signatureLength;
+            }
+        } catch (ISOException e) {
+            chainState[CHAIN_INS] = 0;
+            throw e;
+        }
+        
+        if (lastSegment) {
+            short count = (short) (batchResults[BATCH_COUNT] & 0xFF);
+            short resultLength = (short) (1 + (short) ((short) (count + 7) >> 3));
+            Util.arrayCopyNonAtomic(batchResults, (short) 0, buffer, (short) 0, resultLength);
+            apdu.setOutgoingAndSend((short) 0, resultLength);
+        }
+    }
+    
+    /**
+     * Relay one partner network frame in an authenticated session.
+     * Fragments of a longer message return no data until the last one. A
+     * handshake the partner started returns the card's signed answer. A
+     * batch runs each transaction entry as a debit and returns one batch
+     * with a response entry per transaction entry, in order; response and
+     * error entries are acknowledgements and get none. A frame the
+     * protocol refuses (partner, MAC, signature, sequence) returns 6982.
+     */
+    private void networkMessage(APDU apdu) throws ISOException {
+        if (appletState != STATE_INITIALIZED || !isSessionAuthenticated()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        short length = receiveData(apdu);
+        if (!network.parseMessage(buffer, apdu.getOffsetCdata(), length)) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (!network.isMessageComplete()) {
+            return;
+        }
+        
+        byte partnerId = network.getPartnerId();
+        short replyLength = 0;
+        switch (network.getMessageType()) {
+            case NetworkProtocol.MSG_HANDSHAKE:
+                if (network.isHandshakeReplyPending(partnerId)) {
+                    replyLength = network.createHandshakeMessage(partnerId, buffer, (short) 0);
+                    if (replyLength == 0) {
+                        ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                    }
+                }
+                break;
+            case NetworkProtocol.MSG_BATCH:
+                replyLength = runNetworkBatch(partnerId, buffer);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if (replyLength > 0) {
+            apdu.setOutgoingAndSend((short) 0, replyLength);
+        }
+    }
+    
+    /**
+     * Run the transaction entries of the received batch and build the
+     * answer batch in the APDU buffer. Results are collected at the start
+     * of the buffer with each entry copied right behind them; an entry that
+     * does not fit there gets 6700, after the entries before it have run.
+     */
+    private short runNetworkBatch(byte partnerId, byte[] buffer) {
+        if (network.getBatchEntryCount() > MAX_NETWORK_BATCH_ENTRIES) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        short results = 0;
+        short entryLength = network.nextBatchEntry(buffer, results);
+        while (entryLength >= 0) {
+            if (network.getBatchEntryType() == NetworkProtocol.MSG_TRANSACTION) {
+                buffer[results] = runNetworkDebit(buffer, results, entryLength);
+                Util.setShort(buffer, (short) (results + 1), balance);
+                results += NETWORK_RESULT_LENGTH;
+            }
+            entryLength = network.nextBatchEntry(buffer, results);
+        }
+        if (entryLength == NetworkProtocol.ENTRY_TOO_LONG) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        if (!network.beginBatch(partnerId)) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        for (short offset = 0; offset < results; offset += NETWORK_RESULT_LENGTH) {
+            network.addBatchEntry(NetworkProtocol.MSG_RESPONSE, buffer, offset, NETWORK_RESULT_LENGTH);
+        }
+        return network.createBatchMessage(buffer, (short) 0);
+    }
+    
+    /**
+     * Debit one partner transaction entry within the session budget, with
+     * its reference in the journal; returns the response code
+     */
+    private byte runNetworkDebit(byte[] buffer, short offset, short length) {
+        if (length != NETWORK_ENTRY_LENGTH) {
+            return NetworkProtocol.ERR_NETWORK_ERROR;
+        }
+        short amount = Util.getShort(buffer, offset);
+        short reference = Util.getShort(buffer, (short) (offset + 2));
+        if (amount <= 0 || amount > MAX_TRANSACTION_AMOUNT) {
+            return NetworkProtocol.ERR_NETWORK_ERROR;
+        }
+        if (amount > balance) {
+            return NetworkProtocol.ERR_INSUFFICIENT_FUNDS;
+        }
+        if (!hasSessionBudget(amount)) {
+            return NetworkProtocol.ERR_AUTHENTICATION_FAILED;
+        }
+        
+        JCSystem.beginTransaction();
+        balance -= amount;
+        transactionCounter++;
+        logTransactionSecurely(Journal.TYPE_DEBIT, amount, Journal.SOURCE_CARD, reference);
+        JCSystem.commitTransaction();
+        
+        consumeSessionBudget(amount);
+        setSessionState(STATE_ACTIVE);
+        return NETWORK_RESULT_OK;
+    }
+    
+    /**
+     * Verification key of a batch from its P1-P2
+     */
+    private ECPublicKey getBatchKey(short selector) {
+        requireAlgorithm(ALG_BIT_EC);
+        byte p2 = (byte) selector;
+        switch ((byte) (selector >> 8)) {
+            case BATCH_KEY_SERVER:
+                if (p2 != 0) {
+                    ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+                }
+                if (!serverKey.isInitialized()) {
+                    ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                }
+                return serverKey;
+            case BATCH_KEY_PARTNER:
+                ECPublicKey key = network.getPartnerKey(p2);
+                if (key == null) {
+                    ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+                }
+                return key;
+            default:
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        return null;
+    }
+    
+    /**
+     * Verify the server signature over challenge | card ID, which binds
+     * the challenge to this card
+     */
+    private boolean verifyChallengeSignature(byte[] challenge, byte[] signature, short offset, short length) {
+        if (!beginServerVerify()) {
+            return false;
+        }
+        try {
+            ecSignature.update(challenge, (short) 0, CHALLENGE_LENGTH);
+            return ecSignature.verify(cardId, (short) 0, CARD_ID_LENGTH, signature, offset, length);
+        } catch (CryptoException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Verify the server ECDSA-SHA256 signature over data
+     */
+    private boolean verifyServerSignature(byte[] data, short dataLength, byte[] signature, short offset, short length) {
+        if (!beginServerVerify()) {
+            return false;
+        }
+        try {
+            return ecSignature.verify(data, (short) 0, dataLength, signature, offset, length);
+        } catch (CryptoException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Initialize ECDSA verification with the server key; false without one
+     */
+    private boolean beginServerVerify() {
+        requireAlgorithm(ALG_BIT_EC);
+        if (!serverKey.isInitialized()) {
+            return false;
+        }
+        ecSignature.init(serverKey, Signature.MODE_VERIFY);
+        return true;
+    }
+    
+    /**
+     * Verify signature command
+     */
+    private void verifySignature(APDU apdu) throws ISOException {
+        if (!isSessionAuthenticated()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        try {
+            byte[] buffer = apdu.getBuffer();
+            short dataLength = receiveData(apdu);
+            
+            short signatureLength = (short) (dataLength - 32);
+            if (signatureLength < MIN_SERVER_SIGNATURE_LENGTH || signatureLength > MAX_SERVER_SIGNATURE_LENGTH) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            
+            // Extract data; the signature is verified in place
+            short dataOffset = apdu.getOffsetCdata();
+            Util.arrayCopyNonAtomic(buffer, dataOffset, transactionBuffer, (short) 0, (short) 32);
+            
+            // Verify signature
+            boolean isValid = verifyServerSignature(transactionBuffer, (short) 32, buffer, (short) (dataOffset + 32), signatureLength);
+            
+            // Send result
+            buffer[0] = isValid ? (byte) 0x01 : (byte) 0x00;
+            apdu.setOutgoingAndSend((short) 0, (short) 1);
+        } catch (ISOException e) {
+            throw e;
+        } catch (Exception e) {
+            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        }
+    }
+    
+    /**
+     * Secure clearing of all sensitive data
+     */
+    private void clearSensitiveData() {
+        // Clear all buffers containing sensitive data
+        Util.arrayFillNonAtomic(transactionBuffer, (short) 0, (short) transactionBuffer.length, (byte) 0x00);
+        Util.arrayFillNonAtomic(keyBuffer, (short) 0, (short) keyBuffer.length, (byte) 0x00);
+        Util.arrayFillNonAtomic(ivBuffer, (short) 0, (short) ivBuffer.length, (byte) 0x00);
+        Util.arrayFillNonAtomic(challengeBuffer, (short) 0, (short) challengeBuffer.length, (byte) 0x00);
+        Util.arrayFillNonAtomic(signatureBuffer, (short) 0, (short) signatureBuffer.length, (byte) 0x00);
+        
         // Reset authentication state
-        isAuthenticated = false;
+        resetSession();
+    }
+    
+    /**
+     * Session state of the logical channel carrying the current command
+     */
+    private byte getSessionState() {
+        return sessionState[APDU.getCLAChannel()];
+    }
+    
+    /**
+     * Set session state of the current logical channel
+     */
+    private void setSessionState(byte state) {
+        sessionState[APDU.getCLAChannel()] = state;
+    }
+    
+    /**
+     * Drop authentication and budget on the current logical channel
+     */
+    private void resetSession() {
+        resetSession(APDU.getCLAChannel());
+    }
+    
+    /**
+     * Drop authentication and budget on a logical channel
+     */
+    private void resetSession(byte channel) {
+        sessionState[channel] = 0x00;
+        sessionTransactions[channel] = 0;
+        sessionValue[channel] = 0;
+        sessionCommands[channel] = 0;
+    }
+    
+    /**
+     * Drop the session and any command chain of the channel being selected
+     * or deselected; MANAGE CHANNEL close arrives on another channel
+     */
+    private void resetChannel() {
+        byte channel = JCSystem.getAssignedChannel();
+        resetSession(channel);
+        if (chainState[CHAIN_CHANNEL] == channel) {
+            chainState[CHAIN_INS] = 0;
+        }
+    }
+    
+    /**
+     * Open an authenticated session with a full budget on the current channel
+     */
+    private void openSession() {
+        byte channel = APDU.getCLAChannel();
+        sessionState[channel] = STATE_AUTHENTICATED;
+        sessionTransactions[channel] = SESSION_MAX_TRANSACTIONS;
+        sessionValue[channel] = SESSION_MAX_VALUE;
+        sessionCommands[channel] = SESSION_MAX_COMMANDS;
+    }
+    
+    /**
+     * Count one command against the session window; the session
+     * expires once the window is used up
+     */
+    private void tickSessionWindow() {
+        byte channel = APDU.getCLAChannel();
+        if (sessionState[channel] == 0x00) {
+            return;
+        }
+        if (sessionCommands[channel] <= 0) {
+            resetSession();
+            return;
+        }
+        sessionCommands[channel]--;
+    }
+    
+    /**
+     * Check if the session can still cover a transaction of this amount
+     */
+    private boolean hasSessionBudget(short amount) {
+        byte channel = APDU.getCLAChannel();
+        return sessionTransactions[channel] > 0 && amount <= sessionValue[channel];
+    }
+    
+    /**
+     * Charge a completed transaction to the session budget
+     */
+    private void consumeSessionBudget(short amount) {
+        byte channel = APDU.getCLAChannel();
+        sessionTransactions[channel]--;
+        sessionValue[channel] -= amount;
+    }
+    
+    /**
+     * Check if the current logical channel is authenticated
+     */
+    private boolean isSessionAuthenticated() {
+        byte state = getSessionState();
+        return state == STATE_AUTHENTICATED || state == STATE_ACTIVE;
+    }
+    
+    /**
+     * State reported to the host: session state if a session is open,
+     * otherwise the applet life cycle state
+     */
+    private byte getEffectiveState() {
+        byte state = getSessionState();
+        return state != 0x00 ? state : appletState;
+    }
+    
+    /**
+     * Commands that may span a command chain and share the chain state
+     */
+    private static boolean isChainable(byte ins) {
+        return ins == INS_INITIALIZE || ins == INS_UPDATE_KEYS || ins == INS_SECURE_UPDATE_KEYS
+            || ins == INS_VERIFY_BATCH;
+    }
+    
+    /**
+     * Check for an interindustry or proprietary (b8 set, as used by the
+     * personalization scripts) class byte on any logical channel, with or
+     * without command chaining
+     */
+    private static boolean isSupportedCla(byte cla) {
+        cla &= 0x6F; // proprietary and command chaining bits
+        if ((cla & 0x40) == 0) {
+            // First interindustry values, channels 0-3 in b2-b1
+            return (byte) (cla & 0xFC) == 0x00;
+        }
+        // Further interindustry values, channels 4-19 in b4-b1
+        return (byte) (cla & 0xF0) == 0x40;
     }
 }
@@ -0,0 +1,36 @@
+package com.zereans.applet;
+
+import javacard.framework.*;
+
+/**
+ * Shareable wallet interface for co-resident applets
+ * 
+ * Obtained through JCSystem.getAppletShareableInterfaceObject() with the
+ * Zereans applet AID. Only client AIDs registered on the wallet receive the
+ * interface, and every call is checked again against the rights of the
+ * calling context. Failures are reported with ISOException status words.
+ */
+public interface ZereansWallet extends Shareable {
+    
+    // Client rights
+    public static final byte RIGHT_READ = (byte) 0x01;
+    public static final byte RIGHT_DEBIT = (byte) 0x02;
+    public static final byte RIGHT_JOURNAL = (byte) 0x04;
+    
+    /**
+     * Current wallet balance (RIGHT_READ)
+     */
+    public short getBalance();
+    
+    /**
+     * Debit the wallet atomically and journal it under the client (RIGHT_DEBIT).
+     * Returns the new balance.
+     */
+    public short debit(short amount, short reference);
+    
+    /**
+     * Append a client record to the wallet journal (RIGHT_JOURNAL).
+     * Returns the journal sequence number of the record.
+     */
+    public short appendJournal(short amount, short reference);
+}
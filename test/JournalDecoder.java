@@ -0,0 +1,138 @@
+package com.zereans.applet.test;
+
+import java.util.*;
+
+/**
+ * Host-side decoder for the compact journal returned by READ JOURNAL (INS 0A)
+ * Replays the delta-encoded records from the base checkpoint to rebuild the
+ * absolute counter and balance of every record.
+ */
+public class JournalDecoder {
+    
+    public static final int TYPE_DEBIT = 1;
+    public static final int TYPE_CREDIT = 2;
+    public static final int TYPE_CLIENT = 3;
+    
+    private static final int HEADER_LENGTH = 8;
+    
+    /**
+     * One decoded journal record
+     */
+    public static class Record {
+        public int sequence;
+        public int type;
+        public int counter;
+        public int amount;
+        public int balance;
+        public int source;
+        public int reference;
+        
+        public String toString() {
+            String name = type == TYPE_DEBIT ? "DEBIT" : type == TYPE_CREDIT ? "CREDIT" : type == TYPE_CLIENT ? "CLIENT" : "TYPE" + type;
+            return String.format("#%d %s counter=%d amount=%d balance=%d source=%d reference=%04X",
+                sequence, name, counter, amount, balance, source, reference);
+        }
+    }
+    
+    /**
+     * Decode a full readout: header followed by all encoded bytes
+     */
+    public static List<Record> decode(byte[] readout) {
+        if (readout.length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Journal readout shorter than its header");
+        }
+        int sequence = getShort(readout, 0);
+        int counter = getShort(readout, 2);
+        int balance = (short) getShort(readout, 4);
+        int length = getShort(readout, 6);
+        if (readout.length < HEADER_LENGTH + length) {
+            throw new IllegalArgumentException("Journal readout truncated: " + (readout.length - HEADER_LENGTH) + " of " + length + " bytes");
+        }
+        
+        List<Record> records = new ArrayList<Record>();
+        int[] position = {HEADER_LENGTH};
+        int end = HEADER_LENGTH + length;
+        while (position[0] < end) {
+            int header = readout[position[0]++] & 0xFF;
+            Record record = new Record();
+            record.sequence = sequence++;
+            record.type = (header >> 6) & 0x03;
+            
+            int counterDelta = header & 0x07;
+            if (counterDelta == 0x07) {
+                counterDelta = readVarint(readout, position);
+            }
+            record.amount = readVarint(readout, position);
+            if ((header & 0x20) != 0) {
+                record.source = readout[position[0]++] & 0xFF;
+            }
+            if ((header & 0x10) != 0) {
+                record.reference = readVarint(readout, position);
+            }
+            
+            int balanceDelta;
+            if ((header & 0x08) != 0) {
+                int zigzag = readVarint(readout, position);
+                balanceDelta = (short) ((zigzag >>> 1) ^ -(zigzag & 1));
+            } else if (record.type == TYPE_DEBIT) {
+                balanceDelta = -record.amount;
+            } else if (record.type == TYPE_CREDIT) {
+                balanceDelta = record.amount;
+            } else {
+                balanceDelta = 0;
+            }
+            
+            counter = (counter + counterDelta) & 0xFFFF;
+            balance = (short) (balance + balanceDelta);
+            record.counter = counter;
+            record.balance = balance;
+            records.add(record);
+        }
+        if (position[0] != end) {
+            throw new IllegalArgumentException("Journal record runs past the encoded length");
+        }
+        return records;
+    }
+    
+    private static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 21; shift += 7) {
+            int b = data[position[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return value & 0xFFFF;
+    }
+    
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+    
+    private static byte[] hexToBytes(String hex) {
+        hex = hex.replaceAll("\\s", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * Decode a readout given as hex on the command line (response data without SW)
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: JournalDecoder <hex readout>");
+            return;
+        }
+        StringBuilder hex = new StringBuilder();
+        for (String arg : args) {
+            hex.append(arg);
+        }
+        for (Record record : decode(hexToBytes(hex.toString()))) {
+            System.out.println(record);
+        }
+    }
+}
@@ -281,6 +281,48 @@ public class ZereansAppletTestClean {
         }
     }
     
+    /**
+     * Test host decoding of the compact journal readout
+     */
+    public static boolean testJournalDecoding() {
+        testCount++;
+        try {
+            System.out.println("Testing journal decoding...");
+            
+            // First sequence 1, base counter 0, base balance 0, 11 encoded bytes
+            byte[] readout = {
+                0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x0B,
+                0x49, 0x64, (byte)0x88, 0x0E,         // debit 100, counter +1, balance +900 explicit
+                0x41, 0x32,                           // debit 50, counter +1
+                (byte)0xF0, 0x05, 0x01, (byte)0xB4, 0x24 // client record 5, source 1, reference 1234
+            };
+            List<JournalDecoder.Record> records = JournalDecoder.decode(readout);
+            for (JournalDecoder.Record record : records) {
+                System.out.println("✓ " + record);
+            }
+            
+            boolean countOk = records.size() == 3;
+            boolean valuesOk = countOk
+                && records.get(0).counter == 1 && records.get(0).balance == 900
+                && records.get(1).counter == 2 && records.get(1).balance == 850
+                && records.get(2).sequence == 3 && records.get(2).counter == 2 && records.get(2).balance == 850
+                && records.get(2).source == 1 && records.get(2).reference == 0x1234;
+            System.out.println("✓ Reconstructed counters and balances: " + (valuesOk ? "SUCCESS" : "FAILED"));
+            
+            if (valuesOk) {
+                passedTests++;
+                return true;
+            } else {
+                failedTests++;
+                return false;
+            }
+        } catch (Exception e) {
+            System.err.println("Journal decoding test failed: " + e.getMessage());
+            failedTests++;
+            return false;
+        }
+    }
+    
     // Helper methods
     
     private static byte[] createSelectAPDU() {
@@ -473,6 +515,9 @@ public class ZereansAppletTestClean {
         boolean errorTest = testErrorHandling();
         System.out.println();
         
+        boolean journalTest = testJournalDecoding();
+        System.out.println();
+        
         System.out.println("=== Test Results ===");
         System.out.println("Initialization: " + (initTest ? "PASS" : "FAIL"));
         System.out.println("Authentication: " + (authTest ? "PASS" : "FAIL"));
@@ -481,6 +526,7 @@ public class ZereansAppletTestClean {
         System.out.println("Network Protocol: " + (networkTest ? "PASS" : "FAIL"));
         System.out.println("Performance: " + (perfTest ? "PASS" : "FAIL"));
         System.out.println("Error Handling: " + (errorTest ? "PASS" : "FAIL"));
+        System.out.println("Journal Decoding: " + (journalTest ? "PASS" : "FAIL"));
         
         System.out.println("\n=== Summary ===");
         System.out.println("Total tests: " + testCount);
@@ -1,7 +1,7 @@
 param(
     [Parameter(Mandatory=$true)][string]$CardId,
     [string]$OutDir = "./secrets/cards",
-    [int]$KeyBytes = 32,
+    [int]$KeyBytes = 16,
     [string]$DbPath = "./card_keys.db",
     [string]$ServerPubHexPath = "./secrets/server_pub_raw.hex"
 )
@@ -25,6 +25,14 @@ $sessionHex = New-RandomHex $KeyBytes
 Set-Content -Path (Join-Path $cardDir 'master_auth_key.hex') -Value $masterHex -NoNewline
 Set-Content -Path (Join-Path $cardDir 'session_key.hex') -Value $sessionHex -NoNewline
 
+# Card signing key (P-256), imported at personalization instead of generated on card
+$ecdsa = [System.Security.Cryptography.ECDsa]::Create([System.Security.Cryptography.ECCurve+NamedCurves]::nistP256)
+$ecParams = $ecdsa.ExportParameters($true)
+$cardPrivHex = ($ecParams.D | ForEach-Object { $_.ToString('X2') }) -join ''
+$cardPubHex = '04' + (($ecParams.Q.X + $ecParams.Q.Y | ForEach-Object { $_.ToString('X2') }) -join '')
+Set-Content -Path (Join-Path $cardDir 'card_private.hex') -Value $cardPrivHex -NoNewline
+Set-Content -Path (Join-Path $cardDir 'card_pub.hex') -Value $cardPubHex -NoNewline
+
 $serverPubHex = ''
 if (Test-Path $ServerPubHexPath) { $serverPubHex = (Get-Content $ServerPubHexPath -Raw).Trim() }
 
@@ -36,6 +44,7 @@ $profile = [ordered]@{
     master_auth_key_hex = $masterHex
     session_key_hex = $sessionHex
     server_pubkey_hex = $serverPubHex
+    card_pubkey_hex = $cardPubHex
 }
 
 $json = $profile | ConvertTo-Json -Depth 4
@@ -19,7 +19,7 @@ fi
 CARD_DIR="$OUT_DIR/$CARD_ID"
 mkdir -p "$CARD_DIR"
 
-# 32-byte random hex
+# random hex of N bytes
 rand_hex() {
   # tries /dev/urandom; fallback to openssl
   if command -v hexdump >/dev/null 2>&1; then
@@ -29,12 +29,21 @@ rand_hex() {
   fi
 }
 
-MASTER_HEX=$(rand_hex 32)
-SESSION_HEX=$(rand_hex 32)
+MASTER_HEX=$(rand_hex 16)
+SESSION_HEX=$(rand_hex 16)
 
 printf "%s" "$MASTER_HEX" > "$CARD_DIR/master_auth_key.hex"
 printf "%s" "$SESSION_HEX" > "$CARD_DIR/session_key.hex"
 
+# Card signing key (P-256), imported at personalization instead of generated on card
+CARD_KEY_PEM="$CARD_DIR/card_key.pem"
+openssl ecparam -genkey -name prime256v1 -noout -out "$CARD_KEY_PEM"
+# SEC1 DER: 30 77 02 01 01 04 20 <32-byte scalar> ...
+CARD_PRIV_HEX=$(openssl ec -in "$CARD_KEY_PEM" -outform DER 2>/dev/null | tail -c +8 | head -c 32 | od -An -v -t x1 | tr -d ' \n' | tr '[:lower:]' '[:upper:]')
+CARD_PUB_HEX=$(openssl ec -in "$CARD_KEY_PEM" -pubout -outform DER 2>/dev/null | tail -c 65 | od -An -v -t x1 | tr -d ' \n' | tr '[:lower:]' '[:upper:]')
+printf "%s" "$CARD_PRIV_HEX" > "$CARD_DIR/card_private.hex"
+printf "%s" "$CARD_PUB_HEX" > "$CARD_DIR/card_pub.hex"
+
 SERVER_PUB_HEX=""
 if [ -f "$SERVER_PUB_HEX_PATH" ]; then
   SERVER_PUB_HEX=$(tr -d '\n\r' < "$SERVER_PUB_HEX_PATH")
@@ -46,7 +55,8 @@ cat > "$CARD_DIR/card_profile.json" <<JSON
   "uid": "$CARD_ID",
   "master_auth_key_hex": "$MASTER_HEX",
   "session_key_hex": "$SESSION_HEX",
-  "server_pubkey_hex": "$SERVER_PUB_HEX"
+  "server_pubkey_hex": "$SERVER_PUB_HEX",
+  "card_pubkey_hex": "$CARD_PUB_HEX"
 }
 JSON
 
@@ -3,6 +3,7 @@ param(
     [string]$CapPath = "",
     [string]$Key = "404142434445464748494A4B4C4D4E4F", # default test keys
     [string]$InstanceAID = "A00000006203010C06",           # applet AID
+    [string]$InstallParams = "",                           # applet install parameter TLVs (hex)
     [switch]$VerboseMode
 )
 
@@ -27,6 +28,7 @@ $args = @(
     "-default",
     "-create", $InstanceAID
 )
+if (-not [string]::IsNullOrWhiteSpace($InstallParams)) { $args += @("-params", $InstallParams) }
 if ($VerboseMode) { $args += "-v" }
 
 Write-Host "Installing CAP:" $CapPath "with AID" $InstanceAID
@@ -5,6 +5,7 @@ GP_JAR=${1:-./tools/gp.jar}
 CAP_PATH=${2:-}
 KEY_HEX=${3:-404142434445464748494A4B4C4D4E4F}
 INSTANCE_AID=${4:-A00000006203010C06}
+INSTALL_PARAMS=${5:-}   # applet install parameter TLVs (hex), see PRODUCTION.md
 
 if [ ! -f "$GP_JAR" ]; then
   echo "GlobalPlatformPro jar not found: $GP_JAR" >&2
@@ -24,7 +25,11 @@ fi
 
 echo "Installing CAP: $CAP_PATH with AID $INSTANCE_AID"
 set -x
-java -jar "$GP_JAR" -key "$KEY_HEX" -install "$CAP_PATH" -default -create "$INSTANCE_AID"
+if [ -n "$INSTALL_PARAMS" ]; then
+  java -jar "$GP_JAR" -key "$KEY_HEX" -install "$CAP_PATH" -default -create "$INSTANCE_AID" -params "$INSTALL_PARAMS"
+else
+  java -jar "$GP_JAR" -key "$KEY_HEX" -install "$CAP_PATH" -default -create "$INSTANCE_AID"
+fi
 set +x
 echo "Install completed"
 
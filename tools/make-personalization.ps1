@@ -12,19 +12,39 @@ if (-not (Test-Path $cardDir)) { throw "Card folder not found: $cardDir" }
 $masterHex = (Get-Content (Join-Path $cardDir 'master_auth_key.hex') -Raw).Trim()
 $sessionHex = (Get-Content (Join-Path $cardDir 'session_key.hex') -Raw).Trim()
 
+# Optional imported card key
+$cardPrivPath = Join-Path $cardDir 'card_private.hex'
+$cardPrivHex = $(if (Test-Path $cardPrivPath) { (Get-Content $cardPrivPath -Raw).Trim() } else { '' })
+$cardPubHex = $(if (Test-Path $cardPrivPath) { (Get-Content (Join-Path $cardDir 'card_pub.hex') -Raw).Trim() } else { '' })
+
+# Optional RSA-2048 card key (PEM), imported as CRT components instead of the P-256 key
+$cardRsaPath = Join-Path $cardDir 'card_rsa.pem'
+if ((Test-Path $cardRsaPath) -and $cardPrivHex -ne '') { throw "Both card_rsa.pem and card_private.hex found in ${cardDir}; the card takes one card key" }
+
 # Optional server pubkey
 $serverPubHexPath = Join-Path (Split-Path $CardsRoot -Parent) 'server_pub_raw.hex'
 $serverPubHex = $(if (Test-Path $serverPubHexPath) { (Get-Content $serverPubHexPath -Raw).Trim() } else { '' })
 
 function Make-TLV([byte]$tag, [byte[]]$value) {
-    $len = [byte]$value.Length
-    $bytes = New-Object byte[] (2 + $value.Length)
+    $n = $value.Length
+    if ($n -gt 255) { $len = [byte[]](0x82, ($n -shr 8), ($n -band 0xFF)) }
+    elseif ($n -gt 127) { $len = [byte[]](0x81, $n) }
+    else { $len = [byte[]]($n) }
+    $bytes = New-Object byte[] (1 + $len.Length + $n)
     $bytes[0] = $tag
-    $bytes[1] = $len
-    [Array]::Copy($value, 0, $bytes, 2, $value.Length)
+    [Array]::Copy($len, 0, $bytes, 1, $len.Length)
+    [Array]::Copy($value, 0, $bytes, 1 + $len.Length, $n)
     $bytes
 }
 
+# Left-pad a big-endian value to the given size
+function Pad-Bytes([byte[]]$value, [int]$size) {
+    if ($value.Length -ge $size) { return $value }
+    $out = New-Object byte[] $size
+    [Array]::Copy($value, 0, $out, $size - $value.Length, $value.Length)
+    $out
+}
+
 function HexToBytes($hex) {
     if ($hex -eq $null -or $hex -eq '') { return @() }
     -split ($hex -replace '..','& ') | Where-Object { $_ -ne '' } | ForEach-Object { [Convert]::ToByte($_,16) }
@@ -37,6 +57,20 @@ $keyBlocks = @()
 if ($masterHex -ne '') { $keyBlocks += Make-TLV 0x81 (HexToBytes $masterHex) }
 if ($sessionHex -ne '') { $keyBlocks += Make-TLV 0x82 (HexToBytes $sessionHex) }
 if ($serverPubHex -ne '') { $keyBlocks += Make-TLV 0x91 (HexToBytes $serverPubHex) }
+if ($cardPrivHex -ne '') { $keyBlocks += Make-TLV 0x99 (HexToBytes $cardPrivHex) }
+if ($cardPubHex -ne '') { $keyBlocks += Make-TLV 0x9A (HexToBytes $cardPubHex) }
+if (Test-Path $cardRsaPath) {
+    $rsa = [System.Security.Cryptography.RSA]::Create()
+    $rsa.ImportFromPem((Get-Content $cardRsaPath -Raw))
+    $k = $rsa.ExportParameters($true)
+    $keyBlocks += Make-TLV 0x92 (Pad-Bytes $k.Modulus 256)
+    $keyBlocks += Make-TLV 0x93 $k.Exponent
+    $keyBlocks += Make-TLV 0x94 (Pad-Bytes $k.P 128)
+    $keyBlocks += Make-TLV 0x95 (Pad-Bytes $k.Q 128)
+    $keyBlocks += Make-TLV 0x96 (Pad-Bytes $k.DP 128)
+    $keyBlocks += Make-TLV 0x97 (Pad-Bytes $k.DQ 128)
+    $keyBlocks += Make-TLV 0x98 (Pad-Bytes $k.InverseQ 128)
+}
 
 function BytesToHex([byte[]]$b) { ($b | ForEach-Object { $_.ToString('X2') }) -join '' }
 
@@ -51,20 +85,30 @@ function Build-APDU($cla,$ins,$p1,$p2,$payloadHex) {
     return $hdr + $Lc + $payloadHex + '00'
 }
 
+# Payloads over 255 bytes go out as a command chain (CLA 90 for every segment
+# but the last); the card joins data objects cut by a segment boundary
+function Build-Chain($ins,$payloadHex) {
+    $max = 255 * 2
+    $apdus = @()
+    while ($payloadHex.Length -gt $max) {
+        $apdus += Build-APDU 0x90 $ins 0x00 0x00 $payloadHex.Substring(0, $max)
+        $payloadHex = $payloadHex.Substring($max)
+    }
+    $apdus += Build-APDU 0x80 $ins 0x00 0x00 $payloadHex
+    $apdus
+}
+
 $selectAID = '00A4040009A00000006203010C0600'
 $apduInit  = Build-APDU 0x80 0x01 0x00 0x00 $payloadInitHex
-$apduKeys  = Build-APDU 0x80 0x06 0x00 0x00 $payloadKeysHex
+$apduKeys  = Build-Chain 0x06 $payloadKeysHex
 
 if (-not (Test-Path $OutDir)) { New-Item -ItemType Directory -Force -Path $OutDir | Out-Null }
 $outCardDir = Join-Path $OutDir $CardId
 if (-not (Test-Path $outCardDir)) { New-Item -ItemType Directory -Force -Path $outCardDir | Out-Null }
 
 $scriptPath = Join-Path $outCardDir 'personalize.apdu'
-@(
-    $selectAID
-    $apduInit
-    $apduKeys
-) | Set-Content -Path $scriptPath -NoNewline
+$lines = @($selectAID, $apduInit) + $apduKeys
+(($lines -join "`n") + "`n") | Set-Content -Path $scriptPath -NoNewline
 
 Write-Host "APDU script generated:" $scriptPath
 
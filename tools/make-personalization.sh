@@ -24,17 +24,26 @@ fi
 MASTER_HEX=$(tr -d '\n\r' < "$CARD_DIR/master_auth_key.hex")
 SESSION_HEX=$(tr -d '\n\r' < "$CARD_DIR/session_key.hex")
 
+CARD_PRIV_HEX=""
+CARD_PUB_HEX=""
+if [ -f "$CARD_DIR/card_private.hex" ]; then
+  CARD_PRIV_HEX=$(tr -d '\n\r' < "$CARD_DIR/card_private.hex")
+  CARD_PUB_HEX=$(tr -d '\n\r' < "$CARD_DIR/card_pub.hex")
+fi
+
+# Optional RSA-2048 card key (PEM), imported as CRT components instead of the P-256 key
+CARD_RSA_PEM="$CARD_DIR/card_rsa.pem"
+if [ -f "$CARD_RSA_PEM" ] && [ -n "$CARD_PRIV_HEX" ]; then
+  echo "Both card_rsa.pem and card_private.hex found in $CARD_DIR; the card takes one card key" >&2
+  exit 1
+fi
+
 SERVER_PUB_HEX=""
 SERVER_PUB_HEX_PATH="$(dirname "$CARDS_ROOT")/server_pub_raw.hex"
 if [ -f "$SERVER_PUB_HEX_PATH" ]; then
   SERVER_PUB_HEX=$(tr -d '\n\r' < "$SERVER_PUB_HEX_PATH")
 fi
 
-hex_to_bytes() {
-  # input hex, output raw bytes to stdout
-  echo -n "$1" | sed 's/../& /g' | xargs -n1 printf "\\x%s"
-}
-
 bytes_to_hex() {
   od -An -v -t x1 | tr -d ' \n' | tr '[:lower:]' '[:upper:]'
 }
@@ -42,18 +51,52 @@ bytes_to_hex() {
 make_tlv() {
   local tag=$1
   local val_hex=$2
-  local val_bytes
-  val_bytes=$(hex_to_bytes "$val_hex")
+  local n=$(( ${#val_hex} / 2 ))
   local len
-  len=$(printf "%02X" $(echo -n "$val_bytes" | wc -c))
+  if [ "$n" -gt 255 ]; then
+    len=$(printf "82%04X" "$n")
+  elif [ "$n" -gt 127 ]; then
+    len=$(printf "81%02X" "$n")
+  else
+    len=$(printf "%02X" "$n")
+  fi
   printf "%02X%s%s" "$tag" "$len" "$val_hex"
 }
 
+# Left-pad a big-endian hex value to N bytes
+pad_hex() {
+  local val_hex=$1 bytes=$2
+  while [ ${#val_hex} -lt $(( bytes * 2 )) ]; do val_hex="0$val_hex"; done
+  echo -n "$val_hex"
+}
+
+# PKCS#1 integers of an RSA private key: version n e d p q dp dq qinv
+rsa_integers() {
+  { openssl rsa -in "$1" -traditional -outform DER 2>/dev/null || openssl rsa -in "$1" -outform DER 2>/dev/null; } \
+    | openssl asn1parse -inform DER | awk -F: '/INTEGER/ {print $NF}'
+}
+
 CARD_ID_TLV=$(make_tlv 0x5A "$CARD_ID")
 KEYS_HEX=""
 if [ -n "$MASTER_HEX" ]; then KEYS_HEX+=$(make_tlv 0x81 "$MASTER_HEX"); fi
 if [ -n "$SESSION_HEX" ]; then KEYS_HEX+=$(make_tlv 0x82 "$SESSION_HEX"); fi
 if [ -n "$SERVER_PUB_HEX" ]; then KEYS_HEX+=$(make_tlv 0x91 "$SERVER_PUB_HEX"); fi
+if [ -n "$CARD_PRIV_HEX" ]; then KEYS_HEX+=$(make_tlv 0x99 "$CARD_PRIV_HEX"); fi
+if [ -n "$CARD_PUB_HEX" ]; then KEYS_HEX+=$(make_tlv 0x9A "$CARD_PUB_HEX"); fi
+if [ -f "$CARD_RSA_PEM" ]; then
+  mapfile -t RSA < <(rsa_integers "$CARD_RSA_PEM")
+  if [ ${#RSA[@]} -ne 9 ]; then
+    echo "Cannot read RSA key components from $CARD_RSA_PEM" >&2
+    exit 1
+  fi
+  KEYS_HEX+=$(make_tlv 0x92 "$(pad_hex "${RSA[1]}" 256)")
+  KEYS_HEX+=$(make_tlv 0x93 "$(pad_hex "${RSA[2]}" $(( (${#RSA[2]} + 1) / 2 )))")
+  KEYS_HEX+=$(make_tlv 0x94 "$(pad_hex "${RSA[4]}" 128)")
+  KEYS_HEX+=$(make_tlv 0x95 "$(pad_hex "${RSA[5]}" 128)")
+  KEYS_HEX+=$(make_tlv 0x96 "$(pad_hex "${RSA[6]}" 128)")
+  KEYS_HEX+=$(make_tlv 0x97 "$(pad_hex "${RSA[7]}" 128)")
+  KEYS_HEX+=$(make_tlv 0x98 "$(pad_hex "${RSA[8]}" 128)")
+fi
 
 build_apdu() {
   local cla=$1 ins=$2 p1=$3 p2=$4 payload_hex=${5:-}
@@ -65,14 +108,27 @@ build_apdu() {
   echo -n "${hdr}${len}${payload_hex}00"
 }
 
+# Payloads over 255 bytes go out as a command chain (CLA 90 for every segment
+# but the last); the card joins data objects cut by a segment boundary
+build_chain() {
+  local ins=$1 payload_hex=$2
+  local max=$(( 255 * 2 ))
+  while [ ${#payload_hex} -gt $max ]; do
+    build_apdu 0x90 "$ins" 0x00 0x00 "${payload_hex:0:$max}"
+    echo
+    payload_hex=${payload_hex:$max}
+  done
+  build_apdu 0x80 "$ins" 0x00 0x00 "$payload_hex"
+}
+
 SELECT_AID="00A4040009A00000006203010C0600"
 APDU_INIT=$(build_apdu 0x80 0x01 0x00 0x00 "$CARD_ID_TLV")
-APDU_KEYS=$(build_apdu 0x80 0x06 0x00 0x00 "$KEYS_HEX")
+APDU_KEYS=$(build_chain 0x06 "$KEYS_HEX")
 
 mkdir -p "$OUT_DIR/$CARD_ID"
 SCRIPT_PATH="$OUT_DIR/$CARD_ID/personalize.apdu"
 {
-  echo -n "$SELECT_AID\n$APDU_INIT\n$APDU_KEYS"
+  printf "%s\n%s\n%s\n" "$SELECT_AID" "$APDU_INIT" "$APDU_KEYS"
 } > "$SCRIPT_PATH"
 
 echo "APDU script generated: $SCRIPT_PATH"